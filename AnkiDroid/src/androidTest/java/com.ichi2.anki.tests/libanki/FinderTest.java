@@ -0,0 +1,155 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+package com.ichi2.anki.tests.libanki;
+
+import android.test.AndroidTestCase;
+
+import com.ichi2.anki.exception.ConfirmModSchemaException;
+import com.ichi2.anki.exception.DeckRenameException;
+import com.ichi2.anki.tests.Shared;
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.Finder;
+import com.ichi2.libanki.Note;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that cached searches follow changes to the decks, models and notes they were compiled against, and that
+ * find and replace changes the notes and fields it should.
+ */
+public class FinderTest extends AndroidTestCase {
+
+    public void testDeckSearch() throws IOException, JSONException, DeckRenameException {
+        Collection d = Shared.getEmptyCol(getContext());
+        long parent = d.getDecks().id("Parent");
+        Note f = d.newNote();
+        f.setItem("Front", "one");
+        f.model().put("did", parent);
+        d.addNote(f);
+        assertEquals(1, d.findCards("deck:parent").size());
+        assertEquals(1, d.findCards("deck:parent").size());
+        // a child added after the search was cached
+        long child = d.getDecks().id("Parent::Child");
+        f = d.newNote();
+        f.setItem("Front", "two");
+        f.model().put("did", child);
+        d.addNote(f);
+        assertEquals(2, d.findCards("deck:parent").size());
+        assertEquals(1, d.findCards("deck:parent::child").size());
+        assertEquals(2, d.findCards("deck:par*").size());
+        // a sibling whose name sorts right after the children
+        long sibling = d.getDecks().id("Parent:");
+        f = d.newNote();
+        f.setItem("Front", "three");
+        f.model().put("did", sibling);
+        d.addNote(f);
+        assertEquals(2, d.findCards("deck:parent").size());
+        // renaming
+        d.getDecks().rename(d.getDecks().get(parent), "Renamed");
+        assertEquals(0, d.findCards("deck:parent").size());
+        assertEquals(2, d.findCards("deck:renamed").size());
+        // current deck
+        d.getDecks().select(child);
+        assertEquals(1, d.findCards("deck:current").size());
+        d.getDecks().select(parent);
+        assertEquals(2, d.findCards("deck:current").size());
+    }
+
+
+    public void testFieldSearch() throws IOException, JSONException, ConfirmModSchemaException {
+        Collection d = Shared.getEmptyCol(getContext());
+        Note f = d.newNote();
+        f.setItem("Front", "dog");
+        d.addNote(f);
+        assertEquals(1, d.findNotes("front:dog").size());
+        // the cached search embeds note ids, so it must follow the notes
+        f = d.newNote();
+        f.setItem("Front", "dog");
+        d.addNote(f);
+        assertEquals(2, d.findNotes("front:dog").size());
+        // renaming the field
+        JSONObject m = d.getModels().current();
+        d.getModels().renameField(m, d.getModels().fieldMap(m).get("Front").second, "Recto");
+        assertEquals(0, d.findNotes("front:dog").size());
+        assertEquals(2, d.findNotes("recto:dog").size());
+        assertEquals(2, d.findNotes("note:basic").size());
+        assertEquals(2, d.findCards("\"card:card 1\"").size());
+    }
+
+
+    public void testRefinement() throws IOException {
+        Finder finder = new Finder(Shared.getEmptyCol(getContext()));
+        assertTrue(finder.isRefinement("dog", "dogs"));
+        assertTrue(finder.isRefinement("dog", "dog cat"));
+        assertTrue(finder.isRefinement("deck:a dog", "deck:a dog -cat"));
+        assertFalse(finder.isRefinement("dog", "dog"));
+        assertFalse(finder.isRefinement("dog", "do"));
+        assertFalse(finder.isRefinement("-dog", "-dogs"));
+        assertFalse(finder.isRefinement("dog", "dog or cat"));
+        assertFalse(finder.isRefinement("tag:a", "tag:ab"));
+        assertFalse(finder.isRefinement("(dog", "(dog) or cat"));
+    }
+
+
+    public void testFindReplace() throws IOException {
+        Collection d = Shared.getEmptyCol(getContext());
+        Note f = d.newNote();
+        f.setItem("Front", "foo");
+        f.setItem("Back", "bar");
+        d.addNote(f);
+        Note f2 = d.newNote();
+        f2.setItem("Front", "baz");
+        f2.setItem("Back", "foo");
+        d.addNote(f2);
+        List<Long> nids = Arrays.asList(f.getId(), f2.getId());
+        // should do nothing
+        assertEquals(0, d.findReplace(nids, "abc", "123"));
+        // a dry run only counts
+        assertEquals(2, d.findReplace(nids, "foo", "qux", false, null, true, true, null));
+        f.load();
+        assertEquals("foo", f.getItem("Front"));
+        // global replace
+        assertEquals(2, d.findReplace(nids, "foo", "qux"));
+        f.load();
+        assertEquals("qux", f.getItem("Front"));
+        f2.load();
+        assertEquals("qux", f2.getItem("Back"));
+        // the sort field follows the replaced front
+        assertEquals("qux", d.getDb().queryString("select sfld from notes where id = " + f.getId()));
+        // single field replace
+        assertEquals(1, d.findReplace(nids, "qux", "foo", "Front"));
+        f.load();
+        assertEquals("foo", f.getItem("Front"));
+        f2.load();
+        assertEquals("qux", f2.getItem("Back"));
+        // regex replace
+        assertEquals(0, d.findReplace(nids, "B.r", "reg"));
+        f.load();
+        assertFalse("reg".equals(f.getItem("Back")));
+        assertEquals(1, d.findReplace(nids, "B.r", "reg", true));
+        f.load();
+        assertEquals("reg", f.getItem("Back"));
+        // regex restricted to a field, with a group reference
+        assertEquals(1, d.findReplace(nids, "(q)ux", "$1ix", true, "Back", true));
+        f2.load();
+        assertEquals("qix", f2.getItem("Back"));
+        assertEquals("baz", f2.getItem("Front"));
+    }
+}
@@ -0,0 +1,97 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+package com.ichi2.anki.tests.libanki;
+
+import android.test.AndroidTestCase;
+
+import com.ichi2.anki.tests.Shared;
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.sync.MediaDownloader;
+import com.ichi2.libanki.sync.RemoteMediaServer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Unit tests for {@link MediaDownloader}, against a stand-in for the media server.
+ */
+public class MediaDownloaderTest extends AndroidTestCase {
+
+    public void testDownload() throws IOException {
+        Collection d = Shared.getEmptyCol(getContext());
+        List<String> fnames = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            fnames.add("file" + i + ".jpg");
+        }
+        // the server sends at most 7 files per zip, as if the others went over its size limit
+        FakeServer server = new FakeServer(d, 7);
+        MediaDownloader downloader = new MediaDownloader(d, server, null);
+        assertTrue(downloader.download(new ArrayList<>(fnames)));
+        assertEquals(fnames.size(), downloader.getCount());
+        for (String fname : fnames) {
+            assertTrue(new File(d.getMedia().dir(), fname).exists());
+            assertNotNull(d.getMedia().syncInfo(fname).first);
+        }
+        assertTrue(server.mRequests.get() >= fnames.size() / 7);
+    }
+
+
+    private static class FakeServer extends RemoteMediaServer {
+        private final Collection mCol;
+        private final int mMaxFiles;
+        final AtomicInteger mRequests = new AtomicInteger();
+
+
+        FakeServer(Collection col, int maxFiles) {
+            super(col, null, null);
+            mCol = col;
+            mMaxFiles = maxFiles;
+        }
+
+
+        @Override
+        public ZipFile downloadFiles(List<String> top) {
+            mRequests.incrementAndGet();
+            try {
+                File zip = File.createTempFile(DOWNLOAD_PREFIX, ".zip", new File(mCol.getPath()).getParentFile());
+                ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+                JSONObject meta = new JSONObject();
+                for (int i = 0; i < Math.min(mMaxFiles, top.size()); i++) {
+                    out.putNextEntry(new ZipEntry(Integer.toString(i)));
+                    out.write(("contents of " + top.get(i)).getBytes("UTF-8"));
+                    out.closeEntry();
+                    meta.put(Integer.toString(i), top.get(i));
+                }
+                out.putNextEntry(new ZipEntry("_meta"));
+                out.write(meta.toString().getBytes("UTF-8"));
+                out.closeEntry();
+                out.close();
+                return new ZipFile(zip, ZipFile.OPEN_READ | ZipFile.OPEN_DELETE);
+            } catch (IOException | JSONException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
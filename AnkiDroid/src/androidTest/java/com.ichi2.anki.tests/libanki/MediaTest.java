@@ -17,18 +17,26 @@ package com.ichi2.anki.tests.libanki;
 
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.Suppress;
+import android.util.Pair;
 
 import com.ichi2.anki.BackupManager;
 import com.ichi2.anki.tests.Shared;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Media;
 import com.ichi2.libanki.Note;
+import com.ichi2.libanki.Utils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -59,6 +67,61 @@ public class MediaTest extends AndroidTestCase {
     }
 
 
+    public void testDedupe() throws IOException {
+        Collection d = Shared.getEmptyCol(getContext());
+        File dir = Shared.getTestDir(getContext());
+        File path = new File(dir, "foo.jpg");
+        FileOutputStream os = new FileOutputStream(path, false);
+        os.write("hello".getBytes());
+        os.close();
+        assertEquals("foo.jpg", d.getMedia().addFile(path));
+        // the same contents under another name reuse the existing file
+        File other = new File(dir, "bar.jpg");
+        Utils.copyFile(path, other);
+        assertEquals("foo.jpg", d.getMedia().addFile(other));
+        assertFalse(new File(d.getMedia().dir(), "bar.jpg").exists());
+        // duplicates already in the folder are listed without being touched
+        Utils.copyFile(path, new File(d.getMedia().dir(), "qux.jpg"));
+        d.getMedia().findChanges(true);
+        Note f = d.newNote();
+        f.setItem("Front", "<img src=\"qux.jpg\">");
+        d.addNote(f);
+        Map<String, String> duplicates = d.getMedia().duplicates();
+        assertEquals(Collections.singletonMap("qux.jpg", "foo.jpg"), duplicates);
+        assertTrue(new File(d.getMedia().dir(), "qux.jpg").exists());
+        // merging them updates the notes using them
+        Pair<List<String>, Long> merged = d.getMedia().mergeDuplicates(duplicates);
+        assertEquals(Arrays.asList("qux.jpg"), merged.first);
+        assertEquals(5L, (long) merged.second);
+        assertFalse(new File(d.getMedia().dir(), "qux.jpg").exists());
+        f.load();
+        assertEquals("<img src=\"foo.jpg\">", f.getItem("Front"));
+    }
+
+
+    public void testDedupeKeepsNamedFiles() throws IOException, JSONException {
+        Collection d = Shared.getEmptyCol(getContext());
+        File path = new File(d.getMedia().dir(), "foo.jpg");
+        FileOutputStream os = new FileOutputStream(path, false);
+        os.write("hello".getBytes());
+        os.close();
+        Utils.copyFile(path, new File(d.getMedia().dir(), "qux.jpg"));
+        d.getMedia().findChanges(true);
+        // a reference the media patterns don't see can't be rewritten, so the file stays
+        JSONObject m = d.getModels().current();
+        m.put("css", m.getString("css") + ".card { background: url(qux.jpg); }");
+        d.getModels().save(m);
+        Pair<List<String>, Long> merged = d.getMedia().mergeDuplicates(d.getMedia().duplicates());
+        assertTrue(merged.first.isEmpty());
+        assertTrue(new File(d.getMedia().dir(), "qux.jpg").exists());
+        // a file edited since it was recorded isn't offered for its old contents
+        os = new FileOutputStream(path, false);
+        os.write("changed".getBytes());
+        os.close();
+        assertNull(d.getMedia().fileWithChecksum(Utils.fileChecksum(new File(d.getMedia().dir(), "qux.jpg"))));
+    }
+
+
     public void testStrings() throws IOException {
         Collection d = Shared.getEmptyCol(getContext());
         Long mid = d.getModels().getModels().entrySet().iterator().next().getKey();
@@ -151,6 +214,29 @@ public class MediaTest extends AndroidTestCase {
     }
 
 
+    public void testRefIndex() {
+        Collection d = Shared.getEmptyCol(getContext());
+        Note f = d.newNote();
+        f.setItem("Front", "<IMG class=x src=\"foo.jpg\"><img src=bar.jpg>");
+        f.setItem("Back", "[sound:baz.mp3]<img src='http://example.com/x.png'>");
+        d.addNote(f);
+        List<String> refs = d.getMedia().filesInNotes(null).get(f.getId());
+        assertEquals(Arrays.asList("baz.mp3", "foo.jpg", "bar.jpg"), refs);
+        // a note changed without being flushed is parsed again
+        d.getDb().execute("update notes set flds = ?, mod = mod + 1 where id = ?",
+                new Object[] { "[sound:other.mp3]\u001f", f.getId() });
+        refs = d.getMedia().filesInNotes("id = " + f.getId()).get(f.getId());
+        assertEquals(Arrays.asList("other.mp3"), refs);
+        // as is one changed in bulk within the second of its last flush
+        f.load();
+        f.setItem("Back", "[sound:baz.mp3]");
+        f.flush();
+        d.findReplace(Arrays.asList(f.getId()), "baz", "qux");
+        refs = d.getMedia().filesInNotes("id = " + f.getId()).get(f.getId());
+        assertEquals(Arrays.asList("other.mp3", "qux.mp3"), refs);
+    }
+
+
     @Suppress
     private List<String> added(Collection d) {
         return d.getMedia().getDb().queryColumn(String.class, "select fname from media where csum is not null", 0);
@@ -200,6 +286,44 @@ public class MediaTest extends AndroidTestCase {
     }
 
 
+    public void testJournal() throws IOException {
+        Collection d = Shared.getEmptyCol(getContext());
+        d.getMedia().findChanges(true);
+        assertNull(d.getMedia()._changed());
+        File path = new File(Shared.getTestDir(getContext()), "foo.jpg");
+        FileOutputStream os = new FileOutputStream(path, false);
+        os.write("hello".getBytes());
+        os.close();
+        // our own changes are recorded without needing a scan
+        String fname = d.getMedia().addFile(path);
+        assertNull(d.getMedia()._changed());
+        assertEquals(1, added(d).size());
+        d.getMedia().removeFile(fname);
+        assertNull(d.getMedia()._changed());
+        assertEquals(1, removed(d).size());
+    }
+
+
+    public void testChecksum() throws IOException {
+        Collection d = Shared.getEmptyCol(getContext());
+        File path = new File(Shared.getTestDir(getContext()), "foo.jpg");
+        FileOutputStream os = new FileOutputStream(path, false);
+        os.write("hello".getBytes());
+        os.close();
+        String expected = "aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d";
+        assertEquals(expected, Utils.fileChecksum(path));
+        assertEquals(expected, Utils.checksum("hello"));
+        // a file hashed while written to the media folder is recorded with the same checksum
+        d.getMedia().writeFile("bar.jpg", new FileInputStream(path));
+        assertEquals(expected, d.getMedia().getDb().queryString("select csum from media where fname = 'bar.jpg'"));
+        // and so are those hashed in parallel by a scan
+        File copy = new File(d.getMedia().dir(), "baz.jpg");
+        Utils.copyFile(path, copy);
+        d.getMedia().findChanges(true);
+        assertEquals(expected, d.getMedia().getDb().queryString("select csum from media where fname = 'baz.jpg'"));
+    }
+
+
     public void testIllegal() throws IOException {
         Collection d = Shared.getEmptyCol(getContext());
         String aString = "a:b|cd\\e/f\0g*h";
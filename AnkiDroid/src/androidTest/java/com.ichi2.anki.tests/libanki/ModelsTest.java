@@ -0,0 +1,155 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+package com.ichi2.anki.tests.libanki;
+
+import android.test.AndroidTestCase;
+
+import com.ichi2.anki.exception.ConfirmModSchemaException;
+import com.ichi2.anki.tests.Shared;
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.Consts;
+import com.ichi2.libanki.Models;
+import com.ichi2.libanki.Utils;
+import com.ichi2.libanki.importer.AnkiPackageImporter;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Checks that the requirements found by {@link com.ichi2.libanki.template.TemplateAnalyzer} are the ones found by
+ * rendering the templates.
+ */
+public class ModelsTest extends AndroidTestCase {
+
+    public void testStockModels() throws IOException, JSONException, ConfirmModSchemaException {
+        Collection d = Shared.getEmptyCol(getContext());
+        Models.addBasicModel(d, "Basic copy");
+        Models.addForwardReverse(d);
+        Models.addForwardOptionalReverse(d);
+        _checkAll(d);
+    }
+
+
+    public void testSharedDeckModels() throws IOException, JSONException {
+        Collection d = Shared.getEmptyCol(getContext());
+        for (String apkg : new String[] {"media.apkg", "diffmodels2-1.apkg", "diffmodeltemplates-2.apkg",
+                "update1.apkg"}) {
+            new AnkiPackageImporter(d, Shared.getTestFilePath(getContext(), apkg)).run();
+        }
+        _checkAll(d);
+    }
+
+
+    public void testTemplateConstructs() throws IOException, JSONException {
+        Collection d = Shared.getEmptyCol(getContext());
+        JSONObject m = d.getModels().byName("Basic");
+        JSONObject t = m.getJSONArray("tmpls").getJSONObject(0);
+        String[] qfmts = new String[] {
+                "{{Front}}",
+                "{{#Back}}{{Front}}{{/Back}}",
+                "{{^Back}}{{Front}}{{/Back}}",
+                "{{^Front}}1{{/Front}}{{Front}}",
+                "{{text:Front}} {{hint:Back}}",
+                "{{Front}}<br>{{type:Back}}",
+                "{{cloze:Front}}{{Back}}",
+                "{{furigana:Front}}{{kanji:Back}}",
+                "{{!comment}}{{Card}} {{Deck}} {{Tags}}",
+                "{{#Tags}}{{Front}}{{/Tags}}{{Back}}",
+                "{{Unknown}} {{#Unknown}}{{Front}}{{/Unknown}}",
+                "<script>if (x) { y(); }</script>{{ Front }}",
+                "[latex]{{Front}}[/latex]",
+                "{{#Front}}{{/Front}}",
+                "{{=<% %>=}}<%Front%>",
+        };
+        for (String qfmt : qfmts) {
+            t.put("qfmt", qfmt);
+            d.getModels().save(m);
+            assertEquals(qfmt, _renderedReq(d, m).toString(), m.getJSONArray("req").toString());
+        }
+    }
+
+
+    private void _checkAll(Collection d) throws JSONException {
+        Models mm = d.getModels();
+        for (JSONObject m : mm.all()) {
+            if (m.getInt("type") == Consts.MODEL_CLOZE) {
+                continue;
+            }
+            mm.save(m);
+            assertEquals(m.getString("name"), _renderedReq(d, m).toString(), m.getJSONArray("req").toString());
+        }
+    }
+
+
+    /**
+     * The requirements libanki finds by rendering each template with every field but one filled in, then with only
+     * one field filled in.
+     */
+    private JSONArray _renderedReq(Collection d, JSONObject m) throws JSONException {
+        JSONArray req = new JSONArray();
+        int nflds = m.getJSONArray("flds").length();
+        JSONArray tmpls = m.getJSONArray("tmpls");
+        for (int t = 0; t < tmpls.length(); t++) {
+            int ord = tmpls.getJSONObject(t).getInt("ord");
+            String[] a = new String[nflds];
+            String[] b = new String[nflds];
+            Arrays.fill(a, "ankiflag");
+            Arrays.fill(b, "");
+            String full = _renderQuestion(d, m, ord, a);
+            String empty = _renderQuestion(d, m, ord, b);
+            JSONArray r = new JSONArray();
+            r.put(ord);
+            if (full.equals(empty)) {
+                r.put("none");
+                r.put(new JSONArray());
+                r.put(new JSONArray());
+                req.put(r);
+                continue;
+            }
+            JSONArray fields = new JSONArray();
+            for (int i = 0; i < nflds; i++) {
+                String[] tmp = a.clone();
+                tmp[i] = "";
+                if (!_renderQuestion(d, m, ord, tmp).contains("ankiflag")) {
+                    fields.put(i);
+                }
+            }
+            if (fields.length() > 0) {
+                r.put("all");
+            } else {
+                r.put("any");
+                for (int i = 0; i < nflds; i++) {
+                    String[] tmp = b.clone();
+                    tmp[i] = "1";
+                    if (!_renderQuestion(d, m, ord, tmp).equals(empty)) {
+                        fields.put(i);
+                    }
+                }
+            }
+            r.put(fields);
+            req.put(r);
+        }
+        return req;
+    }
+
+
+    private String _renderQuestion(Collection d, JSONObject m, int ord, String[] flds) throws JSONException {
+        return d._renderQA(new Object[] {1L, 1L, m.getLong("id"), 1L, ord, "", Utils.joinFields(flds)}).get("q");
+    }
+}
@@ -0,0 +1,111 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+package com.ichi2.anki.tests.libanki;
+
+import android.test.AndroidTestCase;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.ichi2.anki.tests.Shared;
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.Note;
+import com.ichi2.libanki.Utils;
+import com.ichi2.libanki.sync.Syncer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/**
+ * Checks that the rows of a chunk from the server are merged like libanki's newer-wins rule, and that chunks go through
+ * the streaming writer and reader.
+ */
+public class SyncerTest extends AndroidTestCase {
+
+    public void testMergeNotes() throws IOException, JSONException {
+        Collection d = Shared.getEmptyCol(getContext());
+        Note synced = d.newNote();
+        synced.setItem("Front", "one");
+        d.addNote(synced);
+        Note edited = d.newNote();
+        edited.setItem("Front", "two");
+        d.addNote(edited);
+        // the first note was synced since, the second changed locally
+        d.getDb().execute("UPDATE notes SET usn = 0 WHERE id = " + synced.getId());
+        String sfld = d.getDb().queryString("SELECT sfld FROM notes WHERE id = " + synced.getId());
+
+        JSONArray notes = new JSONArray();
+        // newer than the local copy, with changed fields
+        notes.put(_noteRow(d, synced, synced.getMod() + 1, "uno"));
+        // older than the local change, which wins
+        notes.put(_noteRow(d, edited, edited.getMod() - 1, "dos"));
+        JSONObject chunk = new JSONObject();
+        chunk.put("notes", notes);
+        chunk.put("done", true);
+        new Syncer(d, null).applyChunk(chunk);
+
+        synced.load();
+        edited.load();
+        assertEquals("uno", synced.getItem("Front"));
+        assertEquals("two", edited.getItem("Front"));
+        // the sort field, which the server doesn't send, is computed again for the changed note
+        String newSfld = d.getDb().queryString("SELECT sfld FROM notes WHERE id = " + synced.getId());
+        assertFalse(sfld.equals(newSfld));
+        assertEquals("uno", newSfld);
+    }
+
+
+    public void testStreamedChunk() throws IOException, JSONException {
+        Collection src = Shared.getEmptyCol(getContext());
+        Note n = src.newNote();
+        n.setItem("Front", "one \"quoted\"");
+        n.setItem("Back", "two\nlines");
+        src.addNote(n);
+        Syncer client = new Syncer(src, null);
+        // the small changes are merged before the chunks are sent; merging its own ones leaves the collection as is
+        client.mergeChanges(client.changes(), client.changes());
+        StringWriter out = new StringWriter();
+        JsonWriter w = new JsonWriter(out);
+        assertTrue(client.chunk(w));
+        w.flush();
+        // what was sent is marked as synced
+        assertEquals(0, src.getDb().queryScalar("SELECT count() FROM notes WHERE usn = -1"));
+        assertEquals(0, src.getDb().queryScalar("SELECT count() FROM cards WHERE usn = -1"));
+
+        Collection dst = Shared.getEmptyCol(getContext());
+        assertTrue(new Syncer(dst, null).applyChunk(new JsonReader(new StringReader(out.toString()))));
+        assertEquals(src.getDb().queryString("SELECT flds FROM notes WHERE id = " + n.getId()),
+                dst.getDb().queryString("SELECT flds FROM notes WHERE id = " + n.getId()));
+        assertEquals(1, dst.getDb().queryScalar("SELECT count() FROM cards WHERE nid = " + n.getId()));
+        // a plain JSON object, as the server reads it
+        JSONObject chunk = new JSONObject(out.toString());
+        assertEquals(1, chunk.getJSONArray("notes").length());
+        assertEquals(n.getId(), chunk.getJSONArray("notes").getJSONArray(0).getLong(0));
+        assertTrue(chunk.getBoolean("done"));
+    }
+
+
+    private static JSONArray _noteRow(Collection d, Note n, long mod, String front) {
+        String[] flds = n.getFields().clone();
+        flds[0] = front;
+        String guid = d.getDb().queryString("SELECT guid FROM notes WHERE id = " + n.getId());
+        return new JSONArray().put(n.getId()).put(guid).put(n.getMid()).put(mod).put(0).put("")
+                .put(Utils.joinFields(flds)).put("").put("").put(0).put("");
+    }
+}
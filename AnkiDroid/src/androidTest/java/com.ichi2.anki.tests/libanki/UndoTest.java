@@ -0,0 +1,142 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+package com.ichi2.anki.tests.libanki;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.ichi2.anki.tests.Shared;
+import com.ichi2.libanki.Card;
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.Note;
+import com.ichi2.libanki.Storage;
+
+import java.io.IOException;
+
+/**
+ * Unit tests for {@link com.ichi2.libanki.UndoJournal}.
+ */
+public class UndoTest extends AndroidTestCase {
+
+    public void testReviewUndo() throws IOException {
+        Collection d = Shared.getEmptyCol(getContext());
+        Note f = d.newNote();
+        f.setItem("Front", "one");
+        d.addNote(f);
+        d.reset();
+        assertFalse(d.undoAvailable());
+        Card c = d.getSched().getCard();
+        d.getSched().answerCard(c, 3);
+        assertTrue(d.undoAvailable());
+        assertEquals(1, d.getDb().queryScalar("select count() from revlog"));
+        // undo restores the scheduling columns and removes the revlog entry
+        assertEquals(c.getId(), d.undo());
+        assertFalse(d.undoAvailable());
+        c = d.getCard(c.getId());
+        assertEquals(0, c.getQueue());
+        assertEquals(0, c.getType());
+        assertEquals(0, c.getReps());
+        assertEquals(0, d.getDb().queryScalar("select count() from revlog"));
+    }
+
+
+    public void testRolledBackReviewNotJournaled() throws IOException {
+        Collection d = Shared.getEmptyCol(getContext());
+        Note f = d.newNote();
+        f.setItem("Front", "one");
+        d.addNote(f);
+        d.reset();
+        Card c = d.getSched().getCard();
+        d.getSched().answerCard(c, 3);
+        long first = d.getDb().queryLongScalar("select id from revlog");
+        // a second review whose transaction rolls back leaves neither a revlog entry nor an undo step
+        c = d.getCard(c.getId());
+        d.beginUndoableTransaction();
+        try {
+            d.getSched().answerCard(c, 3);
+        } finally {
+            d.getDb().getDatabase().endTransaction();
+        }
+        assertEquals(1, d.getDb().queryScalar("select count() from revlog"));
+        // so undoing removes the first review's own entry
+        assertEquals(c.getId(), d.undo());
+        assertFalse(d.undoAvailable());
+        assertEquals(0, d.getDb().queryScalar("select count() from revlog where id = " + first));
+    }
+
+
+    public void testUndoSurvivesReopen() throws IOException {
+        Collection d = Shared.getEmptyCol(getContext());
+        Note f = d.newNote();
+        f.setItem("Front", "one");
+        d.addNote(f);
+        d.reset();
+        Card c = d.getSched().getCard();
+        d.getSched().answerCard(c, 3);
+        String path = d.getPath();
+        d.close();
+        // a fresh instance picks up the persisted journal
+        d = Storage.Collection(getContext(), path);
+        assertTrue(d.undoAvailable());
+        assertEquals(c.getId(), d.undo());
+        assertEquals(0, d.getCard(c.getId()).getReps());
+        // and clearing it removes the persisted copy
+        d.clearUndo();
+        d.close();
+        d = Storage.Collection(getContext(), path);
+        assertFalse(d.undoAvailable());
+    }
+
+
+    public void testJournalDiscardedAfterOutsideChange() throws IOException {
+        Collection d = Shared.getEmptyCol(getContext());
+        Note f = d.newNote();
+        f.setItem("Front", "one");
+        d.addNote(f);
+        d.reset();
+        d.getSched().answerCard(d.getSched().getCard(), 3);
+        String path = d.getPath();
+        d.close();
+        // something else, like a full sync, changes the collection while it is closed
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READWRITE);
+        db.execSQL("update col set mod = mod + 1000");
+        db.close();
+        d = Storage.Collection(getContext(), path);
+        assertFalse(d.undoAvailable());
+    }
+
+
+    public void testDeepHistory() throws IOException {
+        Collection d = Shared.getEmptyCol(getContext());
+        for (int i = 0; i < 300; i++) {
+            Note f = d.newNote();
+            f.setItem("Front", Integer.toString(i));
+            d.addNote(f);
+        }
+        d.reset();
+        for (int i = 0; i < 300; i++) {
+            Card c = d.getCard(d.getDb().queryLongScalar("select id from cards where queue = 0 limit 1"));
+            d.markUndo(Collection.DismissType.SUSPEND_CARD, new Object[] { c });
+            d.getSched().suspendCards(new long[] { c.getId() });
+        }
+        // far more than the old 20 step limit
+        for (int i = 0; i < 300; i++) {
+            assertTrue(d.undoAvailable());
+            d.undo();
+        }
+        assertFalse(d.undoAvailable());
+        assertEquals(0, d.getDb().queryScalar("select count() from cards where queue = -1"));
+    }
+}
@@ -18,11 +18,15 @@
 
 package com.ichi2.anki;
 
+import android.annotation.TargetApi;
+import android.app.Activity;
 import android.app.Application;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.util.Log;
@@ -179,6 +183,12 @@ public class AnkiDroidApp extends Application {
         // Prepare Cookies to be synchronized between RAM and permanent storage.
         CompatHelper.getCompat().prepareWebViewCookies(this.getApplicationContext());
 
+        // Background database maintenance waits for every activity to be stopped, which can only be followed
+        // from API 14; older devices rely on Check Database
+        if (CompatHelper.getSdkVersion() >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            registerActivityLifecycleCallbacks(new ActivityTracker());
+        }
+
         // Set good default values for swipe detection
         final ViewConfiguration vc = ViewConfiguration.get(this);
         DEFAULT_SWIPE_MIN_DISTANCE = vc.getScaledPagingTouchSlop();
@@ -201,6 +211,47 @@ public class AnkiDroidApp extends Application {
     }
 
 
+    /** Reports the start and stop of every activity of the app to {@link UIUtils}, whichever class it extends. */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static class ActivityTracker implements ActivityLifecycleCallbacks {
+        @Override
+        public void onActivityStarted(Activity activity) {
+            UIUtils.activityStarted();
+        }
+
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+            UIUtils.activityStopped(activity);
+        }
+
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+        }
+
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+        }
+    }
+
+
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
         super.onConfigurationChanged(newConfig);
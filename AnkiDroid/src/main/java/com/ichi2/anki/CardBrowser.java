@@ -20,6 +20,7 @@ package com.ichi2.anki;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
@@ -46,6 +47,8 @@ import android.widget.AdapterView.OnItemLongClickListener;
 import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.ArrayAdapter;
 import android.widget.BaseAdapter;
+import android.widget.CheckBox;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.Spinner;
 import android.widget.TextView;
@@ -66,6 +69,7 @@ import com.ichi2.libanki.Card;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Note;
 import com.ichi2.libanki.Utils;
+import com.ichi2.themes.StyledProgressDialog;
 import com.ichi2.themes.Themes;
 import com.ichi2.upgrade.Upgrade;
 import com.ichi2.widget.WidgetStatus;
@@ -79,7 +83,9 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import timber.log.Timber;
 
@@ -94,6 +100,8 @@ public class CardBrowser extends NavigationDrawerActivity implements
     private MultiColumnListAdapter mCardsAdapter;
     private String mSearchTerms;
     private String mRestrictOnDeck;
+    // query, ids and stamp of the last completed search, so that the next one can refine it
+    private Object[] mLastSearch;
 
     private MenuItem mSearchItem;
     private MenuItem mSaveSearchItem;
@@ -116,6 +124,8 @@ public class CardBrowser extends NavigationDrawerActivity implements
     private static final int EDIT_CARD = 0;
     private static final int ADD_NOTE = 1;
     private static final int DEFAULT_FONT_SIZE_RATIO = 100;
+    // search as the user types once they stop for that long
+    private static final int SEARCH_AS_YOU_TYPE_DELAY = 400;
     // Should match order of R.array.card_browser_order_labels
     public static final int CARD_ORDER_NONE = 0;
     private static final String[] fSortTypes = new String[] {
@@ -150,6 +160,8 @@ public class CardBrowser extends NavigationDrawerActivity implements
     private DeckDropDownAdapter mDropDownAdapter;
     private Spinner mActionBarSpinner;
     private boolean mReloadRequired = false;
+    private DeckTask mFindReplaceTask;
+    private MaterialDialog mFindReplaceProgress;
 
     /**
      * Broadcast that informs us when the sd card is about to be unmounted
@@ -321,6 +333,16 @@ public class CardBrowser extends NavigationDrawerActivity implements
     };
 
 
+    private final Runnable mSearchAsYouType = new Runnable() {
+        @Override
+        public void run() {
+            if (mSearchView != null && !mSearchView.isIconified()) {
+                onSearch();
+            }
+        }
+    };
+
+
     private void onSearch() {
         mSearchTerms = mSearchView.getQuery().toString();
         if (mSearchTerms.length() == 0) {
@@ -527,6 +549,9 @@ public class CardBrowser extends NavigationDrawerActivity implements
         // cancel rendering the question and answer, which has shared access to mCards
         DeckTask.cancelTask(DeckTask.TASK_TYPE_SEARCH_CARDS);
         DeckTask.cancelTask(DeckTask.TASK_TYPE_RENDER_BROWSER_QA);
+        if (mSearchView != null) {
+            mSearchView.removeCallbacks(mSearchAsYouType);
+        }
         super.onStop();
         if (!isFinishing()) {
             WidgetStatus.update(this);
@@ -587,6 +612,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
             @Override
             public boolean onMenuItemActionCollapse(MenuItem item) {
                 // SearchView doesn't support empty queries so we always reset the search when collapsing
+                mSearchView.removeCallbacks(mSearchAsYouType);
                 mSearchTerms = "";
                 mSearchView.setQuery(mSearchTerms, false);
                 searchCards();
@@ -598,12 +624,18 @@ public class CardBrowser extends NavigationDrawerActivity implements
             @Override
             public boolean onQueryTextChange(String newText) {
                 mSaveSearchItem.setVisible(!TextUtils.isEmpty(newText));
+                // wait for the user to stop typing before searching
+                mSearchView.removeCallbacks(mSearchAsYouType);
+                if (!newText.equals(mSearchTerms)) {
+                    mSearchView.postDelayed(mSearchAsYouType, SEARCH_AS_YOU_TYPE_DELAY);
+                }
                 return true;
             }
 
 
             @Override
             public boolean onQueryTextSubmit(String query) {
+                mSearchView.removeCallbacks(mSearchAsYouType);
                 onSearch();
                 mSearchView.clearFocus();
                 return true;
@@ -675,6 +707,10 @@ public class CardBrowser extends NavigationDrawerActivity implements
                 showTagsDialog();
                 return true;
 
+            case R.id.action_find_replace:
+                showFindReplaceDialog();
+                return true;
+
             default:
                 return super.onOptionsItemSelected(item);
 
@@ -791,16 +827,73 @@ public class CardBrowser extends NavigationDrawerActivity implements
         searchCards();
     }
 
+    /** Find and replace in the notes of the current search, in the chosen field or in all fields. */
+    private void showFindReplaceDialog() {
+        View v = getLayoutInflater().inflate(R.layout.card_browser_find_replace_dialog, null);
+        final EditText find = (EditText) v.findViewById(R.id.find_replace_find);
+        final EditText replace = (EditText) v.findViewById(R.id.find_replace_replace);
+        final Spinner field = (Spinner) v.findViewById(R.id.find_replace_field);
+        final CheckBox regex = (CheckBox) v.findViewById(R.id.find_replace_regex);
+        final CheckBox ignoreCase = (CheckBox) v.findViewById(R.id.find_replace_ignore_case);
+        TreeSet<String> fieldNames = new TreeSet<>();
+        for (JSONObject m : getCol().getModels().all()) {
+            fieldNames.addAll(getCol().getModels().fieldNames(m));
+        }
+        List<String> fieldItems = new ArrayList<>();
+        fieldItems.add(getResources().getString(R.string.card_browser_find_replace_all_fields));
+        fieldItems.addAll(fieldNames);
+        ArrayAdapter<String> fieldAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, fieldItems);
+        fieldAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        field.setAdapter(fieldAdapter);
+        new MaterialDialog.Builder(this)
+                .title(R.string.card_browser_find_replace)
+                .customView(v, true)
+                .positiveText(R.string.dialog_ok)
+                .negativeText(R.string.dialog_cancel)
+                .onPositive(new MaterialDialog.SingleButtonCallback() {
+                    @Override
+                    public void onClick(@NonNull MaterialDialog dialog, @NonNull DialogAction which) {
+                        String src = find.getText().toString();
+                        if (src.length() == 0) {
+                            return;
+                        }
+                        if (regex.isChecked()) {
+                            try {
+                                Pattern.compile(src);
+                            } catch (PatternSyntaxException e) {
+                                UIUtils.showSimpleSnackbar(CardBrowser.this,
+                                        R.string.card_browser_find_replace_invalid_regex, false);
+                                return;
+                            }
+                        }
+                        // the first item stands for all fields
+                        String fieldName = field.getSelectedItemPosition() == 0 ? null
+                                : (String) field.getSelectedItem();
+                        mFindReplaceTask = DeckTask.launchDeckTask(DeckTask.TASK_TYPE_FIND_REPLACE,
+                                mFindReplaceHandler, new DeckTask.TaskData(new Object[] { getSearchText(), src,
+                                        replace.getText().toString(), regex.isChecked(), fieldName,
+                                        ignoreCase.isChecked(), false }));
+                    }
+                })
+                .show();
+    }
+
+
+    /** @return The query of the current search, restricted to the selected deck if the terms don't name one. */
+    private String getSearchText() {
+        if (mSearchTerms.contains("deck:")) {
+            return mSearchTerms;
+        } else {
+            return mRestrictOnDeck + mSearchTerms;
+        }
+    }
+
+
     private void searchCards() {
         // cancel the previous search & render tasks if still running
         DeckTask.cancelTask(DeckTask.TASK_TYPE_SEARCH_CARDS);
         DeckTask.cancelTask(DeckTask.TASK_TYPE_RENDER_BROWSER_QA);
-        String searchText;
-        if (mSearchTerms.contains("deck:")) {
-            searchText = mSearchTerms;
-        } else {
-            searchText = mRestrictOnDeck + mSearchTerms;
-        }
+        String searchText = getSearchText();
         if (colIsOpen() && mCardsAdapter!= null) {
             // clear the existing card list
             getCards().clear();
@@ -810,7 +903,8 @@ public class CardBrowser extends NavigationDrawerActivity implements
                     TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 20, getResources().getDisplayMetrics())) + 5;
             // Perform database query to get all card ids
             DeckTask.launchDeckTask(DeckTask.TASK_TYPE_SEARCH_CARDS, mSearchCardsHandler, new DeckTask.TaskData(
-                    new Object[] { mDeckNames, searchText, ((mOrder != CARD_ORDER_NONE)),  numCardsToRender}));
+                    new Object[] { mDeckNames, searchText, ((mOrder != CARD_ORDER_NONE)),  numCardsToRender,
+                            mLastSearch }));
         }
     }
 
@@ -1048,6 +1142,59 @@ public class CardBrowser extends NavigationDrawerActivity implements
         }
     };
 
+    private DeckTask.TaskListener mFindReplaceHandler = new DeckTask.TaskListener() {
+        @Override
+        public void onPreExecute() {
+            mFindReplaceProgress = StyledProgressDialog.show(CardBrowser.this,
+                    getResources().getString(R.string.card_browser_find_replace),
+                    getResources().getString(R.string.card_browser_find_replace_progress), true,
+                    new DialogInterface.OnCancelListener() {
+                        @Override
+                        public void onCancel(DialogInterface dialog) {
+                            // the notes already replaced stay replaced
+                            if (mFindReplaceTask != null) {
+                                mFindReplaceTask.cancel(true);
+                            }
+                        }
+                    });
+        }
+
+
+        @Override
+        public void onProgressUpdate(DeckTask.TaskData... values) {
+            if (mFindReplaceProgress != null && mFindReplaceProgress.isShowing()) {
+                mFindReplaceProgress.setContent(getResources().getString(R.string.card_browser_find_replace_progress)
+                        + " " + values[0].getInt() + "%");
+            }
+        }
+
+
+        @Override
+        public void onPostExecute(DeckTask.TaskData result) {
+            dismissFindReplaceProgress();
+            int count = result.getInt();
+            UIUtils.showSimpleSnackbar(CardBrowser.this,
+                    getResources().getQuantityString(R.plurals.card_browser_find_replace_done, count, count), false);
+            searchCards();
+        }
+
+
+        @Override
+        public void onCancelled() {
+            dismissFindReplaceProgress();
+            searchCards();
+        }
+
+
+        private void dismissFindReplaceProgress() {
+            if (mFindReplaceProgress != null && mFindReplaceProgress.isShowing()) {
+                mFindReplaceProgress.dismiss();
+            }
+            mFindReplaceProgress = null;
+            mFindReplaceTask = null;
+        }
+    };
+
     private DeckTask.TaskListener mSearchCardsHandler = new DeckTask.TaskListener() {
         @Override
         public void onProgressUpdate(TaskData... values) {
@@ -1068,6 +1215,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
         public void onPostExecute(TaskData result) {            
             if (result != null && mCards != null) {
                 Timber.i("CardBrowser:: Completed doInBackgroundSearchCards Successfuly");
+                mLastSearch = result.getObjArray();
                 updateList();
                 if (!mSearchView.isIconified()) {
                     UIUtils.showSimpleSnackbar(CardBrowser.this, getSubtitleText(), false);
@@ -96,7 +96,9 @@ public class CollectionHelper {
             }
             // Open the database
             Timber.i("openCollection: %s", path);
+            long start = System.currentTimeMillis();
             mCollection = Storage.Collection(context, path, false, true);
+            Timber.i("openCollection: opened in %d ms", System.currentTimeMillis() - start);
         }
         return mCollection;
     }
@@ -46,6 +46,7 @@ import android.support.v4.app.FragmentTransaction;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.text.TextUtils;
+import android.text.format.Formatter;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -1036,8 +1037,8 @@ public class DeckPicker extends NavigationDrawerActivity implements
 
 
     @Override
-    public void showMediaCheckDialog(int id, List<List<String>> checkList) {
-        showAsyncDialogFragment(MediaCheckDialog.newInstance(id, checkList));
+    public void showMediaCheckDialog(int id, List<List<String>> checkList, long reclaimed) {
+        showAsyncDialogFragment(MediaCheckDialog.newInstance(id, checkList, reclaimed));
     }
 
 
@@ -1159,13 +1160,19 @@ public class DeckPicker extends NavigationDrawerActivity implements
                 }
                 if (result != null && result.getBoolean()) {
                     String msg = "";
-                    long shrunk = Math.round(result.getLong() / 1024.0);
+                    long shrunk = Math.round((Long) result.getObjArray()[0] / 1024.0);
                     if (shrunk > 0.0) {
                         msg = String.format(Locale.getDefault(),
                                 getResources().getString(R.string.check_db_acknowledge_shrunk), (int) shrunk);
                     } else {
                         msg = getResources().getString(R.string.check_db_acknowledge);
                     }
+                    // what was found and fixed
+                    @SuppressWarnings("unchecked")
+                    List<String> problems = (List<String>) result.getObjArray()[1];
+                    if (!problems.isEmpty()) {
+                        msg += "\n\n" + TextUtils.join("\n", problems);
+                    }
                     // Show result of database check and restart the app
                     showSimpleMessageDialog(msg, true);
                 } else {
@@ -1176,6 +1183,9 @@ public class DeckPicker extends NavigationDrawerActivity implements
 
             @Override
             public void onProgressUpdate(TaskData... values) {
+                if (mProgressDialog != null && mProgressDialog.isShowing()) {
+                    mProgressDialog.setContent(values[0].getString());
+                }
             }
 
 
@@ -1204,7 +1214,8 @@ public class DeckPicker extends NavigationDrawerActivity implements
                 if (result != null && result.getBoolean()) {
                     @SuppressWarnings("unchecked")
                     List<List<String>> checkList = (List<List<String>>) result.getObjArray()[0];
-                    showMediaCheckDialog(MediaCheckDialog.DIALOG_MEDIA_CHECK_RESULTS, checkList);
+                    long reclaimed = (Long) result.getObjArray()[1];
+                    showMediaCheckDialog(MediaCheckDialog.DIALOG_MEDIA_CHECK_RESULTS, checkList, reclaimed);
                 } else {
                     showSimpleMessageDialog(getResources().getString(R.string.check_media_failed));
                 }
@@ -1233,6 +1244,45 @@ public class DeckPicker extends NavigationDrawerActivity implements
     }
 
 
+    @Override
+    public void mergeDuplicates() {
+        DeckTask.launchDeckTask(DeckTask.TASK_TYPE_MERGE_MEDIA_DUPLICATES, new DeckTask.TaskListener() {
+            @Override
+            public void onPreExecute() {
+                mProgressDialog = StyledProgressDialog.show(DeckPicker.this, "",
+                        getResources().getString(R.string.check_media_merging), false);
+            }
+
+
+            @Override
+            public void onPostExecute(TaskData result) {
+                if (mProgressDialog != null && mProgressDialog.isShowing()) {
+                    mProgressDialog.dismiss();
+                }
+                if (result != null && result.getBoolean()) {
+                    @SuppressWarnings("unchecked")
+                    List<String> merged = (List<String>) result.getObjArray()[0];
+                    long reclaimed = (Long) result.getObjArray()[1];
+                    showSimpleMessageDialog(getResources().getString(R.string.check_media_merged, merged.size(),
+                            Formatter.formatShortFileSize(DeckPicker.this, reclaimed)));
+                } else {
+                    showSimpleMessageDialog(getResources().getString(R.string.check_media_failed));
+                }
+            }
+
+
+            @Override
+            public void onProgressUpdate(TaskData... values) {
+            }
+
+
+            @Override
+            public void onCancelled() {
+            }
+        });
+    }
+
+
     public void exit() {
         CollectionHelper.getInstance().closeCollection(false);
         finishWithoutAnimation();
@@ -1821,12 +1871,14 @@ public class DeckPicker extends NavigationDrawerActivity implements
      */
     private void updateDeckList() {
         DeckTask.launchDeckTask(DeckTask.TASK_TYPE_LOAD_DECK_COUNTS, new DeckTask.TaskListener() {
+            private long mStartTime;
 
             @Override
             public void onPreExecute() {
                 if (!colIsOpen()) {
                     showProgressBar();
                 }
+                mStartTime = System.currentTimeMillis();
                 Timber.d("Refreshing deck list");
             }
 
@@ -1844,6 +1896,7 @@ public class DeckPicker extends NavigationDrawerActivity implements
                 }
                 List<Sched.DeckDueTreeNode> nodes = (List<Sched.DeckDueTreeNode>) result.getObjArray()[0];
                 mDeckListAdapter.buildDeckList(nodes, getCol());
+                Timber.d("Deck list refreshed in %d ms", System.currentTimeMillis() - mStartTime);
 
                 // Set the "x due in y minutes" subtitle
                 try {
@@ -2173,11 +2226,23 @@ public class DeckPicker extends NavigationDrawerActivity implements
             @Override
             public void onPreExecute(DeckTask task) {
                 mProgressDialog = StyledProgressDialog.show(DeckPicker.this, "",
-                        getResources().getString(R.string.emtpy_cards_finding), false);
+                        getResources().getString(R.string.emtpy_cards_finding), true,
+                        new DialogInterface.OnCancelListener() {
+                            @Override
+                            public void onCancel(DialogInterface dialog) {
+                                DeckTask.cancelTask(DeckTask.TASK_TYPE_FIND_EMPTY_CARDS);
+                            }
+                        });
             }
 
             @Override
             public void onPostExecute(DeckTask task, TaskData result) {
+                if (mProgressDialog != null && mProgressDialog.isShowing()) {
+                    mProgressDialog.dismiss();
+                }
+                if (result == null) {
+                    return;
+                }
                 final List<Long> cids = (List<Long>) result.getObjArray()[0];
                 if (cids.size() == 0) {
                     showSimpleMessageDialog(getResources().getString(R.string.empty_cards_none));
@@ -2186,29 +2251,66 @@ public class DeckPicker extends NavigationDrawerActivity implements
                     ConfirmationDialog dialog = new ConfirmationDialog() {
                         @Override
                         public void confirm() {
-                            getCol().remCards(Utils.arrayList2array(cids));
-                            UIUtils.showSimpleSnackbar(DeckPicker.this, String.format(
-                                    getResources().getString(R.string.empty_cards_deleted), cids.size()), false);
+                            deleteEmptyCards(cids);
                         }
                     };
                     dialog.setArgs(msg);
                     showDialogFragment(dialog);
                 }
+            }
+
+            @Override
+            public void onProgressUpdate(DeckTask task, TaskData... values) {
+                if (mProgressDialog != null && mProgressDialog.isShowing()) {
+                    mProgressDialog.setContent(values[0].getString());
+                }
+            }
 
+            @Override
+            public void onCancelled() {
                 if (mProgressDialog != null && mProgressDialog.isShowing()) {
                     mProgressDialog.dismiss();
                 }
             }
+        });
+    }
+
 
+    private void deleteEmptyCards(List<Long> cids) {
+        DeckTask.launchDeckTask(DeckTask.TASK_TYPE_DELETE_EMPTY_CARDS, new DeckTask.TaskListener() {
             @Override
-            public void onProgressUpdate(DeckTask task, TaskData... values) {
+            public void onPreExecute() {
+                mProgressDialog = StyledProgressDialog.show(DeckPicker.this, "",
+                        getResources().getString(R.string.empty_cards_deleting), false);
+            }
+
 
+            @Override
+            public void onPostExecute(TaskData result) {
+                if (mProgressDialog != null && mProgressDialog.isShowing()) {
+                    mProgressDialog.dismiss();
+                }
+                if (result == null || !result.getBoolean()) {
+                    handleDbError();
+                    return;
+                }
+                UIUtils.showSimpleSnackbar(DeckPicker.this, String.format(
+                        getResources().getString(R.string.empty_cards_deleted), result.getInt()), false);
+                updateDeckList();
             }
 
+
             @Override
-            public void onCancelled() {
+            public void onProgressUpdate(TaskData... values) {
+                if (mProgressDialog != null && mProgressDialog.isShowing()) {
+                    mProgressDialog.setContent(values[0].getString());
+                }
+            }
+
 
+            @Override
+            public void onCancelled() {
             }
-        });
+        }, new TaskData(new Object[] { cids }));
     }
 }
@@ -16,6 +16,7 @@
  ****************************************************************************************/
 package com.ichi2.anki;
 
+import android.content.DialogInterface;
 import android.os.Bundle;
 import android.support.v7.widget.Toolbar;
 import android.text.InputType;
@@ -194,7 +195,7 @@ public class ModelFieldEditor extends AnkiActivity {
                         } else {
                             //Name is valid, now field is added
                             try {
-                                mCol.modSchema();
+                                mCol.checkSchema();
                                 DeckTask.launchDeckTask(DeckTask.TASK_TYPE_ADD_FIELD, mChangeFieldHandler,
                                         new DeckTask.TaskData(new Object[]{mMod, fieldName}));
                             } catch (ConfirmModSchemaException e) {
@@ -237,15 +238,11 @@ public class ModelFieldEditor extends AnkiActivity {
             showToast(getResources().getString(R.string.toast_last_field));
         } else {
             try {
-                mCol.modSchema();
+                mCol.checkSchema();
                 ConfirmationDialog d = new ConfirmationDialog() {
                     public void confirm() {
-                        try {
-                            mCol.modSchema(false);
-                            deleteField();
-                        } catch (ConfirmModSchemaException e) {
-                            //This should never be reached because modSchema() didn't throw an exception
-                        }
+                        // the schema is marked modified once the field is deleted
+                        deleteField();
                         dismissContextMenu();
                     }
                     public void cancel() {
@@ -372,7 +369,7 @@ public class ModelFieldEditor extends AnkiActivity {
                         } else {
                             // Input is valid, now attempt to modify
                             try {
-                                mCol.modSchema();
+                                mCol.checkSchema();
                                 DeckTask.launchDeckTask(DeckTask.TASK_TYPE_REPOSITION_FIELD, mChangeFieldHandler,
                                         new DeckTask.TaskData(new Object[]{mMod,
                                                 mNoteFields.getJSONObject(mCurrentPos), pos - 1}));
@@ -457,7 +454,7 @@ public class ModelFieldEditor extends AnkiActivity {
      */
     private void sortByField() {
         try {
-            mCol.modSchema();
+            mCol.checkSchema();
             DeckTask.launchDeckTask(DeckTask.TASK_TYPE_CHANGE_SORT_FIELD, mChangeFieldHandler,
                     new DeckTask.TaskData(new Object[]{mMod, mCurrentPos}));
         } catch (ConfirmModSchemaException e) {
@@ -518,17 +515,35 @@ public class ModelFieldEditor extends AnkiActivity {
      * Called during the desk task when any field is modified
      */
     private DeckTask.TaskListener mChangeFieldHandler = new DeckTask.TaskListener() {
+        /** The task in progress, which the progress dialog cancels. */
+        private DeckTask mTask;
+
+        @Override
+        public void onPreExecute(DeckTask task) {
+            mTask = task;
+            super.onPreExecute(task);
+        }
 
         @Override
         public void onCancelled() {
-            //This decktask can not be interrupted
+            // the model and its notes were left as they were
+            dismissProgressBar();
+            fullRefreshList();
         }
 
         @Override
         public void onPreExecute() {
             if (mProgressDialog == null) {
                 mProgressDialog = StyledProgressDialog.show(ModelFieldEditor.this, getIntent().getStringExtra("title"),
-                        getResources().getString(R.string.model_field_editor_changing), false);
+                        getResources().getString(R.string.model_field_editor_changing), true,
+                        new DialogInterface.OnCancelListener() {
+                            @Override
+                            public void onCancel(DialogInterface dialog) {
+                                if (mTask != null) {
+                                    mTask.cancel(true);
+                                }
+                            }
+                        });
             }
         }
 
@@ -544,7 +559,9 @@ public class ModelFieldEditor extends AnkiActivity {
 
         @Override
         public void onProgressUpdate(DeckTask.TaskData... values) {
-            //This decktask does not publish updates
+            if (mProgressDialog != null && mProgressDialog.isShowing()) {
+                mProgressDialog.setContent(values[0].getString());
+            }
         }
     };
 
@@ -773,15 +773,51 @@ public class NoteEditor extends AnkiActivity {
      * @throws ConfirmModSchemaException
      */
     private void changeNoteType(JSONObject oldModel, JSONObject newModel) throws ConfirmModSchemaException {
+        getCol().checkSchema();
         final long [] nids = {mEditorNote.getId()};
-        getCol().getModels().change(oldModel, nids, newModel, mModelChangeFieldMap, mModelChangeCardMap);
-        // refresh the note object to reflect the database changes
-        mEditorNote.load();
-        // close note editor
-        closeNoteEditor();
+        DeckTask.launchDeckTask(DeckTask.TASK_TYPE_CHANGE_MODEL, mChangeModelHandler, new DeckTask.TaskData(
+                new Object[] { oldModel, nids, newModel, mModelChangeFieldMap, mModelChangeCardMap }));
     }
 
 
+    private DeckTask.TaskListener mChangeModelHandler = new DeckTask.TaskListener() {
+        @Override
+        public void onPreExecute() {
+            mProgressDialog = StyledProgressDialog.show(NoteEditor.this, "",
+                    getResources().getString(R.string.model_change_note_type), false);
+        }
+
+
+        @Override
+        public void onProgressUpdate(DeckTask.TaskData... values) {
+        }
+
+
+        @Override
+        public void onPostExecute(DeckTask.TaskData result) {
+            if (mProgressDialog != null && mProgressDialog.isShowing()) {
+                mProgressDialog.dismiss();
+            }
+            if (result.getBoolean()) {
+                // refresh the note object to reflect the database changes
+                mEditorNote.load();
+                // close note editor
+                closeNoteEditor();
+            } else {
+                closeNoteEditor(DeckPicker.RESULT_DB_ERROR);
+            }
+        }
+
+
+        @Override
+        public void onCancelled() {
+            if (mProgressDialog != null && mProgressDialog.isShowing()) {
+                mProgressDialog.dismiss();
+            }
+        }
+    };
+
+
     @Override
     public void onBackPressed() {
         Timber.i("NoteEditor:: onBackPressed()");
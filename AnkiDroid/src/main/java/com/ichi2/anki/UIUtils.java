@@ -3,7 +3,13 @@ package com.ichi2.anki;
 
 import android.app.Activity;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.graphics.Color;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.design.widget.Snackbar;
 import android.support.v4.content.ContextCompat;
 import android.view.View;
@@ -19,6 +25,22 @@ import timber.log.Timber;
 
 public class UIUtils {
 
+    /** Time after which database maintenance is run again, in ms. */
+    private static final long MAINTENANCE_INTERVAL = 24 * 60 * 60 * 1000;
+    /** Time after which a maintenance run that didn't complete is continued, in ms. */
+    private static final long MAINTENANCE_RETRY_INTERVAL = 60 * 60 * 1000;
+    /**
+     * Time the app must have no started activity before it's taken to be in the background, in ms. Covers the gap
+     * between the activities of a transition or a rotation.
+     */
+    private static final long BACKGROUND_DELAY = 1000;
+
+    /** Activities of the app between onStart and onStop. */
+    private static int sStartedActivities = 0;
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static Runnable sOnBackground;
+
+
     public static void showThemedToast(Context context, String text, boolean shortLength) {
         Toast.makeText(context, text, shortLength ? Toast.LENGTH_SHORT : Toast.LENGTH_LONG).show();
     }
@@ -136,4 +158,92 @@ public class UIUtils {
             });
         }
     }
+
+
+    /** Called by {@link AnkiDroidApp} when any activity of the app is started. */
+    public static void activityStarted() {
+        sStartedActivities++;
+        if (sOnBackground != null) {
+            sHandler.removeCallbacks(sOnBackground);
+            sOnBackground = null;
+        }
+    }
+
+
+    /**
+     * Called by {@link AnkiDroidApp} when any activity of the app is stopped. When no activity of the app is started any more, the app went to
+     * the background and database maintenance may run.
+     */
+    public static void activityStopped(Context context) {
+        sStartedActivities--;
+        if (sStartedActivities > 0) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        sOnBackground = new Runnable() {
+            @Override
+            public void run() {
+                sOnBackground = null;
+                runMaintenanceInBackground(appContext);
+            }
+        };
+        sHandler.postDelayed(sOnBackground, BACKGROUND_DELAY);
+    }
+
+
+    /**
+     * Run a slice of database maintenance if the device is charging and it hasn't been completed in the last day.
+     * Meant to be called once the app is in the background and idle; what isn't done in one slice is continued an
+     * hour later at the earliest.
+     */
+    public static void runMaintenanceInBackground(Context context) {
+        if (!CollectionHelper.getInstance().colIsOpen() || DeckTask.taskIsPending() || !isCharging(context)) {
+            return;
+        }
+        final SharedPreferences preferences = AnkiDroidApp.getSharedPrefs(context);
+        long now = System.currentTimeMillis();
+        if (now - preferences.getLong("lastMaintenance", 0) < MAINTENANCE_INTERVAL
+                || now - preferences.getLong("lastMaintenanceAttempt", 0) < MAINTENANCE_RETRY_INTERVAL) {
+            return;
+        }
+        // recorded before the run, so that one that is interrupted isn't started again on every stop
+        preferences.edit().putLong("lastMaintenanceAttempt", now).commit();
+        DeckTask.launchDeckTask(DeckTask.TASK_TYPE_MAINTENANCE, new DeckTask.TaskListener() {
+            @Override
+            public void onPreExecute() {
+                Timber.d("runMaintenanceInBackground: start");
+            }
+
+
+            @Override
+            public void onPostExecute(TaskData result) {
+                boolean complete = result != null && result.getBoolean();
+                Timber.d("runMaintenanceInBackground: finished, complete = %b", complete);
+                if (complete) {
+                    preferences.edit().putLong("lastMaintenance", System.currentTimeMillis()).commit();
+                }
+            }
+
+
+            @Override
+            public void onProgressUpdate(TaskData... values) {
+            }
+
+
+            @Override
+            public void onCancelled() {
+            }
+        });
+    }
+
+
+    private static boolean isCharging(Context context) {
+        // sticky broadcast, no receiver needed
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return false;
+        }
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        return status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL;
+    }
 }
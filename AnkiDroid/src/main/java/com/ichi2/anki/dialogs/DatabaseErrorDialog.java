@@ -14,11 +14,14 @@ import com.ichi2.anki.CollectionHelper;
 import com.ichi2.anki.DeckPicker;
 import com.ichi2.anki.R;
 import com.ichi2.compat.CompatHelper;
+import com.ichi2.libanki.Maintenance;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 
+import timber.log.Timber;
+
 public class DatabaseErrorDialog extends AsyncDialogFragment {
     private int mType = 0;
     private int[] mRepairValues;
@@ -339,6 +342,22 @@ public class DatabaseErrorDialog extends AsyncDialogFragment {
     }
 
 
+    /** Size and free space of the open collection, or nothing if it isn't open. */
+    private String getDatabaseStats() {
+        if (!CollectionHelper.getInstance().colIsOpen()) {
+            return "";
+        }
+        try {
+            Maintenance.Stats stats = CollectionHelper.getInstance().getCol(getActivity()).getMaintenance().stats();
+            return "\n\n" + res().getString(R.string.check_db_stats, stats.getSize() / (1024 * 1024),
+                    stats.getFreeSize() / (1024 * 1024), (int) Math.round(stats.getFreeRatio() * 100));
+        } catch (RuntimeException e) {
+            Timber.w(e, "Could not read database statistics");
+            return "";
+        }
+    }
+
+
     private String getMessage() {
         switch (getArguments().getInt("dialogType")) {
             case DIALOG_LOAD_FAILED:
@@ -364,7 +383,7 @@ public class DatabaseErrorDialog extends AsyncDialogFragment {
             case DIALOG_NEW_COLLECTION:
                 return res().getString(R.string.backup_del_collection_question);
             case DIALOG_CONFIRM_DATABASE_CHECK:
-                return res().getString(R.string.check_db_warning);
+                return res().getString(R.string.check_db_warning) + getDatabaseStats();
             case DIALOG_CONFIRM_RESTORE_BACKUP:
                 return res().getString(R.string.restore_backup);
             case DIALOG_FULL_SYNC_FROM_SERVER:
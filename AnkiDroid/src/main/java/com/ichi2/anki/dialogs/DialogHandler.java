@@ -75,12 +75,15 @@ public class DialogHandler extends Handler {
         } else if (msg.what == MSG_SHOW_MEDIA_CHECK_COMPLETE_DIALOG) {            
             // Media check results
             int id = msgData.getInt("dialogType");
-            if (id!=MediaCheckDialog.DIALOG_CONFIRM_MEDIA_CHECK) {
+            if (id == MediaCheckDialog.DIALOG_CONFIRM_MERGE_DUPLICATES) {
+                ((DeckPicker) mActivity.get()).showMediaCheckDialog(id);
+            } else if (id!=MediaCheckDialog.DIALOG_CONFIRM_MEDIA_CHECK) {
                 List<List<String>> checkList = new ArrayList<>();
                 checkList.add(msgData.getStringArrayList("nohave"));
                 checkList.add(msgData.getStringArrayList("unused"));
                 checkList.add(msgData.getStringArrayList("invalid"));
-                ((DeckPicker) mActivity.get()).showMediaCheckDialog(id, checkList);
+                checkList.add(msgData.getStringArrayList("duplicates"));
+                ((DeckPicker) mActivity.get()).showMediaCheckDialog(id, checkList, msgData.getLong("reclaimed"));
             }
         } else if (msg.what == MSG_SHOW_DATABASE_ERROR_DIALOG) {
             // Database error dialog
@@ -3,6 +3,7 @@ package com.ichi2.anki.dialogs;
 
 import android.os.Bundle;
 import android.os.Message;
+import android.text.format.Formatter;
 
 import com.afollestad.materialdialogs.MaterialDialog;
 import com.ichi2.anki.R;
@@ -13,12 +14,13 @@ import java.util.List;
 public class MediaCheckDialog extends AsyncDialogFragment {
     public static final int DIALOG_CONFIRM_MEDIA_CHECK = 0;
     public static final int DIALOG_MEDIA_CHECK_RESULTS = 1;
+    public static final int DIALOG_CONFIRM_MERGE_DUPLICATES = 2;
 
     public interface MediaCheckDialogListener {
         public void showMediaCheckDialog(int dialogType);
 
 
-        public void showMediaCheckDialog(int dialogType, List<List<String>> checkList);
+        public void showMediaCheckDialog(int dialogType, List<List<String>> checkList, long reclaimed);
 
 
         public void mediaCheck();
@@ -27,6 +29,9 @@ public class MediaCheckDialog extends AsyncDialogFragment {
         public void deleteUnused(List<String> unused);
 
 
+        public void mergeDuplicates();
+
+
         public void dismissAllDialogFragments();
     }
 
@@ -40,12 +45,18 @@ public class MediaCheckDialog extends AsyncDialogFragment {
     }
 
 
-    public static MediaCheckDialog newInstance(int dialogType, List<List<String>> checkList) {
+    /**
+     * @param checkList Missing, unused, invalid and duplicate files
+     * @param reclaimed Bytes that merging the duplicates would free
+     */
+    public static MediaCheckDialog newInstance(int dialogType, List<List<String>> checkList, long reclaimed) {
         MediaCheckDialog f = new MediaCheckDialog();
         Bundle args = new Bundle();
         args.putStringArrayList("nohave", new ArrayList<>(checkList.get(0)));
         args.putStringArrayList("unused", new ArrayList<>(checkList.get(1)));
         args.putStringArrayList("invalid", new ArrayList<>(checkList.get(2)));
+        args.putStringArrayList("duplicates", new ArrayList<>(checkList.get(3)));
+        args.putLong("reclaimed", reclaimed);
         args.putInt("dialogType", dialogType);
         f.setArguments(args);
         return f;
@@ -79,15 +90,43 @@ public class MediaCheckDialog extends AsyncDialogFragment {
                             }
                         })
                         .show();
+            case DIALOG_CONFIRM_MERGE_DUPLICATES:
+                return builder.content(getNotificationMessage())
+                        .positiveText(res().getString(R.string.check_media_merge_duplicates))
+                        .negativeText(res().getString(R.string.dialog_cancel))
+                        .cancelable(true)
+                        .callback(new MaterialDialog.ButtonCallback() {
+                            @Override
+                            public void onPositive(MaterialDialog dialog) {
+                                ((MediaCheckDialogListener) getActivity()).mergeDuplicates();
+                                ((MediaCheckDialogListener) getActivity())
+                                        .dismissAllDialogFragments();
+                            }
+
+                            @Override
+                            public void onNegative(MaterialDialog dialog) {
+                                ((MediaCheckDialogListener) getActivity())
+                                        .dismissAllDialogFragments();
+                            }
+                        })
+                        .show();
             case DIALOG_MEDIA_CHECK_RESULTS:
                 final ArrayList<String> nohave = getArguments().getStringArrayList("nohave");
                 final ArrayList<String> unused = getArguments().getStringArrayList("unused");
                 final ArrayList<String> invalid = getArguments().getStringArrayList("invalid");
+                final ArrayList<String> duplicates = getArguments().getStringArrayList("duplicates");
                 // Generate report
                 String report = "";
                 if (invalid.size() > 0) {
                     report += String.format(res().getString(R.string.check_media_invalid), invalid.size());
                 }
+                if (duplicates.size() > 0) {
+                    if (report.length() > 0) {
+                        report += "\n";
+                    }
+                    report += res().getString(R.string.check_media_duplicates, duplicates.size(),
+                            Formatter.formatShortFileSize(getActivity(), getArguments().getLong("reclaimed")));
+                }
                 if (unused.size() > 0) {
                     if (report.length() > 0) {
                         report += "\n";
@@ -111,6 +150,11 @@ public class MediaCheckDialog extends AsyncDialogFragment {
                 builder.content(report)
                         .cancelable(true);
 
+                // Duplicates are only merged if the user asks for it, after a confirmation
+                if (duplicates.size() > 0) {
+                    builder.neutralText(res().getString(R.string.check_media_merge_duplicates));
+                }
+
                 // If we have unused files, show a dialog with a "delete" button. Otherwise, the user only
                 // needs to acknowledge the results, so show only an OK dialog.
                 if (unused.size() > 0) {
@@ -128,6 +172,11 @@ public class MediaCheckDialog extends AsyncDialogFragment {
                                     ((MediaCheckDialogListener) getActivity()).deleteUnused(unused);
                                     dismissAllDialogFragments();
                                 }
+
+                                @Override
+                                public void onNeutral(MaterialDialog dialog) {
+                                    confirmMergeDuplicates();
+                                }
                             });
                 } else {
                     builder.positiveText(res().getString(R.string.dialog_ok))
@@ -136,6 +185,11 @@ public class MediaCheckDialog extends AsyncDialogFragment {
                                 public void onPositive(MaterialDialog dialog) {
                                     ((MediaCheckDialogListener) getActivity()).dismissAllDialogFragments();
                                 }
+
+                                @Override
+                                public void onNeutral(MaterialDialog dialog) {
+                                    confirmMergeDuplicates();
+                                }
                             });
                 }
                 return builder.show();
@@ -150,11 +204,20 @@ public class MediaCheckDialog extends AsyncDialogFragment {
     }
 
 
+    private void confirmMergeDuplicates() {
+        MediaCheckDialogListener listener = (MediaCheckDialogListener) getActivity();
+        listener.dismissAllDialogFragments();
+        listener.showMediaCheckDialog(DIALOG_CONFIRM_MERGE_DUPLICATES);
+    }
+
+
     @Override
     public String getNotificationMessage() {
         switch (getArguments().getInt("dialogType")) {
             case DIALOG_CONFIRM_MEDIA_CHECK:
                 return res().getString(R.string.check_media_warning);
+            case DIALOG_CONFIRM_MERGE_DUPLICATES:
+                return res().getString(R.string.check_media_merge_warning);
             default:
                 return res().getString(R.string.app_name);
         }
@@ -166,6 +229,8 @@ public class MediaCheckDialog extends AsyncDialogFragment {
         switch (getArguments().getInt("dialogType")) {
             case DIALOG_CONFIRM_MEDIA_CHECK:
                 return res().getString(R.string.check_media_title);
+            case DIALOG_CONFIRM_MERGE_DUPLICATES:
+                return res().getString(R.string.check_media_merge_title);
             case DIALOG_MEDIA_CHECK_RESULTS:
                 return res().getString(R.string.check_media_acknowledge);
             default:
@@ -182,6 +247,8 @@ public class MediaCheckDialog extends AsyncDialogFragment {
         b.putStringArrayList("nohave", getArguments().getStringArrayList("nohave"));
         b.putStringArrayList("unused", getArguments().getStringArrayList("unused"));
         b.putStringArrayList("invalid", getArguments().getStringArrayList("invalid"));
+        b.putStringArrayList("duplicates", getArguments().getStringArrayList("duplicates"));
+        b.putLong("reclaimed", getArguments().getLong("reclaimed"));
         b.putInt("dialogType", getArguments().getInt("dialogType"));
         msg.setData(b);
         return msg;
@@ -689,7 +689,7 @@ public class CardContentProvider extends ContentProvider {
                 if (model == null) {
                     return -1;
                 }
-                List<Long> cids = col.genCards(col.getModels().nids(model));
+                List<Long> cids = col.genCards(model);
                 col.remCards(Utils.arrayList2array(cids));
                 return cids.size();
             default:
@@ -1152,7 +1152,7 @@ public class CardContentProvider extends ContentProvider {
     private void answerCard(Collection col, Sched sched, Card cardToAnswer, int ease, long timeTaken) {
         try {
             DB db = col.getDb();
-            db.getDatabase().beginTransaction();
+            col.beginUndoableTransaction();
             try {
                 if (cardToAnswer != null) {
                     if(timeTaken != -1){
@@ -31,6 +31,7 @@ import com.ichi2.anki.exception.MediaSyncException;
 import com.ichi2.anki.exception.UnknownHttpResponseException;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.sync.FullSyncer;
+import com.ichi2.libanki.sync.HttpSyncSession;
 import com.ichi2.libanki.sync.HttpSyncer;
 import com.ichi2.libanki.sync.MediaSyncer;
 import com.ichi2.libanki.sync.RemoteMediaServer;
@@ -194,9 +195,19 @@ public class Connection extends BaseAsyncTask<Connection.Payload, Object, Connec
 
 
     private Payload doInBackgroundLogin(Payload data) {
+        HttpSyncer server = new RemoteServer(this, null);
+        try {
+            return doInBackgroundLogin(data, server);
+        } finally {
+            // the server created its own session for the login
+            server.close();
+        }
+    }
+
+
+    private Payload doInBackgroundLogin(Payload data, HttpSyncer server) {
         String username = (String) data.data[0];
         String password = (String) data.data[1];
-        HttpSyncer server = new RemoteServer(this, null);
         HttpResponse ret;
         try {
             ret = server.hostKey(username, password);
@@ -275,9 +286,11 @@ public class Connection extends BaseAsyncTask<Connection.Payload, Object, Connec
                 return data;
             }
         }
+        // one pool of connections for the collection, full and media syncs
+        HttpSyncSession session = new HttpSyncSession();
         try {
             CollectionHelper.getInstance().lockCollection();
-            HttpSyncer server = new RemoteServer(this, hkey);
+            HttpSyncer server = new RemoteServer(this, hkey, session);
             Syncer client = new Syncer(col, server);
 
             // run sync and check state
@@ -315,7 +328,7 @@ public class Connection extends BaseAsyncTask<Connection.Payload, Object, Connec
                 try {
                     // Disable sync cancellation for full-sync
                     sIsCancellable = false;
-                    server = new FullSyncer(col, hkey, this);
+                    server = new FullSyncer(col, hkey, this, session);
                     if (conflictResolution.equals("upload")) {
                         Timber.i("Sync - fullsync - upload collection");
                         publishProgress(R.string.sync_preparing_full_sync_message);
@@ -381,7 +394,7 @@ public class Connection extends BaseAsyncTask<Connection.Payload, Object, Connec
             boolean noMediaChanges = false;
             String mediaError = null;
             if (media) {
-                server = new RemoteMediaServer(col, hkey, this);
+                server = new RemoteMediaServer(col, hkey, this, session);
                 MediaSyncer mediaClient = new MediaSyncer(col, (RemoteMediaServer) server, this);
                 String ret;
                 try {
@@ -449,6 +462,7 @@ public class Connection extends BaseAsyncTask<Connection.Payload, Object, Connec
             }
             return data;
         } finally {
+            session.shutdown();
             // don't bump mod time unless we explicitly save
             if (col != null) {
                 col.close(false);
@@ -21,6 +21,7 @@ package com.ichi2.async;
 import android.content.Context;
 import android.content.res.Resources;
 import android.os.AsyncTask;
+import android.util.Pair;
 
 import com.google.gson.stream.JsonReader;
 import com.ichi2.anki.AnkiDroidApp;
@@ -33,6 +34,9 @@ import com.ichi2.libanki.AnkiPackageExporter;
 import com.ichi2.libanki.Card;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.DB;
+import com.ichi2.libanki.Finder;
+import com.ichi2.libanki.IntegrityCheck;
+import com.ichi2.libanki.Maintenance;
 import com.ichi2.libanki.Note;
 import com.ichi2.libanki.Sched;
 import com.ichi2.libanki.Storage;
@@ -99,6 +103,22 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
     public static final int TASK_TYPE_CHANGE_SORT_FIELD = 46;
     public static final int TASK_TYPE_SAVE_MODEL = 47;
     public static final int TASK_TYPE_FIND_EMPTY_CARDS = 48;
+    public static final int TASK_TYPE_FIND_REPLACE = 49;
+    public static final int TASK_TYPE_MAINTENANCE = 50;
+    public static final int TASK_TYPE_DELETE_EMPTY_CARDS = 51;
+    public static final int TASK_TYPE_CHANGE_MODEL = 52;
+    public static final int TASK_TYPE_MERGE_MEDIA_DUPLICATES = 53;
+
+    /**
+     * Largest result of a browser search that the next search is run on when it refines it. Beyond that, listing the
+     * ids in the query costs more than scanning again.
+     */
+    private static final int MAX_REFINED_SEARCH_IDS = 5000;
+
+    /** Time a background maintenance run may take, in ms, so that it doesn't hold up the tasks queued after it. */
+    private static final int MAINTENANCE_TIME_LIMIT = 2000;
+    /** Free pages released per maintenance step. */
+    private static final int MAINTENANCE_PAGES = 256;
 
     /**
      * A reference to the application context to use to fetch the current Collection object.
@@ -110,6 +130,8 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
      * The most recently started {@link DeckTask} instance.
      */
     private static DeckTask sLatestInstance;
+    /** Number of tasks launched so far, so that a running task can tell that another one is waiting for it. */
+    private static volatile int sLaunchCount = 0;
 
     private static boolean sHadCardQueue = false;
 
@@ -129,6 +151,7 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
     public static DeckTask launchDeckTask(int type, Listener listener, TaskData... params) {
         // Start new task
         DeckTask newTask = new DeckTask(type, listener, sLatestInstance);
+        newTask.mLaunchNumber = ++sLaunchCount;
         newTask.execute(params);
         return newTask;
     }
@@ -178,6 +201,12 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
     }
 
 
+    /** @return Whether a task is running or waiting to run. */
+    public static boolean taskIsPending() {
+        return sLatestInstance != null && sLatestInstance.getStatus() != AsyncTask.Status.FINISHED;
+    }
+
+
     public static void cancelTask(int taskType) {
         // cancel the current task only if it's of type taskType
         if (sLatestInstance != null && sLatestInstance.mType == taskType) {
@@ -189,6 +218,7 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
     private final int mType;
     private final Listener mListener;
     private DeckTask mPreviousTask;
+    private int mLaunchNumber;
 
 
     public DeckTask(int type, Listener listener, DeckTask previousTask) {
@@ -258,6 +288,9 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
             case TASK_TYPE_CHECK_DATABASE:
                 return doInBackgroundCheckDatabase(params);
 
+            case TASK_TYPE_MAINTENANCE:
+                return doInBackgroundMaintenance();
+
             case TASK_TYPE_REPAIR_DECK:
                 return doInBackgroundRepairDeck(params);
 
@@ -332,6 +365,18 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
             case TASK_TYPE_FIND_EMPTY_CARDS:
                 return doInBackGroundFindEmptyCards(params);
 
+            case TASK_TYPE_DELETE_EMPTY_CARDS:
+                return doInBackgroundDeleteEmptyCards(params);
+
+            case TASK_TYPE_FIND_REPLACE:
+                return doInBackgroundFindReplace(params);
+
+            case TASK_TYPE_CHANGE_MODEL:
+                return doInBackgroundChangeModel(params);
+
+            case TASK_TYPE_MERGE_MEDIA_DUPLICATES:
+                return doInBackgroundMergeMediaDuplicates(params);
+
             default:
                 Timber.e("unknown task type: %d", mType);
                 return null;
@@ -442,7 +487,7 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
         Card newCard = null;
         try {
             DB db = col.getDb();
-            db.getDatabase().beginTransaction();
+            col.beginUndoableTransaction();
             try {
                 if (oldCard != null) {
                     sched.answerCard(oldCard, ease);
@@ -513,7 +558,7 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
         Collection.DismissType type = (Collection.DismissType) data[1];
         Note note = card.note();
         try {
-            col.getDb().getDatabase().beginTransaction();
+            col.beginUndoableTransaction();
             try {
                 switch (type) {
                     case BURY_CARD:
@@ -556,7 +601,7 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
                     case DELETE_NOTE:
                         // collect undo information
                         ArrayList<Card> allCs = note.cards();
-                        col.markUndo(type, new Object[] { note, allCs, card.getId() });
+                        col.markUndo(type, new Object[] { note, card.getId() });
                         // delete note
                         col.remNotes(new long[] { note.getId() });
                         sHadCardQueue = true;
@@ -580,7 +625,7 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
         Collection col = CollectionHelper.getInstance().getCol(mContext);
         Sched sched = col.getSched();
         try {
-            col.getDb().getDatabase().beginTransaction();
+            col.beginUndoableTransaction();
             Card newCard;
             try {
                 long cid = col.undo();
@@ -612,16 +657,43 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
     }
 
 
+    /**
+     * Search the cards for the browser. When given the result of the previous search and the new query refines it,
+     * only the cards it found are searched again. The first page is published as soon as it has been read, and the
+     * whole list once it is complete.
+     *
+     * @return the query, the ids found and the stamp they are valid for, to be passed back to the next search
+     */
     private TaskData doInBackgroundSearchCards(TaskData... params) {
         Timber.d("doInBackgroundSearchCards");
         Collection col = CollectionHelper.getInstance().getCol(mContext);
-        Map<String, String> deckNames = (HashMap<String, String>) params[0].getObjArray()[0];
-        String query = (String) params[0].getObjArray()[1];
-        Boolean order = (Boolean) params[0].getObjArray()[2];
-        int numCardsToRender = (int) params[0].getObjArray()[3];
-        List<Map<String,String>> searchResult = col.findCardsForCardBrowser(query, order, deckNames);
+        Resources res = AnkiDroidApp.getInstance().getBaseContext().getResources();
+        Object[] args = params[0].getObjArray();
+        Map<String, String> deckNames = (HashMap<String, String>) args[0];
+        String query = (String) args[1];
+        Boolean order = (Boolean) args[2];
+        int numCardsToRender = (int) args[3];
+        Object[] previous = args.length > 4 ? (Object[]) args[4] : null;
+        // sorted searches read the cards through the index of their sort order
+        if (order) {
+            col.getBrowserIndexes().ensure(col.getConf().optString("sortType", null));
+        }
+        String stamp = col.getQueryCache().getStamp();
+        List<Long> within = null;
+        if (previous != null && stamp.equals(previous[2])
+                && ((List<Long>) previous[1]).size() <= MAX_REFINED_SEARCH_IDS
+                && new Finder(col).isRefinement((String) previous[0], query)) {
+            within = (List<Long>) previous[1];
+            Timber.d("doInBackgroundSearchCards refining %d cards", within.size());
+        }
+        List<Map<String,String>> searchResult = col.findCardsForCardBrowser(query, order, deckNames, within,
+                numCardsToRender, new ProgressCallback(this, res));
+        if (searchResult == null || isCancelled()) {
+            Timber.d("doInBackgroundSearchCards was cancelled so return null");
+            return null;
+        }
         // Render the first few items
-        for (int i = 0; i < Math.min(numCardsToRender, searchResult.size()); i++) {
+        for (int i = 0; i < Math.min(numCardsToRender, searchResult.size()) && !isCancelled(); i++) {
             Card c = col.getCard(Long.parseLong(searchResult.get(i).get("id"), 10));
             CardBrowser.updateSearchItemQA(searchResult.get(i), c);
         }
@@ -632,7 +704,11 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
         } else {
             publishProgress(new TaskData(searchResult));
         }
-        return new TaskData(col.cardCount(col.getDecks().allIds()));
+        List<Long> ids = new ArrayList<>(searchResult.size());
+        for (Map<String, String> card : searchResult) {
+            ids.add(Long.parseLong(card.get("id")));
+        }
+        return new TaskData(new Object[] {query, ids, stamp});
     }
 
 
@@ -673,13 +749,45 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
             return new TaskData(false);
         }
 
-        long result = col.fixIntegrity();
+        Resources res = AnkiDroidApp.getInstance().getBaseContext().getResources();
+        // only vacuum when it would shrink the file noticeably
+        IntegrityCheck check = new IntegrityCheck(col, new ProgressCallback(this, res), false);
+        long result = check.run();
         if (result == -1) {
             return new TaskData(false);
         } else {
             // Close the collection and we restart the app to reload
             CollectionHelper.getInstance().closeCollection(true);
-            return new TaskData(0, result, true);
+            return new TaskData(0, new Object[] { result, check.getMessages() }, true);
+        }
+    }
+
+
+    /**
+     * Run database maintenance steps until there is nothing left to do, the time limit is reached or another task is
+     * launched, which then only waits for the step in progress.
+     * @return whether maintenance is complete
+     */
+    private TaskData doInBackgroundMaintenance() {
+        Timber.d("doInBackgroundMaintenance");
+        Collection col = CollectionHelper.getInstance().getCol(mContext);
+        if (col == null) {
+            return new TaskData(false);
+        }
+        long deadline = System.currentTimeMillis() + MAINTENANCE_TIME_LIMIT;
+        try {
+            Maintenance maintenance = col.getMaintenance();
+            maintenance.startRun();
+            while (maintenance.step(MAINTENANCE_PAGES, deadline - System.currentTimeMillis())) {
+                if (isCancelled() || sLaunchCount != mLaunchNumber || System.currentTimeMillis() > deadline) {
+                    Timber.d("doInBackgroundMaintenance: stopped before completion");
+                    return new TaskData(false);
+                }
+            }
+            return new TaskData(!maintenance.isNeeded(MAINTENANCE_TIME_LIMIT));
+        } catch (RuntimeException e) {
+            Timber.e(e, "doInBackgroundMaintenance - RuntimeException");
+            return new TaskData(false);
         }
     }
 
@@ -1019,7 +1127,33 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
         col.getMedia().findChanges(true);
         // Then do the actual check
         List<List<String>> result = col.getMedia().check();
-        return new TaskData(0, new Object[]{result}, true);
+        // Files with the same contents are only listed; merging them rewrites notes, so the user has to ask for it
+        Map<String, String> duplicates = col.getMedia().duplicates();
+        long duplicateBytes = 0;
+        for (String fname : duplicates.keySet()) {
+            duplicateBytes += new File(col.getMedia().dir(), fname).length();
+        }
+        result.add(new ArrayList<>(duplicates.keySet()));
+        return new TaskData(0, new Object[]{result, duplicateBytes}, true);
+    }
+
+
+    /**
+     * Merge the files of the media folder that have identical contents, once the user confirmed it.
+     * @return The names of the removed files and the bytes they took, or false if any errors.
+     */
+    private TaskData doInBackgroundMergeMediaDuplicates(TaskData... params) {
+        Timber.d("doInBackgroundMergeMediaDuplicates");
+        Collection col = CollectionHelper.getInstance().getCol(mContext);
+        try {
+            col.getMedia().findChanges(true);
+            Pair<List<String>, Long> merged = col.getMedia().mergeDuplicates(col.getMedia().duplicates());
+            return new TaskData(0, new Object[]{merged.first, merged.second}, true);
+        } catch (RuntimeException e) {
+            Timber.e(e, "doInBackgroundMergeMediaDuplicates - RuntimeException on merging media");
+            AnkiDroidApp.sendExceptionReport(e, "doInBackgroundMergeMediaDuplicates");
+            return new TaskData(false);
+        }
     }
 
     /**
@@ -1150,9 +1284,12 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
 
 
         Collection col = CollectionHelper.getInstance().getCol(mContext);
+        Resources res = AnkiDroidApp.getInstance().getBaseContext().getResources();
         try {
-            col.getModels().remField(model, field);
-            col.save();
+            // nothing to save when cancelled
+            if (col.getModels().remField(model, field, new ProgressCallback(this, res))) {
+                col.save();
+            }
         } catch (ConfirmModSchemaException e) {
             //Should never be reached
             return new TaskData(false);
@@ -1173,9 +1310,12 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
 
 
         Collection col = CollectionHelper.getInstance().getCol(mContext);
+        Resources res = AnkiDroidApp.getInstance().getBaseContext().getResources();
         try {
-            col.getModels().moveField(model, field, index);
-            col.save();
+            // nothing to save when cancelled
+            if (col.getModels().moveField(model, field, index, new ProgressCallback(this, res))) {
+                col.save();
+            }
         } catch (ConfirmModSchemaException e) {
             //Should never be reached
             return new TaskData(false);
@@ -1194,9 +1334,12 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
         String fieldName = (String) objects[1];
 
         Collection col = CollectionHelper.getInstance().getCol(mContext);
+        Resources res = AnkiDroidApp.getInstance().getBaseContext().getResources();
         try {
-            col.getModels().addField(model, col.getModels().newField(fieldName));
-            col.save();
+            // nothing to save when cancelled
+            if (col.getModels().addField(model, col.getModels().newField(fieldName), new ProgressCallback(this, res))) {
+                col.save();
+            }
         } catch (ConfirmModSchemaException e) {
             //Should never be reached
             return new TaskData(false);
@@ -1227,10 +1370,85 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
 
     public TaskData doInBackGroundFindEmptyCards(TaskData... params) {
         Collection col = CollectionHelper.getInstance().getCol(mContext);
-        List<Long> cids = col.emptyCids();
+        Resources res = AnkiDroidApp.getInstance().getBaseContext().getResources();
+        List<Long> cids = col.emptyCids(new ProgressCallback(this, res));
+        if (cids == null) {
+            // cancelled
+            return null;
+        }
         return new TaskData(new Object[] { cids});
     }
 
+
+    /**
+     * Delete the given empty cards in batches, publishing the percentage done. Cancelling the task stops it after
+     * the batch in progress.
+     */
+    private TaskData doInBackgroundDeleteEmptyCards(TaskData... params) {
+        Timber.d("doInBackgroundDeleteEmptyCards");
+        Collection col = CollectionHelper.getInstance().getCol(mContext);
+        Resources res = AnkiDroidApp.getInstance().getBaseContext().getResources();
+        List<Long> cids = (List<Long>) params[0].getObjArray()[0];
+        try {
+            int deleted = col.remEmptyCards(Utils.arrayList2array(cids), new ProgressCallback(this, res));
+            return new TaskData(deleted, true);
+        } catch (RuntimeException e) {
+            Timber.e(e, "doInBackgroundDeleteEmptyCards - RuntimeException");
+            AnkiDroidApp.sendExceptionReport(e, "doInBackgroundDeleteEmptyCards");
+            return new TaskData(false);
+        }
+    }
+
+
+    /**
+     * Change the note type of notes, see {@link com.ichi2.libanki.Models#change}. Cancelling the task leaves the notes
+     * as they were.
+     */
+    private TaskData doInBackgroundChangeModel(TaskData... params) {
+        Timber.d("doInBackgroundChangeModel");
+        Collection col = CollectionHelper.getInstance().getCol(mContext);
+        Resources res = AnkiDroidApp.getInstance().getBaseContext().getResources();
+        Object[] args = params[0].getObjArray();
+        JSONObject oldModel = (JSONObject) args[0];
+        long[] nids = (long[]) args[1];
+        JSONObject newModel = (JSONObject) args[2];
+        Map<Integer, Integer> fmap = (Map<Integer, Integer>) args[3];
+        Map<Integer, Integer> cmap = (Map<Integer, Integer>) args[4];
+        try {
+            return new TaskData(col.getModels().change(oldModel, nids, newModel, fmap, cmap,
+                    new ProgressCallback(this, res)));
+        } catch (ConfirmModSchemaException e) {
+            // confirmed before the task was launched
+            Timber.e(e, "doInBackgroundChangeModel - schema change not confirmed");
+            return new TaskData(false);
+        } catch (RuntimeException e) {
+            Timber.e(e, "doInBackgroundChangeModel - RuntimeException on changing note type");
+            AnkiDroidApp.sendExceptionReport(e, "doInBackgroundChangeModel");
+            return new TaskData(false);
+        }
+    }
+
+
+    /**
+     * Find and replace in the notes matching a search, publishing the percentage done as it goes. Cancelling the task
+     * stops it after the chunk in progress.
+     */
+    private TaskData doInBackgroundFindReplace(TaskData... params) {
+        Timber.d("doInBackgroundFindReplace");
+        Collection col = CollectionHelper.getInstance().getCol(mContext);
+        Resources res = AnkiDroidApp.getInstance().getBaseContext().getResources();
+        Object[] args = params[0].getObjArray();
+        List<Long> nids = col.findNotes((String) args[0]);
+        String src = (String) args[1];
+        String dst = (String) args[2];
+        boolean regex = (Boolean) args[3];
+        String field = (String) args[4];
+        boolean fold = (Boolean) args[5];
+        boolean dryRun = (Boolean) args[6];
+        int count = col.findReplace(nids, src, dst, regex, field, fold, dryRun, new ProgressCallback(this, res));
+        return new TaskData(count, !isCancelled());
+    }
+
     /**
      * Listener for the status and result of a {@link DeckTask}.
      * <p>
@@ -1342,6 +1560,11 @@ public class DeckTask extends BaseAsyncTask<DeckTask.TaskData, DeckTask.TaskData
                 task.doProgress(values);
             }
         }
+
+
+        public boolean isCancelled() {
+            return task != null && task.isCancelled();
+        }
     }
 
 
@@ -33,6 +33,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -194,12 +195,8 @@ class AnkiExporter extends Exporter {
         JSONObject media = new JSONObject();
         mMediaDir = mSrc.getMedia().dir();
         if (mIncludeMedia) {
-            ArrayList<Long> mid = mSrc.getDb().queryColumn(Long.class, "select mid from notes where id in " + strnids,
-                    0);
-            ArrayList<String> flds = mSrc.getDb().queryColumn(String.class,
-                    "select flds from notes where id in " + strnids, 0);
-            for (int idx = 0; idx < mid.size(); idx++) {
-                for (String file : mSrc.getMedia().filesInStr(mid.get(idx), flds.get(idx))) {
+            for (List<String> files : mSrc.getMedia().filesInNotes("id in " + strnids).values()) {
+                for (String file : files) {
                     media.put(file, true);
                 }
             }
@@ -208,8 +205,8 @@ class AnkiExporter extends Exporter {
                     String fname = f.getName();
                     if (fname.startsWith("_")) {
                         // Loop through every model that will be exported, and check if it contains a reference to f
-                        for (int idx = 0; idx < mid.size(); idx++) {
-                            if (_modelHasMedia(mSrc.getModels().get(idx), fname)) {
+                        for (long mid : mids) {
+                            if (_modelHasMedia(mSrc.getModels().get(mid), fname)) {
                                 media.put(fname, true);
                                 break;
                             }
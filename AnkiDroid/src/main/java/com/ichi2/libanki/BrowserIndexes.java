@@ -0,0 +1,130 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Not in libanki.
+ *
+ * Optional indexes matching the browser's sort orders (the "sortType" of the collection configuration), so that a
+ * sorted search reads the cards in index order and its first rows come back without sorting the whole collection.
+ *
+ * Every index slows down the writes of its table, and the card ones are on columns each review updates, so only the
+ * index of the current sort order is kept: {@link #ensure} creates it and drops any other when a sorted search uses a
+ * new order. Unsorted searches leave the indexes alone; Check Database drops those of an order no longer in use
+ * through {@link #keepOnly}. Card indexes also hold the columns the browser list reads from the cards table, so that
+ * those are read from the index alone. The indexes are local only and dropped before a full upload.
+ */
+public class BrowserIndexes {
+
+    private static final String PREFIX = "ix_browser_";
+    // what the browser list reads from cards, besides the id
+    private static final String CARD_COLUMNS = "nid, did, queue";
+
+    private static final Map<String, String> sIndexes = new HashMap<>();
+    static {
+        // noteCrt sorts on the notes' primary key and needs nothing more
+        sIndexes.put("noteFld", "notes (sfld collate nocase)");
+        sIndexes.put("noteMod", "notes (mod)");
+        sIndexes.put("cardMod", "cards (mod, " + CARD_COLUMNS + ")");
+        sIndexes.put("cardReps", "cards (reps, " + CARD_COLUMNS + ")");
+        sIndexes.put("cardDue", "cards (type, due, " + CARD_COLUMNS + ")");
+        sIndexes.put("cardEase", "cards (factor, " + CARD_COLUMNS + ")");
+        sIndexes.put("cardLapses", "cards (lapses, " + CARD_COLUMNS + ")");
+        sIndexes.put("cardIvl", "cards (ivl, " + CARD_COLUMNS + ")");
+    }
+
+    private final DB mDb;
+    /** The sort order whose index was last ensured, so that searches in the same order don't query the schema. */
+    private String mEnsured;
+
+
+    public BrowserIndexes(DB db) {
+        mDb = db;
+    }
+
+
+    /**
+     * Create the index of the given sort order if it doesn't exist yet, and drop those of other orders. Does nothing
+     * if the order is the one last ensured.
+     *
+     * @param sortType The sort order of a sorted search
+     */
+    public void ensure(String sortType) {
+        String wanted = _name(sortType);
+        if (wanted == null || wanted.equals(mEnsured)) {
+            return;
+        }
+        _dropAllBut(wanted);
+        mEnsured = wanted;
+        if (mDb.queryScalar(
+                "select count() from sqlite_master where type = 'index' and name = '" + wanted + "'") == 0) {
+            long start = System.currentTimeMillis();
+            mDb.execute("create index if not exists " + wanted + " on " + sIndexes.get(sortType));
+            mDb.execute("analyze " + wanted);
+            Timber.i("BrowserIndexes: created %s in %d ms", wanted, System.currentTimeMillis() - start);
+        }
+    }
+
+
+    /**
+     * Drop the indexes of sort orders other than the given one, without creating any.
+     *
+     * @return Names of the dropped indexes
+     */
+    public List<String> keepOnly(String sortType) {
+        return _dropAllBut(_name(sortType));
+    }
+
+
+    public void dropAll() {
+        _dropAllBut(null);
+    }
+
+
+    /** @return Names of the browser indexes in the database. */
+    public List<String> existing() {
+        return mDb.queryColumn(String.class,
+                "select name from sqlite_master where type = 'index' and name glob '" + PREFIX + "*'", 0);
+    }
+
+
+    private String _name(String sortType) {
+        return sortType != null && sIndexes.containsKey(sortType) ? PREFIX + sortType : null;
+    }
+
+
+    private List<String> _dropAllBut(String keep) {
+        List<String> dropped = new ArrayList<>();
+        for (String name : existing()) {
+            if (!name.equals(keep)) {
+                Timber.i("BrowserIndexes: dropping %s", name);
+                mDb.execute("drop index if exists " + name);
+                dropped.add(name);
+            }
+        }
+        if (mEnsured != null && !mEnsured.equals(keep)) {
+            mEnsured = null;
+        }
+        return dropped;
+    }
+}
@@ -97,6 +97,8 @@ public class Card implements Cloneable {
     // END SQL table entries
 
     private HashMap<String, String> mQA;
+    // whether mQA was rendered with the browser templates
+    private boolean mQABrowser;
     private Note mNote;
 
     // Used by Sched to determine which queue to move the card to after answering.
@@ -188,6 +190,7 @@ public class Card implements Cloneable {
             // TODO: runHook("odueInvalid");
         }
         assert (mDue < Long.valueOf("4294967296"));
+        long generation = mCol.getDb().getGeneration();
         mCol.getDb().execute(
                 "insert or replace into cards values " +
                 "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
@@ -211,6 +214,7 @@ public class Card implements Cloneable {
                 mFlags,
                 mData
         });
+        mCol._cardFlushed(this, generation);
         mCol.log(this);
     }
 
@@ -239,7 +243,9 @@ public class Card implements Cloneable {
         values.put("odid", mODid);
         values.put("did", mDid);
         // TODO: The update DB call sets mod=true. Verify if this is intended.
+        long generation = mCol.getDb().getGeneration();
         mCol.getDb().update("cards", values, "id = " + mId, null);
+        mCol._cardFlushed(this, generation);
         mCol.log(this);
     }
 
@@ -284,7 +290,9 @@ public class Card implements Cloneable {
 
 
     public HashMap<String, String> _getQA(boolean reload, boolean browser) {
-        if (mQA == null || reload) {
+        // a card copied from the collection's cache may hold the rendering of the reviewer or of the browser
+        if (mQA == null || reload || mQABrowser != browser) {
+            mQABrowser = browser;
             Note f = note(reload);
             JSONObject m = model();
             JSONObject t = template();
@@ -320,6 +328,10 @@ public class Card implements Cloneable {
     public Note note(boolean reload) {
         if (mNote == null || reload) {
             mNote = mCol.getNote(mNid);
+            if (reload) {
+                // the note may come from the collection's cache, make sure it reflects the database
+                mNote.load();
+            }
         }
         return mNote;
     }
@@ -441,11 +453,21 @@ public class Card implements Cloneable {
     }
 
 
+    public long getMod() {
+        return mMod;
+    }
+
+
     public void setMod(long mod) {
         mMod = mod;
     }
 
 
+    public int getUsn() {
+        return mUsn;
+    }
+
+
     public void setUsn(int usn) {
         mUsn = usn;
     }
@@ -627,9 +649,25 @@ public class Card implements Cloneable {
     }
 
 
+    /**
+     * Not in libanki. A copy as if the card was loaded again: it has the row and the rendered question and answer,
+     * but not the note, the timer or the state of an answer in progress.
+     */
+    Card _loadedCopy() {
+        Card c = clone();
+        c.mQA = mQA != null ? new HashMap<>(mQA) : null;
+        c.mNote = null;
+        c.mTimerStarted = Double.NaN;
+        c.mElapsedTime = 0;
+        c.mWasNew = false;
+        c.mLastIvl = 0;
+        return c;
+    }
+
+
     // A list of class members to skip in the toString() representation
     public static final Set<String> SKIP_PRINT = new HashSet<>(Arrays.asList("SKIP_PRINT", "$assertionsDisabled", "TYPE_LRN",
-            "TYPE_NEW", "TYPE_REV", "mNote", "mQA", "mCol", "mTimerStarted", "mTimerStopped"));
+            "TYPE_NEW", "TYPE_REV", "mNote", "mQA", "mQABrowser", "mCol", "mTimerStarted", "mTimerStopped"));
 
     public String toString() {
         List<String> members = new ArrayList<>();
@@ -0,0 +1,298 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Not in libanki.
+ *
+ * Bulk implementation of {@link Collection#genCards}. The existing cards are read once into sorted primitive arrays,
+ * then the notes are streamed in id order and matched against them. Template availability comes from the model's
+ * compiled {@link TemplateRequirements}, deck lookups are memoized for the whole run, and the new cards are inserted
+ * through a single prepared statement in batches, each batch reserving its due positions in one block.
+ */
+class CardGenerator {
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final Collection mCol;
+    private final DB mDb;
+    private final HashMap<Long, ModelInfo> mModels = new HashMap<>();
+    private final HashMap<Long, Long> mResolvedDids = new HashMap<>();
+
+    // existing cards, sorted by nid
+    private long[] mCardNids;
+    private int[] mCardOrds;
+    private long[] mCardIds;
+    private long[] mCardDids;
+
+    // pending new cards
+    private final long[] mNewIds = new long[BATCH_SIZE];
+    private final long[] mNewNids = new long[BATCH_SIZE];
+    private final long[] mNewDids = new long[BATCH_SIZE];
+    private final int[] mNewOrds = new int[BATCH_SIZE];
+    private int mPending;
+    private DB.Statement mInsert;
+
+
+    CardGenerator(Collection col) {
+        mCol = col;
+        mDb = col.getDb();
+    }
+
+
+    /**
+     * Generate missing cards.
+     *
+     * @param noteWhere SQL condition on the notes table selecting the notes to process
+     * @param cardWhere SQL condition on the cards table selecting the existing cards of those notes
+     * @return ids of cards whose template is now empty
+     */
+    ArrayList<Long> generate(String noteWhere, String cardWhere) {
+        _loadCards(cardWhere);
+        ArrayList<Long> rem = new ArrayList<>();
+        long ts = Utils.maxID(mDb);
+        long now = Utils.intNow();
+        int usn = mCol.usn();
+        SQLiteDatabase db = mDb.getDatabase();
+        db.beginTransaction();
+        Cursor cur = null;
+        try {
+            mInsert = mDb.compileStatement("INSERT INTO cards VALUES (?,?,?,?,?,?,0,0,?,0,0,0,0,0,0,0,0,\"\")");
+            cur = db.rawQuery("SELECT id, mid, flds FROM notes WHERE " + noteWhere + " ORDER BY id", null);
+            int c = 0;
+            while (cur.moveToNext()) {
+                long nid = cur.getLong(0);
+                ModelInfo mi = _model(cur.getLong(1));
+                if (mi == null) {
+                    // note points to an invalid model
+                    continue;
+                }
+                String flds = cur.getString(2);
+                // skip the cards of notes that weren't selected, then collect this note's cards
+                while (c < mCardNids.length && mCardNids[c] < nid) {
+                    c++;
+                }
+                int first = c;
+                long did = -1;
+                while (c < mCardNids.length && mCardNids[c] == nid) {
+                    if (did == -1) {
+                        // first card or multiple cards in same deck
+                        did = mCardDids[c];
+                    } else if (did != 0 && did != mCardDids[c]) {
+                        // cards are in two or more different decks; revert to model default
+                        did = 0;
+                    }
+                    c++;
+                }
+                if (did <= 0) {
+                    did = mi.did;
+                }
+                List<Integer> avail = _availOrds(mi, flds);
+                // add any missing cards
+                if (mi.cloze) {
+                    for (int ord : avail) {
+                        if (!_have(first, c, ord)) {
+                            did = _cardDid(mi.tmplDids[0], did);
+                            _add(ts++, nid, did, ord, now, usn);
+                        }
+                    }
+                } else {
+                    for (int t = 0; t < mi.tmplOrds.length; t++) {
+                        int ord = mi.tmplOrds[t];
+                        if (avail.contains(ord) && !_have(first, c, ord)) {
+                            did = _cardDid(mi.tmplDids[t], did);
+                            _add(ts++, nid, did, ord, now, usn);
+                        }
+                    }
+                }
+                // note any cards that need removing
+                for (int i = first; i < c; i++) {
+                    if (!avail.contains(mCardOrds[i])) {
+                        rem.add(mCardIds[i]);
+                    }
+                }
+            }
+            _flushPending(now, usn);
+            db.setTransactionSuccessful();
+        } finally {
+            if (cur != null && !cur.isClosed()) {
+                cur.close();
+            }
+            if (mInsert != null) {
+                mInsert.close();
+                mInsert = null;
+            }
+            db.endTransaction();
+        }
+        return rem;
+    }
+
+
+    private void _loadCards(String cardWhere) {
+        Cursor cur = null;
+        try {
+            cur = mDb.getDatabase().rawQuery(
+                    "SELECT nid, ord, id, did, odid FROM cards WHERE " + cardWhere + " ORDER BY nid", null);
+            int n = cur.getCount();
+            mCardNids = new long[n];
+            mCardOrds = new int[n];
+            mCardIds = new long[n];
+            mCardDids = new long[n];
+            for (int i = 0; cur.moveToNext(); i++) {
+                mCardNids[i] = cur.getLong(0);
+                mCardOrds[i] = cur.getInt(1);
+                mCardIds[i] = cur.getLong(2);
+                long odid = cur.getLong(4);
+                // if in a filtered deck, add new cards to original deck
+                mCardDids[i] = odid != 0 ? odid : cur.getLong(3);
+            }
+        } finally {
+            if (cur != null && !cur.isClosed()) {
+                cur.close();
+            }
+        }
+    }
+
+
+    private boolean _have(int from, int to, int ord) {
+        for (int i = from; i < to; i++) {
+            if (mCardOrds[i] == ord) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private List<Integer> _availOrds(ModelInfo mi, String flds) {
+        if (mi.req != null) {
+            return mi.req.availOrds(TemplateRequirements.nonEmptyMask(flds));
+        }
+        return mCol.getModels().availOrds(mi.model, flds);
+    }
+
+
+    /** Same deck choice as libanki: template deck override, not a filtered deck, and falling back to default. */
+    private long _cardDid(long tmplDid, long did) {
+        if (tmplDid != 0) {
+            did = tmplDid;
+        }
+        Long resolved = mResolvedDids.get(did);
+        if (resolved == null) {
+            long r = did;
+            if (mCol.getDecks().isDyn(r)) {
+                r = 1;
+            }
+            try {
+                // if the deck doesn't exist, use default instead
+                r = mCol.getDecks().get(r).getLong("id");
+            } catch (JSONException e) {
+                throw new RuntimeException(e);
+            }
+            mResolvedDids.put(did, r);
+            resolved = r;
+        }
+        return resolved;
+    }
+
+
+    private void _add(long id, long nid, long did, int ord, long now, int usn) {
+        mNewIds[mPending] = id;
+        mNewNids[mPending] = nid;
+        mNewDids[mPending] = did;
+        mNewOrds[mPending] = ord;
+        mPending++;
+        if (mPending == BATCH_SIZE) {
+            _flushPending(now, usn);
+        }
+    }
+
+
+    private void _flushPending(long now, int usn) {
+        if (mPending == 0) {
+            return;
+        }
+        // we'd like to use the same due# as sibling cards, but we can't retrieve that quickly, so we
+        // give each a new position
+        int due = mCol.reservePositions(mPending);
+        for (int i = 0; i < mPending; i++) {
+            mInsert.bindLong(1, mNewIds[i]);
+            mInsert.bindLong(2, mNewNids[i]);
+            mInsert.bindLong(3, mNewDids[i]);
+            mInsert.bindLong(4, mNewOrds[i]);
+            mInsert.bindLong(5, now);
+            mInsert.bindLong(6, usn);
+            mInsert.bindLong(7, due + i);
+            mInsert.executeInsert();
+        }
+        mPending = 0;
+    }
+
+
+    private ModelInfo _model(long mid) {
+        if (mModels.containsKey(mid)) {
+            return mModels.get(mid);
+        }
+        JSONObject m = mCol.getModels().get(mid);
+        ModelInfo mi = null;
+        if (m != null) {
+            mi = new ModelInfo(mCol.getModels(), m);
+        }
+        mModels.put(mid, mi);
+        return mi;
+    }
+
+
+    /** What we need from a model, extracted from its JSON once per run. */
+    private static class ModelInfo {
+        final JSONObject model;
+        final boolean cloze;
+        final long did;
+        final TemplateRequirements req;
+        final int[] tmplOrds;
+        final long[] tmplDids;
+
+        ModelInfo(Models models, JSONObject m) {
+            try {
+                model = m;
+                cloze = m.getInt("type") == Consts.MODEL_CLOZE;
+                did = m.getLong("did");
+                req = cloze ? null : models.requirements(m);
+                JSONArray tmpls = m.getJSONArray("tmpls");
+                tmplOrds = new int[tmpls.length()];
+                tmplDids = new long[tmpls.length()];
+                for (int i = 0; i < tmpls.length(); i++) {
+                    JSONObject t = tmpls.getJSONObject(i);
+                    tmplOrds[i] = t.getInt("ord");
+                    tmplDids[i] = t.optLong("did", 0);
+                }
+            } catch (JSONException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
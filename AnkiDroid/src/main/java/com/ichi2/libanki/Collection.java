@@ -29,6 +29,7 @@ import com.ichi2.anki.AnkiDroidApp;
 import com.ichi2.anki.R;
 import com.ichi2.anki.UIUtils;
 import com.ichi2.anki.exception.ConfirmModSchemaException;
+import com.ichi2.async.DeckTask;
 import com.ichi2.compat.CompatHelper;
 import com.ichi2.libanki.hooks.Hooks;
 import com.ichi2.libanki.template.Template;
@@ -46,7 +47,6 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -88,7 +88,17 @@ public class Collection {
     private JSONObject mConf;
     // END: SQL table columns
 
-    private LinkedList<Object[]> mUndo;
+    private UndoJournal mUndo;
+
+    // Not in libanki. Identity maps so repeated lookups of the same card or note don't hit the database.
+    private static final int CACHE_SIZE = 256;
+    private IdentityMap<Card> mCardCache;
+    private IdentityMap<Note> mNoteCache;
+    private DupeIndex mDupeIndex;
+    private QueryCache mQueryCache;
+    private ReviewSummary mReviewSummary;
+    private BrowserIndexes mBrowserIndexes;
+    private Maintenance mMaintenance;
 
     private String mPath;
     private boolean mDebugLog;
@@ -124,8 +134,6 @@ public class Collection {
         }
     }
 
-    private static final int UNDO_SIZE_MAX = 20;
-
     public Collection(Context context, DB db, String path) {
         this(context, db, path, false);
     }
@@ -139,16 +147,18 @@ public class Collection {
         mDebugLog = log;
         mDb = db;
         mPath = path;
+        _initCaches();
         _openLog();
         log(path, VersionUtils.getPkgVersionName());
         mServer = server;
         mLastSave = Utils.now();
-        clearUndo();
         mMedia = new Media(this, server);
         mModels = new Models(this);
         mDecks = new Decks(this);
         mTags = new Tags(this);
         load();
+        // restore any undo history left behind by a killed process
+        mUndo = new UndoJournal(_undoPath(), mScm, mMod);
         if (mCrt == 0) {
             mCrt = UIUtils.getDayStart() / 1000;
         }
@@ -178,6 +188,7 @@ public class Collection {
      */
 
     public void load() {
+        long start = System.currentTimeMillis();
         Cursor cursor = null;
         try {
             // Read in deck table columns
@@ -206,6 +217,8 @@ public class Collection {
                 cursor.close();
             }
         }
+        // models, decks and tags are parsed lazily, so this only covers reading and indexing the blobs
+        Timber.d("Collection load took %d ms", System.currentTimeMillis() - start);
     }
 
 
@@ -238,6 +251,9 @@ public class Collection {
         values.put("ls", mLs);
         values.put("conf", Utils.jsonToString(mConf));
         mDb.update("col", values);
+        if (mUndo != null) {
+            mUndo.setMod(mMod);
+        }
     }
 
 
@@ -312,6 +328,7 @@ public class Collection {
             if (!mServer) {
                 CompatHelper.getCompat().disableDatabaseWriteAheadLogging(mDb.getDatabase());
             }
+            Timber.i("Collection cache: %s", cacheStats());
             mDb.close();
             mDb = null;
             mMedia.close();
@@ -324,6 +341,7 @@ public class Collection {
     public void reopen() {
         if (mDb == null) {
             mDb = new DB(mPath);
+            _initCaches();
             mMedia.connect();
             _openLog();
         }
@@ -373,6 +391,9 @@ public class Collection {
         }
         mScm = Utils.intNow(1000);
         setMod();
+        if (mUndo != null) {
+            mUndo.setScm(mScm);
+        }
     }
 
 
@@ -382,6 +403,20 @@ public class Collection {
     }
 
 
+    /**
+     * Not in libanki.
+     * Throw ConfirmModSchemaException where {@link #modSchema(boolean)} would, without marking the schema modified.
+     * For changes that may be cancelled, which only call modSchema once they're done.
+     *
+     * @throws ConfirmModSchemaException
+     */
+    public void checkSchema() throws ConfirmModSchemaException {
+        if (!schemaChanged()) {
+            throw new ConfirmModSchemaException();
+        }
+    }
+
+
     public int usn() {
         if (mServer) {
             return mUsn;
@@ -399,6 +434,10 @@ public class Collection {
         }
         // we can save space by removing the log of deletions
         mDb.execute("delete from graves");
+        // the duplicate index, review summary and browser sort indexes are local to this device
+        getDupeIndex().clear();
+        getReviewSummary().clear();
+        getBrowserIndexes().dropAll();
         mUsn += 1;
         mModels.beforeUpload();
         mTags.beforeUpload();
@@ -417,13 +456,114 @@ public class Collection {
      * *********************************************
      */
 
+    /**
+     * Return the card with the given id. Each call returns a new object; repeated calls copy it from the cache
+     * instead of querying the row again, as long as the card hasn't been changed in the database since.
+     */
     public Card getCard(long id) {
-        return new Card(this, id);
+        Card card = mCardCache.get(id);
+        if (card == null) {
+            card = new Card(this, id);
+            mCardCache.put(id, card._loadedCopy());
+            return card;
+        }
+        return card._loadedCopy();
     }
 
 
+    /**
+     * Return the note with the given id. See {@link #getCard(long)}.
+     */
     public Note getNote(long id) {
-        return new Note(this, id);
+        Note note = mNoteCache.get(id);
+        if (note == null) {
+            note = new Note(this, id);
+            mNoteCache.put(id, note._loadedCopy());
+            return note;
+        }
+        return note._loadedCopy();
+    }
+
+
+    /** Not in libanki. Called by Card after writing its own row with a single statement. */
+    public void _cardFlushed(Card card, long generation) {
+        mCardCache.written(card.getId(), card._loadedCopy(), generation);
+    }
+
+
+    /** Not in libanki. Called by Note after writing its own row with a single statement. */
+    public void _noteFlushed(Note note, long generation) {
+        mNoteCache.written(note.getId(), note._loadedCopy(), generation);
+    }
+
+
+    /** Not in libanki. Drop all cached cards and notes, e.g. after the database was replaced. */
+    public void clearCaches() {
+        mCardCache.clear();
+        mNoteCache.clear();
+    }
+
+
+    /** Not in libanki. Hit/miss counters of the card and note caches, for logging. */
+    public String cacheStats() {
+        return String.format(Locale.US, "cards %d hits / %d misses, notes %d hits / %d misses",
+                mCardCache.getHits(), mCardCache.getMisses(), mNoteCache.getHits(), mNoteCache.getMisses());
+    }
+
+
+    private void _initCaches() {
+        mCardCache = new IdentityMap<>(mDb, CACHE_SIZE);
+        mNoteCache = new IdentityMap<>(mDb, CACHE_SIZE);
+        mDupeIndex = null;
+        mQueryCache = null;
+        mReviewSummary = null;
+        mBrowserIndexes = null;
+        mMaintenance = null;
+    }
+
+
+    /** Not in libanki. */
+    public DupeIndex getDupeIndex() {
+        if (mDupeIndex == null) {
+            mDupeIndex = new DupeIndex(this);
+        }
+        return mDupeIndex;
+    }
+
+
+    /** Not in libanki. */
+    public ReviewSummary getReviewSummary() {
+        if (mReviewSummary == null) {
+            mReviewSummary = new ReviewSummary(this);
+        }
+        return mReviewSummary;
+    }
+
+
+    /** Not in libanki. */
+    public BrowserIndexes getBrowserIndexes() {
+        if (mBrowserIndexes == null) {
+            mBrowserIndexes = new BrowserIndexes(mDb);
+        }
+        return mBrowserIndexes;
+    }
+
+
+    /** Not in libanki. */
+    public Maintenance getMaintenance() {
+        if (mMaintenance == null) {
+            mMaintenance = new Maintenance(mDb);
+        }
+        return mMaintenance;
+    }
+
+
+    /** Not in libanki. */
+    public QueryCache getQueryCache() {
+        if (mQueryCache == null) {
+            mQueryCache = new QueryCache(this);
+        }
+        return mQueryCache;
     }
 
 
@@ -448,6 +588,27 @@ public class Collection {
     }
 
 
+    /**
+     * Not in libanki.
+     * Reserve COUNT consecutive new card positions at once, instead of calling nextID("pos") for each card.
+     * @return the first reserved position
+     */
+    public int reservePositions(int count) {
+        int pos;
+        try {
+            pos = mConf.getInt("nextPos");
+        } catch (JSONException e) {
+            pos = 1;
+        }
+        try {
+            mConf.put("nextPos", pos + count);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        return pos;
+    }
+
+
     /**
      * Rebuild the queue and reload data after DB modified.
      */
@@ -553,6 +714,7 @@ public class Collection {
         // more card templates
         _logRem(ids, Consts.REM_NOTE);
         mDb.execute("DELETE FROM notes WHERE id IN " + strids);
+        getDupeIndex().notesRemoved(strids);
     }
 
 
@@ -604,105 +766,22 @@ public class Collection {
 	    return genCards(Utils.arrayList2array(nids));
 	}
     public ArrayList<Long> genCards(long[] nids) {
-        // build map of (nid,ord) so we don't create dupes
         String snids = Utils.ids2str(nids);
-        HashMap<Long, HashMap<Integer, Long>> have = new HashMap<>();
-        HashMap<Long, Long> dids = new HashMap<>();
-        Cursor cur = null;
-        try {
-            cur = mDb.getDatabase().rawQuery("select id, nid, ord, did, odid from cards where nid in " + snids, null);
-            while (cur.moveToNext()) {
-                long nid = cur.getLong(1);
-                long did = cur.getLong(3);
-                long odid = cur.getLong(4);
+        return new CardGenerator(this).generate("id IN " + snids, "nid IN " + snids);
+    }
 
-                // existing cards
-                if (!have.containsKey(nid)) {
-                    have.put(nid, new HashMap<Integer, Long>());
-                }
-                have.get(nid).put(cur.getInt(2), cur.getLong(0));
-                // if in a filtered deck, add new cards to original deck
-                if (odid != 0) {
-                    did = odid;
-                }
-                // and their dids
-                if (dids.containsKey(nid)) {
-                    if (dids.get(nid) != 0 && dids.get(nid) != did) {
-                        // cards are in two or more different decks; revert to model default
-                        dids.put(nid, 0L);
-                    }
-                } else {
-                    // first card or multiple cards in same deck
-                    dids.put(nid, did);
-                }
-            }
-        } finally {
-            if (cur != null && !cur.isClosed()) {
-                cur.close();
-            }
-        }
-        // build cards for each note
-        ArrayList<Object[]> data = new ArrayList<>();
-        long ts = Utils.maxID(mDb);
-        long now = Utils.intNow();
-        ArrayList<Long> rem = new ArrayList<>();
-        int usn = usn();
-        cur = null;
+
+    /**
+     * Not in libanki.
+     * Generate cards for all notes of a model, without building a list of their ids. Return ids to remove.
+     */
+    public ArrayList<Long> genCards(JSONObject model) {
         try {
-            cur = mDb.getDatabase().rawQuery("SELECT id, mid, flds FROM notes WHERE id IN " + snids, null);
-            while (cur.moveToNext()) {
-                JSONObject model = mModels.get(cur.getLong(1));
-                ArrayList<Integer> avail = mModels.availOrds(model, cur.getString(2));
-                long nid = cur.getLong(0);
-                long did = dids.get(nid);
-                if (did == 0) {
-                    did = model.getLong("did");
-                }
-                // add any missing cards
-                for (JSONObject t : _tmplsFromOrds(model, avail)) {
-                    int tord = t.getInt("ord");
-                    boolean doHave = have.containsKey(nid) && have.get(nid).containsKey(tord);
-                    if (!doHave) {
-                        // check deck is not a cram deck
-                        long ndid;
-                        try {
-                            ndid = t.getLong("did");
-                            if (ndid != 0) {
-                                did = ndid;
-                            }
-                        } catch (JSONException e) {
-                            // do nothing
-                        }
-                        if (getDecks().isDyn(did)) {
-                            did = 1;
-                        }
-                        // if the deck doesn't exist, use default instead
-                        did = mDecks.get(did).getLong("id");
-                        // we'd like to use the same due# as sibling cards, but we can't retrieve that quickly, so we
-                        // give it a new id instead
-                        data.add(new Object[] { ts, nid, did, tord, now, usn, nextID("pos") });
-                        ts += 1;
-                    }
-                }
-                // note any cards that need removing
-                if (have.containsKey(nid)) {
-                    for (Map.Entry<Integer, Long> n : have.get(nid).entrySet()) {
-                        if (!avail.contains(n.getKey())) {
-                            rem.add(n.getValue());
-                        }
-                    }
-                }
-            }
+            long mid = model.getLong("id");
+            return new CardGenerator(this).generate("mid = " + mid, "nid IN (SELECT id FROM notes WHERE mid = " + mid + ")");
         } catch (JSONException e) {
             throw new RuntimeException(e);
-        } finally {
-            if (cur != null && !cur.isClosed()) {
-                cur.close();
-            }
         }
-        // bulk update
-        mDb.executeMany("INSERT INTO cards VALUES (?,?,?,?,?,?,0,0,?,0,0,0,0,0,0,0,0,\"\")", data);
-        return rem;
     }
 
 
@@ -859,12 +938,35 @@ public class Collection {
     public List<Long> emptyCids() {
         List<Long> rem = new ArrayList<>();
         for (JSONObject m : getModels().all()) {
-            rem.addAll(genCards(getModels().nids(m)));
+            rem.addAll(genCards(m));
         }
         return rem;
     }
 
 
+    /**
+     * Not in libanki.
+     * Same cards as {@link #emptyCids()}, found in a single pass without generating missing cards.
+     *
+     * @param progress Receives progress messages and is checked for cancellation, or null
+     * @return The ids of the empty cards, or null if cancelled
+     */
+    public List<Long> emptyCids(DeckTask.ProgressCallback progress) {
+        return new EmptyCardScanner(this).scan(progress);
+    }
+
+
+    /**
+     * Not in libanki.
+     * Remove the given empty cards in batches, see {@link #remCards(long[])}.
+     *
+     * @return The number of cards removed, fewer than given if cancelled
+     */
+    public int remEmptyCards(long[] cids, DeckTask.ProgressCallback progress) {
+        return new EmptyCardScanner(this).remove(cids, progress);
+    }
+
+
     public String emptyCardReport(List<Long> cids) {
         StringBuilder rep = new StringBuilder();
         Cursor cur = null;
@@ -922,6 +1024,7 @@ public class Collection {
         }
         // apply, relying on calling code to bump usn+mod
         mDb.executeMany("UPDATE notes SET sfld=?, csum=? WHERE id=?", r);
+        getDupeIndex().notesChanged(snids);
     }
 
 
@@ -1072,6 +1175,13 @@ public class Collection {
     }
 
 
+    /** Not in libanki. See {@link Finder#findCardsForCardBrowser(String, boolean, Map, List, int, DeckTask.ProgressCallback)} */
+    public List<Map<String, String>> findCardsForCardBrowser(String search, boolean order, Map<String, String> deckNames,
+            List<Long> within, int firstPage, DeckTask.ProgressCallback progress) {
+        return new Finder(this).findCardsForCardBrowser(search, order, deckNames, within, firstPage, progress);
+    }
+
+
     /** Return a list of note ids */
     public List<Long> findNotes(String query) {
         return new Finder(this).findNotes(query);
@@ -1098,6 +1208,16 @@ public class Collection {
     }
 
 
+    /**
+     * Not in libanki.
+     * Find and replace in chunks, with progress, cancellation and a dry run mode. See {@link Finder#findReplace}.
+     */
+    public int findReplace(List<Long> nids, String src, String dst, boolean regex, String field, boolean fold,
+            boolean dryRun, DeckTask.ProgressCallback progress) {
+        return Finder.findReplace(this, nids, src, dst, regex, field, fold, dryRun, progress);
+    }
+
+
     public List<Pair<String, List<Long>>> findDupes(String fieldName) {
         return Finder.findDupes(this, fieldName, "");
     }
@@ -1168,44 +1288,40 @@ public class Collection {
      */
 
     /**
-     * [type, undoName, data] type 1 = review; type 2 =
+     * Undo history is kept in an {@link UndoJournal}, which only stores the columns changed by each action.
      */
     public void clearUndo() {
-        mUndo = new LinkedList<>();
+        mUndo.clear();
     }
 
 
     /** Undo menu item name, or "" if undo unavailable. */
     public String undoName(Resources res) {
-        if (mUndo.size() > 0) {
-            DismissType type = (DismissType) mUndo.getLast()[0];
-            return res.getString(type.undoNameId);
+        if (!mUndo.isEmpty()) {
+            return res.getString(mUndo.lastType().undoNameId);
         }
         return "";
     }
 
 
     public boolean undoAvailable() {
-        return mUndo.size() > 0;
+        return !mUndo.isEmpty();
     }
 
 
     public long undo() {
-    	Object[] data = mUndo.removeLast();
-    	switch ((DismissType) data[0]) {
+        UndoJournal.UndoStep step = mUndo.undo(mDb);
+        switch (step.type) {
             case REVIEW:
-                Card c = (Card) data[1];
+                Card c = getCard(step.returnId);
                 // remove leech tag if it didn't have it before
-                Boolean wasLeech = (Boolean) data[2];
-                if (!wasLeech && c.note().hasTag("leech")) {
+                if (!step.wasLeech && c.note().hasTag("leech")) {
                     c.note().delTag("leech");
                     c.note().flush();
                 }
-                // write old data
-                c.flush(false);
                 // and delete revlog entry
-                long last = mDb.queryLongScalar("SELECT id FROM revlog WHERE cid = " + c.getId() + " ORDER BY id DESC LIMIT 1");
-                mDb.execute("DELETE FROM revlog WHERE id = " + last);
+                mDb.execute("DELETE FROM revlog WHERE id = " + step.revlogId);
+                getReviewSummary().cardsChanged(new long[] { c.getId() });
                 // restore any siblings
                 mDb.execute("update cards set queue=type,mod=?,usn=? where queue=-2 and nid=?",
                         new Object[]{Utils.intNow(), usn(), c.getNid()});
@@ -1216,70 +1332,49 @@ public class Collection {
                 mSched.setReps(mSched.getReps() - 1);
                 return c.getId();
 
-            case BURY_NOTE:
-                for (Card cc : (ArrayList<Card>) data[2]) {
-                    cc.flush(false);
-                }
-                return (Long) data[3];
+            case DELETE_NOTE:
+                mDb.execute("DELETE FROM graves WHERE oid IN " + Utils.ids2str(step.restoredIds));
+                getDupeIndex().notesChanged("(" + step.nid + ")");
+                return step.returnId;
 
+            case BURY_NOTE:
             case SUSPEND_CARD:
-                Card suspendedCard = (Card) data[1];
-                suspendedCard.flush(false);
-                return suspendedCard.getId();
-
             case SUSPEND_NOTE:
-                for (Card ccc : (ArrayList<Card>) data[1]) {
-                    ccc.flush(false);
-                }
-                return (Long) data[2];
-
-            case DELETE_NOTE:
-                ArrayList<Long> ids = new ArrayList<>();
-                Note note2 = (Note) data[1];
-                note2.flush(note2.getMod(), false);
-                ids.add(note2.getId());
-                for (Card c4 : (ArrayList<Card>) data[2]) {
-                    c4.flush(false);
-                    ids.add(c4.getId());
-                }
-                mDb.execute("DELETE FROM graves WHERE oid IN " + Utils.ids2str(Utils.arrayList2array(ids)));
-                return (Long) data[3];
-
             case BURY_CARD:
-                for (Card cc : (ArrayList<Card>) data[2]) {
-                    cc.flush(false);
-                }
-                return (Long) data[3];
+                return step.returnId;
             default:
                 return 0;
         }
     }
 
 
+    /**
+     * Record the state that the given action is about to change. The payload is the same as before the journal was
+     * introduced:
+     * REVIEW: [card, wasLeech]; BURY_CARD, BURY_NOTE: [dirty, cards of note, cid]; SUSPEND_CARD: [card];
+     * SUSPEND_NOTE: [cards of note, cid]; DELETE_NOTE: [note, cid]
+     */
+    @SuppressWarnings("unchecked")
     public void markUndo(DismissType type, Object[] o) {
-    	switch(type) {
-    	case REVIEW:
-    		mUndo.add(new Object[]{type, ((Card)o[0]).clone(), o[1]});
-    		break;
-        case BURY_CARD:
-            mUndo.add(new Object[]{type, o[0], o[1], o[2]});
-            break;
-        case BURY_NOTE:
-            mUndo.add(new Object[]{type, o[0], o[1], o[2]});
-            break;
-        case SUSPEND_CARD:
-            mUndo.add(new Object[]{type, ((Card)o[0]).clone()});
-            break;
-        case SUSPEND_NOTE:
-            mUndo.add(new Object[]{type, o[0], o[1]});
-            break;
-    	case DELETE_NOTE:
-    		mUndo.add(new Object[]{type, o[0], o[1], o[2]});
-    		break;
-    	}
-    	while (mUndo.size() > UNDO_SIZE_MAX) {
-    		mUndo.removeFirst();
-    	}
+        switch(type) {
+            case REVIEW:
+                mUndo.markReview((Card) o[0], (Boolean) o[1]);
+                break;
+            case BURY_CARD:
+            case BURY_NOTE:
+                mUndo.markCards(type, (List<Card>) o[1], (Long) o[2]);
+                break;
+            case SUSPEND_CARD:
+                Card card = (Card) o[0];
+                mUndo.markCards(type, Arrays.asList(card), card.getId());
+                break;
+            case SUSPEND_NOTE:
+                mUndo.markCards(type, (List<Card>) o[0], (Long) o[1]);
+                break;
+            case DELETE_NOTE:
+                mUndo.markDeleteNote(mDb, ((Note) o[0]).getId(), (Long) o[1]);
+                break;
+        }
     }
 
 
@@ -1287,6 +1382,29 @@ public class Collection {
         markUndo(DismissType.REVIEW, new Object[]{card, card.note().hasTag("leech")});
     }
 
+
+    /** Not in libanki. Called by Sched once the revlog entry of the review marked last is written. */
+    public void _reviewLogged(long revlogId) {
+        mUndo.reviewLogged(revlogId);
+    }
+
+
+    /**
+     * Not in libanki. Begin a transaction for actions recorded with {@link #markUndo}, whose steps only go into the
+     * undo journal once it commits.
+     */
+    public void beginUndoableTransaction() {
+        mDb.getDatabase().beginTransactionWithListener(mUndo);
+    }
+
+
+    private File _undoPath() {
+        if (mPath.endsWith(".anki2")) {
+            return new File(mPath.replaceFirst("\\.anki2$", ".undo"));
+        }
+        return new File(mPath + ".undo");
+    }
+
     /**
      * DB maintenance *********************************************************** ************************************
      */
@@ -1338,147 +1456,21 @@ public class Collection {
 
     /** Fix possible problems and rebuild caches. */
     public long fixIntegrity() {
-        File file = new File(mPath);
-        ArrayList<String> problems = new ArrayList<>();
-        long oldSize = file.length();
-        try {
-            mDb.getDatabase().beginTransaction();
-            try {
-                save();
-                if (!mDb.queryString("PRAGMA integrity_check").equals("ok")) {
-                    return -1;
-                }
-                // note types with a missing model
-                ArrayList<Long> ids = mDb.queryColumn(Long.class,
-                        "SELECT id FROM notes WHERE mid NOT IN " + Utils.ids2str(mModels.ids()), 0);
-                if (ids.size() != 0) {
-                	problems.add("Deleted " + ids.size() + " note(s) with missing note type.");
-	                _remNotes(Utils.arrayList2array(ids));
-                }
-                // for each model
-                for (JSONObject m : mModels.all()) {
-                    // cards with invalid ordinal
-                    if (m.getInt("type") == Consts.MODEL_STD) {
-                        ArrayList<Integer> ords = new ArrayList<>();
-                        JSONArray tmpls = m.getJSONArray("tmpls");
-                        for (int t = 0; t < tmpls.length(); t++) {
-                            ords.add(tmpls.getJSONObject(t).getInt("ord"));
-                        }
-                        ids = mDb.queryColumn(Long.class,
-                                "SELECT id FROM cards WHERE ord NOT IN " + Utils.ids2str(ords) + " AND nid IN ( " +
-                                "SELECT id FROM notes WHERE mid = " + m.getLong("id") + ")", 0);
-                        if (ids.size() > 0) {
-                            problems.add("Deleted " + ids.size() + " card(s) with missing template.");
-                            remCards(Utils.arrayList2array(ids));
-                        }
-                    }
-                    // notes with invalid field counts
-                    ids = new ArrayList<>();
-                    Cursor cur = null;
-                    try {
-                        cur = mDb.getDatabase().rawQuery("select id, flds from notes where mid = " + m.getLong("id"), null);
-                        while (cur.moveToNext()) {
-                            String flds = cur.getString(1);
-                            long id = cur.getLong(0);
-                            int fldsCount = 0;
-                            for (int i = 0; i < flds.length(); i++) {
-                                if (flds.charAt(i) == 0x1f) {
-                                    fldsCount++;
-                                }
-                            }
-                            if (fldsCount + 1 != m.getJSONArray("flds").length()) {
-                                ids.add(id);
-                            }
-                        }
-                        if (ids.size() > 0) {
-                            problems.add("Deleted " + ids.size() + " note(s) with wrong field count.");
-                            _remNotes(Utils.arrayList2array(ids));
-                        }
-                    } finally {
-                        if (cur != null && !cur.isClosed()) {
-                            cur.close();
-                        }
-                    }
-                }
-                // delete any notes with missing cards
-                ids = mDb.queryColumn(Long.class,
-                        "SELECT id FROM notes WHERE id NOT IN (SELECT DISTINCT nid FROM cards)", 0);
-                if (ids.size() != 0) {
-                	problems.add("Deleted " + ids.size() + " note(s) with missing no cards.");
-	                _remNotes(Utils.arrayList2array(ids));
-                }
-                // cards with missing notes
-                ids = mDb.queryColumn(Long.class,
-                        "SELECT id FROM cards WHERE nid NOT IN (SELECT id FROM notes)", 0);
-                if (ids.size() != 0) {
-                    problems.add("Deleted " + ids.size() + " card(s) with missing note.");
-                    remCards(Utils.arrayList2array(ids));
-                }
-                // cards with odue set when it shouldn't be
-                ids = mDb.queryColumn(Long.class,
-                        "select id from cards where odue > 0 and (type=1 or queue=2) and not odid", 0);
-                if (ids.size() != 0) {
-                    problems.add("Fixed " + ids.size() + " card(s) with invalid properties.");
-                    mDb.execute("update cards set odue=0 where id in " + Utils.ids2str(ids));
-                }
-                // cards with odid set when not in a dyn deck
-                ArrayList<Long> dids = new ArrayList<>();
-                for (long id : mDecks.allIds()) {
-                    if (!mDecks.isDyn(id)) {
-                        dids.add(id);
-                    }
-                }
-                ids = mDb.queryColumn(Long.class,
-                        "select id from cards where odid > 0 and did in " + Utils.ids2str(dids), 0);
-                if (ids.size() != 0) {
-                    problems.add("Fixed " + ids.size() + " card(s) with invalid properties.");
-                    mDb.execute("update cards set odid=0, odue=0 where id in " + Utils.ids2str(ids));
-                }
-                // tags
-                mTags.registerNotes();
-                // field cache
-                for (JSONObject m : mModels.all()) {
-                    updateFieldCache(Utils.arrayList2array(mModels.nids(m)));
-                }
-                // new cards can't have a due position > 32 bits
-                mDb.execute("UPDATE cards SET due = 1000000, mod = " + Utils.intNow() + ", usn = " + usn()
-                        + " WHERE due > 1000000 AND queue = 0");
-                // new card position
-                mConf.put("nextPos", mDb.queryScalar("SELECT max(due) + 1 FROM cards WHERE type = 0"));
-                // reviews should have a reasonable due
-                ids = mDb.queryColumn(Long.class, "SELECT id FROM cards WHERE queue = 2 AND due > 10000", 0);
-                if (ids.size() > 0) {
-                	problems.add("Reviews had incorrect due date.");
-                    mDb.execute("UPDATE cards SET due = 0, mod = " + Utils.intNow() + ", usn = " + usn()
-                            + " WHERE id IN " + Utils.ids2str(Utils.arrayList2array(ids)));
-                }
-                mDb.getDatabase().setTransactionSuccessful();
-                // DB must have indices. Older versions of AnkiDroid didn't create them for new collections.
-                int ixs = mDb.queryScalar("select count(name) from sqlite_master where type = 'index'");
-                if (ixs < 7) {
-                    problems.add("Indices were missing.");
-                    Storage.addIndices(mDb);
-                }
-            } catch (JSONException e) {
-                throw new RuntimeException(e);
-            } finally {
-                mDb.getDatabase().endTransaction();
-            }
-        } catch (RuntimeException e) {
-            Timber.e(e, "doInBackgroundCheckDatabase - RuntimeException on marking card");
-            AnkiDroidApp.sendExceptionReport(e, "doInBackgroundCheckDatabase");
-            return -1;
-        }
-        // and finally, optimize
-        optimize();
-        file = new File(mPath);
-        long newSize = file.length();
-        // if any problems were found, force a full sync
-        if (problems.size() > 0) {
-            modSchemaNoCheck();
-        }
-        // TODO: report problems
-        return (oldSize - newSize) / 1024;
+        return fixIntegrity(null, true);
+    }
+
+
+    /**
+     * Not in libanki.
+     * Same as {@link #fixIntegrity()}, in phases that report their progress and can be resumed, see
+     * {@link IntegrityCheck}.
+     *
+     * @param progress Receives a message as each phase starts, or null
+     * @param forceVacuum If false, VACUUM is skipped when few pages of the file are free
+     * @return The number of kB the file shrunk by, or -1 on failure
+     */
+    public long fixIntegrity(DeckTask.ProgressCallback progress, boolean forceVacuum) {
+        return new IntegrityCheck(this, progress, forceVacuum).run();
     }
 
 
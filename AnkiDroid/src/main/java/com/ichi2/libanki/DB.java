@@ -23,8 +23,10 @@ import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.DatabaseErrorHandler;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Build;
 
 import android.widget.Toast;
@@ -53,6 +55,8 @@ public class DB {
      */
     private SQLiteDatabase mDatabase;
     private boolean mMod = false;
+    /** Incremented by every statement that may modify cards or notes. Used to validate cached objects. */
+    private long mGeneration = 0;
 
 
     /**
@@ -126,6 +130,16 @@ public class DB {
     }
 
 
+    /**
+     * Not in libanki.
+     * @return A counter that changes whenever a statement that may modify the cards or notes tables is executed
+     *         through this object. Cards and notes loaded while the generation was unchanged still match the database.
+     */
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+
     /**
      * Convenience method for querying the database for a single integer result.
      *
@@ -291,6 +305,10 @@ public class DB {
                 break;
             }
         }
+        // anything that isn't a plain query may change rows (including "insert or replace")
+        if (!s.startsWith("select")) {
+            _touch(s);
+        }
         if (object == null) {
             this.getDatabase().execSQL(sql);
         } else {
@@ -306,6 +324,7 @@ public class DB {
      */
     public void executeScript(String sql) {
         mMod = true;
+        _touch(sql.toLowerCase(Locale.US));
         String[] queries = sql.split(";");
         for(String query : queries) {
             mDatabase.execSQL(query);
@@ -322,6 +341,7 @@ public class DB {
     /** update must always be called via DB in order to mark the db as changed */
     public int update(String table, ContentValues values, String whereClause, String[] whereArgs) {
         mMod = true;
+        _touch(table);
         return getDatabase().update(table, values, whereClause, whereArgs);
     }
 
@@ -329,12 +349,26 @@ public class DB {
     /** insert must always be called via DB in order to mark the db as changed */
     public long insert(String table, String nullColumnHack, ContentValues values) {
         mMod = true;
+        _touch(table);
         return getDatabase().insert(table, nullColumnHack, values);
     }
 
 
+    /**
+     * Not in libanki.
+     * Compile a modifying statement for repeated execution with bound arguments. The caller is responsible for
+     * closing the statement and for wrapping the executions in a transaction.
+     */
+    public Statement compileStatement(String sql) {
+        return new Statement(sql);
+    }
+
+
     public void executeMany(String sql, List<Object[]> list) {
         mMod = true;
+        if (!list.isEmpty()) {
+            _touch(sql.toLowerCase(Locale.US));
+        }
         mDatabase.beginTransaction();
         try {
             for (Object[] o : list) {
@@ -346,6 +380,71 @@ public class DB {
         }
     }
 
+    /**
+     * Not in libanki.
+     * A compiled statement that marks the database as changed on every execution, like {@link #execute}, so that
+     * objects cached against {@link #getGeneration()} are not reused after a write through a reused statement.
+     */
+    public class Statement {
+        private final SQLiteStatement mStatement;
+        private final String mLowerSql;
+
+
+        private Statement(String sql) {
+            mStatement = mDatabase.compileStatement(sql);
+            mLowerSql = sql.toLowerCase(Locale.US);
+        }
+
+
+        public void bindLong(int index, long value) {
+            mStatement.bindLong(index, value);
+        }
+
+
+        public void bindString(int index, String value) {
+            mStatement.bindString(index, value);
+        }
+
+
+        /** Bind a value of any type, null included. */
+        public void bindObject(int index, Object value) {
+            DatabaseUtils.bindObjectToProgram(mStatement, index, value);
+        }
+
+
+        public void clearBindings() {
+            mStatement.clearBindings();
+        }
+
+
+        public void execute() {
+            mMod = true;
+            _touch(mLowerSql);
+            mStatement.execute();
+        }
+
+
+        public long executeInsert() {
+            mMod = true;
+            _touch(mLowerSql);
+            return mStatement.executeInsert();
+        }
+
+
+        public void close() {
+            mStatement.close();
+        }
+    }
+
+
+    /** Bump the generation if the (lower case) statement or table name refers to cards or notes. */
+    private void _touch(String s) {
+        if (s.contains("cards") || s.contains("notes")) {
+            mGeneration++;
+        }
+    }
+
+
     /**
      * @return The full path to this database file.
      */
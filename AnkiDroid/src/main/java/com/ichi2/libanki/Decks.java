@@ -126,6 +126,8 @@ public class Decks {
     private HashMap<Long, JSONObject> mDecks;
     private HashMap<Long, JSONObject> mDconf;
     private boolean mChanged;
+    // Not in libanki. Bumped on every load and save, so that lookups derived from the decks know when to rebuild.
+    private int mVersion;
 
 
     /**
@@ -160,6 +162,7 @@ public class Decks {
             throw new RuntimeException(e);
         }
         mChanged = false;
+        mVersion++;
     }
 
 
@@ -181,6 +184,13 @@ public class Decks {
             }
         }
         mChanged = true;
+        mVersion++;
+    }
+
+
+    /** Not in libanki. */
+    public int getVersion() {
+        return mVersion;
     }
 
 
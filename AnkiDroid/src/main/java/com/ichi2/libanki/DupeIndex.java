@@ -0,0 +1,364 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+import android.util.Pair;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import timber.log.Timber;
+
+/**
+ * Not in libanki.
+ *
+ * Checksum index of note fields for duplicate detection. For each indexed (model, field ord) pair, the fieldsums table
+ * holds the {@link Utils#fieldChecksum} of the field (its text with HTML and media stripped), so that duplicates are
+ * found with an indexed GROUP BY, and only the notes of the candidate groups are read back to rule out checksum
+ * collisions.
+ *
+ * The first field needs no table: notes.csum is the same checksum and is already indexed. Other fields are indexed
+ * the first time duplicates are searched in them. The index is then kept up to date wherever the field cache is
+ * ({@link Note#flush}, {@link Collection#updateFieldCache}, note removal), dropped for a model whose fields are
+ * rearranged, and not uploaded on full sync.
+ */
+public class DupeIndex {
+
+    private static final String TABLE = "fieldsums";
+    private static final String FIELDS_TABLE = "fieldsums_fields";
+
+    private final Collection mCol;
+    private final DB mDb;
+    /** Indexed field ords by model id, or null until read from the database. */
+    private Map<Long, Set<Integer>> mIndexed;
+
+
+    public DupeIndex(Collection col) {
+        mCol = col;
+        mDb = col.getDb();
+    }
+
+
+    /**
+     * Finding duplicates ***********************************************************************************************
+     */
+
+    /**
+     * Same result as libanki's findDupes: groups of notes whose field called fieldName has the same text once HTML
+     * and media are stripped, in the order the second note of each group is found.
+     *
+     * @param nids The notes to look in, or null for all notes.
+     */
+    public List<Pair<String, List<Long>>> findDupes(String fieldName, List<Long> nids) {
+        // (mid, ord) of every model that has the field
+        Map<Long, Integer> fields = new HashMap<>();
+        try {
+            for (JSONObject m : mCol.getModels().all()) {
+                JSONArray flds = m.getJSONArray("flds");
+                for (int c = 0; c < flds.length(); c++) {
+                    if (flds.getJSONObject(c).getString("name").equalsIgnoreCase(fieldName)) {
+                        fields.put(m.getLong("id"), c);
+                        break;
+                    }
+                }
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        String limit = nids == null ? "" : " AND nid IN " + Utils.ids2str(nids);
+        StringBuilder sql = new StringBuilder();
+        for (Map.Entry<Long, Integer> e : fields.entrySet()) {
+            long mid = e.getKey();
+            int ord = e.getValue();
+            if (sql.length() > 0) {
+                sql.append(" UNION ALL ");
+            }
+            if (ord == 0) {
+                sql.append("SELECT id AS nid, csum FROM notes WHERE mid = ").append(mid)
+                        .append(" AND csum != ").append(Utils.fieldChecksum(""));
+            } else {
+                _ensureIndexed(mid, ord);
+                sql.append("SELECT nid, csum FROM " + TABLE + " WHERE mid = ").append(mid).append(" AND ord = ")
+                        .append(ord);
+            }
+        }
+        List<Pair<String, List<Long>>> dupes = new ArrayList<>();
+        if (sql.length() == 0) {
+            return dupes;
+        }
+        // candidate groups, sharing a checksum
+        List<Long> candidates = new ArrayList<>();
+        Cursor cur = null;
+        try {
+            cur = mDb.getDatabase().rawQuery("SELECT group_concat(nid) FROM (" + sql + ") WHERE 1" + limit
+                    + " GROUP BY csum HAVING count() > 1", null);
+            while (cur.moveToNext()) {
+                for (String nid : cur.getString(0).split(",")) {
+                    candidates.add(Long.parseLong(nid));
+                }
+            }
+        } finally {
+            if (cur != null && !cur.isClosed()) {
+                cur.close();
+            }
+        }
+        if (candidates.isEmpty()) {
+            return dupes;
+        }
+        // compare the actual text of the candidates, in note order like libanki
+        Map<String, List<Long>> vals = new HashMap<>();
+        try {
+            cur = mDb.getDatabase().rawQuery("SELECT id, mid, flds FROM notes WHERE id IN "
+                    + Utils.ids2str(candidates) + " ORDER BY id", null);
+            while (cur.moveToNext()) {
+                long nid = cur.getLong(0);
+                Integer ord = fields.get(cur.getLong(1));
+                if (ord == null) {
+                    continue;
+                }
+                String val = Utils.stripHTMLMedia(Utils.splitFields(cur.getString(2))[ord]);
+                // empty does not count as duplicate
+                if (TextUtils.isEmpty(val)) {
+                    continue;
+                }
+                if (!vals.containsKey(val)) {
+                    vals.put(val, new ArrayList<Long>());
+                }
+                vals.get(val).add(nid);
+                if (vals.get(val).size() == 2) {
+                    dupes.add(new Pair<>(val, vals.get(val)));
+                }
+            }
+        } finally {
+            if (cur != null && !cur.isClosed()) {
+                cur.close();
+            }
+        }
+        return dupes;
+    }
+
+
+    /**
+     * @return the notes of model mid, other than excludeNid, whose field ord has the same stripped text as val
+     */
+    public List<Long> find(long mid, int ord, String val, long excludeNid) {
+        long csum = Utils.fieldChecksum(val);
+        String sql;
+        if (ord == 0) {
+            sql = "SELECT id, flds FROM notes WHERE csum = " + csum + " AND mid = " + mid + " AND id != " + excludeNid;
+        } else {
+            _ensureIndexed(mid, ord);
+            sql = "SELECT id, flds FROM notes WHERE id IN (SELECT nid FROM " + TABLE + " WHERE mid = " + mid
+                    + " AND ord = " + ord + " AND csum = " + csum + ") AND id != " + excludeNid;
+        }
+        String stripped = Utils.stripHTMLMedia(val);
+        List<Long> found = new ArrayList<>();
+        Cursor cur = null;
+        try {
+            cur = mDb.getDatabase().rawQuery(sql, null);
+            while (cur.moveToNext()) {
+                // rule out checksum collisions
+                if (Utils.stripHTMLMedia(Utils.splitFields(cur.getString(1))[ord]).equals(stripped)) {
+                    found.add(cur.getLong(0));
+                }
+            }
+        } finally {
+            if (cur != null && !cur.isClosed()) {
+                cur.close();
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     * Maintenance ******************************************************************************************************
+     */
+
+    /** A note was written with these fields. */
+    public void noteChanged(long nid, long mid, String[] fields) {
+        if (!_inUse()) {
+            return;
+        }
+        mDb.execute("DELETE FROM " + TABLE + " WHERE nid = " + nid);
+        Set<Integer> ords = mIndexed.get(mid);
+        if (ords == null) {
+            return;
+        }
+        for (int ord : ords) {
+            if (ord < fields.length && !TextUtils.isEmpty(Utils.stripHTMLMedia(fields[ord]))) {
+                mDb.execute("INSERT INTO " + TABLE + " VALUES (?,?,?,?)",
+                        new Object[] { nid, mid, ord, Utils.fieldChecksum(fields[ord]) });
+            }
+        }
+    }
+
+
+    /** The notes in snids were written in bulk. */
+    public void notesChanged(String snids) {
+        if (!_inUse()) {
+            return;
+        }
+        SQLiteDatabase db = mDb.getDatabase();
+        db.beginTransaction();
+        DB.Statement insert = null;
+        Cursor cur = null;
+        try {
+            mDb.execute("DELETE FROM " + TABLE + " WHERE nid IN " + snids);
+            insert = mDb.compileStatement("INSERT INTO " + TABLE + " VALUES (?,?,?,?)");
+            cur = db.rawQuery("SELECT id, mid, flds FROM notes WHERE id IN " + snids, null);
+            while (cur.moveToNext()) {
+                Set<Integer> ords = mIndexed.get(cur.getLong(1));
+                if (ords != null) {
+                    _insert(insert, cur.getLong(0), cur.getLong(1), Utils.splitFields(cur.getString(2)), ords);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            if (cur != null && !cur.isClosed()) {
+                cur.close();
+            }
+            if (insert != null) {
+                insert.close();
+            }
+            db.endTransaction();
+        }
+    }
+
+
+    public void notesRemoved(String snids) {
+        if (_inUse()) {
+            mDb.execute("DELETE FROM " + TABLE + " WHERE nid IN " + snids);
+        }
+    }
+
+
+    /** The fields of the model were rearranged; its checksums will be rebuilt when next needed. */
+    public void modelChanged(long mid) {
+        if (_inUse() && mIndexed.remove(mid) != null) {
+            mDb.execute("DELETE FROM " + TABLE + " WHERE mid = " + mid);
+            mDb.execute("DELETE FROM " + FIELDS_TABLE + " WHERE mid = " + mid);
+        }
+    }
+
+
+    /** Drop the whole index. */
+    public void clear() {
+        mDb.execute("DROP TABLE IF EXISTS " + TABLE);
+        mDb.execute("DROP TABLE IF EXISTS " + FIELDS_TABLE);
+        mIndexed = new HashMap<>();
+    }
+
+
+    private boolean _inUse() {
+        if (mIndexed == null) {
+            mIndexed = new HashMap<>();
+            if (mDb.queryScalar("SELECT count() FROM sqlite_master WHERE type = 'table' AND name = '"
+                    + FIELDS_TABLE + "'") > 0) {
+                Cursor cur = null;
+                try {
+                    cur = mDb.getDatabase().rawQuery("SELECT mid, ord FROM " + FIELDS_TABLE, null);
+                    while (cur.moveToNext()) {
+                        _indexedOrds(cur.getLong(0)).add(cur.getInt(1));
+                    }
+                } finally {
+                    if (cur != null && !cur.isClosed()) {
+                        cur.close();
+                    }
+                }
+            }
+        }
+        return !mIndexed.isEmpty();
+    }
+
+
+    private Set<Integer> _indexedOrds(long mid) {
+        Set<Integer> ords = mIndexed.get(mid);
+        if (ords == null) {
+            ords = new HashSet<>();
+            mIndexed.put(mid, ords);
+        }
+        return ords;
+    }
+
+
+    /** Build the checksums of a field of a model if we don't have them yet. */
+    private void _ensureIndexed(long mid, int ord) {
+        _inUse();
+        if (mIndexed.containsKey(mid) && mIndexed.get(mid).contains(ord)) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        SQLiteDatabase db = mDb.getDatabase();
+        db.beginTransaction();
+        DB.Statement insert = null;
+        Cursor cur = null;
+        try {
+            mDb.execute("CREATE TABLE IF NOT EXISTS " + FIELDS_TABLE + " (mid integer not null, ord integer not null, "
+                    + "primary key (mid, ord))");
+            mDb.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " (nid integer not null, mid integer not null, "
+                    + "ord integer not null, csum integer not null)");
+            mDb.execute("CREATE INDEX IF NOT EXISTS ix_fieldsums_csum ON " + TABLE + " (mid, ord, csum)");
+            mDb.execute("CREATE INDEX IF NOT EXISTS ix_fieldsums_nid ON " + TABLE + " (nid)");
+            mDb.execute("DELETE FROM " + TABLE + " WHERE mid = " + mid + " AND ord = " + ord);
+            insert = mDb.compileStatement("INSERT INTO " + TABLE + " VALUES (?,?,?,?)");
+            Set<Integer> ords = new HashSet<>();
+            ords.add(ord);
+            cur = db.rawQuery("SELECT id, flds FROM notes WHERE mid = " + mid, null);
+            while (cur.moveToNext()) {
+                _insert(insert, cur.getLong(0), mid, Utils.splitFields(cur.getString(1)), ords);
+            }
+            mDb.execute("INSERT INTO " + FIELDS_TABLE + " VALUES (?,?)", new Object[] { mid, ord });
+            db.setTransactionSuccessful();
+        } finally {
+            if (cur != null && !cur.isClosed()) {
+                cur.close();
+            }
+            if (insert != null) {
+                insert.close();
+            }
+            db.endTransaction();
+        }
+        _indexedOrds(mid).add(ord);
+        Timber.d("DupeIndex: indexed field %d of model %d in %d ms", ord, mid, System.currentTimeMillis() - start);
+    }
+
+
+    private void _insert(DB.Statement insert, long nid, long mid, String[] fields, Set<Integer> ords) {
+        for (int ord : ords) {
+            // empty does not count as duplicate
+            if (ord >= fields.length || TextUtils.isEmpty(Utils.stripHTMLMedia(fields[ord]))) {
+                continue;
+            }
+            insert.bindLong(1, nid);
+            insert.bindLong(2, mid);
+            insert.bindLong(3, ord);
+            insert.bindLong(4, Utils.fieldChecksum(fields[ord]));
+            insert.executeInsert();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.ichi2.anki.R;
+import com.ichi2.async.DeckTask;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Not in libanki.
+ *
+ * Finds the cards whose template is empty for their note in one pass over the notes joined with their cards, in note
+ * id order so that the cards index is used instead of sorting. The fields of each note are checked once, against the
+ * compiled requirements of its model. Unlike {@link Collection#emptyCids()}, it only reads: missing cards aren't
+ * generated.
+ */
+class EmptyCardScanner {
+
+    /** Notes between two progress updates and cancellation checks. */
+    private static final int PROGRESS_INTERVAL = 500;
+    /** Cards removed per transaction. */
+    private static final int DELETE_BATCH = 1000;
+
+    private final Collection mCol;
+    private final DB mDb;
+    private final HashMap<Long, ModelInfo> mModels = new HashMap<>();
+
+
+    EmptyCardScanner(Collection col) {
+        mCol = col;
+        mDb = col.getDb();
+    }
+
+
+    /**
+     * @param progress Receives the share of notes scanned and the number of empty cards found so far, or null
+     * @return Ids of the empty cards, or null if cancelled
+     */
+    List<Long> scan(DeckTask.ProgressCallback progress) {
+        List<Long> empty = new ArrayList<>();
+        int total = mDb.queryScalar("SELECT count() FROM notes");
+        int notes = 0;
+        long lastNid = 0;
+        ModelInfo mi = null;
+        long nonEmpty = 0;
+        List<Integer> avail = null;
+        Cursor cur = null;
+        try {
+            cur = mDb.getDatabase().rawQuery("SELECT n.id, n.mid, n.flds, c.id, c.ord FROM notes n "
+                    + "JOIN cards c ON c.nid = n.id ORDER BY n.id", null);
+            while (cur.moveToNext()) {
+                long nid = cur.getLong(0);
+                if (nid != lastNid) {
+                    // next note: evaluate its fields once for all its cards
+                    lastNid = nid;
+                    if (++notes % PROGRESS_INTERVAL == 0 && progress != null) {
+                        if (progress.isCancelled()) {
+                            return null;
+                        }
+                        _publish(progress, R.string.empty_cards_finding_progress, notes, total, empty.size());
+                    }
+                    mi = _model(cur.getLong(1));
+                    if (mi == null) {
+                        // note points to an invalid model, left to Check Database
+                        continue;
+                    }
+                    String flds = cur.getString(2);
+                    if (mi.req != null) {
+                        nonEmpty = TemplateRequirements.nonEmptyMask(flds);
+                        avail = null;
+                    } else {
+                        avail = mCol.getModels().availOrds(mi.model, flds);
+                    }
+                }
+                if (mi == null) {
+                    continue;
+                }
+                int ord = cur.getInt(4);
+                boolean available = avail != null ? avail.contains(ord) : mi.req.isAvailable(ord, nonEmpty);
+                if (!available) {
+                    empty.add(cur.getLong(3));
+                }
+            }
+        } finally {
+            if (cur != null && !cur.isClosed()) {
+                cur.close();
+            }
+        }
+        return empty;
+    }
+
+
+    /**
+     * Remove cards in batches, each in its own transaction, along with the notes left without cards.
+     *
+     * @param progress Receives the share of cards removed, or null
+     * @return The number of cards removed, fewer than requested if cancelled
+     */
+    int remove(long[] cids, DeckTask.ProgressCallback progress) {
+        SQLiteDatabase db = mDb.getDatabase();
+        int done = 0;
+        while (done < cids.length) {
+            if (progress != null) {
+                if (progress.isCancelled()) {
+                    break;
+                }
+                _publish(progress, R.string.empty_cards_deleting_progress, done, cids.length, done);
+            }
+            int end = Math.min(done + DELETE_BATCH, cids.length);
+            db.beginTransaction();
+            try {
+                mCol.remCards(Arrays.copyOfRange(cids, done, end));
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            done = end;
+        }
+        return done;
+    }
+
+
+    private void _publish(DeckTask.ProgressCallback progress, int resId, int done, int total, int count) {
+        if (progress.getResources() != null) {
+            int percent = total == 0 ? 100 : (int) ((long) done * 100 / total);
+            progress.publishProgress(new DeckTask.TaskData(progress.getResources().getString(resId, percent, count)));
+        }
+    }
+
+
+    private ModelInfo _model(long mid) {
+        if (mModels.containsKey(mid)) {
+            return mModels.get(mid);
+        }
+        JSONObject m = mCol.getModels().get(mid);
+        ModelInfo mi = null;
+        if (m != null) {
+            mi = new ModelInfo(mCol.getModels(), m);
+        }
+        mModels.put(mid, mi);
+        return mi;
+    }
+
+
+    /** The model and, for standard models with few enough fields, its compiled requirements. */
+    private static class ModelInfo {
+        final JSONObject model;
+        final TemplateRequirements req;
+
+        ModelInfo(Models models, JSONObject m) {
+            model = m;
+            req = models.requirements(m);
+        }
+    }
+}
@@ -20,6 +20,7 @@ package com.ichi2.libanki;
 
 import android.database.Cursor;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
 import android.text.TextUtils;
 
 import android.util.Pair;
@@ -40,7 +41,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -52,7 +52,12 @@ public class Finder {
     private static final Pattern fNidsPattern = Pattern.compile("[^0-9,]");
     private static final Pattern fMidPattern = Pattern.compile("[^0-9]");
 
+    /** Number of notes read, replaced and committed at once by findReplace. */
+    private static final int FIND_REPLACE_CHUNK = 500;
+
     private Collection mCol;
+    /** Set by _where when the SQL it built embeds note ids found in the notes table. */
+    private boolean mDataDependent;
 
 
     public Finder(Collection col) {
@@ -83,8 +88,7 @@ public class Finder {
 
 
     private List<Long> _findCards(String query, Object _order) {
-        String[] tokens = _tokenize(query);
-        Pair<String, String[]> res1 = _where(tokens);
+        Pair<String, String[]> res1 = _compile(query);
         String preds = res1.first;
         String[] args = res1.second;
         List<Long> res = new ArrayList<>();
@@ -117,8 +121,7 @@ public class Finder {
 
 
     public List<Long> findNotes(String query) {
-        String[] tokens = _tokenize(query);
-        Pair<String, String[]> res1 = _where(tokens);
+        Pair<String, String[]> res1 = _compile(query);
         String preds = res1.first;
         String[] args = res1.second;
         List<Long> res = new ArrayList<>();
@@ -149,6 +152,22 @@ public class Finder {
     }
 
 
+    /**
+     * Not in libanki. _tokenize and _where, reusing the result of an earlier call with the same query when the
+     * collection's {@link QueryCache} still holds it.
+     */
+    private Pair<String, String[]> _compile(String query) {
+        QueryCache cache = mCol.getQueryCache();
+        Pair<String, String[]> res = cache.get(query);
+        if (res == null) {
+            mDataDependent = false;
+            res = _where(_tokenize(query));
+            cache.put(query, res, mDataDependent);
+        }
+        return res;
+    }
+
+
     /**
      * Tokenizing
      * ***********************************************************
@@ -319,10 +338,12 @@ public class Finder {
                 } else if (cmd.equals("tag")) {
                     s.add(_findTag(val, args));
                 } else if (cmd.equals("dupe")) {
+                    mDataDependent = true;
                     s.add(_findDupes(val));
                 } else if (cmd.equals("is")) {
                     s.add(_findCardState(val));
                 } else {
+                    mDataDependent = true;
                     s.add(_findField(cmd, val));
                 }
             // normal text search
@@ -419,13 +440,27 @@ public class Finder {
             	sort = "n.id, c.ord";
             }
             boolean sortBackwards = mCol.getConf().getBoolean("sortBackwards");
-            return new Pair<>(" ORDER BY " + sort, sortBackwards);
+            if (sortBackwards) {
+                // AnkiDroid: let SQLite read the index backwards rather than reversing the whole list afterwards
+                return new Pair<>(" ORDER BY " + _descending(sort), false);
+            }
+            return new Pair<>(" ORDER BY " + sort, false);
         } catch (JSONException e) {
             throw new RuntimeException(e);
         }
     }
 
 
+    /** Not in libanki. Each term of an ORDER BY clause in the opposite direction. */
+    private String _descending(String sort) {
+        String[] terms = sort.split(",");
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = terms[i].trim() + " desc";
+        }
+        return TextUtils.join(", ", terms);
+    }
+
+
     /**
      * Commands
      * ***********************************************************
@@ -490,6 +525,11 @@ public class Finder {
             ease = "and ease=" + r[1];
         }
         long cutoff = (mCol.getSched().getDayCutoff() - 86400 * days) * 1000;
+        if (ease.length() == 0) {
+            // AnkiDroid: a card was reviewed since the cutoff if its last review was, which takes one row per card
+            mCol.getReviewSummary().ensure();
+            return "c.id in (select cid from " + ReviewSummary.TABLE + " where id>" + cutoff + ")";
+        }
         return "c.id in (select cid from revlog where id>" + cutoff + " " + ease + ")";
     }
 
@@ -579,17 +619,7 @@ public class Finder {
 
 
     private String _findModel(String val) {
-        LinkedList<Long> ids = new LinkedList<>();
-        try {
-            for (JSONObject m : mCol.getModels().all()) {
-                if (m.getString("name").equalsIgnoreCase(val)) {
-                    ids.add(m.getLong("id"));
-                }
-            }
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
-        }
-        return "n.mid in " + Utils.ids2str(ids);
+        return "n.mid in " + Utils.ids2str(mCol.getQueryCache().modelIds(val));
     }
 
 
@@ -597,11 +627,7 @@ public class Finder {
         if (did == null) {
             return null;
         }
-        TreeMap<String, Long> children = mCol.getDecks().children(did);
-        List<Long> res = new ArrayList<>();
-        res.add(did);
-        res.addAll(children.values());
-        return res;
+        return mCol.getQueryCache().deckAndChildren(did);
     }
 
 
@@ -620,18 +646,18 @@ public class Finder {
                 ids = dids(mCol.getDecks().current().getLong("id"));
             } else if (!val.contains("*")) {
                 // single deck
-                ids = dids(mCol.getDecks().id(val, false));
+                ids = dids(mCol.getQueryCache().deckId(val));
             } else {
                 // wildcard
                 ids = new ArrayList<>();
+                Set<Long> seen = new HashSet<>();
                 val = val.replace("*", ".*");
                 val = val.replace("+", "\\+");
-                for (JSONObject d : mCol.getDecks().all()) {
-                    if (d.getString("name").matches("(?i)" + val)) {
-                        for (long id : dids(d.getLong("id"))) {
-                            if (!ids.contains(id)) {
-                                ids.add(id);
-                            }
+                Pattern pattern = Pattern.compile("(?i)" + val);
+                for (long did : mCol.getQueryCache().deckIds(pattern)) {
+                    for (long id : dids(did)) {
+                        if (seen.add(id)) {
+                            ids.add(id);
                         }
                     }
                 }
@@ -659,28 +685,7 @@ public class Finder {
             return "c.ord = " + num;
         }
         // search for template names
-        List<String> lims = new ArrayList<>();
-        try {
-            for (JSONObject m : mCol.getModels().all()) {
-                JSONArray tmpls = m.getJSONArray("tmpls");
-                for (int ti = 0; ti < tmpls.length(); ++ti) {
-                    JSONObject t = tmpls.getJSONObject(ti);
-                    if (t.getString("name").equalsIgnoreCase(val)) {
-                        if (m.getInt("type") == Consts.MODEL_CLOZE) {
-                            // if the user has asked for a cloze card, we want
-                            // to give all ordinals, so we just limit to the
-                            // model instead
-                            lims.add("(n.mid = " + m.getLong("id") + ")");
-                        } else {
-                            lims.add("(n.mid = " + m.getLong("id") + " and c.ord = " +
-                                    t.getInt("ord") + ")");
-                        }
-                    }
-                }
-            }
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
-        }
+        List<String> lims = mCol.getQueryCache().templateLims(val);
         return TextUtils.join(" or ", lims.toArray(new String[lims.size()]));
     }
 
@@ -708,20 +713,7 @@ public class Finder {
         Pattern pattern = Pattern.compile("\\Q" + javaVal + "\\E", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
 
         // find models that have that field
-        Map<Long, Object[]> mods = new HashMap<>();
-        try {
-            for (JSONObject m : mCol.getModels().all()) {
-                JSONArray flds = m.getJSONArray("flds");
-                for (int fi = 0; fi < flds.length(); ++fi) {
-                    JSONObject f = flds.getJSONObject(fi);
-                    if (f.getString("name").equalsIgnoreCase(field)) {
-                        mods.put(m.getLong("id"), new Object[] { m, f.getInt("ord") });
-                    }
-                }
-            }
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
-        }
+        Map<Long, Integer> mods = mCol.getQueryCache().fieldOrds(field);
         if (mods.isEmpty()) {
             // nothing has that field
             return null;
@@ -741,7 +733,7 @@ public class Finder {
 
             while (cur.moveToNext()) {
                 String[] flds = Utils.splitFields(cur.getString(2));
-                int ord = (Integer)mods.get(cur.getLong(1))[1];
+                int ord = mods.get(cur.getLong(1));
                 String strg = flds[ord];
                 if (pattern.matcher(strg).matches()) {
                     nids.add(cur.getLong(0));
@@ -822,6 +814,24 @@ public class Finder {
 
     public static int findReplace(Collection col, List<Long> nids, String src, String dst, boolean isRegex,
             String field, boolean fold) {
+        return findReplace(col, nids, src, dst, isRegex, field, fold, false, null);
+    }
+
+
+    /**
+     * Not in libanki.
+     *
+     * Same as above, but the notes are processed in chunks of {@link #FIND_REPLACE_CHUNK}: each chunk is read,
+     * rewritten and committed on its own, with the field cache and card generation done for that chunk only. Memory
+     * use stays bounded and other work can get to the database between chunks.
+     *
+     * @param dryRun If true, nothing is written and the notes that would change are only counted.
+     * @param progress Receives the percentage of notes processed after each chunk, may be null. If its task is
+     *            cancelled, we stop after the current chunk; the chunks already committed stay replaced.
+     * @return The number of notes changed, or that would be changed for a dry run.
+     */
+    public static int findReplace(Collection col, List<Long> nids, String src, String dst, boolean isRegex,
+            String field, boolean fold, boolean dryRun, DeckTask.ProgressCallback progress) {
         Map<Long, Integer> mmap = new HashMap<>();
         if (field != null) {
             try {
@@ -849,53 +859,121 @@ public class Finder {
             src = "(?i)" + src;
         }
         Pattern regex = Pattern.compile(src);
+        Matcher matcher = regex.matcher("");
+
+        int changed = 0;
+        long mod = Utils.intNow();
+        int usn = col.usn();
+        Map<Long, Integer> sortIdx = new HashMap<>();
+        for (int from = 0; from < nids.size(); from += FIND_REPLACE_CHUNK) {
+            List<Long> chunk = nids.subList(from, Math.min(from + FIND_REPLACE_CHUNK, nids.size()));
+            changed += _findReplaceChunk(col, chunk, matcher, dst, field != null ? mmap : null, sortIdx, mod, usn,
+                    dryRun);
+            if (progress != null) {
+                progress.publishProgress(new DeckTask.TaskData((from + chunk.size()) * 100 / nids.size()));
+                if (progress.isCancelled()) {
+                    Timber.i("findReplace() cancelled after %d notes", from + chunk.size());
+                    break;
+                }
+            }
+        }
+        return changed;
+    }
+
 
-        ArrayList<Object[]> d = new ArrayList<>();
-        String snids = Utils.ids2str(nids);
-        nids = new ArrayList<>();
+    private static int _findReplaceChunk(Collection col, List<Long> nids, Matcher matcher, String dst,
+            Map<Long, Integer> mmap, Map<Long, Integer> sortIdx, long mod, int usn, boolean dryRun) {
+        SQLiteDatabase db = col.getDb().getDatabase();
+        List<Long> changed = new ArrayList<>();
+        DB.Statement update = null;
         Cursor cur = null;
+        if (!dryRun) {
+            db.beginTransaction();
+        }
         try {
-            cur = col.getDb().getDatabase().rawQuery(
-                    "select id, mid, flds from notes where id in " + snids, null);
+            cur = db.rawQuery("select id, mid, flds from notes where id in "
+                    + Utils.ids2str(Utils.arrayList2array(nids)), null);
             while (cur.moveToNext()) {
                 String flds = cur.getString(2);
-                String origFlds = flds;
+                long mid = cur.getLong(1);
                 // does it match?
                 String[] sflds = Utils.splitFields(flds);
-                if (field != null) {
-                    long mid = cur.getLong(1);
+                boolean match = false;
+                if (mmap != null) {
                     if (!mmap.containsKey(mid)) {
                         // note doesn't have that field
                         continue;
                     }
                     int ord = mmap.get(mid);
-                    sflds[ord] = regex.matcher(sflds[ord]).replaceAll(dst);
+                    String orig = sflds[ord];
+                    sflds[ord] = matcher.reset(orig).replaceAll(dst);
+                    match = !sflds[ord].equals(orig);
                 } else {
                     for (int i = 0; i < sflds.length; ++i) {
-                        sflds[i] = regex.matcher(sflds[i]).replaceAll(dst);
+                        String orig = sflds[i];
+                        sflds[i] = matcher.reset(orig).replaceAll(dst);
+                        match |= !sflds[i].equals(orig);
                     }
                 }
-                flds = Utils.joinFields(sflds);
-                if (!flds.equals(origFlds)) {
-                    long nid = cur.getLong(0);
-                    nids.add(nid);
-                    d.add(new Object[] { flds, Utils.intNow(), col.usn(), nid }); // order based on query below
+                if (!match) {
+                    continue;
+                }
+                long nid = cur.getLong(0);
+                changed.add(nid);
+                if (dryRun) {
+                    continue;
+                }
+                String newFlds = Utils.joinFields(sflds);
+                Integer sidx = _sortIdx(col, mid, sortIdx);
+                if (sidx == null) {
+                    // note points to an invalid model; there's no field cache to update
+                    col.getDb().execute("update notes set flds=?,mod=?,usn=? where id=?",
+                            new Object[] { newFlds, mod, usn, nid });
+                    continue;
+                }
+                if (update == null) {
+                    update = col.getDb().compileStatement(
+                            "update notes set flds=?,mod=?,usn=?,sfld=?,csum=? where id=?");
                 }
+                // the field cache is updated along with the fields
+                update.bindString(1, newFlds);
+                update.bindLong(2, mod);
+                update.bindLong(3, usn);
+                update.bindString(4, Utils.stripHTML(sflds[sidx]));
+                update.bindLong(5, Utils.fieldChecksum(sflds[0]));
+                update.bindLong(6, nid);
+                update.execute();
+            }
+            cur.close();
+            if (!dryRun && !changed.isEmpty()) {
+                col.getDupeIndex().notesChanged(Utils.ids2str(changed));
+                col.getMedia().notesChanged(Utils.ids2str(changed));
+                col.genCards(changed);
+            }
+            if (!dryRun) {
+                db.setTransactionSuccessful();
             }
         } finally {
-            if (cur != null) {
+            if (cur != null && !cur.isClosed()) {
                 cur.close();
             }
+            if (update != null) {
+                update.close();
+            }
+            if (!dryRun) {
+                db.endTransaction();
+            }
         }
-        if (d.isEmpty()) {
-            return 0;
+        return changed.size();
+    }
+
+
+    private static Integer _sortIdx(Collection col, long mid, Map<Long, Integer> cache) {
+        if (!cache.containsKey(mid)) {
+            JSONObject m = col.getModels().get(mid);
+            cache.put(mid, m == null ? null : col.getModels().sortIdx(m));
         }
-        // replace
-        col.getDb().executeMany("update notes set flds=?,mod=?,usn=? where id=?", d);
-        long[] pnids = Utils.toPrimitive(nids);
-        col.updateFieldCache(pnids);
-        col.genCards(pnids);
-        return d.size();
+        return cache.get(mid);
     }
 
 
@@ -961,47 +1039,13 @@ public class Finder {
      * @return List of Pair("dupestr", List[nids])
      */
     public static List<Pair<String, List<Long>>> findDupes(Collection col, String fieldName, String search) {
-        // limit search to notes with applicable field name
-    	if (!TextUtils.isEmpty(search)) {
-            search = "(" + search + ") ";
-    	}
-        search += "'" + fieldName + ":*'";
-        // go through notes
-        Map<String, List<Long>> vals = new HashMap<>();
-        List<Pair<String, List<Long>>> dupes = new ArrayList<>();
-        Map<Long, Integer> fields = new HashMap<>();
-        Cursor cur = null;
-        try {
-            cur = col.getDb().getDatabase().rawQuery(
-                    "select id, mid, flds from notes where id in " + Utils.ids2str(col.findNotes(search)), null);
-            while (cur.moveToNext()) {
-                long nid = cur.getLong(0);
-                long mid = cur.getLong(1);
-                String[] flds = Utils.splitFields(cur.getString(2));
-                Integer ord = ordForMid(col, fields, mid, fieldName);
-                if (ord == null) {
-                    continue;
-                }
-                String val = flds[fields.get(mid)];
-                val = Utils.stripHTMLMedia(val);
-                // empty does not count as duplicate
-                if (TextUtils.isEmpty(val)) {
-                    continue;
-                }
-                if (!vals.containsKey(val)) {
-                    vals.put(val, new ArrayList<Long>());
-                }
-                vals.get(val).add(nid);
-                if (vals.get(val).size() == 2) {
-                    dupes.add(new Pair<>(val, vals.get(val)));
-                }
-            }
-        } finally {
-            if (cur != null) {
-                cur.close();
-            }
+        List<Long> nids = null;
+        if (!TextUtils.isEmpty(search)) {
+            // limit search to notes with applicable field name
+            nids = col.findNotes("(" + search + ") '" + fieldName + ":*'");
         }
-        return dupes;
+        // go through the checksums of the field instead of the notes
+        return col.getDupeIndex().findDupes(fieldName, nids);
     }
 
     /*
@@ -1011,39 +1055,88 @@ public class Finder {
      */
 
     public List<Map<String, String>> findCardsForCardBrowser(String query, boolean _order, Map<String, String> deckNames) {
-        return _findCardsForCardBrowser(query, _order, deckNames);
+        return _findCardsForCardBrowser(query, _order, deckNames, null, 0, null);
     }
 
 
     public List<Map<String, String>> findCardsForCardBrowser(String query, String _order, Map<String, String> deckNames) {
-        return _findCardsForCardBrowser(query, _order, deckNames);
+        return _findCardsForCardBrowser(query, _order, deckNames, null, 0, null);
+    }
+
+
+    /**
+     * @param within If not null, only look at these cards. Used when QUERY refines the search that found them.
+     * @param firstPage Once that many cards are found, they are published through PROGRESS before the search goes on
+     * @param progress Receives the first page, and is checked for cancellation while reading the results
+     */
+    public List<Map<String, String>> findCardsForCardBrowser(String query, boolean _order, Map<String, String> deckNames,
+            List<Long> within, int firstPage, DeckTask.ProgressCallback progress) {
+        return _findCardsForCardBrowser(query, _order, deckNames, within, firstPage, progress);
     }
 
 
     /** Return a list of card ids for QUERY */
-    private List<Map<String, String>> _findCardsForCardBrowser(String query, Object _order, Map<String, String> deckNames) {
-        String[] tokens = _tokenize(query);
-        Pair<String, String[]> res1 = _where(tokens);
+    private List<Map<String, String>> _findCardsForCardBrowser(String query, Object _order, Map<String, String> deckNames,
+            List<Long> within, int firstPage, DeckTask.ProgressCallback progress) {
+        Pair<String, String[]> res1 = _compile(query);
         String preds = res1.first;
         String[] args = res1.second;
         List<Map<String, String>> res = new ArrayList<>();
         if (preds == null) {
             return res;
         }
+        if (within != null) {
+            String lim = "c.id in " + Utils.ids2str(within);
+            preds = TextUtils.isEmpty(preds) ? lim : "(" + preds + ") and " + lim;
+        }
         Pair<String, Boolean> res2 = _order instanceof Boolean ? _order((Boolean) _order) : _order((String) _order);
         String order = res2.first;
         boolean rev = res2.second;
         String sql = _queryForCardBrowser(preds, order);
+        try {
+            if (progress != null && firstPage > 0 && !rev) {
+                // Android counts all the rows of a cursor before returning the first one, so read the top of the list
+                // on its own, which with an index on the sort order doesn't need to look at the other cards
+                if (!_readCardsForCardBrowser(sql + " limit " + firstPage, args, deckNames, res, progress)) {
+                    return null;
+                }
+                if (res.size() < firstPage) {
+                    return res;
+                }
+                progress.publishProgress(new DeckTask.TaskData(new ArrayList<>(res)));
+                sql += " limit -1 offset " + firstPage;
+            }
+            if (!_readCardsForCardBrowser(sql, args, deckNames, res, progress)) {
+                return null;
+            }
+        } catch (SQLException e) {
+            // invalid grouping
+            Timber.e("Invalid grouping, sql: " + sql);
+            return new ArrayList<>();
+        }
+        if (rev) {
+            Collections.reverse(res);
+        }
+        return res;
+    }
+    
+    /**
+     * Add the rows of a browser query to RES.
+     *
+     * @return false if the search was cancelled
+     */
+    private boolean _readCardsForCardBrowser(String sql, String[] args, Map<String, String> deckNames,
+            List<Map<String, String>> res, DeckTask.ProgressCallback progress) {
         Cursor cur = null;
         try {
             cur = mCol.getDb().getDatabase().rawQuery(sql, args);
             DeckTask task = DeckTask.getInstance();
             while (cur.moveToNext()) {
                 // cancel if the launching task was cancelled. 
-                if (task.isCancelled()){
+                if (progress != null ? progress.isCancelled() : task.isCancelled()) {
                     Timber.i("_findCardsForCardBrowser() cancelled...");
-                    return null;
-                }                
+                    return false;
+                }
                 Map<String, String> map = new HashMap<>();
                 map.put("id", cur.getString(0));
                 map.put("sfld", cur.getString(1));
@@ -1057,21 +1150,53 @@ public class Finder {
                 map.put("question", "");
                 map.put("answer", "");
             }
-        } catch (SQLException e) {
-            // invalid grouping
-            Timber.e("Invalid grouping, sql: " + sql);
-            return new ArrayList<>();
+            return true;
         } finally {
             if (cur != null) {
                 cur.close();
             }
         }
-        if (rev) {
-            Collections.reverse(res);
+    }
+
+
+    /**
+     * True if every card matching QUERY also matches PREV, so that QUERY can be run on the results of PREV only. This
+     * is the case when both are plain conjunctions of terms and QUERY only adds terms to PREV, or makes its last
+     * text term longer, as when the user keeps typing.
+     */
+    public boolean isRefinement(String prev, String query) {
+        String[] tp = _tokenize(prev);
+        String[] tq = _tokenize(query);
+        if (tp.length == 0 || tq.length < tp.length || !_isConjunction(tp) || !_isConjunction(tq)) {
+            return false;
         }
-        return res;
+        int last = tp.length - 1;
+        for (int i = 0; i < last; i++) {
+            if (!tp[i].equals(tq[i])) {
+                return false;
+            }
+        }
+        if (tp[last].equals(tq[last])) {
+            // strictly more terms
+            return tq.length > tp.length;
+        }
+        // a longer text term only matches notes the shorter one matched, unless it was negated
+        String t = tp[last];
+        boolean text = !t.equals("-") && !t.contains(":") && !t.contains("\\") && !tq[last].contains(":");
+        return text && (last == 0 || !tp[last - 1].equals("-")) && tq[last].startsWith(t);
     }
-    
+
+
+    private boolean _isConjunction(String[] tokens) {
+        for (String token : tokens) {
+            if (token.equalsIgnoreCase("or") || token.equals("(") || token.equals(")")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
     /**
      * A copy of _query() with a custom SQL query specific to the AnkiDroid card browser.
      */
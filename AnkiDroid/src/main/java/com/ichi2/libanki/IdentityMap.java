@@ -0,0 +1,128 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Not in libanki.
+ *
+ * Bounded LRU map of id to loaded Card or Note, so that repeated lookups of the same row don't query it again. The
+ * objects held are only the collection's copies of the rows: callers get copies of them, so that the unsaved changes
+ * of one caller aren't seen by others and two threads never change the same object.
+ *
+ * Entries are only valid for the {@link DB#getGeneration()} they were loaded at. Any statement that may touch the
+ * cards or notes tables (bulk updates, remCards, _remNotes, sync merges...) bumps the generation, and the whole map is
+ * dropped on the next lookup. An object that writes its own row calls {@link #written} so that its own flush doesn't
+ * invalidate everything else.
+ *
+ * Nothing is kept of rows read or written inside a transaction, as it may still be rolled back; a write inside one
+ * drops the whole map.
+ */
+public class IdentityMap<T> {
+
+    private final DB mDb;
+    private final LinkedHashMap<Long, T> mMap;
+    private long mGeneration;
+    private int mHits;
+    private int mMisses;
+
+
+    public IdentityMap(DB db, final int capacity) {
+        mDb = db;
+        mMap = new LinkedHashMap<Long, T>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, T> eldest) {
+                return size() > capacity;
+            }
+        };
+        mGeneration = db.getGeneration();
+    }
+
+
+    /** @return The cached object, or null if it has to be loaded from the database. */
+    public synchronized T get(long id) {
+        _validate();
+        T o = mMap.get(id);
+        if (o == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return o;
+    }
+
+
+    /** Remember an object that was just loaded from the database. */
+    public synchronized void put(long id, T o) {
+        _validate();
+        if (mDb.getDatabase().inTransaction()) {
+            return;
+        }
+        mMap.put(id, o);
+    }
+
+
+    /**
+     * An object wrote its own row with a single statement.
+     *
+     * @param generation The database generation read just before the write
+     */
+    public synchronized void written(long id, T o, long generation) {
+        if (mGeneration == generation && mDb.getGeneration() <= generation + 1
+                && !mDb.getDatabase().inTransaction()) {
+            // nothing else changed in between, so everything else we hold is still valid
+            mGeneration = mDb.getGeneration();
+            mMap.put(id, o);
+        } else {
+            clear();
+        }
+    }
+
+
+    public synchronized void evict(long id) {
+        mMap.remove(id);
+    }
+
+
+    public synchronized void clear() {
+        mMap.clear();
+        mGeneration = mDb.getGeneration();
+    }
+
+
+    public synchronized int size() {
+        return mMap.size();
+    }
+
+
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+
+
+    private void _validate() {
+        if (mGeneration != mDb.getGeneration()) {
+            clear();
+        }
+    }
+}
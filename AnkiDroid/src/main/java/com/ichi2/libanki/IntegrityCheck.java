@@ -0,0 +1,425 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.ichi2.anki.AnkiDroidApp;
+import com.ichi2.anki.R;
+import com.ichi2.async.DeckTask;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Not in libanki.
+ *
+ * {@link Collection#fixIntegrity} split into phases. Each phase runs in its own transaction and saves the collection
+ * when it's done, then records that it's done in a checkpoint file next to the collection. If the check is interrupted
+ * (the app is killed, the device turned off...), the next check resumes after the last completed phase, as long as
+ * the collection wasn't saved by anything else in between.
+ */
+public class IntegrityCheck {
+
+    private static final int PHASE_INTEGRITY = 0;
+    private static final int PHASE_MODELS = 1;
+    private static final int PHASE_FIELDS = 2;
+    private static final int PHASE_CARDS = 3;
+    private static final int PHASE_CACHES = 4;
+    private static final int PHASE_INDEXES = 5;
+    private static final int PHASE_OPTIMIZE = 6;
+    private static final int PHASE_COUNT = 7;
+
+    /** Below that share of free pages, VACUUM wouldn't shrink the file enough to be worth rewriting it. */
+    private static final double MIN_FREE_RATIO = 0.1;
+
+    private final Collection mCol;
+    private final DB mDb;
+    private final DeckTask.ProgressCallback mProgress;
+    private final boolean mForceVacuum;
+    private final List<String> mProblems = new ArrayList<>();
+    /** What was fixed without needing a full sync, as opposed to {@link #mProblems}. */
+    private final List<String> mNotices = new ArrayList<>();
+
+
+    /**
+     * @param progress Receives a message as each phase starts, or null
+     * @param forceVacuum If false, VACUUM is skipped when few pages of the file are free
+     */
+    public IntegrityCheck(Collection col, DeckTask.ProgressCallback progress, boolean forceVacuum) {
+        mCol = col;
+        mDb = col.getDb();
+        mProgress = progress;
+        mForceVacuum = forceVacuum;
+    }
+
+
+    /**
+     * @return The number of kB the file shrunk by, or -1 if the database is corrupt or the check failed. What was
+     *         fixed is then available from {@link #getMessages()}.
+     */
+    public long run() {
+        File file = new File(mCol.getPath());
+        long oldSize = file.length();
+        int phase = 0;
+        try {
+            mCol.save();
+            phase = _resumePhase();
+            if (phase > 0) {
+                Timber.i("IntegrityCheck: resuming at phase %d", phase);
+            }
+            for (; phase < PHASE_COUNT; phase++) {
+                _publish(phase);
+                long start = System.currentTimeMillis();
+                if (!_runPhase(phase)) {
+                    return -1;
+                }
+                Timber.i("IntegrityCheck: phase %d done in %d ms", phase, System.currentTimeMillis() - start);
+                _checkpoint(phase);
+            }
+        } catch (RuntimeException e) {
+            Timber.e(e, "IntegrityCheck: RuntimeException in phase %d", phase);
+            AnkiDroidApp.sendExceptionReport(e, "IntegrityCheck", "phase " + phase);
+            return -1;
+        }
+        _checkpointFile().delete();
+        if (!mProblems.isEmpty() || !mNotices.isEmpty()) {
+            Timber.i("IntegrityCheck: %s %s", mProblems, mNotices);
+        }
+        long newSize = new File(mCol.getPath()).length();
+        return (oldSize - newSize) / 1024;
+    }
+
+
+    /** @return A description of each problem found and fixed, for the user. */
+    public List<String> getMessages() {
+        List<String> messages = new ArrayList<>(mProblems);
+        messages.addAll(mNotices);
+        return messages;
+    }
+
+
+    /** @return false if the database is corrupt */
+    private boolean _runPhase(int phase) {
+        if (phase == PHASE_INTEGRITY) {
+            return mDb.queryString("PRAGMA integrity_check").equals("ok");
+        }
+        if (phase == PHASE_OPTIMIZE) {
+            // not in a transaction
+            _optimize();
+            return true;
+        }
+        int problems = mProblems.size();
+        SQLiteDatabase db = mDb.getDatabase();
+        db.beginTransaction();
+        try {
+            switch (phase) {
+                case PHASE_MODELS:
+                    _fixModels();
+                    break;
+                case PHASE_FIELDS:
+                    List<Long> badFields = _wrongFieldCounts();
+                    if (!badFields.isEmpty()) {
+                        mProblems.add("Deleted " + badFields.size() + " note(s) with wrong field count.");
+                        mCol._remNotes(Utils.arrayList2array(badFields));
+                    }
+                    break;
+                case PHASE_CARDS:
+                    _fixCards();
+                    break;
+                case PHASE_CACHES:
+                    _rebuildCaches();
+                    break;
+                case PHASE_INDEXES:
+                    _fixIndexes();
+                    break;
+            }
+            // if any problems were found, force a full sync
+            if (mProblems.size() > problems) {
+                mCol.modSchemaNoCheck();
+            }
+            db.setTransactionSuccessful();
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        } finally {
+            db.endTransaction();
+        }
+        mCol.save();
+        return true;
+    }
+
+
+    /**
+     * Phases
+     * ***********************************************************
+     */
+
+    private void _fixModels() throws JSONException {
+        // note types with a missing model
+        ArrayList<Long> ids = mDb.queryColumn(Long.class,
+                "SELECT id FROM notes WHERE mid NOT IN " + Utils.ids2str(mCol.getModels().ids()), 0);
+        if (ids.size() != 0) {
+            mProblems.add("Deleted " + ids.size() + " note(s) with missing note type.");
+            mCol._remNotes(Utils.arrayList2array(ids));
+        }
+        // cards with invalid ordinal
+        for (JSONObject m : mCol.getModels().all()) {
+            if (m.getInt("type") != Consts.MODEL_STD) {
+                continue;
+            }
+            ArrayList<Integer> ords = new ArrayList<>();
+            JSONArray tmpls = m.getJSONArray("tmpls");
+            for (int t = 0; t < tmpls.length(); t++) {
+                ords.add(tmpls.getJSONObject(t).getInt("ord"));
+            }
+            ids = mDb.queryColumn(Long.class,
+                    "SELECT id FROM cards WHERE ord NOT IN " + Utils.ids2str(ords) + " AND nid IN ( " +
+                    "SELECT id FROM notes WHERE mid = " + m.getLong("id") + ")", 0);
+            if (ids.size() > 0) {
+                mProblems.add("Deleted " + ids.size() + " card(s) with missing template.");
+                mCol.remCards(Utils.arrayList2array(ids));
+            }
+        }
+    }
+
+
+    /** @return Ids of the notes whose number of fields doesn't match their model. */
+    private List<Long> _wrongFieldCounts() {
+        Map<Long, Integer> fieldCounts = new HashMap<>();
+        try {
+            for (JSONObject m : mCol.getModels().all()) {
+                fieldCounts.put(m.getLong("id"), m.getJSONArray("flds").length());
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        List<Long> bad = new ArrayList<>();
+        Cursor cur = null;
+        try {
+            cur = mDb.getDatabase().rawQuery("SELECT id, mid, flds FROM notes", null);
+            while (cur.moveToNext()) {
+                Integer expected = fieldCounts.get(cur.getLong(1));
+                if (expected == null) {
+                    // missing model, removed in an earlier phase
+                    continue;
+                }
+                String flds = cur.getString(2);
+                int fldsCount = 0;
+                for (int i = 0; i < flds.length(); i++) {
+                    if (flds.charAt(i) == 0x1f) {
+                        fldsCount++;
+                    }
+                }
+                if (fldsCount + 1 != expected) {
+                    bad.add(cur.getLong(0));
+                }
+            }
+        } finally {
+            if (cur != null && !cur.isClosed()) {
+                cur.close();
+            }
+        }
+        return bad;
+    }
+
+
+    private void _fixCards() {
+        // delete any notes with missing cards
+        ArrayList<Long> ids = mDb.queryColumn(Long.class,
+                "SELECT id FROM notes WHERE id NOT IN (SELECT DISTINCT nid FROM cards)", 0);
+        if (ids.size() != 0) {
+            mProblems.add("Deleted " + ids.size() + " note(s) with missing no cards.");
+            mCol._remNotes(Utils.arrayList2array(ids));
+        }
+        // cards with missing notes
+        ids = mDb.queryColumn(Long.class,
+                "SELECT id FROM cards WHERE nid NOT IN (SELECT id FROM notes)", 0);
+        if (ids.size() != 0) {
+            mProblems.add("Deleted " + ids.size() + " card(s) with missing note.");
+            mCol.remCards(Utils.arrayList2array(ids));
+        }
+        // cards with odue set when it shouldn't be
+        ids = mDb.queryColumn(Long.class,
+                "select id from cards where odue > 0 and (type=1 or queue=2) and not odid", 0);
+        if (ids.size() != 0) {
+            mProblems.add("Fixed " + ids.size() + " card(s) with invalid properties.");
+            mDb.execute("update cards set odue=0 where id in " + Utils.ids2str(ids));
+        }
+        // cards with odid set when not in a dyn deck
+        ArrayList<Long> dids = new ArrayList<>();
+        for (long id : mCol.getDecks().allIds()) {
+            if (!mCol.getDecks().isDyn(id)) {
+                dids.add(id);
+            }
+        }
+        ids = mDb.queryColumn(Long.class,
+                "select id from cards where odid > 0 and did in " + Utils.ids2str(dids), 0);
+        if (ids.size() != 0) {
+            mProblems.add("Fixed " + ids.size() + " card(s) with invalid properties.");
+            mDb.execute("update cards set odid=0, odue=0 where id in " + Utils.ids2str(ids));
+        }
+        // new cards can't have a due position > 32 bits
+        int bigDue = mDb.queryScalar("SELECT count() FROM cards WHERE due > 1000000 AND queue = 0");
+        if (bigDue > 0) {
+            // the cards are sent by a normal sync
+            mNotices.add("Fixed " + bigDue + " new card(s) with invalid due position.");
+            mDb.execute("UPDATE cards SET due = 1000000, mod = " + Utils.intNow() + ", usn = " + mCol.usn()
+                    + " WHERE due > 1000000 AND queue = 0");
+        }
+        // reviews should have a reasonable due
+        ids = mDb.queryColumn(Long.class, "SELECT id FROM cards WHERE queue = 2 AND due > 10000", 0);
+        if (ids.size() > 0) {
+            mProblems.add("Fixed " + ids.size() + " review(s) with incorrect due date.");
+            mDb.execute("UPDATE cards SET due = 0, mod = " + Utils.intNow() + ", usn = " + mCol.usn()
+                    + " WHERE id IN " + Utils.ids2str(Utils.arrayList2array(ids)));
+        }
+    }
+
+
+    private void _rebuildCaches() throws JSONException {
+        // tags
+        mCol.getTags().registerNotes();
+        // field cache; the duplicate index and review summary are rebuilt when next needed
+        mCol.getDupeIndex().clear();
+        mCol.getReviewSummary().clear();
+        for (JSONObject m : mCol.getModels().all()) {
+            mCol.updateFieldCache(Utils.arrayList2array(mCol.getModels().nids(m)));
+        }
+        // new card position
+        mCol.getConf().put("nextPos", mDb.queryScalar("SELECT max(due) + 1 FROM cards WHERE type = 0"));
+        mCol.setMod();
+    }
+
+
+    private void _fixIndexes() {
+        // DB must have indices. Older versions of AnkiDroid didn't create them for new collections.
+        int ixs = mDb.queryScalar("select count(name) from sqlite_master where type = 'index'");
+        if (ixs < 7) {
+            mProblems.add("Indices were missing.");
+            Storage.addIndices(mDb);
+        }
+        // only keep the browser index of the current sort order
+        List<String> dropped = mCol.getBrowserIndexes().keepOnly(mCol.getConf().optString("sortType", null));
+        if (!dropped.isEmpty()) {
+            mNotices.add("Dropped " + dropped.size() + " unused browser sort index(es).");
+        }
+    }
+
+
+    private void _optimize() {
+        Maintenance maintenance = mCol.getMaintenance();
+        Maintenance.Stats stats = maintenance.stats();
+        boolean convert = !stats.incremental;
+        if (convert) {
+            // takes effect with the VACUUM below, after which free pages are released in the background
+            maintenance.enableIncremental();
+        }
+        if (mForceVacuum || convert || stats.getFreeRatio() >= MIN_FREE_RATIO) {
+            Timber.i("executing VACUUM statement (%d of %d pages free)", stats.freePages, stats.pageCount);
+            mDb.execute("VACUUM");
+        } else {
+            Timber.i("skipping VACUUM, only %d of %d pages free", stats.freePages, stats.pageCount);
+        }
+        Timber.i("executing ANALYZE statement");
+        mDb.execute("ANALYZE");
+    }
+
+
+    /**
+     * Progress and checkpoints
+     * ***********************************************************
+     */
+
+    private void _publish(int phase) {
+        if (mProgress != null && mProgress.getResources() != null) {
+            mProgress.publishProgress(new DeckTask.TaskData(mProgress.getResources().getString(
+                    R.string.check_db_progress, phase + 1, PHASE_COUNT)));
+        }
+    }
+
+
+    private File _checkpointFile() {
+        String path = mCol.getPath();
+        if (path.endsWith(".anki2")) {
+            return new File(path.replaceFirst("\\.anki2$", ".check"));
+        }
+        return new File(path + ".check");
+    }
+
+
+    /** Record that a phase is done, along with what the collection looked like after it. */
+    private void _checkpoint(int phase) {
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(_checkpointFile());
+            writer.write(phase + " " + mCol.getScm() + " " + mCol.getMod());
+        } catch (IOException e) {
+            // only costs redoing the phases next time
+            Timber.w(e, "IntegrityCheck: could not write checkpoint");
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Timber.w(e, "IntegrityCheck: could not close checkpoint");
+                }
+            }
+        }
+    }
+
+
+    /** @return The phase to start at: after the last completed one if the collection is still as it left it. */
+    private int _resumePhase() {
+        File file = _checkpointFile();
+        if (!file.exists()) {
+            return 0;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String[] parts = reader.readLine().trim().split(" ");
+            int phase = Integer.parseInt(parts[0]);
+            if (Long.parseLong(parts[1]) == mCol.getScm() && Long.parseLong(parts[2]) == mCol.getMod()) {
+                return Math.min(phase + 1, PHASE_COUNT - 1);
+            }
+        } catch (IOException | RuntimeException e) {
+            Timber.w(e, "IntegrityCheck: ignoring unreadable checkpoint");
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Timber.w(e, "IntegrityCheck: could not close checkpoint");
+                }
+            }
+        }
+        return 0;
+    }
+}
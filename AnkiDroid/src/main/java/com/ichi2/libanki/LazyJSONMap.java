@@ -0,0 +1,323 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Not in libanki.
+ *
+ * A map of id to JSONObject backed by the raw JSON blob of the col table. Loading only scans the blob once to find
+ * where each top level entry starts and ends; an entry is parsed into a JSONObject the first time it is accessed.
+ * Used for the models, which are large (templates and CSS) and of which a session usually touches only a few.
+ * Decks are not lazy: the deck list reads every deck on each refresh, so deferring their parsing saves nothing.
+ *
+ * Entries that were never accessed are written back from the original text by {@link #toJSONString()}, so an
+ * untouched entry never needs to be parsed at all.
+ */
+public class LazyJSONMap extends AbstractMap<Long, JSONObject> {
+
+    private String mRaw;
+    /** Either a JSONObject, or a Long packing the [start, end) offsets of the entry in mRaw. */
+    private HashMap<Long, Object> mEntries;
+    private EntrySet mEntrySet;
+
+
+    public LazyJSONMap() {
+        mRaw = "";
+        mEntries = new HashMap<>();
+    }
+
+
+    /**
+     * Index the top level entries of a JSON object whose keys are ids.
+     */
+    public LazyJSONMap(String json) {
+        mRaw = json;
+        mEntries = new HashMap<>();
+        _index();
+    }
+
+
+    @Override
+    public JSONObject get(Object key) {
+        Object o = mEntries.get(key);
+        if (o == null) {
+            return null;
+        }
+        if (o instanceof JSONObject) {
+            return (JSONObject) o;
+        }
+        JSONObject parsed = _parse((Long) o);
+        mEntries.put((Long) key, parsed);
+        return parsed;
+    }
+
+
+    @Override
+    public JSONObject put(Long key, JSONObject value) {
+        Object old = mEntries.put(key, value);
+        return _materialize(old);
+    }
+
+
+    @Override
+    public JSONObject remove(Object key) {
+        return _materialize(mEntries.remove(key));
+    }
+
+
+    @Override
+    public boolean containsKey(Object key) {
+        return mEntries.containsKey(key);
+    }
+
+
+    @Override
+    public int size() {
+        return mEntries.size();
+    }
+
+
+    @Override
+    public void clear() {
+        mEntries.clear();
+        mRaw = "";
+    }
+
+
+    @Override
+    public Set<Entry<Long, JSONObject>> entrySet() {
+        if (mEntrySet == null) {
+            mEntrySet = new EntrySet();
+        }
+        return mEntrySet;
+    }
+
+
+    /** Number of entries that have been parsed so far. */
+    public int loadedCount() {
+        int n = 0;
+        for (Object o : mEntries.values()) {
+            if (o instanceof JSONObject) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+
+    /**
+     * Serialize the map as a JSON object keyed by id. Unparsed entries are copied verbatim from the source text.
+     */
+    public String toJSONString() {
+        StringBuilder sb = new StringBuilder(mRaw.length() + 16);
+        sb.append('{');
+        boolean first = true;
+        for (Map.Entry<Long, Object> e : mEntries.entrySet()) {
+            if (!first) {
+                sb.append(", ");
+            }
+            first = false;
+            sb.append('"').append(e.getKey()).append("\": ");
+            Object o = e.getValue();
+            if (o instanceof JSONObject) {
+                sb.append(Utils.jsonToString((JSONObject) o));
+            } else {
+                long range = (Long) o;
+                sb.append(mRaw, (int) (range >>> 32), (int) range);
+            }
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+
+    private JSONObject _materialize(Object o) {
+        if (o == null || o instanceof JSONObject) {
+            return (JSONObject) o;
+        }
+        return _parse((Long) o);
+    }
+
+
+    private JSONObject _parse(long range) {
+        try {
+            return new JSONObject(mRaw.substring((int) (range >>> 32), (int) range));
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /**
+     * Indexing ******************************************************************************************************
+     */
+
+    /** Single pass over the text recording the offsets of each top level value. */
+    private void _index() {
+        int len = mRaw.length();
+        int i = _skipWhitespace(0);
+        if (i >= len || mRaw.charAt(i) != '{') {
+            throw new RuntimeException("LazyJSONMap: expected an object");
+        }
+        i = _skipWhitespace(i + 1);
+        if (i < len && mRaw.charAt(i) == '}') {
+            return;
+        }
+        while (i < len) {
+            if (mRaw.charAt(i) != '"') {
+                throw new RuntimeException("LazyJSONMap: expected a key at " + i);
+            }
+            int keyEnd = _skipString(i);
+            long key = Long.parseLong(mRaw.substring(i + 1, keyEnd - 1));
+            i = _skipWhitespace(keyEnd);
+            if (i >= len || mRaw.charAt(i) != ':') {
+                throw new RuntimeException("LazyJSONMap: expected ':' at " + i);
+            }
+            int start = _skipWhitespace(i + 1);
+            int end = _skipValue(start);
+            mEntries.put(key, ((long) start << 32) | end);
+            i = _skipWhitespace(end);
+            if (i >= len) {
+                break;
+            }
+            char c = mRaw.charAt(i);
+            if (c == '}') {
+                return;
+            } else if (c != ',') {
+                throw new RuntimeException("LazyJSONMap: expected ',' at " + i);
+            }
+            i = _skipWhitespace(i + 1);
+        }
+        throw new RuntimeException("LazyJSONMap: unterminated object");
+    }
+
+
+    private int _skipWhitespace(int i) {
+        while (i < mRaw.length() && Character.isWhitespace(mRaw.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+
+    /** @return the index just after the closing quote of the string starting at i */
+    private int _skipString(int i) {
+        i++;
+        while (i < mRaw.length()) {
+            char c = mRaw.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '"') {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+        throw new RuntimeException("LazyJSONMap: unterminated string");
+    }
+
+
+    /** @return the index just after the value starting at i */
+    private int _skipValue(int i) {
+        int depth = 0;
+        while (i < mRaw.length()) {
+            char c = mRaw.charAt(i);
+            if (c == '"') {
+                i = _skipString(i);
+                if (depth == 0) {
+                    return i;
+                }
+                continue;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0) {
+                    // end of a scalar value in the enclosing object
+                    return i;
+                }
+                depth--;
+                if (depth == 0) {
+                    return i + 1;
+                }
+            } else if (depth == 0 && (c == ',' || Character.isWhitespace(c))) {
+                return i;
+            }
+            i++;
+        }
+        return i;
+    }
+
+
+    private class EntrySet extends AbstractSet<Entry<Long, JSONObject>> {
+        @Override
+        public Iterator<Entry<Long, JSONObject>> iterator() {
+            final Iterator<Map.Entry<Long, Object>> it = mEntries.entrySet().iterator();
+            return new Iterator<Entry<Long, JSONObject>>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Entry<Long, JSONObject> next() {
+                    final Map.Entry<Long, Object> e = it.next();
+                    return new Entry<Long, JSONObject>() {
+                        @Override
+                        public Long getKey() {
+                            return e.getKey();
+                        }
+
+                        @Override
+                        public JSONObject getValue() {
+                            Object o = e.getValue();
+                            if (o instanceof JSONObject) {
+                                return (JSONObject) o;
+                            }
+                            JSONObject parsed = _parse((Long) o);
+                            e.setValue(parsed);
+                            return parsed;
+                        }
+
+                        @Override
+                        public JSONObject setValue(JSONObject value) {
+                            return _materialize(e.setValue(value));
+                        }
+                    };
+                }
+
+                @Override
+                public void remove() {
+                    it.remove();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return mEntries.size();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.database.SQLException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import timber.log.Timber;
+
+/**
+ * Not in libanki.
+ *
+ * Small steps of database upkeep that can run in the background instead of a full VACUUM and ANALYZE.
+ *
+ * With auto_vacuum set to INCREMENTAL, the pages freed by deletions can be given back to the file system a few at a
+ * time. The mode only takes effect on the next VACUUM, so {@link #enableIncremental} is meant to be followed by one
+ * (Check Database does so). ANALYZE is only run again on the tables whose row count drifted from the one it recorded,
+ * and only when it is expected to finish in the time left; a table too large for any run is left to Check Database.
+ *
+ * The row counts are read once per run, see {@link #startRun}, rather than on every step.
+ */
+public class Maintenance {
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+    /** Tables whose statistics matter to the queries, in the order they're refreshed. */
+    private static final String[] TABLES = { "cards", "notes", "revlog" };
+    /** Relative change of a table's row count after which its statistics are refreshed. */
+    private static final double STALE_RATIO = 0.1;
+    /** Rows ANALYZE is assumed to go through per ms until it has been measured. */
+    private static final double DEFAULT_ANALYZE_RATE = 200;
+
+    private final DB mDb;
+    /** Current row count of each table, and the one its statistics were computed with. Null until read. */
+    private Map<String, Long> mRows;
+    private Map<String, Long> mAnalyzedRows;
+    /** Tables ANALYZE can't be expected to finish within a run. */
+    private final Set<String> mTooLarge = new HashSet<>();
+    /** Measured speed of ANALYZE, in rows per ms. */
+    private double mAnalyzeRate = DEFAULT_ANALYZE_RATE;
+
+
+    public Maintenance(DB db) {
+        mDb = db;
+    }
+
+
+    /** @return Whether freed pages can be released with {@link #step}. */
+    public boolean isIncremental() {
+        return mDb.queryScalar("PRAGMA auto_vacuum") == AUTO_VACUUM_INCREMENTAL;
+    }
+
+
+    /** Switch to incremental vacuum. The next VACUUM converts the file. */
+    public void enableIncremental() {
+        Timber.i("Maintenance: enabling incremental vacuum");
+        mDb.execute("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+    }
+
+
+    /** Forget the row counts of the previous run, the tables may have changed since. */
+    public void startRun() {
+        mRows = null;
+        mAnalyzedRows = null;
+    }
+
+
+    /**
+     * Do one small piece of upkeep: release up to maxPages free pages if possible, otherwise refresh the statistics
+     * of one stale table if that can be done in the given time.
+     *
+     * @param timeLeft Time in ms the step may take
+     * @return Whether a step was done and there may be more to do in this run
+     */
+    public boolean step(int maxPages, long timeLeft) {
+        Stats stats = stats();
+        if (stats.incremental && stats.freePages > 0) {
+            long start = System.currentTimeMillis();
+            // read through a cursor: the pragma frees one page per step, and a plain execute only steps once
+            mDb.queryScalar("PRAGMA incremental_vacuum(" + maxPages + ")");
+            Timber.i("Maintenance: released up to %d of %d free pages in %d ms", maxPages, stats.freePages,
+                    System.currentTimeMillis() - start);
+            return true;
+        }
+        String table = _staleTable();
+        if (table == null) {
+            return false;
+        }
+        long rows = mRows.get(table);
+        if (rows / mAnalyzeRate > timeLeft) {
+            Timber.i("Maintenance: not enough time left to analyze %s (%d rows)", table, rows);
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        mDb.execute("ANALYZE " + table);
+        long elapsed = System.currentTimeMillis() - start;
+        Timber.i("Maintenance: analyzed %s in %d ms", table, elapsed);
+        mAnalyzedRows.put(table, rows);
+        if (elapsed > 0) {
+            mAnalyzeRate = (double) rows / elapsed;
+        }
+        return true;
+    }
+
+
+    /**
+     * @param timeLimit Time in ms a run may take
+     * @return Whether {@link #step} has anything to do. Tables that can't be analyzed within the time limit don't
+     *         count.
+     */
+    public boolean isNeeded(long timeLimit) {
+        Stats stats = stats();
+        if (stats.incremental && stats.freePages > 0) {
+            return true;
+        }
+        String table;
+        while ((table = _staleTable()) != null) {
+            if (mRows.get(table) / mAnalyzeRate <= timeLimit) {
+                return true;
+            }
+            Timber.i("Maintenance: %s is too large to analyze in the background", table);
+            mTooLarge.add(table);
+        }
+        return false;
+    }
+
+
+    public Stats stats() {
+        return new Stats(mDb.queryLongScalar("PRAGMA page_count"), mDb.queryLongScalar("PRAGMA freelist_count"),
+                mDb.queryLongScalar("PRAGMA page_size"), isIncremental());
+    }
+
+
+    /** @return A table whose row count drifted from the one of its statistics, or null. */
+    private String _staleTable() {
+        if (mRows == null) {
+            _loadCounts();
+        }
+        for (String table : TABLES) {
+            if (mTooLarge.contains(table)) {
+                continue;
+            }
+            long rows = mRows.get(table);
+            long analyzedRows = mAnalyzedRows.get(table);
+            if (rows > 0 && Math.abs(rows - analyzedRows) > analyzedRows * STALE_RATIO) {
+                return table;
+            }
+        }
+        return null;
+    }
+
+
+    private void _loadCounts() {
+        mRows = new HashMap<>();
+        mAnalyzedRows = new HashMap<>();
+        boolean analyzed = mDb.queryScalar(
+                "SELECT count() FROM sqlite_master WHERE type = 'table' AND name = 'sqlite_stat1'") > 0;
+        for (String table : TABLES) {
+            mRows.put(table, mDb.queryLongScalar("SELECT count() FROM " + table));
+            // the first number of each entry is the row count of the table when it was analyzed
+            String stat = null;
+            if (analyzed) {
+                try {
+                    stat = mDb.queryString("SELECT stat FROM sqlite_stat1 WHERE tbl = '" + table + "' LIMIT 1");
+                } catch (SQLException e) {
+                    // never analyzed
+                }
+            }
+            long analyzedRows = 0;
+            if (stat != null) {
+                try {
+                    analyzedRows = Long.parseLong(stat.split(" ")[0]);
+                } catch (NumberFormatException e) {
+                    Timber.w("Maintenance: unexpected statistics for %s: %s", table, stat);
+                }
+            }
+            mAnalyzedRows.put(table, analyzedRows);
+        }
+    }
+
+
+    /** Size and free space of the database file. */
+    public static class Stats {
+        public final long pageCount;
+        public final long freePages;
+        public final long pageSize;
+        /** Whether auto_vacuum is INCREMENTAL, so that free pages can be released without a VACUUM. */
+        public final boolean incremental;
+
+
+        public Stats(long pageCount, long freePages, long pageSize, boolean incremental) {
+            this.pageCount = pageCount;
+            this.freePages = freePages;
+            this.pageSize = pageSize;
+            this.incremental = incremental;
+        }
+
+
+        public long getSize() {
+            return pageCount * pageSize;
+        }
+
+
+        public long getFreeSize() {
+            return freePages * pageSize;
+        }
+
+
+        /** @return The share of the file that is free, from 0 to 1. */
+        public double getFreeRatio() {
+            return pageCount == 0 ? 0 : (double) freePages / pageCount;
+        }
+    }
+}
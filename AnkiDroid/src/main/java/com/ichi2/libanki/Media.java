@@ -30,20 +30,18 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -53,7 +51,6 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 import timber.log.Timber;
 
@@ -106,9 +103,33 @@ public class Media {
 
     public static List<Pattern> mRegexps =  Arrays.asList(fSoundRegexps, fImgRegExpQ, fImgRegExpU);
 
+    /**
+     * Not in libanki.
+     * The order of the media table's primary key: SQLite compares text as UTF-8 bytes, which sorts like code points
+     * rather than like Java's UTF-16 chars.
+     */
+    private static final Comparator<String> sFnameOrder = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            int i = 0;
+            int j = 0;
+            while (i < a.length() && j < b.length()) {
+                int ca = a.codePointAt(i);
+                int cb = b.codePointAt(j);
+                if (ca != cb) {
+                    return ca < cb ? -1 : 1;
+                }
+                i += Character.charCount(ca);
+                j += Character.charCount(cb);
+            }
+            return i < a.length() ? 1 : j < b.length() ? -1 : 0;
+        }
+    };
+
     private Collection mCol;
     private String mDir;
     private DB mDb;
+    private MediaRefIndex mRefIndex;
 
 
     public Media(Collection col, boolean server) {
@@ -144,6 +165,9 @@ public class Media {
             _initDB();
         }
         maybeUpgrade();
+        mRefIndex = new MediaRefIndex(mCol, this, mDb);
+        // for finding files by their contents
+        mDb.execute("create index if not exists idx_media_csum on media (csum)");
     }
 
 
@@ -196,6 +220,7 @@ public class Media {
         if (mCol.getServer()) {
             return;
         }
+        mRefIndex.flush();
         mDb.close();
         mDb = null;
     }
@@ -216,19 +241,44 @@ public class Media {
      * into the media database marking it as a new addition.
      */
     public String addFile(File ofile) throws IOException {
-        String fname = writeData(ofile);
-        markFileAdd(fname);
+        // the copy is identical to the original, no need to read it again
+        String csum = Utils.fileChecksum(ofile);
+        // if the folder has the same contents under another name, use that instead of a copy
+        if (!_keepsName(ofile.getName())) {
+            String existing = fileWithChecksum(csum);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        Long dirMod = _journalStart();
+        String fname = writeData(ofile, csum);
+        _markFileAdd(fname, csum);
+        _journalEnd(dirMod);
         return fname;
     }
 
 
+    /**
+     * Not in libanki.
+     * Write data to the media directory under the given name, replacing any file of that name, and record it in the
+     * media database as a new addition.
+     */
+    public void writeFile(String fname, InputStream data) throws IOException {
+        fname = Utils.nfcNormalized(fname);
+        Long dirMod = _journalStart();
+        String csum = MediaHasher.copy(data, new File(dir(), fname));
+        _markFileAdd(fname, csum);
+        _journalEnd(dirMod);
+    }
+
+
     /**
      * Copy a file to the media directory and return the filename it was stored as.
      * <p>
      * Unlike the python version of this method, we don't read the file into memory as a string. All our operations are
-     * done on streams opened on the file, so there is no second parameter for the string object here.
+     * done on streams opened on the file, so the second parameter is the checksum of the file instead.
      */
-    private String writeData(File ofile) throws IOException {
+    private String writeData(File ofile, String csum) throws IOException {
         // get the file name
         String fname = ofile.getName();
         // make sure we write it in NFC form and return an NFC-encoded reference
@@ -239,7 +289,6 @@ public class Media {
         String root = split[0];
         String ext = split[1];
         // find the first available name
-        String csum = Utils.fileChecksum(ofile);
         while (true) {
             fname = root + ext;
             File path = new File(dir(), fname);
@@ -284,10 +333,12 @@ public class Media {
      */
     public List<String> filesInStr(Long mid, String string, boolean includeRemote) {
         List<String> l = new ArrayList<>();
-        JSONObject model = mCol.getModels().get(mid);
         List<String> strings = new ArrayList<>();
         try {
-            if (model.getInt("type") == Consts.MODEL_CLOZE && string.contains("{{c")) {
+            // without LaTeX, the expanded clozes hold the same references as the field itself
+            if (!MediaRefScanner.hasLatex(string)) {
+                strings.add(string);
+            } else if (mCol.getModels().get(mid).getInt("type") == Consts.MODEL_CLOZE && string.contains("{{c")) {
                 // if the field has clozes in it, we'll need to expand the
                 // possibilities so we can render latex
                 strings = _expandClozes(string);
@@ -301,19 +352,11 @@ public class Media {
         for (String s : strings) {
             // handle latex
             s =  LaTeX.mungeQA(s, mCol);
-            // extract filenames
-            Matcher m;
-            for (Pattern p : mRegexps) {
-                // NOTE: python uses the named group 'fname'. Java doesn't have named groups, so we have to determine
-                // the index based on which pattern we are using
-                int fnameIdx = p == fSoundRegexps ? 2 : p == fImgRegExpU ? 2 : 3;
-                m = p.matcher(s);
-                while (m.find()) {
-                    String fname = m.group(fnameIdx);
-                    boolean isLocal = !fRemotePattern.matcher(fname.toLowerCase(Locale.US)).find();
-                    if (isLocal || includeRemote) {
-                        l.add(fname);
-                    }
+            // extract filenames, with the same results as matching each of mRegexps in turn
+            for (String fname : MediaRefScanner.scan(s)) {
+                boolean isLocal = !fRemotePattern.matcher(fname.toLowerCase(Locale.US)).find();
+                if (isLocal || includeRemote) {
+                    l.add(fname);
                 }
             }
         }
@@ -416,29 +459,18 @@ public class Media {
         File mdir = new File(dir());
         // gather all media references in NFC form
         Set<String> allRefs = new HashSet<>();
-        Cursor cur = null;
-        try {
-            cur = mCol.getDb().getDatabase().rawQuery("select id, mid, flds from notes", null);
-            while (cur.moveToNext()) {
-                long nid = cur.getLong(0);
-                long mid = cur.getLong(1);
-                String flds = cur.getString(2);
-                List<String> noteRefs = filesInStr(mid, flds);
-                // check the refs are in NFC
-                for (String f : noteRefs) {
-                    // if they're not, we'll need to fix them first
-                    if (!f.equals(Utils.nfcNormalized(f))) {
-                        _normalizeNoteRefs(nid);
-                        noteRefs = filesInStr(mid, flds);
-                        break;
-                    }
+        for (Map.Entry<Long, List<String>> entry : filesInNotes(null).entrySet()) {
+            List<String> noteRefs = entry.getValue();
+            // check the refs are in NFC
+            for (String f : noteRefs) {
+                // if they're not, we'll need to fix them first
+                if (!f.equals(Utils.nfcNormalized(f))) {
+                    _normalizeNoteRefs(entry.getKey());
+                    noteRefs = filesInNotes("id = " + entry.getKey()).get(entry.getKey());
+                    break;
                 }
-                allRefs.addAll(noteRefs);
-            }
-        } finally {
-            if (cur != null) {
-                cur.close();
             }
+            allRefs.addAll(noteRefs);
         }
         // loop through media folder
         List<String> unused = new ArrayList<>();
@@ -611,10 +643,15 @@ public class Media {
         List<String> added = result.first;
         List<String> removed = result.second;
         ArrayList<Object[]> media = new ArrayList<>();
+        List<File> files = new ArrayList<>(added.size());
         for (String f : added) {
-            String path = new File(dir(), f).getAbsolutePath();
-            long mt = _mtime(path);
-            media.add(new Object[] { f, _checksum(path), mt, 1 });
+            files.add(new File(dir(), f));
+        }
+        String[] csums = MediaHasher.checksums(files);
+        for (int i = 0; i < files.size(); i++) {
+            // a file that vanished since the listing is logged as removed
+            long mt = csums[i] != null ? _mtime(files.get(i).getAbsolutePath()) : 0;
+            media.add(new Object[] { added.get(i), csums[i], mt, 1 });
         }
         for (String f : removed) {
             media.add(new Object[] { f, null, 0, 1});
@@ -627,32 +664,18 @@ public class Media {
 
 
     private Pair<List<String>, List<String>> _changes() {
-        Map<String, Object[]> cache = new HashMap<>();
-        Cursor cur = null;
-        try {
-            cur = mDb.getDatabase().rawQuery("select fname, csum, mtime from media where csum is not null", null);
-            while (cur.moveToNext()) {
-                String name = cur.getString(0);
-                String csum = cur.getString(1);
-                Long mod = cur.getLong(2);
-                cache.put(name, new Object[] { csum, mod, false });
-            }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        } finally {
-            if (cur != null) {
-                cur.close();
-            }
+        List<String> files = new ArrayList<>();
+        String[] names = new File(dir()).list();
+        if (names == null) {
+            throw new RuntimeException("Cannot list media directory: " + dir());
         }
-        List<String> added = new ArrayList<>();
-        List<String> removed = new ArrayList<>();
         // loop through on-disk files
-        for (File f : new File(dir()).listFiles()) {
+        for (String fname : names) {
+            File f = new File(dir(), fname);
             // ignore folders and thumbs.db
             if (f.isDirectory()) {
                 continue;
             }
-            String fname = f.getName();
             if (fname.equalsIgnoreCase("thumbs.db")) {
                 continue;
             }
@@ -676,36 +699,112 @@ public class Media {
                 // wrong filename encoding which will cause sync errors
                 File nf = new File(dir(), normf);
                 if (nf.exists()) {
+                    // the normalized file is listed on its own
                     f.delete();
-                } else {
-                    f.renameTo(nf);
+                    continue;
+                } else if (f.renameTo(nf)) {
+                    fname = normf;
                 }
             }
-            // newly added?
-            if (!cache.containsKey(fname)) {
-                added.add(fname);
-            } else {
-                // modified since last time?
-                if (_mtime(f.getAbsolutePath()) != (Long) cache.get(fname)[1]) {
-                    // and has different checksum?
-                    if (!_checksum(f.getAbsolutePath()).equals(cache.get(fname)[0])) {
-                        added.add(fname);
+            files.add(fname);
+        }
+        // walk the files and the media table side by side, both in name order
+        Collections.sort(files, sFnameOrder);
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        // files modified since last time, hashed together once the walk is done
+        List<String> modified = new ArrayList<>();
+        List<String> oldCsums = new ArrayList<>();
+        Cursor cur = null;
+        try {
+            cur = mDb.getDatabase().rawQuery(
+                    "select fname, csum, mtime from media where csum is not null order by fname", null);
+            boolean more = cur.moveToNext();
+            int i = 0;
+            while (i < files.size() || more) {
+                int cmp;
+                if (!more) {
+                    cmp = -1;
+                } else if (i == files.size()) {
+                    cmp = 1;
+                } else {
+                    cmp = sFnameOrder.compare(files.get(i), cur.getString(0));
+                }
+                if (cmp < 0) {
+                    // newly added
+                    added.add(files.get(i++));
+                } else if (cmp > 0) {
+                    // no longer exists on disk
+                    removed.add(cur.getString(0));
+                    more = cur.moveToNext();
+                } else {
+                    String path = new File(dir(), files.get(i)).getAbsolutePath();
+                    // modified since last time?
+                    if (_mtime(path) != cur.getLong(2)) {
+                        modified.add(files.get(i));
+                        oldCsums.add(cur.getString(1));
                     }
+                    i++;
+                    more = cur.moveToNext();
                 }
-                // mark as used
-                cache.get(fname)[2] = true;
             }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
+        }
+        // and has different checksum?
+        List<File> paths = new ArrayList<>(modified.size());
+        for (String f : modified) {
+            paths.add(new File(dir(), f));
         }
-        // look for any entries in the cache that no longer exist on disk
-        for (String fname : cache.keySet()) {
-            if (!((Boolean)cache.get(fname)[2])) {
-                removed.add(fname);
+        String[] csums = MediaHasher.checksums(paths);
+        for (int i = 0; i < csums.length; i++) {
+            if (!oldCsums.get(i).equals(csums[i])) {
+                added.add(modified.get(i));
             }
         }
         return new Pair<>(added, removed);
     }
 
 
+    /**
+     * Not in libanki.
+     * Call before writing to the media directory.
+     *
+     * @return The recorded modification time of the directory if nothing changed it since it was last scanned, or
+     *         null if it needs a scan anyway.
+     */
+    private Long _journalStart() {
+        long mod = mDb.queryLongScalar("select dirMod from meta");
+        if (mod != 0 && mod == _mtime(dir())) {
+            return mod;
+        }
+        return null;
+    }
+
+
+    /**
+     * Not in libanki.
+     * Call after writing to the media directory and recording the change in the media database. If the directory was
+     * current before, its new modification time is recorded, so that our own change doesn't look like an external
+     * one and trigger a full scan.
+     *
+     * @param dirMod What {@link #_journalStart()} returned
+     */
+    private void _journalEnd(Long dirMod) {
+        if (dirMod == null) {
+            return;
+        }
+        long mtime = _mtime(dir());
+        if (mtime != dirMod) {
+            mDb.execute("update meta set dirMod = ?", new Object[] { mtime });
+        }
+    }
+
+
     /**
      * Syncing related
      * ***********************************************************
@@ -749,11 +848,13 @@ public class Media {
 
 
     public void syncDelete(String fname) {
+        Long dirMod = _journalStart();
         File f = new File(dir(), fname);
         if (f.exists()) {
             f.delete();
         }
         mDb.execute("delete from media where fname=?", new Object[] { fname });
+        _journalEnd(dirMod);
     }
 
 
@@ -781,8 +882,8 @@ public class Media {
      */
 
     /**
-     * Unlike python, our temp zip file will be on disk instead of in memory. This avoids storing
-     * potentially large files in memory which is not feasible with Android's limited heap space.
+     * Unlike python, the zip isn't built here: the returned batch writes it straight into the upload request, which
+     * avoids holding potentially large files in memory or copying them to a temporary file.
      * <p>
      * Notes:
      * <p>
@@ -793,77 +894,49 @@ public class Media {
      * to send.
      * <p>
      * - Since AnkiDroid avoids scanning the media folder on every sync, it is possible for a file to be marked as a
-     * new addition but actually have been deleted (e.g., with a file manager). In this case we skip over the file
-     * and mark it as removed in the database. (This behaviour differs from the desktop client).
+     * new addition but actually have been deleted (e.g., with a file manager). In this case we mark it as removed in
+     * the database and send it as a deletion. (This behaviour differs from the desktop client).
      * <p>
+     * @param skip Files already in a batch being sent, left out of this one
      */
-    public Pair<File, List<String>> mediaChangesZip() {
-        File f = new File(mCol.getPath().replaceFirst("collection\\.anki2$", "tmpSyncToServer.zip"));
+    public MediaChangesZip mediaChangesZip(Set<String> skip) {
+        List<String[]> rows = new ArrayList<>();
         Cursor cur = null;
         try {
-            ZipOutputStream z = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
-            z.setMethod(ZipOutputStream.DEFLATED);
-
-            List<String> fnames = new ArrayList<>();
-            // meta is a list of (fname, zipname), where zipname of null is a deleted file
-            // NOTE: In python, meta is a list of tuples that then gets serialized into json and added
-            // to the zip as a string. In our version, we use JSON objects from the start to avoid the
-            // serialization step. Instead of a list of tuples, we use JSONArrays of JSONArrays.
-            JSONArray meta = new JSONArray();
-            int sz = 0;
-            byte buffer[] = new byte[2048];
-            cur = mDb.getDatabase().rawQuery(
-                    "select fname, csum from media where dirty=1 limit " + Consts.SYNC_ZIP_COUNT, null);
-
-            for (int c = 0; cur.moveToNext(); c++) {
+            cur = mDb.getDatabase().rawQuery("select fname, csum from media where dirty=1 limit "
+                    + (Consts.SYNC_ZIP_COUNT + skip.size()), null);
+            long sz = 0;
+            while (cur.moveToNext() && rows.size() < Consts.SYNC_ZIP_COUNT) {
                 String fname = cur.getString(0);
                 String csum = cur.getString(1);
-                fnames.add(fname);
-                String normname = Utils.nfcNormalized(fname);
-
+                if (skip.contains(fname)) {
+                    continue;
+                }
                 if (!TextUtils.isEmpty(csum)) {
-                    try {
-                        mCol.log("+media zip " + fname);
-                        File file = new File(dir(), fname);
-                        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file), 2048);
-                        z.putNextEntry(new ZipEntry(Integer.toString(c)));
-                        int count = 0;
-                        while ((count = bis.read(buffer, 0, 2048)) != -1) {
-                            z.write(buffer, 0, count);
-                        }
-                        z.closeEntry();
-                        bis.close();
-                        meta.put(new JSONArray().put(normname).put(Integer.toString(c)));
-                        sz += file.length();
-                    } catch (FileNotFoundException e) {
+                    File file = new File(dir(), fname);
+                    if (!file.exists()) {
                         // A file has been marked as added but no longer exists in the media directory.
-                        // Skip over it and mark it as removed in the db.
                         removeFile(fname);
+                        csum = null;
+                    } else {
+                        mCol.log("+media zip " + fname);
+                        sz += file.length();
                     }
-                } else {
+                }
+                if (csum == null) {
                     mCol.log("-media zip " + fname);
-                    meta.put(new JSONArray().put(normname).put(""));
                 }
+                rows.add(new String[] { fname, csum });
                 if (sz >= Consts.SYNC_ZIP_SIZE) {
                     break;
                 }
             }
-
-            z.putNextEntry(new ZipEntry("_meta"));
-            z.write(Utils.jsonToString(meta).getBytes());
-            z.closeEntry();
-            z.close();
-            // Don't leave lingering temp files if the VM terminates.
-            f.deleteOnExit();
-            return new Pair<>(f, fnames);
-        } catch (IOException e) {
-            Timber.e("Failed to create media changes zip", e);
-            throw new RuntimeException(e);
         } finally {
             if (cur != null) {
                 cur.close();
             }
         }
+        return new MediaChangesZip(dir(), rows);
     }
 
 
@@ -875,6 +948,7 @@ public class Media {
      * This method closes the file before it returns.
      */
     public int addFilesFromZip(ZipFile z) throws IOException {
+        Long dirMod = _journalStart();
         try {
             List<Object[]> media = new ArrayList<>();
             // get meta info first
@@ -891,8 +965,13 @@ public class Media {
                     name = Utils.nfcNormalized(name);
                     // save file
                     String destPath = dir().concat(File.separator).concat(name);
-                    Utils.writeToFile(z.getInputStream(i), destPath);
-                    String csum = Utils.fileChecksum(destPath);
+                    InputStream data = z.getInputStream(i);
+                    String csum;
+                    try {
+                        csum = MediaHasher.copy(data, new File(destPath));
+                    } finally {
+                        data.close();
+                    }
                     // update db
                     media.add(new Object[] {name, csum, _mtime(destPath), 0});
                     cnt += 1;
@@ -901,6 +980,7 @@ public class Media {
             if (media.size() > 0) {
                 mDb.executeMany("insert or replace into media values (?,?,?,?)", media);
             }
+            _journalEnd(dirMod);
             return cnt;
         } catch (JSONException e) {
             throw new RuntimeException(e);
@@ -935,15 +1015,236 @@ public class Media {
     }
 
 
+    /**
+     * The local media referenced by notes, from the index of each note's references where it is current.
+     *
+     * @param where SQL condition on the notes table, or null for all notes
+     * @return The references of each note matching the condition, by note id
+     */
+    public Map<Long, List<String>> filesInNotes(String where) {
+        return mRefIndex.refs(where);
+    }
+
+
+    /**
+     * A file of the media folder with the given contents, to reference instead of adding a copy. Files whose name
+     * matters to what uses them (see {@link #_keepsName}) aren't offered. The recorded checksum only selects the
+     * candidates; each is hashed again, as it may have been edited since it was recorded.
+     *
+     * @return Its name, or null if there is none
+     */
+    public String fileWithChecksum(String csum) {
+        Cursor cur = null;
+        try {
+            cur = mDb.getDatabase().rawQuery("select fname from media where csum = ?", new String[] { csum });
+            while (cur.moveToNext()) {
+                String fname = cur.getString(0);
+                File file = new File(dir(), fname);
+                if (!_keepsName(fname) && file.exists() && csum.equals(_checksum(file.getAbsolutePath()))) {
+                    return fname;
+                }
+            }
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * The files of the media folder that have the same contents as another one, which could be merged into it by
+     * {@link #mergeDuplicates}. Nothing is changed.
+     *
+     * @return The file each duplicate would be merged into, the first name of each set in name order, by duplicate
+     */
+    public Map<String, String> duplicates() {
+        Map<String, String> renames = new HashMap<>();
+        Cursor cur = null;
+        try {
+            cur = mDb.getDatabase().rawQuery("select csum, fname from media where csum in (select csum from media "
+                    + "where csum is not null group by csum having count() > 1) order by csum, fname", null);
+            String keepCsum = null;
+            String keep = null;
+            while (cur.moveToNext()) {
+                String csum = cur.getString(0);
+                String fname = cur.getString(1);
+                if (_keepsName(fname) || !new File(dir(), fname).exists()) {
+                    continue;
+                }
+                if (!csum.equals(keepCsum)) {
+                    keepCsum = csum;
+                    keep = fname;
+                } else {
+                    renames.put(fname, keep);
+                }
+            }
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
+        }
+        // the recorded checksums may predate a change made outside AnkiDroid
+        Map<String, String> actual = new HashMap<>();
+        for (Iterator<Map.Entry<String, String>> it = renames.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, String> e = it.next();
+            if (!actual.containsKey(e.getValue())) {
+                actual.put(e.getValue(), _checksum(new File(dir(), e.getValue()).getAbsolutePath()));
+            }
+            if (!actual.get(e.getValue()).equals(_checksum(new File(dir(), e.getKey()).getAbsolutePath()))) {
+                it.remove();
+            }
+        }
+        return renames;
+    }
+
+
+    /**
+     * Merge duplicate files of the media folder into the file of the same contents they are mapped to, rewriting the
+     * media references of the notes that used them. A duplicate whose name still appears in a note or in a model's
+     * templates or CSS afterwards, e.g. in a script or a CSS url(), is kept, as its references couldn't be rewritten.
+     *
+     * @param renames The file kept for each duplicate, from {@link #duplicates}
+     * @return The names of the removed files and the number of bytes they took
+     */
+    public Pair<List<String>, Long> mergeDuplicates(Map<String, String> renames) {
+        List<String> removed = new ArrayList<>();
+        if (renames.isEmpty()) {
+            return new Pair<>(removed, 0L);
+        }
+        for (Map.Entry<Long, List<String>> entry : filesInNotes(null).entrySet()) {
+            if (Collections.disjoint(entry.getValue(), renames.keySet())) {
+                continue;
+            }
+            Note note = mCol.getNote(entry.getKey());
+            String[] flds = note.getFields();
+            for (int c = 0; c < flds.length; c++) {
+                note.setField(c, _renameRefs(flds[c], renames));
+            }
+            note.flush();
+        }
+        Set<String> named = _stillNamed(renames.keySet());
+        long bytes = 0;
+        for (String fname : renames.keySet()) {
+            if (named.contains(fname)) {
+                Timber.i("Not merging %s, it is still referred to by name", fname);
+                continue;
+            }
+            bytes += new File(dir(), fname).length();
+            removeFile(fname);
+            removed.add(fname);
+        }
+        Timber.i("Merged %d duplicate media files, %d bytes", removed.size(), bytes);
+        return new Pair<>(removed, bytes);
+    }
+
+
+    /** The given file names that appear anywhere in the fields of a note or in the templates or CSS of a model. */
+    private Set<String> _stillNamed(Set<String> fnames) {
+        Set<String> named = new HashSet<>();
+        List<String> texts = new ArrayList<>();
+        try {
+            for (JSONObject m : mCol.getModels().all()) {
+                texts.add(m.getString("css"));
+                JSONArray tmpls = m.getJSONArray("tmpls");
+                for (int i = 0; i < tmpls.length(); i++) {
+                    JSONObject t = tmpls.getJSONObject(i);
+                    texts.add(t.getString("qfmt"));
+                    texts.add(t.getString("afmt"));
+                }
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        for (String text : texts) {
+            _addNamed(text, fnames, named);
+        }
+        Cursor cur = null;
+        try {
+            cur = mCol.getDb().getDatabase().rawQuery("select flds from notes", null);
+            while (cur.moveToNext() && named.size() < fnames.size()) {
+                _addNamed(cur.getString(0), fnames, named);
+            }
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
+        }
+        return named;
+    }
+
+
+    private void _addNamed(String text, Set<String> fnames, Set<String> named) {
+        for (String fname : fnames) {
+            if (!named.contains(fname) && text.contains(fname)) {
+                named.add(fname);
+            }
+        }
+    }
+
+
+    /** Point the media references of a string to other files. */
+    private String _renameRefs(String string, Map<String, String> renames) {
+        for (Pattern p : mRegexps) {
+            Matcher m = p.matcher(string);
+            StringBuffer sb = new StringBuffer();
+            int fnameIdx = indexOfFname(p);
+            while (m.find()) {
+                String fname = m.group(fnameIdx);
+                String tag = renames.containsKey(fname) ? m.group(0).replace(fname, renames.get(fname)) : m.group(0);
+                m.appendReplacement(sb, Matcher.quoteReplacement(tag));
+            }
+            m.appendTail(sb);
+            string = sb.toString();
+        }
+        return string;
+    }
+
+
+    /**
+     * Templates refer to files starting with _ by name, and LaTeX images are named after their source; such files
+     * are neither replaced by nor merged into files of the same contents.
+     */
+    private static boolean _keepsName(String fname) {
+        return fname.startsWith("_") || fname.startsWith("latex-");
+    }
+
+
+    /**
+     * Record the media references of a note that was just written, so that {@link #filesInNotes} doesn't need to
+     * parse it again.
+     */
+    public void noteChanged(long nid, long mid, long mod, String flds) {
+        if (mRefIndex != null) {
+            mRefIndex.update(nid, mid, mod, flds);
+        }
+    }
+
+
+    /** The fields of the notes in snids were written in bulk; their media references are parsed again when needed. */
+    public void notesChanged(String snids) {
+        if (mRefIndex != null) {
+            mRefIndex.invalidate(snids);
+        }
+    }
+
+
     /**
      * Add an entry into the media database for file named fname, or update it
      * if it already exists.
      */
     public void markFileAdd(String fname) {
+        _markFileAdd(fname, _checksum(new File(dir(), fname).getAbsolutePath()));
+    }
+
+
+    /** Same as {@link #markFileAdd(String)}, with a checksum computed while the file was written. */
+    private void _markFileAdd(String fname, String csum) {
         Timber.d("Marking media file addition in media db: %s", fname);
         String path = new File(dir(), fname).getAbsolutePath();
         mDb.execute("insert or replace into media values (?,?,?,?)",
-                new Object[] { fname, _checksum(path), _mtime(path), 1 });
+                new Object[] { fname, csum, _mtime(path), 1 });
     }
 
 
@@ -951,6 +1252,7 @@ public class Media {
      * Remove a file from the media directory if it exists and mark it as removed in the media database.
      */
     public void removeFile(String fname) {
+        Long dirMod = _journalStart();
         File f = new File(dir(), fname);
         if (f.exists()) {
             f.delete();
@@ -958,6 +1260,7 @@ public class Media {
         Timber.d("Marking media file removal in media db: %s", fname);
         mDb.execute("insert or replace into media values (?,?,?,?)",
                 new Object[] { fname, null, 0, 1 });
+        _journalEnd(dirMod);
     }
 
 
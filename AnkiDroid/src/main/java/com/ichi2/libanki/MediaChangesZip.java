@@ -0,0 +1,195 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import com.ichi2.libanki.sync.HttpSyncer;
+
+import org.json.JSONArray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Not in libanki.
+ *
+ * One batch of local media changes, written as a zip straight into the body of the upload request instead of to a
+ * file. Formats that are compressed already are STORED: deflating them again costs time and saves nothing. A STORED
+ * entry needs its size and CRC before its data, so {@link #prepare} reads those files beforehand, on another thread
+ * while the previous batch uploads, and keeps their data for the upload. Only a file too large for a batch on its own
+ * is read a second time instead of being kept in memory.
+ *
+ * The zip can be written more than once, should the server want the length of the request.
+ */
+public class MediaChangesZip implements HttpSyncer.PayloadWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "mp3", "m4a", "aac", "ogg", "oga", "opus", "flac", "mp4", "m4v",
+            "mov", "3gp", "webm", "mkv", "wma", "wmv", "zip", "gz", "7z", "svgz"));
+
+    private final List<String> mFnames = new ArrayList<>();
+    private final List<Entry> mEntries = new ArrayList<>();
+    private final JSONArray mMeta = new JSONArray();
+
+
+    /**
+     * @param dir The media folder
+     * @param rows (fname, csum) of the changes, a null or empty csum meaning a deletion
+     */
+    MediaChangesZip(String dir, List<String[]> rows) {
+        for (String[] row : rows) {
+            String fname = row[0];
+            mFnames.add(fname);
+            // meta is a list of (fname, zipname), where zipname of null is a deleted file
+            String normname = Utils.nfcNormalized(fname);
+            if (row[1] != null && row[1].length() > 0) {
+                String zipname = Integer.toString(mEntries.size());
+                mEntries.add(new Entry(new File(dir, fname), zipname));
+                mMeta.put(new JSONArray().put(normname).put(zipname));
+            } else {
+                mMeta.put(new JSONArray().put(normname).put(""));
+            }
+        }
+    }
+
+
+    /** @return The names of the files in the batch, in the order the server processes them. */
+    public List<String> getFnames() {
+        return mFnames;
+    }
+
+
+    /** Find the size and CRC of the entries to store, keeping their data when it fits in a batch. */
+    public void prepare() throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        CRC32 crc = new CRC32();
+        long kept = 0;
+        for (Entry e : mEntries) {
+            if (!e.mStored) {
+                continue;
+            }
+            crc.reset();
+            long length = e.mFile.length();
+            if (kept + length <= Consts.SYNC_ZIP_SIZE) {
+                e.mData = _readFully(e.mFile, (int) length);
+                crc.update(e.mData);
+                e.mSize = e.mData.length;
+                kept += e.mSize;
+            } else {
+                long size = 0;
+                InputStream in = new FileInputStream(e.mFile);
+                try {
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        crc.update(buffer, 0, count);
+                        size += count;
+                    }
+                } finally {
+                    in.close();
+                }
+                e.mSize = size;
+            }
+            e.mCrc = crc.getValue();
+        }
+    }
+
+
+    /** Write the zip. {@link #prepare} must have completed. */
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ZipOutputStream z = new ZipOutputStream(out);
+        for (Entry e : mEntries) {
+            ZipEntry ze = new ZipEntry(e.mZipname);
+            if (e.mStored) {
+                ze.setMethod(ZipEntry.STORED);
+                ze.setSize(e.mSize);
+                ze.setCompressedSize(e.mSize);
+                ze.setCrc(e.mCrc);
+            } else {
+                ze.setMethod(ZipEntry.DEFLATED);
+            }
+            z.putNextEntry(ze);
+            if (e.mData != null) {
+                z.write(e.mData);
+            } else {
+                InputStream in = new FileInputStream(e.mFile);
+                try {
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        z.write(buffer, 0, count);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            z.closeEntry();
+        }
+        z.putNextEntry(new ZipEntry("_meta"));
+        z.write(Utils.jsonToString(mMeta).getBytes("UTF-8"));
+        z.closeEntry();
+        // the request body goes on after the zip
+        z.finish();
+    }
+
+
+    private static byte[] _readFully(File file, int length) throws IOException {
+        byte[] data = new byte[length];
+        InputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            int count;
+            while (off < length && (count = in.read(data, off, length - off)) != -1) {
+                off += count;
+            }
+            // the file changed since it was measured
+            return off < length ? Arrays.copyOf(data, off) : data;
+        } finally {
+            in.close();
+        }
+    }
+
+
+    private static class Entry {
+        final File mFile;
+        final String mZipname;
+        final boolean mStored;
+        long mSize;
+        long mCrc;
+        /** The data of a stored entry, when it was kept by {@link #prepare}. */
+        byte[] mData;
+
+
+        Entry(File file, String zipname) {
+            mFile = file;
+            mZipname = zipname;
+            String ext = Utils.splitFilename(file.getName())[1];
+            mStored = ext.length() > 1 && COMPRESSED_EXTENSIONS.contains(ext.substring(1).toLowerCase(Locale.US));
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Not in libanki.
+ *
+ * SHA1 checksums of media files, as stored in the media database. Each thread reuses one digest and one large read
+ * buffer for all the files it hashes. Files being written can be hashed on the way, instead of being read back, and
+ * the files found by a media scan are hashed by a few threads at once.
+ */
+public class MediaHasher {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_THREADS = 4;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> sDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA1");
+            } catch (NoSuchAlgorithmException e) {
+                Timber.e(e, "MediaHasher: No such algorithm.");
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+
+    /** @return The lower case hexadecimal representation of a digest, two digits per byte. */
+    public static String hex(byte[] digest) {
+        char[] out = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            out[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            out[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+
+    /** @return The checksum of the file's contents. */
+    public static String checksum(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return checksum(in);
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /** @return The checksum of what is left in the stream, which isn't closed. */
+    public static String checksum(InputStream in) throws IOException {
+        MessageDigest md = sDigest.get();
+        md.reset();
+        byte[] buffer = sBuffer.get();
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            md.update(buffer, 0, count);
+        }
+        return hex(md.digest());
+    }
+
+
+    /**
+     * Write a stream to a file, replacing it if it exists. The stream isn't closed.
+     *
+     * @return The checksum of what was written.
+     */
+    public static String copy(InputStream source, File destination) throws IOException {
+        MessageDigest md = sDigest.get();
+        md.reset();
+        byte[] buffer = sBuffer.get();
+        OutputStream out = new FileOutputStream(destination);
+        try {
+            int count;
+            while ((count = source.read(buffer)) != -1) {
+                md.update(buffer, 0, count);
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            out.close();
+        }
+        return hex(md.digest());
+    }
+
+
+    /**
+     * Hash several files on a few threads. Each thread takes the next file when it is done with one, so that a large
+     * file doesn't hold up the others.
+     *
+     * @return The checksums in the order of the files, with null for those that couldn't be read.
+     */
+    public static String[] checksums(final List<File> files) {
+        final String[] result = new String[files.size()];
+        int threads = Math.min(Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()), files.size());
+        if (threads <= 1) {
+            for (int i = 0; i < files.size(); i++) {
+                result[i] = _checksumOrNull(files.get(i));
+            }
+            return result;
+        }
+        final AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                workers.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        int i;
+                        while ((i = next.getAndIncrement()) < files.size()) {
+                            result[i] = _checksumOrNull(files.get(i));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+
+    private static String _checksumOrNull(File file) {
+        try {
+            return checksum(file);
+        } catch (IOException e) {
+            Timber.w(e, "MediaHasher: could not read %s", file);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Not in libanki.
+ *
+ * The media referenced by each note, kept in the media database so that Check Media and exporting don't need to
+ * parse every field again. An entry is recorded when a note is flushed and is only trusted while the note's mod is
+ * the one it was written with. Mod only has a resolution of a second, so writes that change fields in bulk (find and
+ * replace, note type changes, syncs and imports) also remove the entries of the notes they change through
+ * {@link #invalidate}.
+ *
+ * The media database is in autocommit, so entries of flushed notes are kept in memory and written together, before
+ * a lookup, an invalidation or closing, or once there are enough of them.
+ *
+ * The file names of LaTeX depend on the model's header and footer as well as on the note, so notes with LaTeX are
+ * recorded without references and always parsed.
+ */
+class MediaRefIndex {
+
+    /** Notes parsed and written per transaction when updating stale entries, and entries of flushed notes kept. */
+    private static final int CHUNK_SIZE = 500;
+
+    private final Collection mCol;
+    private final Media mMedia;
+    private final DB mDb;
+    /** Entries of flushed notes not written yet, by note id. */
+    private final Map<Long, Object[]> mPending = new LinkedHashMap<>();
+
+
+    MediaRefIndex(Collection col, Media media, DB db) {
+        mCol = col;
+        mMedia = media;
+        mDb = db;
+        mDb.execute("create table if not exists noterefs (nid integer primary key, mod int not null, refs text)");
+    }
+
+
+    /** Record the references of a note that was just written. */
+    void update(long nid, long mid, long mod, String flds) {
+        mPending.put(nid, new Object[] { nid, mod, _refs(mid, flds) });
+        if (mPending.size() >= CHUNK_SIZE) {
+            flush();
+        }
+    }
+
+
+    /** Remove the entries of the notes in snids, whose fields were written in bulk. */
+    void invalidate(String snids) {
+        flush();
+        mDb.execute("delete from noterefs where nid in " + snids);
+    }
+
+
+    /** Write the entries of flushed notes. */
+    void flush() {
+        if (mPending.isEmpty()) {
+            return;
+        }
+        _write(mPending.values());
+        mPending.clear();
+    }
+
+
+    /**
+     * @param where SQL condition on the notes table, or null for all notes
+     * @return The local media references of each note, by note id
+     */
+    Map<Long, List<String>> refs(String where) {
+        flush();
+        // the notes are in the collection database, so they are selected first and only their entries loaded
+        Map<Long, Long> mods = new LinkedHashMap<>();
+        Cursor cur = null;
+        try {
+            cur = mCol.getDb().getDatabase().rawQuery("select id, mod from notes"
+                    + (where != null ? " where " + where : ""), null);
+            while (cur.moveToNext()) {
+                mods.put(cur.getLong(0), cur.getLong(1));
+            }
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
+        }
+        Map<Long, Entry> index = _load(where != null ? new ArrayList<>(mods.keySet()) : null);
+        Map<Long, List<String>> result = new LinkedHashMap<>();
+        List<Long> stale = new ArrayList<>();
+        for (Map.Entry<Long, Long> note : mods.entrySet()) {
+            long nid = note.getKey();
+            Entry e = index.remove(nid);
+            if (e != null && e.mod == note.getValue() && e.refs != null) {
+                result.put(nid, _split(e.refs));
+            } else {
+                stale.add(nid);
+            }
+        }
+        Timber.d("MediaRefIndex: %d notes indexed, %d to parse", result.size(), stale.size());
+        for (int i = 0; i < stale.size(); i += CHUNK_SIZE) {
+            _parse(stale.subList(i, Math.min(i + CHUNK_SIZE, stale.size())), result);
+        }
+        if (where == null && !index.isEmpty()) {
+            // what's left belongs to notes that no longer exist
+            mDb.execute("delete from noterefs where nid in " + Utils.ids2str(Utils.toPrimitive(index.keySet())));
+        }
+        return result;
+    }
+
+
+    /** @param nids The notes whose entries are needed, or null for the whole index */
+    private Map<Long, Entry> _load(List<Long> nids) {
+        Map<Long, Entry> index = new HashMap<>();
+        if (nids == null) {
+            _load("select nid, mod, refs from noterefs", index);
+        } else {
+            for (int i = 0; i < nids.size(); i += CHUNK_SIZE) {
+                _load("select nid, mod, refs from noterefs where nid in "
+                        + Utils.ids2str(nids.subList(i, Math.min(i + CHUNK_SIZE, nids.size()))), index);
+            }
+        }
+        return index;
+    }
+
+
+    private void _load(String sql, Map<Long, Entry> index) {
+        Cursor cur = null;
+        try {
+            cur = mDb.getDatabase().rawQuery(sql, null);
+            while (cur.moveToNext()) {
+                index.put(cur.getLong(0), new Entry(cur.getLong(1), cur.isNull(2) ? null : cur.getString(2)));
+            }
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
+        }
+    }
+
+
+    /** Parse the given notes, add their references to the result and write them to the index. */
+    private void _parse(List<Long> nids, Map<Long, List<String>> result) {
+        ArrayList<Object[]> rows = new ArrayList<>(nids.size());
+        Cursor cur = null;
+        try {
+            cur = mCol.getDb().getDatabase().rawQuery("select id, mid, mod, flds from notes where id in "
+                    + Utils.ids2str(nids), null);
+            while (cur.moveToNext()) {
+                long nid = cur.getLong(0);
+                long mid = cur.getLong(1);
+                String flds = cur.getString(3);
+                String refs = _refs(mid, flds);
+                result.put(nid, refs != null ? _split(refs) : mMedia.filesInStr(mid, flds));
+                rows.add(new Object[] { nid, cur.getLong(2), refs });
+            }
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
+        }
+        _write(rows);
+    }
+
+
+    private void _write(Iterable<Object[]> rows) {
+        SQLiteDatabase db = mDb.getDatabase();
+        db.beginTransaction();
+        try {
+            for (Object[] row : rows) {
+                mDb.execute("insert or replace into noterefs values (?,?,?)", row);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+
+    /** @return The references joined like fields, or null if they can't be recorded. */
+    private String _refs(long mid, String flds) {
+        if (MediaRefScanner.hasLatex(flds)) {
+            return null;
+        }
+        List<String> files = mMedia.filesInStr(mid, flds);
+        return Utils.joinFields(files.toArray(new String[files.size()]));
+    }
+
+
+    private static List<String> _split(String refs) {
+        if (refs.length() == 0) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(Utils.splitFields(refs));
+    }
+
+
+    private static class Entry {
+        final long mod;
+        final String refs;
+
+        Entry(long mod, String refs) {
+            this.mod = mod;
+            this.refs = refs;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Not in libanki.
+ *
+ * Finds the media references of a string in one pass, with the same results as running the sound, quoted image and
+ * unquoted image expressions of {@link Media} one after the other. Each expression is followed by its own end
+ * position, since their matches may overlap; only the file names are copied out of the string.
+ */
+final class MediaRefScanner {
+
+    private static final String SOUND = "[sound:";
+    private static final String IMG = "<img";
+    private static final String SRC = " src=";
+
+
+    private MediaRefScanner() {
+    }
+
+
+    /**
+     * @return The file names of the [sound:] tags, then of the images with a quoted src, then of those with an
+     *         unquoted one, each in order of appearance
+     */
+    static List<String> scan(String s) {
+        List<String> sounds = new ArrayList<>();
+        List<String> quoted = new ArrayList<>();
+        List<String> unquoted = new ArrayList<>();
+        int n = s.length();
+        // where each expression may match again
+        int soundFrom = 0;
+        int quotedFrom = 0;
+        int unquotedFrom = 0;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '[' && i >= soundFrom && s.regionMatches(true, i, SOUND, 0, SOUND.length())) {
+                int start = i + SOUND.length();
+                int end = s.indexOf(']', start);
+                if (end > start) {
+                    sounds.add(s.substring(start, end));
+                    soundFrom = end + 1;
+                }
+            } else if (c == '<' && (i >= quotedFrom || i >= unquotedFrom)
+                    && s.regionMatches(true, i, IMG, 0, IMG.length())) {
+                int tagEnd = s.indexOf('>', i + IMG.length());
+                if (tagEnd == -1) {
+                    // no later tag is closed either
+                    quotedFrom = n;
+                    unquotedFrom = n;
+                    continue;
+                }
+                if (i >= quotedFrom && _quotedSrc(s, i + IMG.length(), tagEnd, quoted)) {
+                    quotedFrom = tagEnd + 1;
+                }
+                if (i >= unquotedFrom && _unquotedSrc(s, i + IMG.length(), tagEnd, unquoted)) {
+                    unquotedFrom = tagEnd + 1;
+                }
+            }
+        }
+        sounds.addAll(quoted);
+        sounds.addAll(unquoted);
+        return sounds;
+    }
+
+
+    /** @return Whether the string has LaTeX that {@link LaTeX#mungeQA} would turn into images. */
+    static boolean hasLatex(String s) {
+        for (int i = s.indexOf('['); i != -1; i = s.indexOf('[', i + 1)) {
+            if (s.startsWith("[$", i) || s.regionMatches(true, i, "[latex]", 0, 7)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Like the expressions, which match attributes greedily, try the last src of the tag first.
+     *
+     * @param from Position after "<img"
+     * @param tagEnd Position of the closing '>'
+     */
+    private static boolean _quotedSrc(String s, int from, int tagEnd, List<String> out) {
+        for (int j = tagEnd - SRC.length(); j >= from; j--) {
+            if (!s.regionMatches(true, j, SRC, 0, SRC.length())) {
+                continue;
+            }
+            int p = j + SRC.length();
+            char q = s.charAt(p);
+            if (q != '"' && q != '\'') {
+                continue;
+            }
+            // at least one character, then the same quote before the end of the tag
+            int close = s.indexOf(q, p + 2);
+            if (close != -1 && close < tagEnd) {
+                out.add(s.substring(p + 1, close));
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private static boolean _unquotedSrc(String s, int from, int tagEnd, List<String> out) {
+        for (int j = tagEnd - SRC.length(); j >= from; j--) {
+            if (!s.regionMatches(true, j, SRC, 0, SRC.length())) {
+                continue;
+            }
+            int p = j + SRC.length();
+            char c = s.charAt(p);
+            if (c == '"' || c == '\'' || c == ' ' || c == '>') {
+                continue;
+            }
+            int end = p;
+            while (end < tagEnd && s.charAt(end) != ' ') {
+                end++;
+            }
+            out.add(s.substring(p, end));
+            return true;
+        }
+        return false;
+    }
+}
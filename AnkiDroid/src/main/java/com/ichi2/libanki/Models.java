@@ -20,11 +20,13 @@
 package com.ichi2.libanki;
 
 import android.content.ContentValues;
-import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.util.Pair;
 
 import com.ichi2.anki.exception.ConfirmModSchemaException;
+import com.ichi2.async.DeckTask;
 import com.ichi2.libanki.template.Template;
+import com.ichi2.libanki.template.TemplateAnalyzer;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -35,6 +37,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -92,7 +95,9 @@ public class Models {
 
     private Collection mCol;
     private boolean mChanged;
-    private HashMap<Long, JSONObject> mModels;
+    private LazyJSONMap mModels;
+    // Not in libanki. Bumped on every load and save, so that lookups derived from the models know when to rebuild.
+    private int mVersion;
 
     // BEGIN SQL table entries
     private int mId;
@@ -111,6 +116,9 @@ public class Models {
     /** Map for compiled Mustache Templates */
     private Map<String, Template> mCmpldTemplateMap = new HashMap<>();
 
+    /** Compiled req bitmasks by model id, see {@link #requirements(JSONObject)} */
+    private Map<Long, TemplateRequirements> mRequirements = new HashMap<>();
+
 
     //
     // /** Map for convenience and speed which contains FieldNames from current model */
@@ -141,24 +149,12 @@ public class Models {
 
 
     /**
-     * Load registry from JSON.
+     * Load registry from JSON. Individual models are only parsed when first accessed, see {@link LazyJSONMap}.
      */
     public void load(String json) {
         mChanged = false;
-        mModels = new HashMap<>();
-        try {
-            JSONObject modelarray = new JSONObject(json);
-            JSONArray ids = modelarray.names();
-            if (ids != null) {
-                for (int i = 0; i < ids.length(); i++) {
-                    String id = ids.getString(i);
-                    JSONObject o = modelarray.getJSONObject(id);
-                    mModels.put(o.getLong("id"), o);
-                }
-            }
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
-        }
+        mModels = new LazyJSONMap(json);
+        mVersion++;
     }
 
 
@@ -196,6 +192,7 @@ public class Models {
             }
         }
         mChanged = true;
+        mVersion++;
         // The following hook rebuilds the tree in the Anki Desktop browser -- we don't need it
         // runHook("newModel")
     }
@@ -206,16 +203,8 @@ public class Models {
      */
     public void flush() {
         if (mChanged) {
-            JSONObject array = new JSONObject();
-            try {
-                for (Map.Entry<Long, JSONObject> o : mModels.entrySet()) {
-                    array.put(Long.toString(o.getKey()), o.getValue());
-                }
-            } catch (JSONException e) {
-                throw new RuntimeException(e);
-            }
             ContentValues val = new ContentValues();
-            val.put("models", Utils.jsonToString(array));
+            val.put("models", mModels.toJSONString());
             mCol.getDb().update("col", val);
             mChanged = false;
         }
@@ -525,21 +514,50 @@ public class Models {
 
 
     public void addField(JSONObject m, JSONObject field) throws ConfirmModSchemaException {
+        addField(m, field, null);
+    }
+
+
+    /**
+     * Not in libanki.
+     * @param progress Receives the progress of the notes update and is checked for cancellation, or null
+     * @return false if cancelled, in which case neither the model nor its notes were changed
+     */
+    public boolean addField(JSONObject m, JSONObject field, DeckTask.ProgressCallback progress)
+            throws ConfirmModSchemaException {
         // only mod schema if model isn't new
+        boolean isNew;
         try {
-            if (m.getLong("id") != 0) {
-                mCol.modSchema(true);
+            isNew = m.getLong("id") == 0;
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        if (!isNew) {
+            mCol.checkSchema();
+        }
+        SQLiteDatabase db = mCol.getDb().getDatabase();
+        db.beginTransaction();
+        try {
+            // notes first, so that cancelling leaves the model untouched
+            if (!_transformFields(m, new TransformFieldAdd(), progress)) {
+                return false;
             }
             JSONArray ja = m.getJSONArray("flds");
             ja.put(field);
             m.put("flds", ja);
             _updateFieldOrds(m);
             save(m);
-            _transformFields(m, new TransformFieldAdd());
+            // only once done, so that cancelling doesn't force a full sync
+            if (!isNew) {
+                mCol.modSchemaNoCheck();
+            }
+            db.setTransactionSuccessful();
         } catch (JSONException e) {
             throw new RuntimeException(e);
+        } finally {
+            db.endTransaction();
         }
-
+        return true;
     }
 
     class TransformFieldAdd implements TransformFieldVisitor {
@@ -554,7 +572,20 @@ public class Models {
 
 
     public void remField(JSONObject m, JSONObject field) throws ConfirmModSchemaException {
-        mCol.modSchema(true);
+        remField(m, field, null);
+    }
+
+
+    /**
+     * Not in libanki.
+     * @param progress Receives the progress of the notes update and is checked for cancellation, or null
+     * @return false if cancelled, in which case neither the model nor its notes were changed
+     */
+    public boolean remField(JSONObject m, JSONObject field, DeckTask.ProgressCallback progress)
+            throws ConfirmModSchemaException {
+        mCol.checkSchema();
+        SQLiteDatabase db = mCol.getDb().getDatabase();
+        db.beginTransaction();
         try {
             JSONArray ja = m.getJSONArray("flds");
             JSONArray ja2 = new JSONArray();
@@ -566,22 +597,29 @@ public class Models {
                 }
                 ja2.put(ja.get(i));
             }
+            // notes first, so that cancelling leaves the model untouched
+            if (!_transformFields(m, new TransformFieldDelete(idx), progress)) {
+                return false;
+            }
             m.put("flds", ja2);
             int sortf = m.getInt("sortf");
             if (sortf >= m.getJSONArray("flds").length()) {
                 m.put("sortf", sortf - 1);
             }
             _updateFieldOrds(m);
-            _transformFields(m, new TransformFieldDelete(idx));
             if (idx == sortIdx(m)) {
                 // need to rebuild
                 mCol.updateFieldCache(Utils.toPrimitive(nids(m)));
             }
+            // also marks the schema modified, now that the notes are done
             renameField(m, field, null);
+            db.setTransactionSuccessful();
         } catch (JSONException e) {
             throw new RuntimeException(e);
+        } finally {
+            db.endTransaction();
         }
-
+        return true;
     }
 
     class TransformFieldDelete implements TransformFieldVisitor {
@@ -603,7 +641,20 @@ public class Models {
 
 
     public void moveField(JSONObject m, JSONObject field, int idx) throws ConfirmModSchemaException {
-        mCol.modSchema(true);
+        moveField(m, field, idx, null);
+    }
+
+
+    /**
+     * Not in libanki.
+     * @param progress Receives the progress of the notes update and is checked for cancellation, or null
+     * @return false if cancelled, in which case neither the model nor its notes were changed
+     */
+    public boolean moveField(JSONObject m, JSONObject field, int idx, DeckTask.ProgressCallback progress)
+            throws ConfirmModSchemaException {
+        mCol.checkSchema();
+        SQLiteDatabase db = mCol.getDb().getDatabase();
+        db.beginTransaction();
         try {
             JSONArray ja = m.getJSONArray("flds");
             ArrayList<JSONObject> l = new ArrayList<>();
@@ -613,10 +664,14 @@ public class Models {
                 if (field.equals(ja.getJSONObject(i))) {
                     oldidx = i;
                     if (idx == oldidx) {
-                        return;
+                        return true;
                     }
                 }
             }
+            // notes first, so that cancelling leaves the model untouched
+            if (!_transformFields(m, new TransformFieldMove(idx, oldidx), progress)) {
+                return false;
+            }
             // remember old sort field
             String sortf = Utils.jsonToString(m.getJSONArray("flds").getJSONObject(m.getInt("sortf")));
             // move
@@ -633,11 +688,15 @@ public class Models {
             }
             _updateFieldOrds(m);
             save(m);
-            _transformFields(m, new TransformFieldMove(idx, oldidx));
+            // only once done, so that cancelling doesn't force a full sync
+            mCol.modSchemaNoCheck();
+            db.setTransactionSuccessful();
         } catch (JSONException e) {
             throw new RuntimeException(e);
+        } finally {
+            db.endTransaction();
         }
-
+        return true;
     }
 
     class TransformFieldMove implements TransformFieldVisitor {
@@ -710,28 +769,22 @@ public class Models {
 
 
     public void _transformFields(JSONObject m, TransformFieldVisitor fn) {
+        _transformFields(m, fn, null);
+    }
+
+
+    /** @return false if cancelled, see {@link NoteTransformer} */
+    private boolean _transformFields(JSONObject m, TransformFieldVisitor fn, DeckTask.ProgressCallback progress) {
         // model hasn't been added yet?
         try {
             if (m.getLong("id") == 0) {
-                return;
+                return true;
             }
-            ArrayList<Object[]> r = new ArrayList<>();
-            Cursor cur = null;
-
-            try {
-                cur = mCol.getDb().getDatabase()
-                        .rawQuery("select id, flds from notes where mid = " + m.getLong("id"), null);
-                while (cur.moveToNext()) {
-                    r.add(new Object[] {
-                            Utils.joinFields(fn.transform(Utils.splitFields(cur.getString(1)))),
-                            Utils.intNow(), mCol.usn(), cur.getLong(0) });
-                }
-            } finally {
-                if (cur != null) {
-                    cur.close();
-                }
+            if (!new NoteTransformer(mCol, progress).notes("mid = " + m.getLong("id"), fn, 0)) {
+                return false;
             }
-            mCol.getDb().executeMany("update notes set flds=?,mod=?,usn=? where id = ?", r);
+            mCol.getDupeIndex().modelChanged(m.getLong("id"));
+            return true;
         } catch (JSONException e) {
             throw new RuntimeException(e);
         }
@@ -882,7 +935,7 @@ public class Models {
 
 
     private void _syncTemplates(JSONObject m) {
-        ArrayList<Long> rem = mCol.genCards(Utils.arrayList2array(nids(m)));
+        ArrayList<Long> rem = mCol.genCards(m);
     }
 
 
@@ -900,24 +953,47 @@ public class Models {
      * @throws ConfirmModSchemaException 
      */
     public void change(JSONObject m, long[] nids, JSONObject newModel, Map<Integer, Integer> fmap, Map<Integer, Integer> cmap) throws ConfirmModSchemaException {
-        mCol.modSchema(true);
+        change(m, nids, newModel, fmap, cmap, null);
+    }
+
+
+    /**
+     * Not in libanki.
+     * Same as {@link #change(JSONObject, long[], JSONObject, Map, Map)}, in a single transaction, with progress.
+     * @param progress Receives the progress of the update and is checked for cancellation, or null
+     * @return false if cancelled, in which case nothing was changed
+     */
+    public boolean change(JSONObject m, long[] nids, JSONObject newModel, Map<Integer, Integer> fmap,
+            Map<Integer, Integer> cmap, DeckTask.ProgressCallback progress) throws ConfirmModSchemaException {
+        // before any work, so that the user can be asked first; the schema is only marked modified once done
+        mCol.checkSchema();
         try {
             assert (newModel.getLong("id") == m.getLong("id")) || (fmap != null && cmap != null);
         } catch (JSONException e) {
             throw new RuntimeException(e);
         }
-        if (fmap != null) {
-            _changeNotes(nids, newModel, fmap);
-        }
-        if (cmap != null) {
-            _changeCards(nids, m, newModel, cmap);
+        NoteTransformer transformer = new NoteTransformer(mCol, progress);
+        SQLiteDatabase db = mCol.getDb().getDatabase();
+        db.beginTransaction();
+        try {
+            if (fmap != null && !_changeNotes(transformer, nids, newModel, fmap)) {
+                return false;
+            }
+            if (cmap != null && !_changeCards(transformer, nids, m, newModel, cmap)) {
+                return false;
+            }
+            mCol.genCards(nids);
+            mCol.modSchemaNoCheck();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-        mCol.genCards(nids);
+        return true;
     }
 
-    private void _changeNotes(long[] nids, JSONObject newModel, Map<Integer, Integer> map) {
-        List<Object[]> d = new ArrayList<>();
-        int nfields;
+    private boolean _changeNotes(NoteTransformer transformer, long[] nids, JSONObject newModel,
+            final Map<Integer, Integer> map) {
+        final int nfields;
         long mid;
         try {
             nfields = newModel.getJSONArray("flds").length();
@@ -925,87 +1001,47 @@ public class Models {
         } catch (JSONException e) {
             throw new RuntimeException(e);
         }
-        Cursor cur = null;
-        try {
-            cur = mCol.getDb().getDatabase().rawQuery(
-                    "select id, flds from notes where id in ".concat(Utils.ids2str(nids)), null);
-            while (cur.moveToNext()) {
-                long nid = cur.getLong(0);
-                String[] flds = Utils.splitFields(cur.getString(1));
-                Map<Integer, String> newflds = new HashMap<>();
-
+        boolean done = transformer.notes("id IN " + Utils.ids2str(nids), new TransformFieldVisitor() {
+            @Override
+            public String[] transform(String[] flds) {
+                String[] flds2 = new String[nfields];
+                Arrays.fill(flds2, "");
                 for (Integer old : map.keySet()) {
-                    newflds.put(map.get(old), flds[old]);
-                }
-                List<String> flds2 = new ArrayList<>();
-                for (int c = 0; c < nfields; ++c) {
-                    if (newflds.containsKey(c)) {
-                        flds2.add(newflds.get(c));
-                    } else {
-                        flds2.add("");
-                    }
+                    flds2[map.get(old)] = flds[old];
                 }
-                String joinedFlds = Utils.joinFields(flds2.toArray(new String[flds2.size()]));
-                d.add(new Object[] { joinedFlds, mid, Utils.intNow(), mCol.usn(), nid });
-            }
-        } finally {
-            if (cur != null) {
-                cur.close();
+                return flds2;
             }
+        }, mid);
+        if (done) {
+            mCol.updateFieldCache(nids);
         }
-        mCol.getDb().executeMany("update notes set flds=?,mid=?,mod=?,usn=? where id = ?", d);
-        mCol.updateFieldCache(nids);
+        return done;
     }
 
-    private void _changeCards(long[] nids, JSONObject oldModel, JSONObject newModel, Map<Integer, Integer> map) {
-        List<Object[]> d = new ArrayList<>();
-        List<Long> deleted = new ArrayList<>();
-        Cursor cur = null;
-        int omType;
-        int nmType;
-        int nflds;
+    private boolean _changeCards(NoteTransformer transformer, long[] nids, JSONObject oldModel, JSONObject newModel,
+            Map<Integer, Integer> map) {
+        String where = "nid IN " + Utils.ids2str(nids);
         try {
-            omType = oldModel.getInt("type");
-            nmType = newModel.getInt("type");
-            nflds = newModel.getJSONArray("tmpls").length();
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
-        }
-        try {
-            cur = mCol.getDb().getDatabase().rawQuery(
-                    "select id, ord from cards where nid in ".concat(Utils.ids2str(nids)), null);
-            while (cur.moveToNext()) {
-                // if the src model is a cloze, we ignore the map, as the gui doesn't currently
-                // support mapping them
-                Integer newOrd;
-                long cid = cur.getLong(0);
-                int ord = cur.getInt(1);
-                if (omType == Consts.MODEL_CLOZE) {
-                    newOrd = cur.getInt(1);
-                    if (nmType != Consts.MODEL_CLOZE) {
-                        // if we're mapping to a regular note, we need to check if
-                        // the destination ord is valid
-                        if (nflds <= ord) {
-                            newOrd = null;
-                        }
+            // if the src model is a cloze, we ignore the map, as the gui doesn't currently
+            // support mapping them
+            if (oldModel.getInt("type") == Consts.MODEL_CLOZE) {
+                boolean toCloze = newModel.getInt("type") == Consts.MODEL_CLOZE;
+                int ntmpls = newModel.getJSONArray("tmpls").length();
+                map = new HashMap<>();
+                List<Integer> ords = mCol.getDb().queryColumn(Integer.class,
+                        "SELECT DISTINCT ord FROM cards WHERE " + where, 0);
+                for (int ord : ords) {
+                    // if we're mapping to a regular note, we need to check if
+                    // the destination ord is valid
+                    if (toCloze || ord < ntmpls) {
+                        map.put(ord, ord);
                     }
-                } else {
-                    // mapping from a regular note, so the map should be valid
-                    newOrd = map.get(ord);
-                }
-                if (newOrd != null) {
-                    d.add(new Object[] { newOrd, mCol.usn(), Utils.intNow(), cid });
-                } else {
-                    deleted.add(cid);
                 }
             }
-        } finally {
-            if (cur != null) {
-                cur.close();
-            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
         }
-        mCol.getDb().executeMany("update cards set ord=?,usn=?,mod=? where id=?", d);
-        mCol.remCards(Utils.toPrimitive(deleted));
+        return transformer.cards(where, map);
     }
 
     /**
@@ -1043,6 +1079,19 @@ public class Models {
                 // nothing to do
                 return;
             }
+            m.put("req", _req(m));
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /**
+     * The requirements of each template, from the static analysis of the template when {@link TemplateAnalyzer}
+     * understands it, or by rendering it as libanki does otherwise.
+     */
+    private JSONArray _req(JSONObject m) {
+        try {
             JSONArray req = new JSONArray();
             ArrayList<String> flds = new ArrayList<>();
             JSONArray fields;
@@ -1053,20 +1102,42 @@ public class Models {
             JSONArray templates = m.getJSONArray("tmpls");
             for (int i = 0; i < templates.length(); i++) {
                 JSONObject t = templates.getJSONObject(i);
-                Object[] ret = _reqForTemplate(m, flds, t);
+                Object[] ret = TemplateAnalyzer.reqForTemplate(t.getString("qfmt"), t.getInt("ord"), flds,
+                        _reqContext(m, t));
+                if (ret == null) {
+                    ret = _reqForTemplate(m, flds, t);
+                }
                 JSONArray r = new JSONArray();
                 r.put(t.getInt("ord"));
                 r.put(ret[0]);
                 r.put(ret[1]);
                 req.put(r);
             }
-            m.put("req", req);
+            return req;
         } catch (JSONException e) {
             throw new RuntimeException(e);
         }
     }
 
 
+    /**
+     * The values other than fields that _renderQA adds to the context when rendering the question of the card
+     * _reqForTemplate builds: no tags, the default deck and the template's own card number.
+     */
+    private Map<String, String> _reqContext(JSONObject m, JSONObject t) throws JSONException {
+        Map<String, String> specials = new HashMap<>();
+        specials.put("Tags", "");
+        specials.put("Type", m.getString("name"));
+        String deck = mCol.getDecks().name(1L);
+        specials.put("Deck", deck);
+        String[] parents = deck.split("::", -1);
+        specials.put("Subdeck", parents[parents.length - 1]);
+        specials.put("Card", t.getString("name"));
+        specials.put(String.format(Locale.US, "c%d", t.getInt("ord") + 1), "1");
+        return specials;
+    }
+
+
     private Object[] _reqForTemplate(JSONObject m, ArrayList<String> flds, JSONObject t) {
         try {
             ArrayList<String> a = new ArrayList<>();
@@ -1122,12 +1193,36 @@ public class Models {
     }
 
 
+    /**
+     * Not in libanki.
+     * @return the requirements of a standard model compiled to bitmasks, or null if the model is a cloze model or has
+     *         too many fields. The result is cached until the model's requirements are updated.
+     */
+    public TemplateRequirements requirements(JSONObject m) {
+        long mid = m.optLong("id");
+        TemplateRequirements r = mRequirements.get(mid);
+        if (r == null || !r.isCurrent(m)) {
+            r = TemplateRequirements.compile(m);
+            if (r == null) {
+                mRequirements.remove(mid);
+            } else {
+                mRequirements.put(mid, r);
+            }
+        }
+        return r;
+    }
+
+
     /** Given a joined field string, return available template ordinals */
     public ArrayList<Integer> availOrds(JSONObject m, String flds) {
         try {
             if (m.getInt("type") == Consts.MODEL_CLOZE) {
                 return _availClozeOrds(m, flds);
             }
+            TemplateRequirements compiled = requirements(m);
+            if (compiled != null) {
+                return compiled.availOrds(TemplateRequirements.nonEmptyMask(flds));
+            }
             String[] fields = Utils.splitFields(flds);
             for (String f : fields) {
                 f = f.trim();
@@ -1343,6 +1438,12 @@ public class Models {
 
     public void setChanged() {
         mChanged = true;
+        mVersion++;
+    }
+
+
+    public int getVersion() {
+        return mVersion;
     }
 
 
@@ -1382,7 +1483,7 @@ public class Models {
     }
 
 
-    public HashMap<Long, JSONObject> getModels() {
+    public Map<Long, JSONObject> getModels() {
         return mModels;
     }
 
@@ -141,8 +141,12 @@ public class Note implements Cloneable {
         }
         long csum = Utils.fieldChecksum(mFields[0]);
         mMod = mod != null ? mod : Utils.intNow();
+        long generation = mCol.getDb().getGeneration();
         mCol.getDb().execute("insert or replace into notes values (?,?,?,?,?,?,?,?,?,?,?)",
                 new Object[] { mId, mGuId, mMid, mMod, mUsn, tags, fields, sfld, csum, mFlags, mData });
+        mCol._noteFlushed(this, generation);
+        mCol.getDupeIndex().noteChanged(mId, mMid, mFields);
+        mCol.getMedia().noteChanged(mId, mMid, mMod, fields);
         mCol.getTags().register(mTags);
         _postFlush();
     }
@@ -278,16 +282,9 @@ public class Note implements Cloneable {
         if (val.trim().length() == 0) {
             return 1;
         }
-        long csum = Utils.fieldChecksum(val);
         // find any matching csums and compare
-        for (String flds : mCol.getDb().queryColumn(
-                String.class,
-                "SELECT flds FROM notes WHERE csum = " + csum + " AND id != " + (mId != 0 ? mId : 0) + " AND mid = "
-                        + mMid, 0)) {
-            if (Utils.stripHTMLMedia(
-                    Utils.splitFields(flds)[0]).equals(Utils.stripHTMLMedia(mFields[0]))) {
-                return 2;
-            }
+        if (!mCol.getDupeIndex().find(mMid, 0, val, mId).isEmpty()) {
+            return 2;
         }
         return null;
     }
@@ -369,6 +366,16 @@ public class Note implements Cloneable {
     }
 
 
+    /** Not in libanki. A copy as if the note was loaded again, with its own fields and tags. */
+    Note _loadedCopy() {
+        Note n = clone();
+        n.mTags = new ArrayList<>(mTags);
+        n.mFields = mFields.clone();
+        n.mNewlyAdded = false;
+        return n;
+    }
+
+
     public List<String> getTags() {
         return mTags;
     }
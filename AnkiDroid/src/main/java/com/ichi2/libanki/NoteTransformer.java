@@ -0,0 +1,196 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.database.Cursor;
+
+import com.ichi2.anki.R;
+import com.ichi2.async.DeckTask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Not in libanki.
+ *
+ * Bulk rewrite of the fields of many notes, and of the ordinals of their cards, for {@link Models#change} and the
+ * field operations. Rows are read in chunks of ids, so that neither the whole result nor a cursor over a table being
+ * updated is held, and written back through one prepared statement.
+ *
+ * The caller runs everything in one transaction: when the progress callback is cancelled, {@link #notes} and
+ * {@link #cards} return false and the caller rolls the transaction back, so that no note is left half converted.
+ */
+class NoteTransformer {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    private final Collection mCol;
+    private final DB mDb;
+    private final DeckTask.ProgressCallback mProgress;
+
+
+    /**
+     * @param progress Receives the share of rows done and is checked for cancellation between chunks, or null
+     */
+    NoteTransformer(Collection col, DeckTask.ProgressCallback progress) {
+        mCol = col;
+        mDb = col.getDb();
+        mProgress = progress;
+    }
+
+
+    /**
+     * Transform the fields of the notes matching a condition.
+     *
+     * @param where SQL condition on the notes table
+     * @param mid The model id to set on the notes, or 0 to keep it
+     * @return false if cancelled
+     */
+    boolean notes(String where, Models.TransformFieldVisitor fn, long mid) {
+        int total = mDb.queryScalar("SELECT count() FROM notes WHERE " + where);
+        long now = Utils.intNow();
+        int usn = mCol.usn();
+        DB.Statement update = mDb.compileStatement(mid != 0 ?
+                "UPDATE notes SET flds = ?, mod = ?, usn = ?, mid = ? WHERE id = ?" :
+                "UPDATE notes SET flds = ?, mod = ?, usn = ? WHERE id = ?");
+        try {
+            long last = Long.MIN_VALUE;
+            int done = 0;
+            List<Long> ids = new ArrayList<>(CHUNK_SIZE);
+            List<String> flds = new ArrayList<>(CHUNK_SIZE);
+            while (true) {
+                if (_cancelled(done, total)) {
+                    return false;
+                }
+                ids.clear();
+                flds.clear();
+                Cursor cur = null;
+                try {
+                    cur = mDb.getDatabase().rawQuery("SELECT id, flds FROM notes WHERE (" + where + ") AND id > "
+                            + last + " ORDER BY id LIMIT " + CHUNK_SIZE, null);
+                    while (cur.moveToNext()) {
+                        ids.add(cur.getLong(0));
+                        flds.add(cur.getString(1));
+                    }
+                } finally {
+                    if (cur != null) {
+                        cur.close();
+                    }
+                }
+                for (int i = 0; i < ids.size(); i++) {
+                    int col = 1;
+                    update.bindString(col++, Utils.joinFields(fn.transform(Utils.splitFields(flds.get(i)))));
+                    update.bindLong(col++, now);
+                    update.bindLong(col++, usn);
+                    if (mid != 0) {
+                        update.bindLong(col++, mid);
+                    }
+                    update.bindLong(col, ids.get(i));
+                    update.execute();
+                }
+                if (!ids.isEmpty()) {
+                    mCol.getMedia().notesChanged(Utils.ids2str(ids));
+                }
+                done += ids.size();
+                if (ids.size() < CHUNK_SIZE) {
+                    return true;
+                }
+                last = ids.get(ids.size() - 1);
+            }
+        } finally {
+            update.close();
+        }
+    }
+
+
+    /**
+     * Move the cards of the notes matching a condition to new templates.
+     *
+     * @param where SQL condition on the cards table
+     * @param map Old ord to new ord; cards whose ord maps to null are removed
+     * @return false if cancelled
+     */
+    boolean cards(String where, Map<Integer, Integer> map) {
+        int total = mDb.queryScalar("SELECT count() FROM cards WHERE " + where);
+        long now = Utils.intNow();
+        int usn = mCol.usn();
+        List<Long> deleted = new ArrayList<>();
+        DB.Statement update = mDb.compileStatement("UPDATE cards SET ord = ?, usn = ?, mod = ? WHERE id = ?");
+        try {
+            long last = Long.MIN_VALUE;
+            int done = 0;
+            List<Long> ids = new ArrayList<>(CHUNK_SIZE);
+            List<Integer> ords = new ArrayList<>(CHUNK_SIZE);
+            while (true) {
+                if (_cancelled(done, total)) {
+                    return false;
+                }
+                ids.clear();
+                ords.clear();
+                Cursor cur = null;
+                try {
+                    cur = mDb.getDatabase().rawQuery("SELECT id, ord FROM cards WHERE (" + where + ") AND id > "
+                            + last + " ORDER BY id LIMIT " + CHUNK_SIZE, null);
+                    while (cur.moveToNext()) {
+                        ids.add(cur.getLong(0));
+                        ords.add(cur.getInt(1));
+                    }
+                } finally {
+                    if (cur != null) {
+                        cur.close();
+                    }
+                }
+                for (int i = 0; i < ids.size(); i++) {
+                    Integer newOrd = map.get(ords.get(i));
+                    if (newOrd == null) {
+                        deleted.add(ids.get(i));
+                        continue;
+                    }
+                    update.bindLong(1, newOrd);
+                    update.bindLong(2, usn);
+                    update.bindLong(3, now);
+                    update.bindLong(4, ids.get(i));
+                    update.execute();
+                }
+                done += ids.size();
+                if (ids.size() < CHUNK_SIZE) {
+                    break;
+                }
+                last = ids.get(ids.size() - 1);
+            }
+        } finally {
+            update.close();
+        }
+        mCol.remCards(Utils.toPrimitive(deleted));
+        return true;
+    }
+
+
+    private boolean _cancelled(int done, int total) {
+        if (mProgress == null) {
+            return false;
+        }
+        if (mProgress.isCancelled()) {
+            return true;
+        }
+        if (mProgress.getResources() != null && total > 0) {
+            mProgress.publishProgress(new DeckTask.TaskData(mProgress.getResources().getString(
+                    R.string.model_change_progress, (int) ((long) done * 100 / total))));
+        }
+        return false;
+    }
+}
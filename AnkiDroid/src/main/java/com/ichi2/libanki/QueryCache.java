@@ -0,0 +1,383 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.util.Pair;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Not in libanki.
+ *
+ * Compiled searches and the name lookups {@link Finder} needs to compile them.
+ *
+ * A compiled search is the (preds, args) pair returned by {@link Finder#_where}, keyed by the query string. It is only
+ * valid for the schema, decks, models, current deck and day it was compiled for; when any of them changes everything
+ * is dropped, along with the deck and model indexes. Searches whose SQL embeds note ids found while compiling (field
+ * and dupe searches) are also tied to the {@link DB#getGeneration()} they were compiled at.
+ *
+ * Names are matched the same way as {@link String#equalsIgnoreCase}.
+ */
+public class QueryCache {
+
+    private static final int CAPACITY = 64;
+
+    private final Collection mCol;
+    private final LinkedHashMap<String, Entry> mQueries;
+
+    // what everything below was built for
+    private long mScm;
+    private int mDecksVersion = -1;
+    private int mModelsVersion = -1;
+    private long mCurDeck;
+    private long mDayCutoff;
+
+    // decks sorted by name, so that the children of a deck are a contiguous range
+    private String[] mDeckNames;
+    private long[] mDeckIds;
+    private Map<String, Long> mDeckByName;
+    private final Map<Long, List<Long>> mDescendants = new HashMap<>();
+
+    private Map<String, List<Long>> mModelsByName;
+    private Map<String, Map<Long, Integer>> mFieldOrds;
+    private Map<String, List<String>> mTemplateLims;
+
+    // number of times everything was dropped
+    private int mEpoch;
+
+    private int mHits;
+    private int mMisses;
+
+
+    public QueryCache(Collection col) {
+        mCol = col;
+        mQueries = new LinkedHashMap<String, Entry>(CAPACITY, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > CAPACITY;
+            }
+        };
+    }
+
+
+    /** @return The compiled search, or null if it has to be compiled again. */
+    public synchronized Pair<String, String[]> get(String query) {
+        _validate();
+        Entry e = mQueries.get(query);
+        if (e != null && e.generation != -1 && e.generation != mCol.getDb().getGeneration()) {
+            mQueries.remove(query);
+            e = null;
+        }
+        if (e == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return new Pair<>(e.preds, e.args == null ? null : e.args.clone());
+    }
+
+
+    /**
+     * @param dataDependent True if the compiled SQL depends on the content of the notes
+     */
+    public synchronized void put(String query, Pair<String, String[]> compiled, boolean dataDependent) {
+        _validate();
+        long generation = dataDependent ? mCol.getDb().getGeneration() : -1;
+        mQueries.put(query, new Entry(compiled.first, compiled.second == null ? null : compiled.second.clone(),
+                generation));
+    }
+
+
+    public synchronized void clear() {
+        mQueries.clear();
+        mDescendants.clear();
+        mDeckNames = null;
+        mDeckIds = null;
+        mDeckByName = null;
+        mModelsByName = null;
+        mFieldOrds = null;
+        mTemplateLims = null;
+    }
+
+
+    /**
+     * @return A value that changes whenever the same search may find different cards, because the decks, models,
+     * day or notes changed.
+     */
+    public synchronized String getStamp() {
+        _validate();
+        return mEpoch + ":" + mCol.getDb().getGeneration();
+    }
+
+
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+
+
+    /**
+     * Decks
+     * ***********************************************************
+     */
+
+    /** @return Id of the deck with that name, or null. Same as {@link Decks#id(String, boolean)} without create. */
+    public synchronized Long deckId(String name) {
+        _validate();
+        _ensureDecks();
+        return mDeckByName.get(fold(name.replace("\"", "")));
+    }
+
+
+    /** @return did followed by the ids of all its children in name order, as {@link Decks#children} */
+    public synchronized List<Long> deckAndChildren(long did) {
+        _validate();
+        _ensureDecks();
+        List<Long> res = mDescendants.get(did);
+        if (res == null) {
+            res = new ArrayList<>();
+            res.add(did);
+            String name = null;
+            for (int i = 0; i < mDeckIds.length; i++) {
+                if (mDeckIds[i] == did) {
+                    name = mDeckNames[i];
+                    break;
+                }
+            }
+            if (name != null) {
+                // every name starting with "name::" sorts between "name::" and "name:;"
+                int from = _insertionPoint(name + "::");
+                int to = _insertionPoint(name + ":;");
+                for (int i = from; i < to; i++) {
+                    res.add(mDeckIds[i]);
+                }
+            }
+            mDescendants.put(did, res);
+        }
+        return new ArrayList<>(res);
+    }
+
+
+    /** @return Ids of the decks whose whole name matches the pattern, in name order. */
+    public synchronized List<Long> deckIds(Pattern pattern) {
+        _validate();
+        _ensureDecks();
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < mDeckNames.length; i++) {
+            if (pattern.matcher(mDeckNames[i]).matches()) {
+                ids.add(mDeckIds[i]);
+            }
+        }
+        return ids;
+    }
+
+
+    private int _insertionPoint(String key) {
+        int i = Arrays.binarySearch(mDeckNames, key);
+        return i >= 0 ? i : -i - 1;
+    }
+
+
+    private void _ensureDecks() {
+        if (mDeckNames != null) {
+            return;
+        }
+        try {
+            final ArrayList<JSONObject> decks = mCol.getDecks().all();
+            final String[] allNames = new String[decks.size()];
+            Integer[] order = new Integer[allNames.length];
+            HashMap<String, Long> byName = new HashMap<>();
+            for (int i = 0; i < allNames.length; i++) {
+                allNames[i] = decks.get(i).getString("name");
+                order[i] = i;
+                String key = fold(allNames[i]);
+                if (!byName.containsKey(key)) {
+                    byName.put(key, decks.get(i).getLong("id"));
+                }
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    return allNames[lhs].compareTo(allNames[rhs]);
+                }
+            });
+            String[] names = new String[order.length];
+            long[] sortedIds = new long[order.length];
+            for (int i = 0; i < order.length; i++) {
+                names[i] = allNames[order[i]];
+                sortedIds[i] = decks.get(order[i]).getLong("id");
+            }
+            mDeckNames = names;
+            mDeckIds = sortedIds;
+            mDeckByName = byName;
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /**
+     * Models
+     * ***********************************************************
+     */
+
+    /** @return Ids of the models with that name. */
+    public synchronized List<Long> modelIds(String name) {
+        _validate();
+        _ensureModels();
+        List<Long> ids = mModelsByName.get(fold(name));
+        return ids == null ? new ArrayList<Long>() : new ArrayList<>(ids);
+    }
+
+
+    /** @return mid to ord of the field with that name, for every model that has one. */
+    public synchronized Map<Long, Integer> fieldOrds(String name) {
+        _validate();
+        _ensureModels();
+        Map<Long, Integer> ords = mFieldOrds.get(fold(name));
+        return ords == null ? new HashMap<Long, Integer>() : new HashMap<>(ords);
+    }
+
+
+    /** @return One condition on the model and card ord for every template with that name. */
+    public synchronized List<String> templateLims(String name) {
+        _validate();
+        _ensureModels();
+        List<String> lims = mTemplateLims.get(fold(name));
+        return lims == null ? new ArrayList<String>() : new ArrayList<>(lims);
+    }
+
+
+    private void _ensureModels() {
+        if (mModelsByName != null) {
+            return;
+        }
+        Map<String, List<Long>> byName = new HashMap<>();
+        Map<String, Map<Long, Integer>> fieldOrds = new HashMap<>();
+        Map<String, List<String>> templateLims = new HashMap<>();
+        try {
+            for (JSONObject m : mCol.getModels().all()) {
+                long mid = m.getLong("id");
+                _list(byName, fold(m.getString("name"))).add(mid);
+                JSONArray flds = m.getJSONArray("flds");
+                for (int i = 0; i < flds.length(); i++) {
+                    JSONObject f = flds.getJSONObject(i);
+                    String key = fold(f.getString("name"));
+                    Map<Long, Integer> ords = fieldOrds.get(key);
+                    if (ords == null) {
+                        ords = new HashMap<>();
+                        fieldOrds.put(key, ords);
+                    }
+                    ords.put(mid, f.getInt("ord"));
+                }
+                JSONArray tmpls = m.getJSONArray("tmpls");
+                for (int i = 0; i < tmpls.length(); i++) {
+                    JSONObject t = tmpls.getJSONObject(i);
+                    String lim;
+                    if (m.getInt("type") == Consts.MODEL_CLOZE) {
+                        // if the user has asked for a cloze card, we want
+                        // to give all ordinals, so we just limit to the
+                        // model instead
+                        lim = "(n.mid = " + mid + ")";
+                    } else {
+                        lim = "(n.mid = " + mid + " and c.ord = " + t.getInt("ord") + ")";
+                    }
+                    _list(templateLims, fold(t.getString("name"))).add(lim);
+                }
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        mModelsByName = byName;
+        mFieldOrds = fieldOrds;
+        mTemplateLims = templateLims;
+    }
+
+
+    private static <T> List<T> _list(Map<String, List<T>> map, String key) {
+        List<T> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            map.put(key, list);
+        }
+        return list;
+    }
+
+
+    /**
+     * Validity
+     * ***********************************************************
+     */
+
+    private void _validate() {
+        long scm = mCol.getScm();
+        int decksVersion = mCol.getDecks().getVersion();
+        int modelsVersion = mCol.getModels().getVersion();
+        long curDeck = mCol.getDecks().selected();
+        long dayCutoff = mCol.getSched().getDayCutoff();
+        if (scm != mScm || decksVersion != mDecksVersion || modelsVersion != mModelsVersion
+                || curDeck != mCurDeck || dayCutoff != mDayCutoff) {
+            clear();
+            mEpoch++;
+            mScm = scm;
+            mDecksVersion = decksVersion;
+            mModelsVersion = modelsVersion;
+            mCurDeck = curDeck;
+            mDayCutoff = dayCutoff;
+        }
+    }
+
+
+    /**
+     * Key under which a name is looked up. Two names have the same key exactly when equalsIgnoreCase would match
+     * them, as that compares the upper and then the lower case of each char.
+     */
+    public static String fold(String name) {
+        char[] chars = name.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+
+
+    private static class Entry {
+        final String preds;
+        final String[] args;
+        final long generation;
+
+        Entry(String preds, String[] args, long generation) {
+            this.preds = preds;
+            this.args = args;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import timber.log.Timber;
+
+/**
+ * Not in libanki.
+ *
+ * The last review of every card that has one: the revlog_last table holds, for each card id, the id (time) of its most
+ * recent revlog entry, indexed by time. Searches on when cards were last reviewed read one row per card from it
+ * instead of every review in the period.
+ *
+ * The table is built the first time it is needed, then kept up to date wherever reviews are added or removed (the
+ * scheduler, undo, sync and imports). It is local to this device: Check Database drops it and it isn't uploaded on
+ * full sync.
+ */
+public class ReviewSummary {
+
+    public static final String TABLE = "revlog_last";
+    private static final int MAX_REFRESHED_CARDS = 1000;
+
+    private final Collection mCol;
+    private final DB mDb;
+    /** Whether the table exists, or null until checked. */
+    private Boolean mInUse;
+
+
+    public ReviewSummary(Collection col) {
+        mCol = col;
+        mDb = col.getDb();
+    }
+
+
+    /** Make sure the table exists and is complete, so that it can be queried. */
+    public void ensure() {
+        if (_inUse()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        SQLiteDatabase db = mDb.getDatabase();
+        db.beginTransaction();
+        try {
+            mDb.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " (cid integer primary key, id integer not null)");
+            mDb.execute("CREATE INDEX IF NOT EXISTS ix_revlog_last_id ON " + TABLE + " (id)");
+            // only aggregates: other columns of the max row aren't reliable before SQLite 3.7.11
+            mDb.execute("INSERT OR REPLACE INTO " + TABLE + " SELECT cid, max(id) FROM revlog GROUP BY cid");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        mInUse = true;
+        Timber.d("ReviewSummary: built in %d ms", System.currentTimeMillis() - start);
+    }
+
+
+    /** A review was just logged. */
+    public void logged(long cid, long id) {
+        if (_inUse()) {
+            mDb.execute("INSERT OR REPLACE INTO " + TABLE + " SELECT ?, ? WHERE NOT EXISTS "
+                    + "(SELECT 1 FROM " + TABLE + " WHERE cid = ? AND id > ?)", new Object[] { cid, id, cid, id });
+        }
+    }
+
+
+    /** Reviews of these cards were added or removed by something else than the scheduler. */
+    public void cardsChanged(long[] cids) {
+        if (!_inUse() || cids.length == 0) {
+            return;
+        }
+        if (cids.length > MAX_REFRESHED_CARDS) {
+            // cheaper to build it again when next needed
+            clear();
+            return;
+        }
+        String scids = Utils.ids2str(cids);
+        mDb.execute("DELETE FROM " + TABLE + " WHERE cid IN " + scids);
+        mDb.execute("INSERT INTO " + TABLE + " SELECT cid, max(id) FROM revlog WHERE cid IN " + scids
+                + " GROUP BY cid");
+    }
+
+
+    /** Drop the whole table, it will be rebuilt when next needed. */
+    public void clear() {
+        mDb.execute("DROP TABLE IF EXISTS " + TABLE);
+        mInUse = false;
+        // compiled searches may refer to the table
+        mCol.getQueryCache().clear();
+    }
+
+
+    private boolean _inUse() {
+        if (mInUse == null) {
+            mInUse = mDb.queryScalar("SELECT count() FROM sqlite_master WHERE type = 'table' AND name = '"
+                    + TABLE + "'") > 0;
+        }
+        return mInUse;
+    }
+}
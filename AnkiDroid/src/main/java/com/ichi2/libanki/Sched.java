@@ -1137,8 +1137,11 @@ public class Sched {
 
     private void log(long id, int usn, int ease, int ivl, int lastIvl, int factor, int timeTaken, int type) {
         try {
+            long rid = Utils.intNow(1000);
             mCol.getDb().execute("INSERT INTO revlog VALUES (?,?,?,?,?,?,?,?,?)",
-                    new Object[]{Utils.now() * 1000, id, usn, ease, ivl, lastIvl, factor, timeTaken, type});
+                    new Object[]{rid, id, usn, ease, ivl, lastIvl, factor, timeTaken, type});
+            mCol.getReviewSummary().logged(id, rid);
+            mCol._reviewLogged(rid);
         } catch (SQLiteConstraintException e) {
             try {
                 Thread.sleep(10);
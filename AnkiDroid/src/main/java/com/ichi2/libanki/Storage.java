@@ -270,6 +270,8 @@ public class Storage {
     private static int _createDB(DB db) {
         db.execute("PRAGMA page_size = 4096");
         db.execute("PRAGMA legacy_file_format = 0");
+        // free pages are released by Maintenance rather than by a full VACUUM
+        new Maintenance(db).enableIncremental();
         db.execute("VACUUM");
         _addSchema(db);
         _updateIndices(db);
@@ -54,6 +54,8 @@ public class Tags {
 
     private Collection mCol;
     private TreeMap<String, Integer> mTags = new TreeMap<>();
+    /** Raw registry from the col table, parsed on first use. Null once parsed. */
+    private String mRaw;
     private boolean mChanged;
 
 
@@ -68,24 +70,37 @@ public class Tags {
 
 
     public void load(String json) {
-        try {
-            JSONObject tags = new JSONObject(json);
-            Iterator<?> i = tags.keys();
-            while (i.hasNext()) {
-                String t = (String) i.next();
-                mTags.put(t, tags.getInt(t));
+        // Most screens never look at the tag registry, so parsing is deferred until it's needed
+        mRaw = json;
+        mTags = null;
+        mChanged = false;
+    }
+
+
+    /** The tag registry, parsing it from the loaded JSON if that hasn't happened yet. */
+    private TreeMap<String, Integer> _tags() {
+        if (mTags == null) {
+            mTags = new TreeMap<>();
+            try {
+                JSONObject tags = new JSONObject(mRaw);
+                Iterator<?> i = tags.keys();
+                while (i.hasNext()) {
+                    String t = (String) i.next();
+                    mTags.put(t, tags.getInt(t));
+                }
+            } catch (JSONException e) {
+                throw new RuntimeException(e);
             }
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
+            mRaw = null;
         }
-        mChanged = false;
+        return mTags;
     }
 
 
     public void flush() {
         if (mChanged) {
             JSONObject tags = new JSONObject();
-            for (Map.Entry<String, Integer> t : mTags.entrySet()) {
+            for (Map.Entry<String, Integer> t : _tags().entrySet()) {
                 try {
                     tags.put(t.getKey(), t.getValue());
                 } catch (JSONException e) {
@@ -115,8 +130,8 @@ public class Tags {
     public void register(Iterable<String> tags, Integer usn) {
         //boolean found = false;
         for (String t : tags) {
-            if (!mTags.containsKey(t)) {
-                mTags.put(t, usn == null ? mCol.usn() : usn);
+            if (!_tags().containsKey(t)) {
+                _tags().put(t, usn == null ? mCol.usn() : usn);
                 mChanged = true;
             }
         }
@@ -128,7 +143,7 @@ public class Tags {
 
     public List<String> all() {
         List<String> list = new ArrayList<>();
-        list.addAll(mTags.keySet());
+        list.addAll(_tags().keySet());
         return list;
     }
 
@@ -146,7 +161,7 @@ public class Tags {
             lim = " WHERE id IN " + Utils.ids2str(nids);
         } else {
             lim = "";
-            mTags.clear();
+            _tags().clear();
             mChanged = true;
         }
         List<String> tags = new ArrayList<>();
@@ -170,7 +185,7 @@ public class Tags {
 
 
     public Set<Map.Entry<String, Integer>> allItems() {
-        return mTags.entrySet();
+        return _tags().entrySet();
     }
 
 
@@ -354,7 +369,7 @@ public class Tags {
         TreeSet<String> strippedTags = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
         for (String t : tagList) {
             String s = sCanonify.matcher(t).replaceAll("");
-            for (String existingTag : mTags.keySet()) {
+            for (String existingTag : _tags().keySet()) {
                 if (s.equalsIgnoreCase(existingTag)) {
                     s = existingTag;
                 }
@@ -382,8 +397,8 @@ public class Tags {
      */
 
     public void beforeUpload() {
-        for (String k : mTags.keySet()) {
-            mTags.put(k, 0);
+        for (String k : _tags().keySet()) {
+            _tags().put(k, 0);
         }
         save();
     }
@@ -397,6 +412,6 @@ public class Tags {
 
     /** Add a tag to the collection. We use this method instead of exposing mTags publicly.*/
     public void add(String key, Integer value) {
-        mTags.put(key, value);
+        _tags().put(key, value);
     }
 }
@@ -0,0 +1,161 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+
+/**
+ * Not in libanki.
+ *
+ * The "req" cache of a standard model compiled into bitmasks over the model's fields, so that the available templates
+ * of a note can be computed from a single pass over its joined fields without touching the model JSON.
+ *
+ * Bit i of a mask stands for field i. Models with more than 64 fields can't be compiled; {@link #compile} returns null
+ * for them and for cloze models, and callers fall back to {@link Models#availOrds}.
+ */
+public class TemplateRequirements {
+
+    public static final int MAX_FIELDS = 64;
+
+    private static final int TYPE_NONE = 0;
+    private static final int TYPE_ALL = 1;
+    private static final int TYPE_ANY = 2;
+
+    /** The req array this was compiled from, to detect when the model was saved again. */
+    private final JSONArray mSource;
+    private final int[] mOrds;
+    private final int[] mTypes;
+    private final long[] mMasks;
+
+
+    private TemplateRequirements(JSONArray source, int[] ords, int[] types, long[] masks) {
+        mSource = source;
+        mOrds = ords;
+        mTypes = types;
+        mMasks = masks;
+    }
+
+
+    /**
+     * @return the compiled requirements of a standard model, or null if the model can't be represented with bitmasks
+     */
+    public static TemplateRequirements compile(JSONObject m) {
+        try {
+            if (m.getInt("type") != Consts.MODEL_STD || m.getJSONArray("flds").length() > MAX_FIELDS) {
+                return null;
+            }
+            JSONArray reqArray = m.optJSONArray("req");
+            if (reqArray == null) {
+                return null;
+            }
+            int n = reqArray.length();
+            int[] ords = new int[n];
+            int[] types = new int[n];
+            long[] masks = new long[n];
+            for (int i = 0; i < n; i++) {
+                JSONArray sr = reqArray.getJSONArray(i);
+                ords[i] = sr.getInt(0);
+                String type = sr.getString(1);
+                if (type.equals("none")) {
+                    types[i] = TYPE_NONE;
+                } else if (type.equals("all")) {
+                    types[i] = TYPE_ALL;
+                } else {
+                    types[i] = TYPE_ANY;
+                }
+                JSONArray req = sr.getJSONArray(2);
+                long mask = 0;
+                for (int j = 0; j < req.length(); j++) {
+                    mask |= 1L << req.getInt(j);
+                }
+                masks[i] = mask;
+            }
+            return new TemplateRequirements(reqArray, ords, types, masks);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /** True if this was compiled from the current requirements of the model. */
+    public boolean isCurrent(JSONObject m) {
+        return m.optJSONArray("req") == mSource;
+    }
+
+
+    /**
+     * @param flds the joined fields of a note
+     * @return a mask with bit i set if field i is not empty
+     */
+    public static long nonEmptyMask(String flds) {
+        long mask = 0;
+        int field = 0;
+        int start = 0;
+        int len = flds.length();
+        for (int i = 0; i <= len; i++) {
+            if (i == len || flds.charAt(i) == '\u001f') {
+                if (i > start && field < MAX_FIELDS) {
+                    mask |= 1L << field;
+                }
+                field++;
+                start = i + 1;
+            }
+        }
+        return mask;
+    }
+
+
+    /** True if the template with the given ord generates a card for a note with these non-empty fields. */
+    public boolean isAvailable(int ord, long nonEmpty) {
+        for (int i = 0; i < mOrds.length; i++) {
+            if (mOrds[i] == ord) {
+                return _satisfied(i, nonEmpty);
+            }
+        }
+        return false;
+    }
+
+
+    /** Same result and order as {@link Models#availOrds} for a standard model. */
+    public ArrayList<Integer> availOrds(long nonEmpty) {
+        ArrayList<Integer> avail = new ArrayList<>();
+        for (int i = 0; i < mOrds.length; i++) {
+            if (_satisfied(i, nonEmpty)) {
+                avail.add(mOrds[i]);
+            }
+        }
+        return avail;
+    }
+
+
+    private boolean _satisfied(int i, long nonEmpty) {
+        switch (mTypes[i]) {
+            case TYPE_NONE:
+                // unsatisfiable template
+                return false;
+            case TYPE_ALL:
+                // AND requirement
+                return (nonEmpty & mMasks[i]) == mMasks[i];
+            default:
+                // OR requirement
+                return (nonEmpty & mMasks[i]) != 0;
+        }
+    }
+}
@@ -0,0 +1,616 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteTransactionListener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Not in libanki.
+ *
+ * Undo history for the reviewer actions (answer, bury, suspend, delete). Instead of keeping Card and Note objects
+ * around, each step only records the columns that the action is going to change, encoded as variable length integers
+ * into a single byte array. This keeps a step for a review at around 60 bytes, so several hundred steps fit into a
+ * fixed memory budget.
+ *
+ * The journal is mirrored to an append-only file next to the collection so that the history survives the process
+ * being killed in the middle of a review session. The file is tied to the schema and modification times of the
+ * collection, the latter recorded each time the collection is saved, and is discarded if they don't match anymore:
+ * a collection changed by anything else, such as a full sync, may no longer have the rows the steps would restore.
+ *
+ * Actions run in a transaction begun with the journal as its listener ({@link Collection#beginUndoableTransaction})
+ * only change the journal once it commits: their steps are kept aside until then, and steps undone in a transaction
+ * that rolls back are put back.
+ */
+public class UndoJournal implements SQLiteTransactionListener {
+
+    /** Maximum number of undo steps kept. */
+    public static final int MAX_STEPS = 500;
+    /** Maximum number of bytes used by the encoded steps. The oldest steps are dropped first. */
+    public static final int MEMORY_BUDGET = 128 * 1024;
+
+    private static final int FILE_MAGIC = 0x414e5544; // "ANUD"
+    private static final int FILE_VERSION = 3;
+
+    // file records
+    private static final byte REC_PUSH = 1;
+    private static final byte REC_POP = 2;
+    private static final byte REC_DROP_FIRST = 3;
+    private static final byte REC_MOD = 4;
+
+    private static final String NOTE_COLUMNS = "id, guid, mid, mod, usn, tags, flds, sfld, csum, flags, data";
+    private static final String CARD_COLUMNS = "id, nid, did, ord, mod, usn, type, queue, due, ivl, factor, reps, "
+            + "lapses, left, odue, odid, flags, data";
+
+    private final LinkedList<byte[]> mSteps = new LinkedList<>();
+    private int mSize;
+    private File mFile;
+    private long mScm;
+    private long mMod;
+    /** A review whose revlog entry isn't written yet. */
+    private Step mReview;
+    /** Whether a transaction with this journal as its listener is in progress. */
+    private boolean mInTransaction;
+    /** Steps recorded during that transaction. */
+    private final List<byte[]> mPending = new ArrayList<>();
+    /** Steps undone during that transaction, most recent first. */
+    private final List<byte[]> mUndone = new ArrayList<>();
+
+
+    /**
+     * @param file The file used to persist the journal, or null to keep it in memory only
+     * @param scm The schema modification time of the collection the journal belongs to
+     * @param mod The modification time of the collection
+     */
+    public UndoJournal(File file, long scm, long mod) {
+        mFile = file;
+        mScm = scm;
+        mMod = mod;
+        _loadFile();
+    }
+
+
+    /**
+     * Step encoding ***********************************************************************************************
+     */
+
+    /**
+     * A review. Only the scheduling columns of the card, whether the note was a leech and the id of the revlog entry
+     * are recorded; the step is complete once {@link #reviewLogged} gives the latter.
+     */
+    public void markReview(Card card, boolean wasLeech) {
+        try {
+            Step s = new Step(Collection.DismissType.REVIEW, card.getId());
+            s.out.writeBoolean(wasLeech);
+            s.out.writeLong(card.getNid());
+            _writeCardSched(s.out, card);
+            mReview = s;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /** The revlog entry of the review last marked was written with the given id. */
+    public void reviewLogged(long revlogId) {
+        if (mReview == null) {
+            return;
+        }
+        try {
+            _writeVarLong(mReview.out, revlogId);
+            _record(mReview.toBytes());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            mReview = null;
+        }
+    }
+
+
+    /** Bury or suspend: record the scheduling columns of the affected cards. */
+    public void markCards(Collection.DismissType type, List<Card> cards, long returnId) {
+        try {
+            Step s = new Step(type, returnId);
+            _writeVarLong(s.out, cards.size());
+            for (Card c : cards) {
+                _writeCardSched(s.out, c);
+            }
+            _record(s.toBytes());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /** Note deletion: the whole note row and all its card rows have to be kept so they can be reinserted. */
+    public void markDeleteNote(DB db, long nid, long returnId) {
+        Cursor cur = null;
+        try {
+            Step s = new Step(Collection.DismissType.DELETE_NOTE, returnId);
+            cur = db.getDatabase().rawQuery("SELECT " + NOTE_COLUMNS + " FROM notes WHERE id = " + nid, null);
+            if (!cur.moveToFirst()) {
+                throw new RuntimeException("UndoJournal: no note with id " + nid);
+            }
+            _writeVarLong(s.out, cur.getLong(0));
+            s.out.writeUTF(cur.getString(1));
+            _writeVarLong(s.out, cur.getLong(2));
+            _writeVarLong(s.out, cur.getLong(3));
+            _writeVarLong(s.out, cur.getLong(4));
+            _writeString(s.out, cur.getString(5));
+            _writeString(s.out, cur.getString(6));
+            _writeString(s.out, cur.getString(7));
+            _writeVarLong(s.out, cur.getLong(8));
+            _writeVarLong(s.out, cur.getLong(9));
+            _writeString(s.out, cur.getString(10));
+            cur.close();
+            cur = db.getDatabase().rawQuery("SELECT " + CARD_COLUMNS + " FROM cards WHERE nid = " + nid, null);
+            _writeVarLong(s.out, cur.getCount());
+            while (cur.moveToNext()) {
+                for (int i = 0; i < 16; i++) {
+                    _writeVarLong(s.out, cur.getLong(i));
+                }
+                _writeVarLong(s.out, cur.getLong(16));
+                _writeString(s.out, cur.getString(17));
+            }
+            _record(s.toBytes());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (cur != null && !cur.isClosed()) {
+                cur.close();
+            }
+        }
+    }
+
+
+    /**
+     * Undoing ******************************************************************************************************
+     */
+
+    public boolean isEmpty() {
+        return mSteps.isEmpty();
+    }
+
+
+    public int size() {
+        return mSteps.size();
+    }
+
+
+    /** Type of the most recent step, or null if there is nothing to undo. */
+    public Collection.DismissType lastType() {
+        if (mSteps.isEmpty()) {
+            return null;
+        }
+        return Collection.DismissType.values()[mSteps.getLast()[0]];
+    }
+
+
+    /**
+     * Revert the most recent step in the database.
+     *
+     * @return The decoded step, so the caller can fix up the remaining state (revlog, leech tag, counts).
+     */
+    public UndoStep undo(DB db) {
+        byte[] data = mSteps.removeLast();
+        mSize -= data.length;
+        if (mInTransaction) {
+            mUndone.add(data);
+        } else {
+            _appendRecord(REC_POP, null, 0);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            UndoStep step = new UndoStep();
+            step.type = Collection.DismissType.values()[in.readByte()];
+            step.returnId = _readVarLong(in);
+            switch (step.type) {
+                case REVIEW:
+                    step.wasLeech = in.readBoolean();
+                    step.nid = in.readLong();
+                    _restoreCardSched(db, in);
+                    step.revlogId = _readVarLong(in);
+                    break;
+                case BURY_CARD:
+                case BURY_NOTE:
+                case SUSPEND_CARD:
+                case SUSPEND_NOTE:
+                    long n = _readVarLong(in);
+                    for (long i = 0; i < n; i++) {
+                        _restoreCardSched(db, in);
+                    }
+                    break;
+                case DELETE_NOTE:
+                    _restoreNote(db, in, step);
+                    break;
+            }
+            return step;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    public void clear() {
+        mSteps.clear();
+        mSize = 0;
+        mReview = null;
+        mPending.clear();
+        mUndone.clear();
+        if (mFile != null && mFile.exists() && !mFile.delete()) {
+            Timber.w("UndoJournal: could not delete %s", mFile);
+        }
+    }
+
+
+    /** The schema of the collection changed, so any persisted steps are no longer valid. */
+    public void setScm(long scm) {
+        if (scm != mScm) {
+            mScm = scm;
+            _rewriteFile();
+        }
+    }
+
+
+    /** The collection was saved with the given modification time, which the persisted steps now belong to. */
+    public void setMod(long mod) {
+        if (mod != mMod) {
+            mMod = mod;
+            _appendRecord(REC_MOD, null, mod);
+        }
+    }
+
+
+    @Override
+    public void onBegin() {
+        mInTransaction = true;
+        mPending.clear();
+        mUndone.clear();
+    }
+
+
+    @Override
+    public void onCommit() {
+        mInTransaction = false;
+        for (int i = 0; i < mUndone.size(); i++) {
+            _appendRecord(REC_POP, null, 0);
+        }
+        mUndone.clear();
+        for (byte[] data : mPending) {
+            _push(data);
+        }
+        mPending.clear();
+    }
+
+
+    @Override
+    public void onRollback() {
+        mInTransaction = false;
+        mReview = null;
+        mPending.clear();
+        // put back what was undone, oldest first
+        for (int i = mUndone.size() - 1; i >= 0; i--) {
+            byte[] data = mUndone.get(i);
+            mSteps.add(data);
+            mSize += data.length;
+        }
+        mUndone.clear();
+    }
+
+
+    /** A decoded undo step. Only the fields relevant to the type are set. */
+    public static class UndoStep {
+        public Collection.DismissType type;
+        /** The card id that should be shown after the undo, or 0 */
+        public long returnId;
+        public boolean wasLeech;
+        public long nid;
+        /** Id of the revlog entry of a review */
+        public long revlogId;
+        /** Ids of the rows that were reinserted by undoing a note deletion */
+        public List<Long> restoredIds = new ArrayList<>();
+    }
+
+
+    private static class Step {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        Step(Collection.DismissType type, long returnId) throws IOException {
+            out.writeByte(type.ordinal());
+            _writeVarLong(out, returnId);
+        }
+
+        byte[] toBytes() throws IOException {
+            out.flush();
+            return bytes.toByteArray();
+        }
+    }
+
+
+    /** Push a step, or keep it until the transaction in progress commits. */
+    private void _record(byte[] data) {
+        if (mInTransaction) {
+            mPending.add(data);
+        } else {
+            _push(data);
+        }
+    }
+
+
+    private void _push(byte[] data) {
+        mSteps.add(data);
+        mSize += data.length;
+        _appendRecord(REC_PUSH, data, 0);
+        while (mSteps.size() > MAX_STEPS || (mSize > MEMORY_BUDGET && mSteps.size() > 1)) {
+            mSize -= mSteps.removeFirst().length;
+            _appendRecord(REC_DROP_FIRST, null, 0);
+        }
+    }
+
+
+    private void _writeCardSched(DataOutputStream out, Card c) throws IOException {
+        _writeVarLong(out, c.getId());
+        _writeVarLong(out, c.getDid());
+        _writeVarLong(out, c.getMod());
+        _writeVarLong(out, c.getUsn());
+        _writeVarLong(out, c.getType());
+        _writeVarLong(out, c.getQueue());
+        _writeVarLong(out, c.getDue());
+        _writeVarLong(out, c.getIvl());
+        _writeVarLong(out, c.getFactor());
+        _writeVarLong(out, c.getReps());
+        _writeVarLong(out, c.getLapses());
+        _writeVarLong(out, c.getLeft());
+        _writeVarLong(out, c.getODue());
+        _writeVarLong(out, c.getODid());
+    }
+
+
+    private void _restoreCardSched(DB db, DataInputStream in) throws IOException {
+        Object[] values = new Object[14];
+        for (int i = 0; i < 14; i++) {
+            values[i] = _readVarLong(in);
+        }
+        // id is first in the encoding but last in the statement
+        Object[] args = new Object[14];
+        System.arraycopy(values, 1, args, 0, 13);
+        args[13] = values[0];
+        db.execute("UPDATE cards SET did = ?, mod = ?, usn = ?, type = ?, queue = ?, due = ?, ivl = ?, factor = ?, "
+                + "reps = ?, lapses = ?, left = ?, odue = ?, odid = ? WHERE id = ?", args);
+    }
+
+
+    private void _restoreNote(DB db, DataInputStream in, UndoStep step) throws IOException {
+        long nid = _readVarLong(in);
+        db.execute("INSERT OR REPLACE INTO notes (" + NOTE_COLUMNS + ") VALUES (?,?,?,?,?,?,?,?,?,?,?)",
+                new Object[] { nid, in.readUTF(), _readVarLong(in), _readVarLong(in), _readVarLong(in),
+                        _readString(in), _readString(in), _readString(in), _readVarLong(in), _readVarLong(in),
+                        _readString(in) });
+        step.nid = nid;
+        step.restoredIds.add(nid);
+        long n = _readVarLong(in);
+        for (long i = 0; i < n; i++) {
+            Object[] row = new Object[18];
+            for (int j = 0; j < 17; j++) {
+                row[j] = _readVarLong(in);
+            }
+            row[17] = _readString(in);
+            db.execute("INSERT OR REPLACE INTO cards (" + CARD_COLUMNS + ") VALUES "
+                    + "(?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)", row);
+            step.restoredIds.add((Long) row[0]);
+        }
+    }
+
+
+    /**
+     * Primitive encoding *******************************************************************************************
+     */
+
+    /** Zigzag variable length encoding, 7 bits per byte. Small and negative values take a single byte. */
+    private static void _writeVarLong(DataOutputStream out, long value) throws IOException {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+
+    private static long _readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+
+    /** Strings may exceed the 64k limit of writeUTF (note fields), so they're length prefixed UTF-8. */
+    private static void _writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = (s == null ? "" : s).getBytes("UTF-8");
+        _writeVarLong(out, b.length);
+        out.write(b);
+    }
+
+
+    private static String _readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[(int) _readVarLong(in)];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+
+    /**
+     * Persistence **************************************************************************************************
+     */
+
+    private void _loadFile() {
+        if (mFile == null || !mFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION || in.readLong() != mScm) {
+                Timber.i("UndoJournal: discarding journal from a different collection schema");
+                in.close();
+                in = null;
+                clear();
+                return;
+            }
+            long mod = in.readLong();
+            try {
+                while (true) {
+                    byte rec = in.readByte();
+                    if (rec == REC_PUSH) {
+                        byte[] data = new byte[in.readInt()];
+                        in.readFully(data);
+                        mSteps.add(data);
+                        mSize += data.length;
+                    } else if (rec == REC_POP && !mSteps.isEmpty()) {
+                        mSize -= mSteps.removeLast().length;
+                    } else if (rec == REC_DROP_FIRST && !mSteps.isEmpty()) {
+                        mSize -= mSteps.removeFirst().length;
+                    } else if (rec == REC_MOD) {
+                        mod = in.readLong();
+                    }
+                }
+            } catch (EOFException e) {
+                // end of journal; a truncated last record is simply ignored
+            }
+            if (mod != mMod) {
+                Timber.i("UndoJournal: discarding journal, the collection was modified since");
+                in.close();
+                in = null;
+                clear();
+                return;
+            }
+            Timber.d("UndoJournal: restored %d steps", mSteps.size());
+        } catch (IOException e) {
+            Timber.w(e, "UndoJournal: could not read %s", mFile);
+            mSteps.clear();
+            mSize = 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        // start from a compact file
+        _rewriteFile();
+    }
+
+
+    private void _appendRecord(byte rec, byte[] data, long mod) {
+        if (mFile == null) {
+            return;
+        }
+        // the file only grows by appending; compact it once it's well over the budget
+        if (!mFile.exists() || mFile.length() > 2 * MEMORY_BUDGET) {
+            _rewriteFile();
+            return;
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+            _writeRecord(out, rec, data);
+            if (rec == REC_MOD) {
+                out.writeLong(mod);
+            }
+        } catch (IOException e) {
+            _disablePersistence(e);
+        } finally {
+            _closeQuietly(out);
+        }
+    }
+
+
+    private void _rewriteFile() {
+        if (mFile == null) {
+            return;
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, false)));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeLong(mScm);
+            out.writeLong(mMod);
+            for (byte[] data : mSteps) {
+                _writeRecord(out, REC_PUSH, data);
+            }
+        } catch (IOException e) {
+            _disablePersistence(e);
+        } finally {
+            _closeQuietly(out);
+        }
+    }
+
+
+    private static void _writeRecord(DataOutputStream out, byte rec, byte[] data) throws IOException {
+        out.writeByte(rec);
+        if (data != null) {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+
+    private void _disablePersistence(IOException e) {
+        // keep working in memory if we can't write the journal
+        Timber.w(e, "UndoJournal: failed to write %s - disabling persistence", mFile);
+        mFile = null;
+    }
+
+
+    private static void _closeQuietly(DataOutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Timber.w(e, "UndoJournal: error closing journal file");
+            }
+        }
+    }
+}
@@ -56,7 +56,6 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
 import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -515,17 +514,8 @@ public class Utils {
                 Timber.e(e, "Utils.checksum :: UnsupportedEncodingException");
                 e.printStackTrace();
             }
-            BigInteger biginteger = new BigInteger(1, digest);
-            result = biginteger.toString(16);
-
-            // pad with zeros to length of 40 This method used to pad
-            // to the length of 32. As it turns out, sha1 has a digest
-            // size of 160 bits, leading to a hex digest size of 40,
-            // not 32.
-            if (result.length() < 40) {
-                String zeroes = "0000000000000000000000000000000000000000";
-                result = zeroes.substring(0, zeroes.length() - result.length()) + result;
-            }
+            // sha1 has a digest size of 160 bits, leading to a hex digest size of 40
+            result = MediaHasher.hex(digest);
         }
         return result;
     }
@@ -542,37 +532,18 @@ public class Utils {
     /**
      * Generate the SHA1 checksum of a file.
      * @param file The file to be checked
-     * @return A string of length 32 containing the hexadecimal representation of the SHA1 checksum of the file's contents.
+     * @return A string of length 40 containing the hexadecimal representation of the SHA1 checksum of the file's contents.
      */
     public static String fileChecksum(String file) {
-        byte[] buffer = new byte[1024];
-        byte[] digest = null;
         try {
-            InputStream fis = new FileInputStream(file);
-            MessageDigest md = MessageDigest.getInstance("SHA1");
-            int numRead = 0;
-            do {
-                numRead = fis.read(buffer);
-                if (numRead > 0) {
-                    md.update(buffer, 0, numRead);
-                }
-            } while (numRead != -1);
-            fis.close();
-            digest = md.digest();
+            return MediaHasher.checksum(new File(file));
         } catch (FileNotFoundException e) {
             Timber.e(e, "Utils.fileChecksum: File not found.");
-        } catch (NoSuchAlgorithmException e) {
-            Timber.e(e, "Utils.fileChecksum: No such algorithm.");
+            throw new RuntimeException(e);
         } catch (IOException e) {
             Timber.e(e, "Utils.fileChecksum: IO exception.");
+            throw new RuntimeException(e);
         }
-        BigInteger biginteger = new BigInteger(1, digest);
-        String result = biginteger.toString(16);
-        // pad with zeros to length of 40 - SHA1 is 160bit long
-        if (result.length() < 40) {
-            result = "0000000000000000000000000000000000000000".substring(0, 40 - result.length()) + result;
-        }
-        return result;
     }
 
 
@@ -24,6 +24,7 @@ import com.ichi2.anki.R;
 import com.ichi2.async.DeckTask;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Media;
+import com.ichi2.libanki.MediaHasher;
 import com.ichi2.libanki.Storage;
 import com.ichi2.libanki.Utils;
 
@@ -36,6 +37,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -76,6 +78,9 @@ public class Anki2Importer extends Importer {
     private int mAdded;
     private int mUpdated;
 
+    /** Source media name -> the destination file with the same contents, once known. */
+    private Map<String, String> mMediaNames;
+
     public Anki2Importer(Collection col, String file) {
         super(col, file);
         mNeedMapper = false;
@@ -109,6 +114,7 @@ public class Anki2Importer extends Importer {
 
     private void _import() {
         mDecks = new HashMap<>();
+        mMediaNames = new HashMap<>();
         try {
             // Use transactions for performance and rollbacks in case of error
             mDst.getDb().getDatabase().beginTransaction();
@@ -267,6 +273,7 @@ public class Anki2Importer extends Importer {
         mDst.getDb().executeMany("insert or replace into notes values (?,?,?,?,?,?,?,?,?,?,?)", update);
         long[] das = Utils.arrayList2array(dirty);
         mDst.updateFieldCache(das);
+        mDst.getMedia().notesChanged(Utils.ids2str(das));
         mDst.getTags().registerNotes(das);
     }
 
@@ -567,6 +574,11 @@ public class Anki2Importer extends Importer {
         // apply
         mDst.getDb().executeMany("insert or ignore into cards values (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)", cards);
         mDst.getDb().executeMany("insert or ignore into revlog values (?,?,?,?,?,?,?,?,?)", revlog);
+        long[] revlogCids = new long[revlog.size()];
+        for (int i = 0; i < revlogCids.length; i++) {
+            revlogCids[i] = (Long) revlog.get(i)[1];
+        }
+        mDst.getReviewSummary().cardsChanged(revlogCids);
         mLog.add(getRes().getString(R.string.import_complete_count, cnt));
     }
 
@@ -630,10 +642,8 @@ public class Anki2Importer extends Importer {
 
     private void _writeDstMedia(String fname, BufferedInputStream data) {
         try {
-            String path = new File(mDst.getMedia().dir(), Utils.nfcNormalized(fname)).getAbsolutePath();
-            Utils.writeToFile(data, path);
             // Mark file addition to media db (see note in Media.java)
-            mDst.getMedia().markFileAdd(fname);
+            mDst.getMedia().writeFile(fname, data);
         } catch (IOException e) {
             // the user likely used subdirectories
             Timber.e(e, "Error copying file %s.", fname);
@@ -649,33 +659,13 @@ public class Anki2Importer extends Importer {
             int fnameIdx = Media.indexOfFname(p);
             while (m.find()) {
                 String fname = m.group(fnameIdx);
-                BufferedInputStream srcData = _srcMediaData(fname);
-                BufferedInputStream dstData = _dstMediaData(fname);
-                if (srcData == null) {
-                    // file was not in source, ignore
-                    m.appendReplacement(sb, m.group(0));
-                    continue;
-                }
-                // if model-local file exists from a previous import, use that
-                String[] split = Utils.splitFilename(fname);
-                String name = split[0];
-                String ext = split[1];
-
-                String lname = String.format(Locale.US, "%s_%s%s", name, mid, ext);
-                if (mDst.getMedia().have(lname)) {
-                    m.appendReplacement(sb, m.group(0).replace(fname, lname));
-                    continue;
-                } else if (dstData == null || compareMedia(srcData, dstData)) { // if missing or the same, pass unmodified
-                    // need to copy?
-                    if (dstData == null) {
-                        _writeDstMedia(fname, srcData);
-                    }
-                    m.appendReplacement(sb, m.group(0));
-                    continue;
+                String dname = _dstMediaName(mid, fname);
+                if (dname == null || dname.equals(fname)) {
+                    // file was not in source, or is used under the same name
+                    m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0)));
+                } else {
+                    m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0).replace(fname, dname)));
                 }
-                // exists but does not match, so we need to dedupe
-                _writeDstMedia(lname, srcData);
-                m.appendReplacement(sb, m.group(0).replace(fname, lname));
             }
             m.appendTail(sb);
             fields = sb.toString();
@@ -684,6 +674,79 @@ public class Anki2Importer extends Importer {
     }
 
 
+    /**
+     * The name under which a source media file is used in the destination, copying it there if needed. Files whose
+     * contents the destination has already, under any name, aren't copied again.
+     *
+     * @return The name, or null if the source doesn't have the file
+     */
+    private String _dstMediaName(long mid, String fname) {
+        if (mMediaNames.containsKey(fname)) {
+            return mMediaNames.get(fname);
+        }
+        BufferedInputStream srcData = _srcMediaData(fname);
+        if (srcData == null) {
+            // file was not in source, ignore
+            return null;
+        }
+        String csum;
+        try {
+            csum = MediaHasher.checksum(srcData);
+        } catch (IOException e) {
+            Timber.e(e, "Error reading media file %s.", fname);
+            return null;
+        } finally {
+            _close(srcData);
+        }
+        if (!fname.startsWith("_")) {
+            String existing = mDst.getMedia().fileWithChecksum(csum);
+            if (existing != null) {
+                mMediaNames.put(fname, existing);
+                return existing;
+            }
+        }
+        // if model-local file exists from a previous import, use that
+        String[] split = Utils.splitFilename(fname);
+        String name = split[0];
+        String ext = split[1];
+
+        String lname = String.format(Locale.US, "%s_%s%s", name, mid, ext);
+        if (mDst.getMedia().have(lname)) {
+            return lname;
+        }
+        srcData = _srcMediaData(fname);
+        BufferedInputStream dstData = _dstMediaData(fname);
+        try {
+            if (dstData == null || compareMedia(srcData, dstData)) { // if missing or the same, pass unmodified
+                // need to copy?
+                if (dstData == null) {
+                    _writeDstMedia(fname, srcData);
+                }
+                mMediaNames.put(fname, fname);
+                return fname;
+            }
+            // exists but does not match, so we need to dedupe
+            _writeDstMedia(lname, srcData);
+            mMediaNames.put(fname, lname);
+            return lname;
+        } finally {
+            _close(srcData);
+            _close(dstData);
+        }
+    }
+
+
+    private void _close(InputStream stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // nothing left to read
+            }
+        }
+    }
+
+
     /**
      * Post-import cleanup
      * ***********************************************************
@@ -51,6 +51,17 @@ public class FullSyncer extends HttpSyncer {
 
     public FullSyncer(Collection col, String hkey, Connection con) {
         super(hkey, con);
+        _init(col, hkey, con);
+    }
+
+
+    public FullSyncer(Collection col, String hkey, Connection con, HttpSyncSession session) {
+        super(hkey, con, session);
+        _init(col, hkey, con);
+    }
+
+
+    private void _init(Collection col, String hkey, Connection con) {
         mPostVars = new HashMap<>();
         mPostVars.put("k", hkey);
         mPostVars.put("v",
@@ -75,6 +86,15 @@ public class FullSyncer extends HttpSyncer {
 
     @Override
     public Object[] download() throws UnknownHttpResponseException {
+        try {
+            return _download();
+        } finally {
+            close();
+        }
+    }
+
+
+    private Object[] _download() throws UnknownHttpResponseException {
         InputStream cont;
         try {
             HttpResponse ret = super.req("download");
@@ -142,6 +162,15 @@ public class FullSyncer extends HttpSyncer {
 
     @Override
     public Object[] upload() throws UnknownHttpResponseException {
+        try {
+            return _upload();
+        } finally {
+            close();
+        }
+    }
+
+
+    private Object[] _upload() throws UnknownHttpResponseException {
         // make sure it's ok before we try to upload
         mCon.publishProgress(R.string.sync_check_upload_file);
         if (!mCol.getDb().queryString("PRAGMA integrity_check").equalsIgnoreCase("ok")) {
@@ -156,7 +185,8 @@ public class FullSyncer extends HttpSyncer {
         HttpResponse ret;
         mCon.publishProgress(R.string.sync_uploading_message);
         try {
-            ret = super.req("upload", new FileInputStream(filePath));
+            // the file is read again should the server want the length of the request
+            ret = super.req("upload", new FilePayload(new File(filePath)), 6, true);
             if (ret == null) {
                 return null;
             }
@@ -0,0 +1,128 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki.sync;
+
+import android.net.Uri;
+
+import com.ichi2.async.Connection;
+import com.ichi2.utils.VersionUtils;
+
+import org.apache.commons.httpclient.contrib.ssl.EasySSLSocketFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerPNames;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.CoreProtocolPNames;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import timber.log.Timber;
+
+/**
+ * Not in libanki.
+ *
+ * The HTTP client of one sync. The requests of the collection, full and media syncs share its pool of connections,
+ * so the TCP and TLS handshakes are done once per server rather than once per request. Connections are kept open
+ * for as long as the server allows, at most {@link #KEEP_ALIVE_MS}, and stale ones are checked before reuse.
+ *
+ * {@link #shutdown} must be called when the sync is over.
+ */
+public class HttpSyncSession {
+
+    /** How long an idle connection is kept when the server doesn't say. */
+    private static final long KEEP_ALIVE_MS = 30000;
+
+    /** Hosts that answered a chunked request with 411 Length Required. */
+    private static final Set<String> sLengthRequired = Collections.synchronizedSet(new HashSet<String>());
+
+    private ThreadSafeClientConnManager mConnManager;
+    private DefaultHttpClient mClient;
+
+
+    /** @return The client, created on first use. */
+    public synchronized DefaultHttpClient getClient() {
+        if (mClient == null) {
+            HttpParams params = new BasicHttpParams();
+            params.setParameter(ConnManagerPNames.MAX_TOTAL_CONNECTIONS, 30);
+            params.setParameter(ConnManagerPNames.MAX_CONNECTIONS_PER_ROUTE, new ConnPerRouteBean(30));
+            params.setParameter(CoreProtocolPNames.USE_EXPECT_CONTINUE, false);
+            params.setParameter(CoreProtocolPNames.USER_AGENT, "AnkiDroid-" + VersionUtils.getPkgVersionName());
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+            HttpConnectionParams.setSoTimeout(params, Connection.CONN_TIMEOUT);
+            HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+            SchemeRegistry registry = new SchemeRegistry();
+            registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            registry.register(new Scheme("https", new EasySSLSocketFactory(), 443));
+            mConnManager = new ThreadSafeClientConnManager(params, registry);
+            mClient = new DefaultHttpClient(mConnManager, params);
+            mClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+                private final ConnectionKeepAliveStrategy mServerHint = new DefaultConnectionKeepAliveStrategy();
+
+
+                @Override
+                public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                    long duration = mServerHint.getKeepAliveDuration(response, context);
+                    return duration > 0 ? Math.min(duration, KEEP_ALIVE_MS) : KEEP_ALIVE_MS;
+                }
+            });
+        }
+        return mClient;
+    }
+
+
+    /** @return The connection manager, which {@link Connection.CancelCallback} shuts down to cancel. */
+    public synchronized ThreadSafeClientConnManager getConnectionManager() {
+        getClient();
+        return mConnManager;
+    }
+
+
+    /** @return Whether the server of the URL needs to be told the length of request bodies. */
+    public static boolean requiresLength(String url) {
+        return sLengthRequired.contains(Uri.parse(url).getHost());
+    }
+
+
+    public static void setRequiresLength(String url) {
+        sLengthRequired.add(Uri.parse(url).getHost());
+    }
+
+
+    /** Close all connections, aborting the requests in progress. A later request opens new ones. */
+    public synchronized void shutdown() {
+        if (mConnManager != null) {
+            Timber.d("HttpSyncSession: shutting down");
+            mConnManager.shutdown();
+            mConnManager = null;
+            mClient = null;
+        }
+    }
+}
@@ -28,27 +28,12 @@ import com.ichi2.anki.exception.UnknownHttpResponseException;
 import com.ichi2.async.Connection;
 import com.ichi2.libanki.Consts;
 import com.ichi2.libanki.Utils;
-import com.ichi2.utils.VersionUtils;
 
-import org.apache.commons.httpclient.contrib.ssl.EasySSLSocketFactory;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.HttpVersion;
-import org.apache.http.client.HttpClient;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.conn.params.ConnManagerPNames;
-import org.apache.http.conn.params.ConnPerRouteBean;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.entity.AbstractHttpEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.CoreProtocolPNames;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -56,10 +41,13 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -101,13 +89,46 @@ public class HttpSyncer {
     protected String mSKey;
     protected Connection mCon;
     protected Map<String, Object> mPostVars;
+    protected HttpSyncSession mSession;
+    /** Whether {@link #mSession} was created for this syncer alone, and is shut down by {@link #close}. */
+    private final boolean mOwnsSession;
 
 
+    /** The syncer gets its own session, which {@link #close} shuts down. */
     public HttpSyncer(String hkey, Connection con) {
+        this(hkey, con, new HttpSyncSession(), true);
+    }
+
+
+    /**
+     * Not in libanki.
+     * @param session The client to send the requests with, shared by the syncers of one sync, whose owner shuts it
+     *                down
+     */
+    public HttpSyncer(String hkey, Connection con, HttpSyncSession session) {
+        this(hkey, con, session, false);
+    }
+
+
+    private HttpSyncer(String hkey, Connection con, HttpSyncSession session, boolean ownsSession) {
         mHKey = hkey;
         mSKey = Utils.checksum(Float.toString(new Random().nextFloat())).substring(0, 8);
         mCon = con;
         mPostVars = new HashMap<>();
+        mSession = session;
+        mOwnsSession = ownsSession;
+    }
+
+
+    /**
+     * Not in libanki.
+     * Close the connections of the session if this syncer created it. Called at the end of each sync, whether it
+     * succeeded or not; a shared session is left to its owner.
+     */
+    public void close() {
+        if (mOwnsSession) {
+            mSession.shutdown();
+        }
     }
 
 
@@ -151,102 +172,96 @@ public class HttpSyncer {
 
     public HttpResponse req(String method, InputStream fobj, int comp, JSONObject registerData,
             Connection.CancelCallback cancelCallback) throws UnknownHttpResponseException {
-        File tmpFileBuffer = null;
+        // a string payload can be read again, should the server want its length
+        return _req(method, fobj != null ? new InputStreamPayload(fobj) : null, comp,
+                fobj == null || fobj instanceof ByteArrayInputStream, registerData, cancelCallback);
+    }
+
+
+    /**
+     * Not in libanki.
+     * Send a request whose payload is written straight into the request body while it is sent. The payload isn't
+     * compressed, and it may be written twice.
+     */
+    public HttpResponse req(String method, PayloadWriter payload) throws UnknownHttpResponseException {
+        return req(method, payload, 0, true);
+    }
+
+
+    /**
+     * Not in libanki.
+     * @param comp Whether to gzip the payload, as for streams
+     * @param replayable Whether the payload may be written twice
+     */
+    public HttpResponse req(String method, PayloadWriter payload, int comp, boolean replayable)
+            throws UnknownHttpResponseException {
+        return _req(method, payload, comp, replayable, null, null);
+    }
+
+
+    /**
+     * The multipart body is produced while it is sent, with chunked transfer encoding since its length isn't known in
+     * advance. Servers that reject that with 411 get the body buffered in a temporary file from then on, and the
+     * request is sent again that way when the payload can be written twice.
+     */
+    private HttpResponse _req(String method, PayloadWriter payload, int comp, boolean replayable,
+            JSONObject registerData, Connection.CancelCallback cancelCallback) throws UnknownHttpResponseException {
         try {
             String bdry = "--" + BOUNDARY;
             StringWriter buf = new StringWriter();
-            // post vars
-            mPostVars.put("c", comp != 0 ? 1 : 0);
-            for (String key : mPostVars.keySet()) {
-                buf.write(bdry + "\r\n");
-                buf.write(String.format(Locale.US, "Content-Disposition: form-data; name=\"%s\"\r\n\r\n%s\r\n", key,
-                        mPostVars.get(key)));
-            }
-            tmpFileBuffer = File.createTempFile("syncer", ".tmp", new File(AnkiDroidApp.getCacheStorageDirectory()));
-            FileOutputStream fos = new FileOutputStream(tmpFileBuffer);
-            BufferedOutputStream bos = new BufferedOutputStream(fos);
-            GZIPOutputStream tgt;
-            // payload as raw data or json
-            if (fobj != null) {
-                // header
+            _writePostVars(buf, comp);
+            String trailer = "";
+            if (payload != null) {
                 buf.write(bdry + "\r\n");
                 buf.write("Content-Disposition: form-data; name=\"data\"; filename=\"data\"\r\nContent-Type: application/octet-stream\r\n\r\n");
-                buf.close();
-                bos.write(buf.toString().getBytes("UTF-8"));
-                // write file into buffer, optionally compressing
-                int len;
-                BufferedInputStream bfobj = new BufferedInputStream(fobj);
-                byte[] chunk = new byte[65536];
-                if (comp != 0) {
-                    tgt = new GZIPOutputStream(bos);
-                    while ((len = bfobj.read(chunk)) >= 0) {
-                        tgt.write(chunk, 0, len);
+                trailer = "\r\n" + bdry + "--\r\n";
+            }
+            buf.close();
+            String header = buf.toString();
+            String url = _url(method, registerData);
+            if (payload != null && comp != 0) {
+                payload = new GzipPayload(payload);
+            }
+            if (!HttpSyncSession.requiresLength(url)) {
+                try {
+                    return _post(url, new StreamingEntity(header, trailer, payload), cancelCallback);
+                } catch (UnknownHttpResponseException e) {
+                    if (e.getResponseCode() != HttpStatus.SC_LENGTH_REQUIRED) {
+                        throw e;
                     }
-                    tgt.close();
-                    bos = new BufferedOutputStream(new FileOutputStream(tmpFileBuffer, true));
-                } else {
-                    while ((len = bfobj.read(chunk)) >= 0) {
-                        bos.write(chunk, 0, len);
+                    Timber.w("HttpSyncer: server requires the length of requests, buffering them");
+                    HttpSyncSession.setRequiresLength(url);
+                    if (!replayable) {
+                        throw e;
                     }
                 }
-                bos.write(("\r\n" + bdry + "--\r\n").getBytes("UTF-8"));
-            } else {
-                buf.close();
-                bos.write(buf.toString().getBytes("UTF-8"));
             }
-            bos.flush();
-            bos.close();
-            // connection headers
-            String url = Consts.SYNC_BASE;
-            if (method.equals("register")) {
-                url = url + "account/signup" + "?username=" + registerData.getString("u") + "&password="
-                        + registerData.getString("p");
-            } else if (method.startsWith("upgrade")) {
-                url = url + method;
-            } else {
-                url = syncURL() + method;
-            }
-            HttpPost httpPost = new HttpPost(url);
-            HttpEntity entity = new ProgressByteEntity(tmpFileBuffer);
-
-            // body
-            httpPost.setEntity(entity);
-            httpPost.setHeader("Content-type", "multipart/form-data; boundary=" + BOUNDARY);
-
-            // HttpParams
-            HttpParams params = new BasicHttpParams();
-            params.setParameter(ConnManagerPNames.MAX_TOTAL_CONNECTIONS, 30);
-            params.setParameter(ConnManagerPNames.MAX_CONNECTIONS_PER_ROUTE, new ConnPerRouteBean(30));
-            params.setParameter(CoreProtocolPNames.USE_EXPECT_CONTINUE, false);
-            params.setParameter(CoreProtocolPNames.USER_AGENT, "AnkiDroid-" + VersionUtils.getPkgVersionName());
-            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-            HttpConnectionParams.setSoTimeout(params, Connection.CONN_TIMEOUT);
-
-            // Registry
-            SchemeRegistry registry = new SchemeRegistry();
-            registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-            registry.register(new Scheme("https", new EasySSLSocketFactory(), 443));
-            ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(params, registry);
-            if (cancelCallback != null) {
-                cancelCallback.setConnectionManager(cm);
-            }
-
-            try {
-                HttpClient httpClient = new DefaultHttpClient(cm, params);
-                HttpResponse httpResponse = httpClient.execute(httpPost);
-                // we assume badAuthRaises flag from Anki Desktop always False
-                // so just throw new RuntimeException if response code not 200 or 403
-                assertOk(httpResponse);
-                return httpResponse;
-            } catch (SSLException e) {
-                Timber.e(e, "SSLException while building HttpClient");
-                throw new RuntimeException("SSLException while building HttpClient");
-            }
-        } catch (UnsupportedEncodingException | JSONException e) {
+            return _bufferedPost(url, header, trailer, payload, cancelCallback);
+        } catch (JSONException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
             Timber.e(e, "BasicHttpSyncer.sync: IOException");
             throw new RuntimeException(e);
+        }
+    }
+
+
+    private HttpResponse _bufferedPost(String url, String header, String trailer, PayloadWriter payload,
+            Connection.CancelCallback cancelCallback) throws IOException, UnknownHttpResponseException {
+        File tmpFileBuffer = null;
+        try {
+            tmpFileBuffer = File.createTempFile("syncer", ".tmp", new File(AnkiDroidApp.getCacheStorageDirectory()));
+            BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(tmpFileBuffer));
+            try {
+                bos.write(header.getBytes("UTF-8"));
+                if (payload != null) {
+                    payload.writeTo(bos);
+                }
+                bos.write(trailer.getBytes("UTF-8"));
+            } finally {
+                bos.close();
+            }
+            return _post(url, new ProgressByteEntity(tmpFileBuffer), cancelCallback);
         } finally {
             if (tmpFileBuffer != null && tmpFileBuffer.exists()) {
                 tmpFileBuffer.delete();
@@ -255,6 +270,67 @@ public class HttpSyncer {
     }
 
 
+    private void _writePostVars(StringWriter buf, int comp) {
+        String bdry = "--" + BOUNDARY;
+        // media downloads run several requests at once
+        synchronized (mPostVars) {
+            mPostVars.put("c", comp != 0 ? 1 : 0);
+            for (String key : mPostVars.keySet()) {
+                buf.write(bdry + "\r\n");
+                buf.write(String.format(Locale.US, "Content-Disposition: form-data; name=\"%s\"\r\n\r\n%s\r\n", key,
+                        mPostVars.get(key)));
+            }
+        }
+    }
+
+
+    private String _url(String method, JSONObject registerData) throws JSONException {
+        String url = Consts.SYNC_BASE;
+        if (method.equals("register")) {
+            url = url + "account/signup" + "?username=" + registerData.getString("u") + "&password="
+                    + registerData.getString("p");
+        } else if (method.startsWith("upgrade")) {
+            url = url + method;
+        } else {
+            url = syncURL() + method;
+        }
+        return url;
+    }
+
+
+    private HttpResponse _post(String url, HttpEntity entity, Connection.CancelCallback cancelCallback)
+            throws IOException, UnknownHttpResponseException {
+        // connection headers
+        HttpPost httpPost = new HttpPost(url);
+        // body
+        httpPost.setEntity(entity);
+        httpPost.setHeader("Content-type", "multipart/form-data; boundary=" + BOUNDARY);
+
+        if (cancelCallback != null) {
+            cancelCallback.setConnectionManager(mSession.getConnectionManager());
+        }
+
+        try {
+            HttpResponse httpResponse = mSession.getClient().execute(httpPost);
+            // we assume badAuthRaises flag from Anki Desktop always False
+            // so just throw new RuntimeException if response code not 200 or 403
+            try {
+                assertOk(httpResponse);
+            } catch (UnknownHttpResponseException e) {
+                // give the connection back to the pool
+                if (httpResponse.getEntity() != null) {
+                    httpResponse.getEntity().consumeContent();
+                }
+                throw e;
+            }
+            return httpResponse;
+        } catch (SSLException e) {
+            Timber.e(e, "SSLException while building HttpClient");
+            throw new RuntimeException("SSLException while building HttpClient");
+        }
+    }
+
+
     public void writeToFile(InputStream source, String destination) throws IOException {
         File file = new File(destination);
         OutputStream output = null;
@@ -308,6 +384,32 @@ public class HttpSyncer {
     }
 
 
+    /** Not in libanki. @return The stream, counting what is read from it in the progress. */
+    public InputStream progressStream(InputStream stream) {
+        return new FilterInputStream(stream) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    bytesReceived++;
+                }
+                return b;
+            }
+
+
+            @Override
+            public int read(byte[] buffer, int off, int len) throws IOException {
+                int count = super.read(buffer, off, len);
+                if (count > 0) {
+                    bytesReceived += count;
+                    publishProgress();
+                }
+                return count;
+            }
+        };
+    }
+
+
     private void publishProgress() {
         if (mCon != null && (mNextSendR <= bytesReceived || mNextSendS <= bytesSent)) {
             long bR = bytesReceived;
@@ -372,6 +474,35 @@ public class HttpSyncer {
     public void applyChunk(JSONObject sech) throws UnknownHttpResponseException {
     }
 
+
+    /**
+     * Not in libanki. Download the next chunk of the server into the reader as it arrives. Servers that don't stream
+     * chunks hand the reader the one of {@link #chunk()}.
+     */
+    public void chunk(PayloadReader reader) throws UnknownHttpResponseException {
+        try {
+            reader.readFrom(getInputStream(Utils.jsonToString(chunk())));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /**
+     * Not in libanki. Send the next chunk of the client, written by the writer as it is sent. Servers that don't
+     * stream chunks get the written chunk through {@link #applyChunk(JSONObject)}.
+     */
+    public void applyChunk(PayloadWriter chunk) throws UnknownHttpResponseException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            chunk.writeTo(out);
+            applyChunk(new JSONObject(out.toString("UTF-8")).getJSONObject("chunk"));
+        } catch (IOException | JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
     public class ProgressByteEntity extends AbstractHttpEntity {
 
         private InputStream mInputStream;
@@ -431,6 +562,201 @@ public class HttpSyncer {
     }
 
 
+    /**
+     * Not in libanki. Writes the payload of a request into its body; must not close the stream. It is called a second
+     * time when the body has to be sent again with its length.
+     */
+    public interface PayloadWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+
+    /** Not in libanki. Reads the body of a response; must not close the stream. */
+    public interface PayloadReader {
+        void readFrom(InputStream in) throws IOException;
+    }
+
+
+    /** Not in libanki. The contents of a stream. */
+    private static class InputStreamPayload implements PayloadWriter {
+        private final InputStream mSource;
+
+
+        InputStreamPayload(InputStream source) {
+            mSource = source;
+        }
+
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            if (mSource instanceof ByteArrayInputStream) {
+                // sent again
+                mSource.reset();
+            }
+            try {
+                byte[] chunk = new byte[65536];
+                int len;
+                while ((len = mSource.read(chunk)) >= 0) {
+                    out.write(chunk, 0, len);
+                }
+            } finally {
+                mSource.close();
+            }
+        }
+    }
+
+
+    /** Not in libanki. The contents of a file, opened again each time it is written. */
+    public static class FilePayload implements PayloadWriter {
+        private final File mFile;
+
+
+        public FilePayload(File file) {
+            mFile = file;
+        }
+
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            new InputStreamPayload(new FileInputStream(mFile)).writeTo(out);
+        }
+    }
+
+
+    /**
+     * Not in libanki. Another payload that can only be written once, kept in memory as it is written so that it can
+     * be written again. Meant for small payloads.
+     */
+    public static class RecordedPayload implements PayloadWriter {
+        private final PayloadWriter mPayload;
+        private boolean mWritten = false;
+        private byte[] mRecord;
+
+
+        public RecordedPayload(PayloadWriter payload) {
+            mPayload = payload;
+        }
+
+
+        @Override
+        public void writeTo(final OutputStream out) throws IOException {
+            if (mRecord != null) {
+                out.write(mRecord);
+                return;
+            }
+            if (mWritten) {
+                throw new IOException("Payload was only partly written and can't be written again");
+            }
+            mWritten = true;
+            final ByteArrayOutputStream record = new ByteArrayOutputStream();
+            mPayload.writeTo(new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    record.write(b, off, len);
+                }
+
+
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    record.write(b);
+                }
+            });
+            mRecord = record.toByteArray();
+        }
+    }
+
+
+    /** Not in libanki. Another payload, gzipped. */
+    private static class GzipPayload implements PayloadWriter {
+        private final PayloadWriter mPayload;
+
+
+        GzipPayload(PayloadWriter payload) {
+            mPayload = payload;
+        }
+
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            GZIPOutputStream gz = new GZIPOutputStream(out, 65536);
+            mPayload.writeTo(gz);
+            // the rest of the body follows the gzip stream
+            gz.finish();
+        }
+    }
+
+
+    /** Not in libanki. A multipart body written as it is sent, with chunked transfer encoding. */
+    public class StreamingEntity extends AbstractHttpEntity {
+
+        private final String mHeader;
+        private final String mTrailer;
+        private final PayloadWriter mPayload;
+
+
+        public StreamingEntity(String header, String trailer, PayloadWriter payload) {
+            super();
+            mHeader = header;
+            mTrailer = trailer;
+            mPayload = payload;
+            setChunked(true);
+        }
+
+
+        @Override
+        public void writeTo(final OutputStream outstream) throws IOException {
+            // count what goes out, for the progress
+            OutputStream out = new FilterOutputStream(outstream) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    outstream.write(b, off, len);
+                    bytesSent += len;
+                    publishProgress();
+                }
+
+
+                @Override
+                public void write(int b) throws IOException {
+                    outstream.write(b);
+                    bytesSent++;
+                }
+            };
+            out.write(mHeader.getBytes("UTF-8"));
+            if (mPayload != null) {
+                mPayload.writeTo(out);
+            }
+            out.write(mTrailer.getBytes("UTF-8"));
+            out.flush();
+        }
+
+
+        @Override
+        public InputStream getContent() throws IOException, IllegalStateException {
+            throw new IllegalStateException("Streamed content is only written once");
+        }
+
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+
     public static ByteArrayInputStream getInputStream(String string) {
         try {
             return new ByteArrayInputStream(string.getBytes("UTF-8"));
@@ -0,0 +1,224 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki.sync;
+
+import com.ichi2.anki.AnkiDroidApp;
+import com.ichi2.anki.R;
+import com.ichi2.anki.exception.UnknownHttpResponseException;
+import com.ichi2.async.Connection;
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.Consts;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipFile;
+
+import timber.log.Timber;
+
+/**
+ * Not in libanki.
+ *
+ * Downloads media files from the server with several batches in flight, so that a zip is extracted (and its files
+ * hashed) while the next ones download. Batches are extracted in the order they were requested. Each extracted batch
+ * is committed to the media database with the checksums of its files, so when a sync is interrupted, the files
+ * already received compare equal to the server's on the next one and are not fetched again.
+ *
+ * The server stops filling a zip at its size limit. The files it left out are requested again first, and the batch
+ * size follows what the server returns and how long batches take, up to {@link Consts#SYNC_ZIP_COUNT}.
+ */
+public class MediaDownloader {
+
+    /** Requests in flight at once. */
+    private static final int MAX_IN_FLIGHT = 3;
+    /** Smallest number of files asked for in one request. */
+    private static final int MIN_BATCH = 5;
+    /** Batches taking less than this grow, those taking more than twice as long shrink. */
+    private static final long TARGET_MS = 5000;
+
+    private final Collection mCol;
+    private final RemoteMediaServer mServer;
+    private final Connection mCon;
+    private int mBatchSize = Consts.SYNC_ZIP_COUNT;
+    private int mCount = 0;
+
+
+    /**
+     * @param con Receives the number of files downloaded so far, or null
+     */
+    public MediaDownloader(Collection col, RemoteMediaServer server, Connection con) {
+        mCol = col;
+        mServer = server;
+        mCon = con;
+    }
+
+
+    /**
+     * Download the given files into the media folder.
+     *
+     * @return false if the sync was cancelled before all were downloaded
+     */
+    public boolean download(List<String> fnames) {
+        mCol.log(fnames.size() + " files to fetch");
+        _removeStaleZips();
+        Deque<String> queue = new ArrayDeque<>(fnames);
+        Deque<Batch> inFlight = new ArrayDeque<>();
+        ExecutorService pool = Executors.newFixedThreadPool(MAX_IN_FLIGHT);
+        try {
+            while (!queue.isEmpty() || !inFlight.isEmpty()) {
+                if (Connection.getIsCancelled()) {
+                    Timber.i("MediaDownloader: cancelled with %d files left", queue.size());
+                    return false;
+                }
+                while (inFlight.size() < MAX_IN_FLIGHT && !queue.isEmpty()) {
+                    List<String> top = new ArrayList<>(mBatchSize);
+                    while (top.size() < mBatchSize && !queue.isEmpty()) {
+                        top.add(queue.poll());
+                    }
+                    mCol.log("fetch " + top);
+                    Batch batch = new Batch(top);
+                    batch.mFuture = pool.submit(batch);
+                    inFlight.add(batch);
+                }
+                Batch batch = inFlight.poll();
+                int cnt = mCol.getMedia().addFilesFromZip(batch.get());
+                mCount += cnt;
+                mCol.log("received " + cnt + " files");
+                if (cnt == 0) {
+                    throw new RuntimeException("Server sent no media files");
+                }
+                // the files left out by the server go first in the next request
+                for (int i = batch.mFnames.size() - 1; i >= cnt; i--) {
+                    queue.addFirst(batch.mFnames.get(i));
+                }
+                _adapt(batch, cnt);
+                if (mCon != null) {
+                    mCon.publishProgress(String.format(
+                            AnkiDroidApp.getAppResources().getString(R.string.sync_media_downloaded_count), mCount));
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            Timber.e(e, "Error downloading media files");
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdownNow();
+            // delete the zips that were downloaded but won't be extracted
+            for (Batch batch : inFlight) {
+                batch.discard();
+            }
+        }
+    }
+
+
+    /** @return The number of files received so far. */
+    public int getCount() {
+        return mCount;
+    }
+
+
+    /** Delete the zips of requests abandoned by an earlier, interrupted sync. */
+    private void _removeStaleZips() {
+        File[] files = new File(mCol.getPath()).getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.getName().startsWith(RemoteMediaServer.DOWNLOAD_PREFIX) && f.getName().endsWith(".zip")) {
+                f.delete();
+            }
+        }
+    }
+
+
+    /** Pick the size of the next batches from how the last one went. */
+    private void _adapt(Batch batch, int cnt) {
+        int size = mBatchSize;
+        long elapsed = batch.mEnd - batch.mStart;
+        if (cnt < batch.mFnames.size()) {
+            // large files: don't ask for more than fit in a zip
+            size = Math.max(MIN_BATCH, cnt);
+        } else if (elapsed < TARGET_MS) {
+            size = Math.min(Consts.SYNC_ZIP_COUNT, size * 2);
+        } else if (elapsed > 2 * TARGET_MS) {
+            // slow link: smaller batches lose less when a request fails
+            size = Math.max(MIN_BATCH, size / 2);
+        }
+        if (size != mBatchSize) {
+            Timber.d("MediaDownloader: batch size %d -> %d after %d of %d files in %d ms", mBatchSize, size, cnt,
+                    batch.mFnames.size(), elapsed);
+            mBatchSize = size;
+        }
+    }
+
+
+    /** One request, run on the pool. */
+    private class Batch implements Callable<ZipFile> {
+        final List<String> mFnames;
+        Future<ZipFile> mFuture;
+        volatile long mStart;
+        volatile long mEnd;
+
+
+        Batch(List<String> fnames) {
+            mFnames = fnames;
+        }
+
+
+        @Override
+        public ZipFile call() throws UnknownHttpResponseException {
+            mStart = System.currentTimeMillis();
+            ZipFile zip = mServer.downloadFiles(mFnames);
+            mEnd = System.currentTimeMillis();
+            return zip;
+        }
+
+
+        /** Wait for the download and return its zip, which is deleted once closed. */
+        ZipFile get() {
+            try {
+                return mFuture.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+
+        void discard() {
+            if (!mFuture.cancel(true) && !mFuture.isCancelled()) {
+                try {
+                    mFuture.get().close();
+                } catch (Exception e) {
+                    // failed or interrupted download, nothing to delete
+                }
+            }
+        }
+    }
+}
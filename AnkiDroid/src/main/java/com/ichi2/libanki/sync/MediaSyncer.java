@@ -26,20 +26,24 @@ import com.ichi2.anki.exception.MediaSyncException;
 import com.ichi2.anki.exception.UnknownHttpResponseException;
 import com.ichi2.async.Connection;
 import com.ichi2.libanki.Collection;
-import com.ichi2.libanki.Consts;
+import com.ichi2.libanki.MediaChangesZip;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.zip.ZipFile;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import timber.log.Timber;
 
@@ -55,20 +59,20 @@ import timber.log.Timber;
  *      file systems used (mainly FAT32 for sdcards) and the utilities available to probe them.
  *  2 - Scanning for media changes can take a very long time with thousands of files.
  * 
- * Given these two points, we have decided to avoid the call to findChanges() on every sync and
- * only do it on the first sync to build the initial database. Changes to the media collection
- * made through AnkiDroid (e.g., multimedia note editor, media check) are recorded directly in
- * the media database as they are made. This allows us to skip finding media changes entirely
- * as the database already contains the changes.
+ * Given these two points, changes to the media collection made through AnkiDroid (e.g.,
+ * multimedia note editor, media check, imports, syncing) are recorded directly in the media
+ * database as they are made, along with the new modification time of the media directory.
+ * The directory is then only scanned on the first sync, to build the initial database, or when
+ * its modification time shows that something else changed it.
  * 
- * The downside to this approach is that changes made to the media directory externally (e.g.,
- * through a file manager) will not be recorded and will not be synced. In this case, the user
- * must issue a media check command through the UI to bring the database up-to-date.
+ * Where the file system doesn't update the directory's modification time, changes made
+ * externally (e.g., through a file manager) will not be noticed. In this case, the user must
+ * issue a media check command through the UI to bring the database up-to-date.
  */
 public class MediaSyncer {
     private Collection mCol;
     private RemoteMediaServer mServer;
-    private int mDownloadCount;
+    private MediaDownloader mDownloader;
     // Needed to update progress to UI
     private Connection mCon;
 
@@ -80,11 +84,20 @@ public class MediaSyncer {
 
 
     public String sync() throws UnknownHttpResponseException, MediaSyncException {
+        try {
+            return _sync();
+        } finally {
+            mServer.close();
+        }
+    }
+
+
+    private String _sync() throws UnknownHttpResponseException, MediaSyncException {
         try {
             // check if there have been any changes
-            // If we haven't built the media db yet, do so on this sync. See note at the top
-            // of this class about this difference to the original.
-            if (mCol.getMedia().needScan()) {
+            // Only scan if we haven't built the media db yet or the folder was changed outside
+            // of AnkiDroid. See note at the top of this class about this difference to the original.
+            if (mCol.getMedia()._changed() != null) {
                 mCon.publishProgress(R.string.sync_media_find);
                 mCol.log("findChanges");
                 mCol.getMedia().findChanges();
@@ -99,7 +112,7 @@ public class MediaSyncer {
             }
             // loop through and process changes from server
             mCol.log("last local usn is " + lastUsn);
-            mDownloadCount = 0;
+            mDownloader = new MediaDownloader(mCol, mServer, mCon);
             while (true) {
                 // Allow cancellation
                 if (Connection.getIsCancelled()) {
@@ -158,7 +171,10 @@ public class MediaSyncer {
                         mCol.getMedia().markClean(Collections.singletonList(fname));
                     }
                 }
-                _downloadFiles(need);
+                if (!mDownloader.download(need)) {
+                    // cancelled: keep lastUsn so the remaining files are fetched next time
+                    continue;
+                }
 
                 mCol.log("update last usn to " + lastUsn);
                 mCol.getMedia().setLastUsn(lastUsn); // commits
@@ -169,11 +185,12 @@ public class MediaSyncer {
 
             boolean updateConflict = false;
             int toSend = mCol.getMedia().dirtyCount();
-            while (true) {
-                Pair<File, List<String>> changesZip = mCol.getMedia().mediaChangesZip();
-                File zip = changesZip.first;
-                try {
-                    List<String> fnames = changesZip.second;
+            ExecutorService reader = Executors.newSingleThreadExecutor();
+            try {
+                MediaChangesZip changesZip = mCol.getMedia().mediaChangesZip(Collections.<String>emptySet());
+                Future<?> prepared = _prepare(reader, changesZip);
+                while (true) {
+                    List<String> fnames = changesZip.getFnames();
                     if (fnames.size() == 0) {
                         break;
                     }
@@ -181,7 +198,12 @@ public class MediaSyncer {
                     mCon.publishProgress(String.format(
                             AnkiDroidApp.getAppResources().getString(R.string.sync_media_changes_count), toSend));
 
-                    JSONArray changes = mServer.uploadChanges(zip);
+                    _await(prepared);
+                    // read the files of the next batch while this one uploads
+                    MediaChangesZip next = mCol.getMedia().mediaChangesZip(new HashSet<>(fnames));
+                    Future<?> nextPrepared = _prepare(reader, next);
+
+                    JSONArray changes = mServer.uploadChanges(changesZip);
                     int processedCnt = changes.getInt(0);
                     int serverLastUsn = changes.getInt(1);
                     mCol.getMedia().markClean(fnames.subList(0, processedCnt));
@@ -202,13 +224,21 @@ public class MediaSyncer {
                     }
 
                     toSend -= processedCnt;
-                } finally {
-                    zip.delete();
+                    if (processedCnt < fnames.size()) {
+                        // the server stopped early; what it left goes first, so pick the next batch again
+                        nextPrepared.cancel(true);
+                        next = mCol.getMedia().mediaChangesZip(Collections.<String>emptySet());
+                        nextPrepared = _prepare(reader, next);
+                    }
+                    changesZip = next;
+                    prepared = nextPrepared;
                 }
+            } finally {
+                reader.shutdownNow();
             }
             if (updateConflict) {
                 mCol.log("restart sync due to concurrent update");
-                return sync();
+                return _sync();
             }
 
             int lcnt = mCol.getMedia().mediacount();
@@ -225,30 +255,26 @@ public class MediaSyncer {
     }
 
 
-    private void _downloadFiles(List<String> fnames) {
-        mCol.log(fnames.size() + " files to fetch");
-        while (fnames.size() > 0) {
-            try {
-                List<String> top = fnames.subList(0, Math.min(fnames.size(), Consts.SYNC_ZIP_COUNT));
-                mCol.log("fetch " + top);
-                ZipFile zipData = mServer.downloadFiles(top);
-                int cnt = mCol.getMedia().addFilesFromZip(zipData);
-                mDownloadCount += cnt;
-                mCol.log("received " + cnt + " files");
-                // NOTE: The python version uses slices which return an empty list when indexed beyond what
-                // the list contains. Since we can't slice out an empty sublist in Java, we must check
-                // if we've reached the end and clear the fnames list manually.
-                if (cnt == fnames.size()) {
-                    fnames.clear();
-                } else {
-                    fnames = fnames.subList(cnt, fnames.size());
-                }
-                mCon.publishProgress(String.format(
-                        AnkiDroidApp.getAppResources().getString(R.string.sync_media_downloaded_count), mDownloadCount));
-            } catch (IOException | UnknownHttpResponseException e) {
-                Timber.e(e, "Error downloading media files");
-                throw new RuntimeException(e);
+    private Future<?> _prepare(ExecutorService reader, final MediaChangesZip changesZip) {
+        return reader.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                changesZip.prepare();
+                return null;
             }
+        });
+    }
+
+
+    private void _await(Future<?> prepared) {
+        try {
+            prepared.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Timber.e(e.getCause(), "Failed to read media changes");
+            throw new RuntimeException(e.getCause());
         }
     }
 }
@@ -27,6 +27,7 @@ import com.ichi2.anki.exception.UnknownHttpResponseException;
 import com.ichi2.async.Connection;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Consts;
+import com.ichi2.libanki.MediaChangesZip;
 import com.ichi2.libanki.Utils;
 import com.ichi2.utils.VersionUtils;
 
@@ -36,7 +37,6 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
@@ -47,6 +47,9 @@ import timber.log.Timber;
 
 public class RemoteMediaServer extends HttpSyncer {
 
+    /** Prefix of the zips being downloaded, next to the collection. */
+    public static final String DOWNLOAD_PREFIX = "tmpSyncFromServer";
+
     private Collection mCol;
 
 
@@ -56,6 +59,12 @@ public class RemoteMediaServer extends HttpSyncer {
     }
 
 
+    public RemoteMediaServer(Collection col, String hkey, Connection con, HttpSyncSession session) {
+        super(hkey, con, session);
+        mCol = col;
+    }
+
+
     @Override
     public String syncURL() {
         // Allow user to specify custom sync server
@@ -114,10 +123,11 @@ public class RemoteMediaServer extends HttpSyncer {
             HttpResponse resp;
             resp = super.req("downloadFiles",
                     super.getInputStream(Utils.jsonToString(new JSONObject().put("files", new JSONArray(top)))));
-            String zipPath = mCol.getPath().replaceFirst("collection\\.anki2$", "tmpSyncFromServer.zip");
+            // a file of its own, as several downloads may be in flight
+            File zip = File.createTempFile(DOWNLOAD_PREFIX, ".zip", new File(mCol.getPath()).getParentFile());
             // retrieve contents and save to file on disk:
-            super.writeToFile(resp.getEntity().getContent(), zipPath);
-            return new ZipFile(new File(zipPath), ZipFile.OPEN_READ | ZipFile.OPEN_DELETE);
+            super.writeToFile(resp.getEntity().getContent(), zip.getAbsolutePath());
+            return new ZipFile(zip, ZipFile.OPEN_READ | ZipFile.OPEN_DELETE);
         } catch (JSONException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
@@ -127,10 +137,11 @@ public class RemoteMediaServer extends HttpSyncer {
     }
 
 
-    public JSONArray uploadChanges(File zip) throws UnknownHttpResponseException, MediaSyncException {
+    public JSONArray uploadChanges(MediaChangesZip zip) throws UnknownHttpResponseException, MediaSyncException {
         try {
-            // no compression, as we compress the zip file instead
-            HttpResponse resp = super.req("uploadChanges", new FileInputStream(zip), 0);
+            // no compression, as we compress the zip file instead; written straight into the request, and written
+            // again with its length should the server reject chunked requests
+            HttpResponse resp = super.req("uploadChanges", zip, 0, true);
             JSONObject jresp = new JSONObject(super.stream2String(resp.getEntity().getContent()));
             return _dataOnly(jresp, JSONArray.class);
         } catch (JSONException | IOException e) {
@@ -28,6 +28,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Locale;
 
@@ -38,6 +39,11 @@ public class RemoteServer extends HttpSyncer {
     }
 
 
+    public RemoteServer(Connection con, String hkey, HttpSyncSession session) {
+        super(hkey, con, session);
+    }
+
+
     /** Returns hkey or none if user/pw incorrect. 
      * @throws UnknownHttpResponseException */
     @Override
@@ -96,6 +102,35 @@ public class RemoteServer extends HttpSyncer {
     }
 
 
+    @Override
+    public void chunk(PayloadReader reader) throws UnknownHttpResponseException {
+        HttpResponse ret = super.req("chunk", super.getInputStream("{}"));
+        try {
+            InputStream in = super.progressStream(ret.getEntity().getContent());
+            try {
+                reader.readFrom(in);
+            } finally {
+                in.close();
+            }
+        } catch (IllegalStateException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    @Override
+    public void applyChunk(PayloadWriter chunk) throws UnknownHttpResponseException {
+        // the rows are read from the database while sent; what was sent is kept, should the server want the length of
+        // the request
+        HttpResponse ret = super.req("applyChunk", new RecordedPayload(chunk), 6, true);
+        try {
+            super.stream2String(ret.getEntity().getContent());
+        } catch (IllegalStateException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
     @Override
     public JSONObject sanityCheck2(JSONObject client) throws UnknownHttpResponseException {
         return _run("sanityCheck2", client);
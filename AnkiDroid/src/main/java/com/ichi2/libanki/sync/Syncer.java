@@ -18,8 +18,9 @@
 package com.ichi2.libanki.sync;
 
 import android.database.Cursor;
-import android.database.SQLException;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import com.ichi2.anki.AnkiDroidApp;
 import com.ichi2.anki.R;
@@ -27,6 +28,7 @@ import com.ichi2.anki.exception.UnknownHttpResponseException;
 import com.ichi2.async.Connection;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Consts;
+import com.ichi2.libanki.DB;
 import com.ichi2.libanki.Utils;
 
 import org.apache.http.HttpResponse;
@@ -34,10 +36,14 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -65,6 +71,11 @@ public class Syncer {
     JSONObject mRChg;
     String mSyncMsg;
 
+    /** Roughly how much row data goes in a chunk sent to the server. */
+    private static final long CHUNK_BYTES = 256 * 1024;
+    /** Rows of a chunk from the server merged at once. */
+    private static final int MERGE_BATCH = 1000;
+
     private LinkedList<String> mTablesLeft;
     private Cursor mCursor;
 
@@ -82,6 +93,15 @@ public class Syncer {
 
 
     public Object[] sync(Connection con) throws UnknownHttpResponseException {
+        try {
+            return _sync(con);
+        } finally {
+            mServer.close();
+        }
+    }
+
+
+    private Object[] _sync(Connection con) throws UnknownHttpResponseException {
         mSyncMsg = "";
         // if the deck has any pending changes, flush them first and bump mod time
         mCol.save();
@@ -173,32 +193,21 @@ public class Syncer {
                 mergeChanges(lchg, rchg);
                 // step 3: stream large tables from server
                 publishProgress(con, R.string.sync_download_chunk);
-                while (true) {
+                ChunkReader reader = new ChunkReader();
+                do {
                     throwExceptionIfCancelled(con);
-                    Timber.i("Sync: downloading chunked data");
-                    JSONObject chunk = mServer.chunk();
-                    mCol.log("server chunk", chunk);
-                    Timber.i("Sync: applying chunked data");
-                    applyChunk(chunk);
-                    if (chunk.getBoolean("done")) {
-                        break;
-                    }
-                }
+                    Timber.i("Sync: downloading and applying chunked data");
+                    mServer.chunk(reader);
+                } while (!reader.mDone);
+                _dropMergeTables();
                 // step 4: stream to server
                 publishProgress(con, R.string.sync_upload_chunk);
-                while (true) {
+                ChunkWriter writer = new ChunkWriter();
+                do {
                     throwExceptionIfCancelled(con);
-                    Timber.i("Sync: collecting chunked data");
-                    JSONObject chunk = chunk();
-                    mCol.log("client chunk", chunk);
-                    JSONObject sech = new JSONObject();
-                    sech.put("chunk", chunk);
-                    Timber.i("Sync: sending chunked data");
-                    mServer.applyChunk(sech);
-                    if (chunk.getBoolean("done")) {
-                        break;
-                    }
-                }
+                    Timber.i("Sync: collecting and sending chunked data");
+                    mServer.applyChunk(writer);
+                } while (!writer.mDone);
                 // step 5: sanity check
                 JSONObject c = sanityCheck();
                 JSONObject sanity = mServer.sanityCheck2(c);
@@ -479,17 +488,22 @@ public class Syncer {
     }
 
 
-    private List<Integer> columnTypesForQuery(String table) {
+    private static final int[] REVLOG_TYPES = { TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER,
+            TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER };
+    private static final int[] CARDS_TYPES = { TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER,
+            TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER,
+            TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_STRING };
+    private static final int[] NOTES_TYPES = { TYPE_INTEGER, TYPE_STRING, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER,
+            TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_INTEGER, TYPE_STRING };
+
+
+    private int[] columnTypesForQuery(String table) {
         if (table.equals("revlog")) {
-            return Arrays.asList(TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER,
-                    TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER);
+            return REVLOG_TYPES;
         } else if (table.equals("cards")) {
-            return Arrays.asList(TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER,
-                    TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER,
-                    TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_STRING);
+            return CARDS_TYPES;
         } else {
-            return Arrays.asList(TYPE_INTEGER, TYPE_STRING, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_STRING,
-                    TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_INTEGER, TYPE_STRING);
+            return NOTES_TYPES;
         }
     }
 
@@ -499,7 +513,7 @@ public class Syncer {
         try {
             buf.put("done", false);
             int lim = 250;
-            List<Integer> colTypes = null;
+            int[] colTypes = null;
             while (!mTablesLeft.isEmpty() && lim > 0) {
                 String curTable = mTablesLeft.getFirst();
                 if (mCursor == null) {
@@ -512,7 +526,7 @@ public class Syncer {
                 while (mCursor.moveToNext()) {
                     JSONArray r = new JSONArray();
                     for (int i = 0; i < count; i++) {
-                        switch (colTypes.get(i)) {
+                        switch (colTypes[i]) {
                             case TYPE_STRING:
                                 r.put(mCursor.getString(i));
                                 break;
@@ -555,13 +569,13 @@ public class Syncer {
     public void applyChunk(JSONObject chunk) {
         try {
             if (chunk.has("revlog")) {
-                mergeRevlog(chunk.getJSONArray("revlog"));
+                mergeRevlog(_rows(chunk.getJSONArray("revlog")));
             }
             if (chunk.has("cards")) {
-                mergeCards(chunk.getJSONArray("cards"));
+                mergeCards(_rows(chunk.getJSONArray("cards")));
             }
             if (chunk.has("notes")) {
-                mergeNotes(chunk.getJSONArray("notes"));
+                mergeNotes(_rows(chunk.getJSONArray("notes")));
             }
         } catch (JSONException e) {
             throw new RuntimeException(e);
@@ -569,6 +583,186 @@ public class Syncer {
     }
 
 
+    private static List<Object[]> _rows(JSONArray data) throws JSONException {
+        List<Object[]> rows = new ArrayList<>(data.length());
+        for (int i = 0; i < data.length(); i++) {
+            rows.add(Utils.jsonArray2Objects(data.getJSONArray(i)));
+        }
+        return rows;
+    }
+
+
+    /**
+     * Not in libanki.
+     * Like {@link #chunk()}, but the rows are written from the cursor as they are read, and the chunk ends after
+     * about {@link #CHUNK_BYTES} of them rather than after a number of rows, so that chunks of long notes stay small
+     * and chunks of reviews don't take a request per 250.
+     *
+     * @return Whether this was the last chunk
+     */
+    public boolean chunk(JsonWriter w) throws IOException {
+        long budget = CHUNK_BYTES;
+        w.beginObject();
+        while (!mTablesLeft.isEmpty() && budget > 0) {
+            String curTable = mTablesLeft.getFirst();
+            if (mCursor == null) {
+                mCursor = cursorForTable(curTable);
+            }
+            int[] colTypes = columnTypesForQuery(curTable);
+            int count = mCursor.getColumnCount();
+            int fetched = 0;
+            boolean more = false;
+            w.name(curTable).beginArray();
+            while (budget > 0 && (more = mCursor.moveToNext())) {
+                w.beginArray();
+                for (int i = 0; i < count; i++) {
+                    switch (colTypes[i]) {
+                        case TYPE_STRING:
+                            String v = mCursor.getString(i);
+                            w.value(v);
+                            budget -= v != null ? v.length() + 3 : 4;
+                            break;
+                        case TYPE_FLOAT:
+                            w.value(mCursor.getDouble(i));
+                            budget -= 12;
+                            break;
+                        case TYPE_INTEGER:
+                            w.value(mCursor.getLong(i));
+                            budget -= 12;
+                            break;
+                    }
+                }
+                w.endArray();
+                fetched++;
+            }
+            w.endArray();
+            Timber.d("Sync: sending %d rows of %s", fetched, curTable);
+            if (!more) {
+                // table is empty
+                mTablesLeft.removeFirst();
+                mCursor.close();
+                mCursor = null;
+                // if we're the client, mark the objects as having been sent
+                if (!mCol.getServer()) {
+                    mCol.getDb().execute("UPDATE " + curTable + " SET usn=" + mMaxUsn + " WHERE usn=-1");
+                }
+            }
+        }
+        boolean done = mTablesLeft.isEmpty();
+        w.name("done").value(done);
+        w.endObject();
+        return done;
+    }
+
+
+    /**
+     * Not in libanki.
+     * Like {@link #applyChunk(JSONObject)}, but the rows are merged in batches while the chunk is read, without
+     * building the whole of it first.
+     *
+     * @return Whether this was the last chunk
+     */
+    public boolean applyChunk(JsonReader r) throws IOException {
+        boolean done = false;
+        r.beginObject();
+        while (r.hasNext()) {
+            String name = r.nextName();
+            if (name.equals("done")) {
+                done = r.nextBoolean();
+            } else if (name.equals("revlog") || name.equals("cards") || name.equals("notes")) {
+                int total = 0;
+                List<Object[]> rows = new ArrayList<>(MERGE_BATCH);
+                r.beginArray();
+                while (r.hasNext()) {
+                    rows.add(_readRow(r));
+                    if (rows.size() == MERGE_BATCH || !r.hasNext()) {
+                        total += rows.size();
+                        _merge(name, rows);
+                        rows = new ArrayList<>(MERGE_BATCH);
+                    }
+                }
+                r.endArray();
+                Timber.d("Sync: received %d rows of %s", total, name);
+            } else {
+                r.skipValue();
+            }
+        }
+        r.endObject();
+        return done;
+    }
+
+
+    private static Object[] _readRow(JsonReader r) throws IOException {
+        List<Object> row = new ArrayList<>();
+        r.beginArray();
+        while (r.hasNext()) {
+            switch (r.peek()) {
+                case NULL:
+                    r.nextNull();
+                    row.add(null);
+                    break;
+                case NUMBER:
+                    String n = r.nextString();
+                    if (n.indexOf('.') == -1 && n.indexOf('e') == -1 && n.indexOf('E') == -1) {
+                        row.add(Long.parseLong(n));
+                    } else {
+                        row.add(Double.parseDouble(n));
+                    }
+                    break;
+                case BOOLEAN:
+                    row.add(r.nextBoolean() ? 1L : 0L);
+                    break;
+                default:
+                    row.add(r.nextString());
+                    break;
+            }
+        }
+        r.endArray();
+        return row.toArray();
+    }
+
+
+    private void _merge(String table, List<Object[]> rows) {
+        if (table.equals("revlog")) {
+            mergeRevlog(rows);
+        } else if (table.equals("cards")) {
+            mergeCards(rows);
+        } else {
+            mergeNotes(rows);
+        }
+    }
+
+
+    /** Not in libanki. Reads the chunks of the server into the collection. */
+    private class ChunkReader implements HttpSyncer.PayloadReader {
+        boolean mDone = false;
+
+
+        @Override
+        public void readFrom(InputStream in) throws IOException {
+            mDone = applyChunk(new JsonReader(new BufferedReader(new InputStreamReader(in, "UTF-8"))));
+        }
+    }
+
+
+    /** Not in libanki. Writes the chunks of the client, as the "chunk" argument of applyChunk. */
+    private class ChunkWriter implements HttpSyncer.PayloadWriter {
+        boolean mDone = false;
+
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            JsonWriter w = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, "UTF-8")));
+            w.beginObject();
+            w.name("chunk");
+            mDone = chunk(w);
+            w.endObject();
+            // not closed, the request goes on
+            w.flush();
+        }
+    }
+
+
     /**
      * Deletions ********************************************************************
      */
@@ -813,68 +1007,87 @@ public class Syncer {
      * Cards/notes/revlog ********************************************************************
      */
 
-    private void mergeRevlog(JSONArray logs) {
-        for (int i = 0; i < logs.length(); i++) {
-            try {
-                mCol.getDb().execute("INSERT OR IGNORE INTO revlog VALUES (?,?,?,?,?,?,?,?,?)",
-                        Utils.jsonArray2Objects(logs.getJSONArray(i)));
-            } catch (SQLException | JSONException e) {
-                throw new RuntimeException(e);
-            }
+    /*
+     * Rows from the server are merged in sets: each batch is loaded into a temporary copy of its table with one
+     * prepared statement, and a single INSERT ... SELECT keeps those newer than the local rows. Not in libanki.
+     */
+
+    private void mergeRevlog(List<Object[]> logs) {
+        _loadMergeTable("revlog", logs);
+        mCol.getDb().execute("INSERT OR IGNORE INTO revlog SELECT * FROM temp.sync_revlog");
+        long[] cids = new long[logs.size()];
+        for (int i = 0; i < logs.size(); i++) {
+            cids[i] = ((Number) logs.get(i)[1]).longValue();
         }
+        mCol.getReviewSummary().cardsChanged(cids);
+    }
+
 
+    private void mergeCards(List<Object[]> cards) {
+        _loadMergeTable("cards", cards);
+        mCol.getDb().execute("INSERT OR REPLACE INTO cards SELECT * FROM temp.sync_cards s WHERE " + _newer("cards"));
+        mCol.log("cards", cards.size() + " rows merged");
     }
 
 
-    private ArrayList<Object[]> newerRows(JSONArray data, String table, int modIdx) {
-        long[] ids = new long[data.length()];
-        try {
-            for (int i = 0; i < data.length(); i++) {
-                ids[i] = data.getJSONArray(i).getLong(0);
-            }
-            HashMap<Long, Long> lmods = new HashMap<>();
-            Cursor cur = null;
-            try {
-                cur = mCol
-                        .getDb()
-                        .getDatabase()
-                        .rawQuery(
-                                "SELECT id, mod FROM " + table + " WHERE id IN " + Utils.ids2str(ids) + " AND "
-                                        + usnLim(), null);
-                while (cur.moveToNext()) {
-                    lmods.put(cur.getLong(0), cur.getLong(1));
-                }
-            } finally {
-                if (cur != null && !cur.isClosed()) {
-                    cur.close();
-                }
-            }
-            ArrayList<Object[]> update = new ArrayList<>();
-            for (int i = 0; i < data.length(); i++) {
-                JSONArray r = data.getJSONArray(i);
-                if (!lmods.containsKey(r.getLong(0)) || lmods.get(r.getLong(0)) < r.getLong(modIdx)) {
-                    update.add(Utils.jsonArray2Objects(r));
-                }
-            }
-            mCol.log(table, data);
-            return update;
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
+    private void mergeNotes(List<Object[]> notes) {
+        _loadMergeTable("notes", notes);
+        // the server sends no sort field or checksum: keep the local ones when the fields didn't change, and only
+        // compute them for the others
+        long[] nids = Utils.arrayList2array(mCol.getDb().queryColumn(Long.class,
+                "SELECT s.id FROM temp.sync_notes s LEFT JOIN notes n ON n.id = s.id WHERE " + _newer("notes")
+                        + " AND (n.id IS NULL OR n.mid != s.mid OR n.flds != s.flds)", 0));
+        mCol.getDb().execute("INSERT OR REPLACE INTO notes SELECT s.id, s.guid, s.mid, s.mod, s.usn, s.tags, s.flds, "
+                + "CASE WHEN n.mid = s.mid AND n.flds = s.flds THEN n.sfld ELSE s.sfld END, "
+                + "CASE WHEN n.mid = s.mid AND n.flds = s.flds THEN n.csum ELSE s.csum END, s.flags, s.data "
+                + "FROM temp.sync_notes s LEFT JOIN notes n ON n.id = s.id WHERE " + _newer("notes"));
+        if (nids.length > 0) {
+            mCol.updateFieldCache(nids);
+            mCol.getMedia().notesChanged(Utils.ids2str(nids));
         }
+        mCol.log("notes", notes.size() + " rows merged, " + nids.length + " field caches updated");
+    }
+
+
+    /** @return The condition on the rows s of the merge table that are newer than the local ones. */
+    private String _newer(String table) {
+        // local rows changed since the last sync win unless older; the subquery's usn is the local one
+        return "NOT EXISTS (SELECT 1 FROM " + table + " WHERE " + table + ".id = s.id AND " + table + ".mod >= s.mod"
+                + " AND " + usnLim() + ")";
     }
 
 
-    private void mergeCards(JSONArray cards) {
-        for (Object[] r : newerRows(cards, "cards", 4)) {
-            mCol.getDb().execute("INSERT OR REPLACE INTO cards VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)", r);
+    /** Empty the merge table of the table, creating it if needed, and fill it with the rows. */
+    private void _loadMergeTable(String table, List<Object[]> rows) {
+        DB db = mCol.getDb();
+        db.execute("CREATE TEMP TABLE IF NOT EXISTS sync_" + table + " AS SELECT * FROM " + table + " WHERE 0");
+        db.execute("DELETE FROM temp.sync_" + table);
+        if (rows.isEmpty()) {
+            return;
+        }
+        StringBuilder sql = new StringBuilder("INSERT INTO temp.sync_").append(table).append(" VALUES (?");
+        for (int i = 1; i < rows.get(0).length; i++) {
+            sql.append(",?");
+        }
+        DB.Statement insert = db.compileStatement(sql.append(")").toString());
+        try {
+            for (Object[] row : rows) {
+                insert.clearBindings();
+                for (int i = 0; i < row.length; i++) {
+                    insert.bindObject(i + 1, row[i] == JSONObject.NULL ? null : row[i]);
+                }
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
         }
     }
 
 
-    private void mergeNotes(JSONArray notes) {
-        for (Object[] n : newerRows(notes, "notes", 4)) {
-            mCol.getDb().execute("INSERT OR REPLACE INTO notes VALUES (?,?,?,?,?,?,?,?,?,?,?)", n);
-            mCol.updateFieldCache(new long[]{Long.valueOf(((Number) n[0]).longValue())});
+    /** Drop the merge tables once the chunks from the server are applied. */
+    private void _dropMergeTables() {
+        for (String table : new String[] { "revlog", "cards", "notes" }) {
+            mCol.getDb().execute("DROP TABLE IF EXISTS temp.sync_" + table);
         }
     }
 
@@ -0,0 +1,389 @@
+/****************************************************************************************
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki.template;
+
+import com.ichi2.libanki.Utils;
+
+import org.json.JSONArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Not in libanki.
+ *
+ * Works out the "req" entry of a question template from the parsed template, instead of rendering the card once per
+ * field like Models._reqForTemplate does. The template is parsed once into literal text, field references and
+ * sections; the probes of the render based version are then evaluated against that tree, which gives the same
+ * answers without going through the mustache regexps, the hooks and the model lookups of a full render every time.
+ *
+ * Only what card templates use in practice is understood: field references with the text:, type:, cloze:, hint:,
+ * furigana:, kana: and kanji: modifiers, comments, and properly nested #/^ sections. Anything else (delimiter changes,
+ * partials, unknown modifiers, unbalanced sections, markup that a mungeQA hook would rewrite...) makes
+ * {@link #reqForTemplate} return null, and the caller should fall back to rendering.
+ */
+public class TemplateAnalyzer {
+
+    /** Content of non-empty fields when looking for required fields, as in Models._reqForTemplate. */
+    private static final String FLAG = "ankiflag";
+
+    // Same rewrite of cloze modifiers as Collection._renderQA does for the question
+    private static final Pattern fClozePatternQ = Pattern.compile("\\{\\{(?!type:)(.*?)cloze:");
+    private static final Pattern fClozeTagStart = Pattern.compile("<%cloze:");
+    private static final Pattern fClozeSection = Pattern.compile("c[qa]:(\\d+):(.+)");
+    private static final Pattern fClozeMod = Pattern.compile("c[qa]-\\d+");
+    private static final Pattern fHookMod = Pattern.compile("^(hint|furigana|kana|kanji)(?:\\((.*)\\))?$");
+    /** Output that the LaTeX, chess or Hebrew mungeQA hooks would rewrite. */
+    private static final Pattern fMungedMarkup = Pattern.compile(
+            "\\[/?(latex|\\$|\\$\\$)\\]|\\[/?fen|[\\u0590-\\u05ff]", Pattern.CASE_INSENSITIVE);
+
+    private final Map<String, Integer> mFieldIndex = new HashMap<>();
+    private final Map<String, String> mSpecials;
+    private final int mFieldCount;
+
+    private String mTemplate;
+    private int mPos;
+    private List<Node> mRoot;
+    private final List<String> mOpenSections = new ArrayList<>();
+
+
+    private TemplateAnalyzer(List<String> fields, Map<String, String> specials) {
+        for (int i = 0; i < fields.size(); i++) {
+            mFieldIndex.put(fields.get(i), i);
+        }
+        mSpecials = specials;
+        mFieldCount = fields.size();
+    }
+
+
+    /**
+     * @param qfmt the question format of the template
+     * @param ord the ord of the template
+     * @param fields names of the model's fields, in order
+     * @param specials the other values _renderQA puts in the context (Tags, Type, Deck, Subdeck, Card and cN) for a
+     *            card of this template
+     * @return the same [type, fields] pair Models._reqForTemplate would return, or null if the template uses something
+     *         the analysis doesn't understand
+     */
+    public static Object[] reqForTemplate(String qfmt, int ord, List<String> fields, Map<String, String> specials) {
+        TemplateAnalyzer a = new TemplateAnalyzer(fields, specials);
+        String format = fClozePatternQ.matcher(qfmt).replaceAll(String.format(Locale.US, "{{$1cq-%d:", ord + 1));
+        format = fClozeTagStart.matcher(format).replaceAll(String.format(Locale.US, "<%%cq:%d:", ord + 1));
+        try {
+            a.mTemplate = format;
+            a.mPos = 0;
+            a.mRoot = a._parse(null);
+            return a._req();
+        } catch (Unsupported e) {
+            return null;
+        }
+    }
+
+
+    private Object[] _req() {
+        String[] full = new String[mFieldCount];
+        String[] empty = new String[mFieldCount];
+        Arrays.fill(full, FLAG);
+        Arrays.fill(empty, "");
+        String emptyQ = _eval(empty);
+        // if full and empty are the same, the template is invalid and there is no way to satisfy it
+        if (_eval(full).equals(emptyQ)) {
+            return new Object[] { "none", new JSONArray(), new JSONArray() };
+        }
+        JSONArray req = new JSONArray();
+        for (int i = 0; i < mFieldCount; i++) {
+            String[] values = full.clone();
+            values[i] = "";
+            // if no field content appeared, field is required
+            if (!_eval(values).contains(FLAG)) {
+                req.put(i);
+            }
+        }
+        if (req.length() > 0) {
+            return new Object[] { "all", req };
+        }
+        // if there are no required fields, switch to any mode
+        req = new JSONArray();
+        for (int i = 0; i < mFieldCount; i++) {
+            String[] values = empty.clone();
+            values[i] = "1";
+            // if not the same as empty, this field can make the card non-blank
+            if (!_eval(values).equals(emptyQ)) {
+                req.put(i);
+            }
+        }
+        return new Object[] { "any", req };
+    }
+
+
+    /**
+     * Parsing ******************************************************************************************************
+     */
+
+    /**
+     * Parse nodes until the closing tag of the given section, or the end of the template for the top level.
+     */
+    private List<Node> _parse(String section) {
+        List<Node> nodes = new ArrayList<>();
+        boolean afterTag = section != null;
+        while (true) {
+            int open = mTemplate.indexOf("{{", mPos);
+            String text = mTemplate.substring(mPos, open == -1 ? mTemplate.length() : open);
+            // braces next to a tag could merge with it once the tags around them are replaced
+            if (text.length() > 0 && (afterTag && _isBrace(text.charAt(0))
+                    || open != -1 && _isBrace(text.charAt(text.length() - 1)))) {
+                throw new Unsupported();
+            }
+            if (text.length() > 0) {
+                nodes.add(new Node(text));
+            }
+            if (open == -1) {
+                if (section != null) {
+                    throw new Unsupported();
+                }
+                return nodes;
+            }
+            int close = mTemplate.indexOf("}}", open + 2);
+            if (close == -1) {
+                if (mTemplate.indexOf('}', open) != -1 || section != null) {
+                    throw new Unsupported();
+                }
+                // never matched as a tag, stays as it is
+                nodes.add(new Node(mTemplate.substring(open)));
+                return nodes;
+            }
+            String content = mTemplate.substring(open + 2, close);
+            mPos = close + 2;
+            afterTag = true;
+            if (content.length() == 0 || content.contains("{") || content.contains("}")
+                    || content.contains("\n") || content.contains("\r")) {
+                throw new Unsupported();
+            }
+            char type = content.charAt(0);
+            if (type == '#' || type == '^') {
+                String name = content.substring(1);
+                if (name.trim().length() == 0 || mOpenSections.contains(name)) {
+                    // the section regexp doesn't nest sections of the same name
+                    throw new Unsupported();
+                }
+                int start = mPos;
+                mOpenSections.add(name);
+                List<Node> inner = _parse(name);
+                mOpenSections.remove(mOpenSections.size() - 1);
+                if (mPos - start <= name.length() + 5) {
+                    // empty sections are not matched by the section regexp
+                    throw new Unsupported();
+                }
+                nodes.add(_section(name, type == '^', inner));
+            } else if (type == '/') {
+                if (section == null || !section.equals(content.substring(1))) {
+                    throw new Unsupported();
+                }
+                return nodes;
+            } else if (type == '!') {
+                // comment
+                continue;
+            } else if (type == '=' || type == '&' || type == '>' || type == '{' || type == '|') {
+                throw new Unsupported();
+            } else {
+                nodes.add(_reference(content.trim()));
+            }
+        }
+    }
+
+
+    private Node _section(String rawName, boolean inverted, List<Node> inner) {
+        String name = rawName.trim();
+        if (fClozeSection.matcher(name).find()) {
+            throw new Unsupported();
+        }
+        Node n = new Node(inverted, inner);
+        if (mSpecials.containsKey(name)) {
+            n.constant = _nonEmpty(mSpecials.get(name)) ? "1" : "";
+        } else if (mFieldIndex.containsKey(name)) {
+            n.field = mFieldIndex.get(name);
+        } else {
+            // unknown fields are empty
+            n.constant = "";
+        }
+        return n;
+    }
+
+
+    private Node _reference(String tagName) {
+        Node n = new Node(tagName, Node.REFERENCE);
+        if (mSpecials.containsKey(tagName)) {
+            n.constant = _checked(mSpecials.get(tagName));
+            return n;
+        }
+        if (mFieldIndex.containsKey(tagName)) {
+            n.field = mFieldIndex.get(tagName);
+            return n;
+        }
+        String[] parts = tagName.split(":");
+        if (parts.length == 1 || parts[0].equals("")) {
+            n.constant = String.format("{unknown field %s}", tagName);
+            return n;
+        }
+        for (int i = 0; i < parts.length - 1; i++) {
+            String mod = parts[i];
+            if (!mod.equals("text") && !mod.equals("type") && !fClozeMod.matcher(mod).matches()
+                    && !fHookMod.matcher(mod).matches()) {
+                throw new Unsupported();
+            }
+        }
+        n.modified = true;
+        String tag = parts[parts.length - 1];
+        if (mSpecials.containsKey(tag)) {
+            n.constant = _checked(_renderReference(tagName, tag, mSpecials.get(tag)));
+        } else if (mFieldIndex.containsKey(tag)) {
+            n.field = mFieldIndex.get(tag);
+            n.tag = tag;
+        } else {
+            n.constant = _checked(_renderReference(tagName, null, null));
+        }
+        return n;
+    }
+
+
+    private static String _checked(String constant) {
+        if (constant == null || constant.contains("{{") || constant.contains("}}")) {
+            throw new Unsupported();
+        }
+        return constant;
+    }
+
+
+    private static boolean _isBrace(char c) {
+        return c == '{' || c == '}';
+    }
+
+
+    /**
+     * Evaluation ***************************************************************************************************
+     */
+
+    /** @return the question this template renders to for the given field contents */
+    private String _eval(String[] values) {
+        StringBuilder sb = new StringBuilder();
+        _eval(mRoot, values, sb);
+        String q = sb.toString();
+        if (fMungedMarkup.matcher(q).find()) {
+            throw new Unsupported();
+        }
+        return q;
+    }
+
+
+    private void _eval(List<Node> nodes, String[] values, StringBuilder sb) {
+        for (Node n : nodes) {
+            switch (n.kind) {
+                case Node.TEXT:
+                    sb.append(n.text);
+                    break;
+                case Node.SECTION:
+                    String it = n.field >= 0 ? values[n.field] : n.constant;
+                    if (_nonEmpty(it) != n.inverted) {
+                        _eval(n.children, values, sb);
+                    }
+                    break;
+                default:
+                    if (n.field < 0) {
+                        sb.append(n.constant);
+                    } else if (!n.modified) {
+                        sb.append(values[n.field]);
+                    } else {
+                        sb.append(n.render(values[n.field]));
+                    }
+                    break;
+            }
+        }
+    }
+
+
+    private static boolean _nonEmpty(String it) {
+        return it != null && it.length() > 0 && Utils.stripHTMLMedia(it).trim().length() > 0;
+    }
+
+
+    /** Render a single reference with modifiers through the real template code. */
+    private static String _renderReference(String tagName, String tag, String value) {
+        Map<String, String> context = new HashMap<>();
+        if (tag != null) {
+            context.put(tag, value);
+        }
+        return new Template("{{" + tagName + "}}", context).render();
+    }
+
+
+    private static class Node {
+        static final int TEXT = 0;
+        static final int SECTION = 1;
+        static final int REFERENCE = 2;
+
+        final int kind;
+        String text;
+        // sections
+        boolean inverted;
+        List<Node> children;
+        // references and sections: either a field index or a constant value
+        int field = -1;
+        String constant;
+        // references with modifiers
+        boolean modified;
+        String tag;
+        Map<String, String> rendered;
+
+        Node(String text) {
+            this.kind = TEXT;
+            this.text = text;
+        }
+
+        Node(boolean inverted, List<Node> children) {
+            this.kind = SECTION;
+            this.inverted = inverted;
+            this.children = children;
+        }
+
+        /** Reference; text holds the full tag name. */
+        Node(String tagName, int kind) {
+            this.kind = kind;
+            this.text = tagName;
+        }
+
+        String render(String value) {
+            if (rendered == null) {
+                rendered = new HashMap<>();
+            }
+            String r = rendered.get(value);
+            if (r == null) {
+                r = _checked(_renderReference(text, tag, value));
+                rendered.put(value, r);
+            }
+            return r;
+        }
+    }
+
+
+    /** The template uses something we can't analyze. */
+    private static class Unsupported extends RuntimeException {
+    }
+}